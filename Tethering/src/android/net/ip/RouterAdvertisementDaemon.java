@@ -38,6 +38,7 @@ import android.net.LinkAddress;
 import android.net.MacAddress;
 import android.net.TrafficStats;
 import android.net.util.SocketUtils;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructTimeval;
@@ -45,6 +46,7 @@ import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.InterfaceParams;
 import com.android.net.module.util.structs.Icmpv6Header;
 import com.android.net.module.util.structs.LlaOption;
@@ -63,13 +65,16 @@ import java.net.SocketException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -101,30 +106,46 @@ public class RouterAdvertisementDaemon {
     // Both initial and final RAs, but also for changes in RA contents.
     // From https://tools.ietf.org/html/rfc4861#section-10 .
     private static final int  MAX_URGENT_RTR_ADVERTISEMENTS = 5;
+    // MAX_RA_DELAY_TIME from https://tools.ietf.org/html/rfc4861#section-10 . Solicitations
+    // received within this window beyond MAX_UNICAST_RAS_PER_WINDOW are answered by a single
+    // multicast RA, as allowed by https://tools.ietf.org/html/rfc4861#section-6.2.6 .
+    @VisibleForTesting
+    static final long RS_COALESCING_WINDOW_MS = 500;
+    @VisibleForTesting
+    static final int MAX_UNICAST_RAS_PER_WINDOW = 3;
 
     private static final int DAY_IN_SECONDS = 86_400;
 
     private final InterfaceParams mInterface;
     private final InetSocketAddress mAllNodes;
 
-    // This lock is to protect the RA from being updated while being
-    // transmitted on another thread  (multicast or unicast).
-    //
-    // TODO: This should be handled with a more RCU-like approach.
+    // This lock protects the RA parameters and the buffer used to assemble the RA. Senders do not
+    // take it: they send the immutable packet last published in mRaPacket.
     private final Object mLock = new Object();
     @GuardedBy("mLock")
     private final byte[] mRA = new byte[IPV6_MIN_MTU];
+    // Length of the part of mRA built from mRaParams, which is followed by the deprecated options.
+    @GuardedBy("mLock")
+    private int mBaseRaLength;
+    // Whether the part of mRA built from mRaParams has any information worth announcing.
     @GuardedBy("mLock")
-    private int mRaLength;
+    private boolean mBaseHasInfo;
     @GuardedBy("mLock")
     private final DeprecatedInfoTracker mDeprecatedInfoTracker;
     @GuardedBy("mLock")
     private RaParams mRaParams;
 
+    // The RA to send, or null if there is nothing worth announcing. Never modified once published.
+    private volatile byte[] mRaPacket;
+
     private volatile FileDescriptor mSocket;
     private volatile MulticastTransmitter mMulticastTransmitter;
     private volatile UnicastResponder mUnicastResponder;
 
+    private final AtomicLong mRaSent = new AtomicLong();
+    private final AtomicLong mRsReceived = new AtomicLong();
+    private final AtomicLong mRsCoalesced = new AtomicLong();
+
     /** Encapsulate the RA parameters for RouterAdvertisementDaemon.*/
     public static class RaParams {
         // Tethered traffic will have the hop limit properly decremented.
@@ -297,6 +318,30 @@ public class RouterAdvertisementDaemon {
         mUnicastResponder = null;
     }
 
+    /** Returns the RA sent to solicitors and to all nodes, or null if there is none. */
+    @VisibleForTesting
+    byte[] getRaPacket() {
+        return mRaPacket;
+    }
+
+    /** Returns the number of RAs sent, multicast or unicast. */
+    public long getRaSentCount() {
+        return mRaSent.get();
+    }
+
+    /** Returns the number of Router Solicitations received. */
+    public long getRsReceivedCount() {
+        return mRsReceived.get();
+    }
+
+    /**
+     * Returns the number of Router Solicitations answered by a multicast RA shared with other
+     * solicitations, instead of a unicast RA.
+     */
+    public long getRsCoalescedCount() {
+        return mRsCoalesced.get();
+    }
+
     @GuardedBy("mLock")
     private void assembleRaLocked() {
         final ByteBuffer ra = ByteBuffer.wrap(mRA);
@@ -304,12 +349,13 @@ public class RouterAdvertisementDaemon {
 
         final boolean haveRaParams = (mRaParams != null);
         boolean shouldSendRA = false;
+        int raLength = 0;
 
         try {
             putHeader(ra, haveRaParams && mRaParams.hasDefaultRoute,
                     haveRaParams ? mRaParams.hopLimit : RaParams.DEFAULT_HOPLIMIT);
             putSlla(ra, mInterface.macAddr.toByteArray());
-            mRaLength = ra.position();
+            raLength = ra.position();
 
             // https://tools.ietf.org/html/rfc5175#section-4 says:
             //
@@ -320,44 +366,64 @@ public class RouterAdvertisementDaemon {
 
             if (haveRaParams) {
                 putMtu(ra, mRaParams.mtu);
-                mRaLength = ra.position();
+                raLength = ra.position();
 
                 for (IpPrefix ipp : mRaParams.prefixes) {
                     putPio(ra, ipp, DEFAULT_LIFETIME, DEFAULT_LIFETIME);
-                    mRaLength = ra.position();
+                    raLength = ra.position();
                     shouldSendRA = true;
                 }
 
                 if (mRaParams.dnses.size() > 0) {
                     putRdnss(ra, mRaParams.dnses, DEFAULT_LIFETIME);
-                    mRaLength = ra.position();
+                    raLength = ra.position();
                     shouldSendRA = true;
                 }
             }
+        } catch (BufferOverflowException e) {
+            // The packet up to raLength is valid, since it has been updated
+            // progressively as the RA was built. Log an error, and continue
+            // on as best as possible.
+            Log.e(TAG, "Could not construct new RA: " + e);
+        }
+
+        mBaseRaLength = raLength;
+        mBaseHasInfo = shouldSendRA;
+        assembleDeprecatedInfoLocked();
+    }
+
+    /**
+     * Rebuild the deprecated options following the part of the RA built from mRaParams, and
+     * publish the resulting RA. The rest of the RA is reused as is, since it only changes with
+     * mRaParams.
+     */
+    @GuardedBy("mLock")
+    private void assembleDeprecatedInfoLocked() {
+        final ByteBuffer ra = ByteBuffer.wrap(mRA, mBaseRaLength, mRA.length - mBaseRaLength);
+        ra.order(ByteOrder.BIG_ENDIAN);
+
+        boolean shouldSendRA = mBaseHasInfo;
+        int raLength = mBaseRaLength;
 
+        try {
             for (IpPrefix ipp : mDeprecatedInfoTracker.getPrefixes()) {
                 putPio(ra, ipp, 0, 0);
-                mRaLength = ra.position();
+                raLength = ra.position();
                 shouldSendRA = true;
             }
 
             final Set<Inet6Address> deprecatedDnses = mDeprecatedInfoTracker.getDnses();
             if (!deprecatedDnses.isEmpty()) {
                 putRdnss(ra, deprecatedDnses, 0);
-                mRaLength = ra.position();
+                raLength = ra.position();
                 shouldSendRA = true;
             }
         } catch (BufferOverflowException e) {
-            // The packet up to mRaLength  is valid, since it has been updated
-            // progressively as the RA was built. Log an error, and continue
-            // on as best as possible.
             Log.e(TAG, "Could not construct new RA: " + e);
         }
 
-        // We have nothing worth announcing; indicate as much to maybeSendRA().
-        if (!shouldSendRA) {
-            mRaLength = 0;
-        }
+        // If there is nothing worth announcing, indicate as much to maybeSendRA().
+        mRaPacket = shouldSendRA ? Arrays.copyOf(mRA, raLength) : null;
     }
 
     private void maybeNotifyMulticastTransmitter() {
@@ -550,14 +616,14 @@ public class RouterAdvertisementDaemon {
             dest = mAllNodes;
         }
 
+        final byte[] ra = mRaPacket;
+        if (ra == null || ra.length < ICMPV6_RA_HEADER_LEN) {
+            // No actual RA to send.
+            return;
+        }
         try {
-            synchronized (mLock) {
-                if (mRaLength < ICMPV6_RA_HEADER_LEN) {
-                    // No actual RA to send.
-                    return;
-                }
-                Os.sendto(mSocket, mRA, 0, mRaLength, 0, dest);
-            }
+            Os.sendto(mSocket, ra, 0, ra.length, 0, dest);
+            mRaSent.incrementAndGet();
             Log.d(TAG, "RA sendto " + dest.getAddress().getHostAddress());
         } catch (ErrnoException | SocketException e) {
             if (isSocketValid()) {
@@ -572,6 +638,9 @@ public class RouterAdvertisementDaemon {
         // If the RS is larger than IPV6_MIN_MTU the packets are truncated.
         // This is fine since currently only byte 0 is examined anyway.
         private final byte[] mSolicitation = new byte[IPV6_MIN_MTU];
+        // Start of the current coalescing window, and number of solicitations received in it.
+        private long mWindowStartMs;
+        private int mWindowSolicitations;
 
         @Override
         public void run() {
@@ -591,9 +660,27 @@ public class RouterAdvertisementDaemon {
                     continue;
                 }
 
+                mRsReceived.incrementAndGet();
+                if (shouldCoalesce(SystemClock.elapsedRealtime())) {
+                    mRsCoalesced.incrementAndGet();
+                    final MulticastTransmitter m = mMulticastTransmitter;
+                    if (m != null) {
+                        m.solicit();
+                    }
+                    continue;
+                }
                 maybeSendRA(mSolicitor);
             }
         }
+
+        private boolean shouldCoalesce(long nowMs) {
+            if (nowMs - mWindowStartMs >= RS_COALESCING_WINDOW_MS) {
+                mWindowStartMs = nowMs;
+                mWindowSolicitations = 0;
+            }
+            mWindowSolicitations++;
+            return mWindowSolicitations > MAX_UNICAST_RAS_PER_WINDOW;
+        }
     }
 
     // TODO: Consider moving this to run on a provided Looper as a Handler,
@@ -601,6 +688,9 @@ public class RouterAdvertisementDaemon {
     private final class MulticastTransmitter extends Thread {
         private final Random mRandom = new Random();
         private final AtomicInteger mUrgentAnnouncements = new AtomicInteger(0);
+        // Whether a multicast RA was requested to answer coalesced solicitations.
+        private final AtomicBoolean mSolicited = new AtomicBoolean(false);
+        private long mLastMulticastMs;
 
         @Override
         public void run() {
@@ -611,17 +701,44 @@ public class RouterAdvertisementDaemon {
                     // Stop sleeping, immediately send an RA, and continue.
                 }
 
+                if (mSolicited.get()) {
+                    waitForMinDelayBetweenRas();
+                }
+                // Solicitations received from now on need another RA.
+                mSolicited.set(false);
                 maybeSendRA(mAllNodes);
+                mLastMulticastMs = SystemClock.elapsedRealtime();
                 synchronized (mLock) {
                     if (mDeprecatedInfoTracker.decrementCounters()) {
                         // At least one deprecated PIO has been removed;
-                        // reassemble the RA.
-                        assembleRaLocked();
+                        // rebuild the deprecated options of the RA.
+                        assembleDeprecatedInfoLocked();
                     }
                 }
             }
         }
 
+        /**
+         * Request a multicast RA to answer solicitations, without sending more than one multicast
+         * RA every MIN_DELAY_BETWEEN_RAS_SEC.
+         */
+        public void solicit() {
+            if (!mSolicited.getAndSet(true)) {
+                interrupt();
+            }
+        }
+
+        private void waitForMinDelayBetweenRas() {
+            final long delayMs = mLastMulticastMs + 1000L * MIN_DELAY_BETWEEN_RAS_SEC
+                    - SystemClock.elapsedRealtime();
+            if (delayMs <= 0) return;
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException ignored) {
+                // New RA contents (hup) or solicitations: send now.
+            }
+        }
+
         public void hup() {
             // Set to one fewer that the desired number, because as soon as
             // the thread interrupt is processed we immediately send an RA
@@ -634,7 +751,8 @@ public class RouterAdvertisementDaemon {
         private int getNextMulticastTransmitDelaySec() {
             boolean deprecationInProgress = false;
             synchronized (mLock) {
-                if (mRaLength < ICMPV6_RA_HEADER_LEN) {
+                final byte[] ra = mRaPacket;
+                if (ra == null || ra.length < ICMPV6_RA_HEADER_LEN) {
                     // No actual RA to send; just sleep for 1 day.
                     return DAY_IN_SECONDS;
                 }
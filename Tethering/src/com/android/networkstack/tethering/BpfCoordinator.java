@@ -84,7 +84,7 @@ import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
 import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
-import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.NetlinkMessageBatcher;
 import com.android.networkstack.tethering.apishim.common.BpfCoordinatorShim;
 import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
 import com.android.server.ConnectivityStatsLog;
@@ -319,6 +319,18 @@ public class BpfCoordinator {
         schedulePollingStats();
     };
 
+    // Batches the conntrack timeout update requests of a refresh into a few netlink datagrams.
+    // Created lazily on the first refresh and closed when polling stops.
+    @Nullable
+    private NetlinkMessageBatcher mConntrackTimeoutBatcher = null;
+
+    // Metrics of the conntrack timeout refreshes, for dump.
+    private int mLastConntrackRefreshFlowCount = 0;
+    private long mLastConntrackRefreshDurationUs = 0;
+    private long mMaxConntrackRefreshDurationUs = 0;
+    private long mTotalConntrackRefreshFlowCount = 0;
+    private long mTotalConntrackRefreshFailureCount = 0;
+
     // Runnable that used by scheduling next refreshing of conntrack timeout.
     private final Runnable mScheduledConntrackTimeoutUpdate = () -> {
         refreshAllConntrackTimeouts();
@@ -495,6 +507,14 @@ public class BpfCoordinator {
             }
         }
 
+        /**
+         * Get a batcher for netlink messages sent to the given netlink protocol.
+         */
+        @NonNull public NetlinkMessageBatcher getNetlinkMessageBatcher(int nlProto,
+                @NonNull NetlinkMessageBatcher.ErrorListener listener) {
+            return new NetlinkMessageBatcher(nlProto, listener);
+        }
+
         /** Send a TetheringActiveSessionsReported event. */
         public void sendTetheringActiveSessionsReported(int lastMaxSessionCount) {
             ConnectivityStatsLog.write(ConnectivityStatsLog.TETHERING_ACTIVE_SESSIONS_REPORTED,
@@ -576,6 +596,10 @@ public class BpfCoordinator {
         if (mHandler.hasCallbacks(mScheduledConntrackTimeoutUpdate)) {
             mHandler.removeCallbacks(mScheduledConntrackTimeoutUpdate);
         }
+        if (mConntrackTimeoutBatcher != null) {
+            mConntrackTimeoutBatcher.close();
+            mConntrackTimeoutBatcher = null;
+        }
         // Stop scheduled polling conntrack metrics sampling and
         // clear counters in case there is any counter unsync problem
         // previously due to possible bpf failures.
@@ -1371,6 +1395,16 @@ public class BpfCoordinator {
                 + mBpfConntrackEventConsumer.getLastMaxConnectionCount());
         pw.println("getCurrentConnectionCount: "
                 + mBpfConntrackEventConsumer.getCurrentConnectionCount());
+
+        pw.println();
+        pw.println("Conntrack timeout refresh:");
+        pw.increaseIndent();
+        pw.println("Last refresh: " + mLastConntrackRefreshFlowCount + " flows in "
+                + mLastConntrackRefreshDurationUs + " us");
+        pw.println("Max refresh duration: " + mMaxConntrackRefreshDurationUs + " us");
+        pw.println("Total refreshed flows: " + mTotalConntrackRefreshFlowCount);
+        pw.println("Total failed updates: " + mTotalConntrackRefreshFailureCount);
+        pw.decreaseIndent();
     }
 
     private void dumpStats(@NonNull IndentingPrintWriter pw) {
@@ -2535,10 +2569,11 @@ public class BpfCoordinator {
         return null;
     }
 
-    // Update CTA_TUPLE_ORIG timeout for a given conntrack entry. Note that there will also be
-    // coming a conntrack event to notify updated timeout.
-    private void updateConntrackTimeout(byte proto, Inet4Address src4, short srcPort,
-            Inet4Address dst4, short dstPort) {
+    // Queue a CTA_TUPLE_ORIG timeout update for a given conntrack entry. Note that there will
+    // also be coming a conntrack event to notify updated timeout. Returns the number of updates
+    // sent by flushing the batch to make room for this one.
+    private int queueConntrackTimeoutUpdate(@NonNull NetlinkMessageBatcher batcher,
+            byte proto, Inet4Address src4, short srcPort, Inet4Address dst4, short dstPort) {
         if (src4 == null || dst4 == null) {
             mLog.e("Either source or destination IPv4 address is invalid ("
                     + "proto: " + proto + ", "
@@ -2546,7 +2581,7 @@ public class BpfCoordinator {
                     + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
                     + "dst4: " + dst4 + ", "
                     + "dstPort: " + Short.toUnsignedInt(dstPort) + ")");
-            return;
+            return 0;
         }
 
         // TODO: consider acquiring the timeout setting from nf_conntrack_* variables.
@@ -2559,54 +2594,78 @@ public class BpfCoordinator {
         final byte[] msg = ConntrackMessage.newIPv4TimeoutUpdateRequest(
                 proto, src4, (int) srcPort, dst4, (int) dstPort, timeoutSec);
         try {
-            NetlinkUtils.sendOneShotKernelMessage(OsConstants.NETLINK_NETFILTER, msg);
+            return batcher.add(msg);
         } catch (ErrnoException e) {
-            // Lower the log level for the entry not existing. The conntrack entry may have been
-            // deleted and not handled by the conntrack event monitor yet. In other words, the
-            // rule has not been deleted from the BPF map yet. Deleting a non-existent entry may
-            // happen during the conntrack timeout refreshing iteration. Note that ENOENT may be
-            // a real error but is hard to distinguish.
-            // TODO: Figure out a better way to handle this.
-            final String errMsg = "Failed to update conntrack entry ("
-                    + "proto: " + proto + ", "
-                    + "src4: " + src4 + ", "
-                    + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
-                    + "dst4: " + dst4 + ", "
-                    + "dstPort: " + Short.toUnsignedInt(dstPort) + "), "
-                    + "msg: " + NetlinkConstants.hexify(msg) + ", "
-                    + "e: " + e;
-            if (OsConstants.ENOENT == e.errno) {
-                mLog.w(errMsg);
-            } else {
-                mLog.e(errMsg);
-            }
+            // Adding a message flushes the batch when it is full. The messages of that batch
+            // and this message are dropped; they will be retried by the next refresh if still in
+            // use.
+            mLog.e("Failed to send conntrack timeout update batch: " + e);
+        } catch (IllegalArgumentException e) {
+            mLog.e("Invalid conntrack timeout update request: " + e);
+        }
+        return 0;
+    }
+
+    // Called for each conntrack timeout update request which the kernel rejected.
+    private void onConntrackTimeoutUpdateFailed(@NonNull byte[] msg, int errno) {
+        mTotalConntrackRefreshFailureCount++;
+        // Lower the log level for the entry not existing. The conntrack entry may have been
+        // deleted and not handled by the conntrack event monitor yet. In other words, the
+        // rule has not been deleted from the BPF map yet. Deleting a non-existent entry may
+        // happen during the conntrack timeout refreshing iteration. Note that ENOENT may be
+        // a real error but is hard to distinguish.
+        // TODO: Figure out a better way to handle this.
+        final String errMsg = "Failed to update conntrack entry, msg: "
+                + NetlinkConstants.hexify(msg) + ", errno: " + OsConstants.errnoName(errno);
+        if (OsConstants.ENOENT == errno) {
+            mLog.w(errMsg);
+        } else {
+            mLog.e(errMsg);
         }
     }
 
     private void refreshAllConntrackTimeouts() {
         final long now = mDeps.elapsedRealtimeNanos();
+        if (mConntrackTimeoutBatcher == null) {
+            mConntrackTimeoutBatcher = mDeps.getNetlinkMessageBatcher(
+                    OsConstants.NETLINK_NETFILTER, this::onConntrackTimeoutUpdateFailed);
+        }
+        final NetlinkMessageBatcher batcher = mConntrackTimeoutBatcher;
+        final int[] flowCount = new int[1];
 
         // TODO: Consider ignoring TCP traffic on upstream and monitor on downstream only
         // because TCP is a bidirectional traffic. Probably don't need to extend timeout by
         // both directions for TCP.
         mBpfCoordinatorShim.tetherOffloadRuleForEach(UPSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                flowCount[0] += queueConntrackTimeoutUpdate(batcher, (byte) k.l4proto,
                         parseIPv4Address(k.src4), (short) k.srcPort,
                         parseIPv4Address(k.dst4), (short) k.dstPort);
             }
         });
 
         // Reverse the source and destination {address, port} from downstream value because
-        // #updateConntrackTimeout refresh the timeout of netlink attribute CTA_TUPLE_ORIG
+        // #queueConntrackTimeoutUpdate refresh the timeout of netlink attribute CTA_TUPLE_ORIG
         // which is opposite direction for downstream map value.
         mBpfCoordinatorShim.tetherOffloadRuleForEach(DOWNSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                flowCount[0] += queueConntrackTimeoutUpdate(batcher, (byte) k.l4proto,
                         parseIPv4Address(v.dst46), (short) v.dstPort,
                         parseIPv4Address(v.src46), (short) v.srcPort);
             }
         });
+
+        try {
+            flowCount[0] += batcher.flush();
+        } catch (ErrnoException e) {
+            mLog.e("Failed to send conntrack timeout update batch: " + e);
+        }
+
+        final long durationUs = (mDeps.elapsedRealtimeNanos() - now) / 1000;
+        mLastConntrackRefreshFlowCount = flowCount[0];
+        mLastConntrackRefreshDurationUs = durationUs;
+        mMaxConntrackRefreshDurationUs = Math.max(mMaxConntrackRefreshDurationUs, durationUs);
+        mTotalConntrackRefreshFlowCount += flowCount[0];
     }
 
     private void uploadConntrackMetricsSample() {
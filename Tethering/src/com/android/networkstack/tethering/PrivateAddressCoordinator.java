@@ -42,6 +42,7 @@ import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.networkstack.tethering.util.Ipv4BlockSet;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -80,6 +81,10 @@ public class PrivateAddressCoordinator {
     // keyed by downstream type(TetheringManager.TETHERING_*).
     private final ArrayMap<AddressKey, LinkAddress> mCachedAddresses;
     private final Random mRandom;
+    // The PREFIX_LENGTH blocks overlapping any upstream prefix, rebuilt when upstream prefixes
+    // change so that each downstream address request does not scan all upstream prefixes.
+    private final Ipv4BlockSet mUpstreamBlocks = new Ipv4BlockSet(PREFIX_LENGTH);
+    private boolean mUpstreamBlocksValid = true;
 
     public PrivateAddressCoordinator(Context context, TetheringConfiguration config) {
         mDownstreams = new ArraySet<>();
@@ -120,6 +125,7 @@ public class PrivateAddressCoordinator {
         }
 
         mUpstreamPrefixMap.put(ns.network, ipv4Prefixes);
+        mUpstreamBlocksValid = false;
         handleMaybePrefixConflict(ipv4Prefixes);
     }
 
@@ -149,7 +155,7 @@ public class PrivateAddressCoordinator {
 
     /** Remove IpPrefix records corresponding to input network. */
     public void removeUpstreamPrefix(final Network network) {
-        mUpstreamPrefixMap.remove(network);
+        if (mUpstreamPrefixMap.remove(network) != null) mUpstreamBlocksValid = false;
     }
 
     /**
@@ -163,7 +169,7 @@ public class PrivateAddressCoordinator {
         final Set<Network> toBeRemoved = new HashSet<>(mUpstreamPrefixMap.keySet());
         toBeRemoved.removeAll(asList(mConnectivityMgr.getAllNetworks()));
 
-        mUpstreamPrefixMap.removeAll(toBeRemoved);
+        if (mUpstreamPrefixMap.removeAll(toBeRemoved)) mUpstreamBlocksValid = false;
     }
 
     /**
@@ -189,11 +195,13 @@ public class PrivateAddressCoordinator {
             return cachedAddress;
         }
 
+        final Ipv4BlockSet inUseDownstreamBlocks = getInUseDownstreamBlocks();
         final int prefixIndex = getStartedPrefixIndex();
         for (int i = 0; i < mTetheringPrefixes.size(); i++) {
             final IpPrefix prefixRange = mTetheringPrefixes.get(
                     (prefixIndex + i) % mTetheringPrefixes.size());
-            final LinkAddress newAddress = chooseDownstreamAddress(prefixRange);
+            final LinkAddress newAddress =
+                    chooseDownstreamAddress(prefixRange, inUseDownstreamBlocks);
             if (newAddress != null) {
                 mDownstreams.add(ipServer);
                 mCachedAddresses.put(addrKey, newAddress);
@@ -231,39 +239,8 @@ public class PrivateAddressCoordinator {
         return inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
     }
 
-    /**
-     * Check whether input prefix conflict with upstream prefixes or in-use downstream prefixes.
-     * If yes, return one of them.
-     */
-    private IpPrefix getConflictPrefix(final IpPrefix prefix) {
-        final IpPrefix upstream = getConflictWithUpstream(prefix);
-        if (upstream != null) return upstream;
-
-        return getInUseDownstreamPrefix(prefix);
-    }
-
-    // Get the next non-conflict sub prefix. E.g: To get next sub prefix from 10.0.0.0/8, if the
-    // previously selected prefix is 10.20.42.0/24(subPrefix: 0.20.42.0) and the conflicting prefix
-    // is 10.16.0.0/20 (10.16.0.0 ~ 10.16.15.255), then the max address under subPrefix is
-    // 0.16.15.255 and the next subPrefix is 0.16.16.255/24 (0.16.15.255 + 0.0.1.0).
-    // Note: the sub address 0.0.0.255 here is fine to be any value that it will be replaced as
-    // selected random sub address later.
-    private int getNextSubPrefix(final IpPrefix conflictPrefix, final int prefixRangeMask) {
-        final int suffixMask = ~prefixLengthToV4NetmaskIntHTH(conflictPrefix.getPrefixLength());
-        // The largest offset within the prefix assignment block that still conflicts with
-        // conflictPrefix.
-        final int maxConflict =
-                (getPrefixBaseAddress(conflictPrefix) | suffixMask) & ~prefixRangeMask;
-
-        final int prefixMask = prefixLengthToV4NetmaskIntHTH(PREFIX_LENGTH);
-        // Pick a sub prefix a full prefix (1 << (32 - PREFIX_LENGTH) addresses) greater than
-        // maxConflict. This ensures that the selected prefix never overlaps with conflictPrefix.
-        // There is no need to mask the result with PREFIX_LENGTH bits because this is done by
-        // findAvailablePrefixFromRange when it constructs the prefix.
-        return maxConflict + (1 << (32 - PREFIX_LENGTH));
-    }
-
-    private LinkAddress chooseDownstreamAddress(final IpPrefix prefixRange) {
+    private LinkAddress chooseDownstreamAddress(final IpPrefix prefixRange,
+            final Ipv4BlockSet inUseDownstreamBlocks) {
         // The netmask of the prefix assignment block (e.g., 0xfff00000 for 172.16.0.0/12).
         final int prefixRangeMask = prefixLengthToV4NetmaskIntHTH(prefixRange.getPrefixLength());
 
@@ -280,16 +257,7 @@ public class PrivateAddressCoordinator {
         // example, for a /24 prefix within 172.26.0.0/12, this will be a multiple of 256 in
         // [0, 1048576). In other words, a random 32-bit number with mask 0x000fff00.
         //
-        // prefixRangeMask is required to ensure no wrapping. For example, consider:
-        // - prefixRange 127.0.0.0/8
-        // - randomPrefixStart 127.255.255.0
-        // - A conflicting prefix of 127.255.254.0/23
-        // In this case without prefixRangeMask, getNextSubPrefix would return 128.0.0.0, which
-        // means the "start < end" check in findAvailablePrefixFromRange would not reject the prefix
-        // because Java doesn't have unsigned integers, so 128.0.0.0 = 0x80000000 = -2147483648
-        // is less than 127.0.0.0 = 0x7f000000 = 2130706432.
-        //
-        // Additionally, it makes debug output easier to read by making the numbers smaller.
+        // prefixRangeMask is required to ensure the prefix is within prefixRange.
         final int randomInt = getRandomInt();
         final int randomPrefixStart = randomInt & ~prefixRangeMask & prefixMask;
 
@@ -301,12 +269,12 @@ public class PrivateAddressCoordinator {
         // Find a prefix length PREFIX_LENGTH between randomPrefixStart and the end of the block,
         // such that the prefix does not conflict with any upstream.
         IpPrefix downstreamPrefix = findAvailablePrefixFromRange(
-                 randomPrefixStart, (~prefixRangeMask) + 1, baseAddress, prefixRangeMask);
+                 randomPrefixStart, (~prefixRangeMask) + 1, baseAddress, inUseDownstreamBlocks);
         if (downstreamPrefix != null) return getLinkAddress(downstreamPrefix, subAddress);
 
         // If that failed, do the same, but between 0 and randomPrefixStart.
         downstreamPrefix = findAvailablePrefixFromRange(
-                0, randomPrefixStart, baseAddress, prefixRangeMask);
+                0, randomPrefixStart, baseAddress, inUseDownstreamBlocks);
 
         return getLinkAddress(downstreamPrefix, subAddress);
     }
@@ -318,23 +286,43 @@ public class PrivateAddressCoordinator {
         return new LinkAddress(address, PREFIX_LENGTH);
     }
 
+    // Find the first prefix of length PREFIX_LENGTH at offset [start, end) of the block at
+    // baseAddress that does not conflict with upstream prefixes or in-use downstream prefixes.
+    // Each lookup skips a whole range of conflicting prefixes in logarithmic time.
     private IpPrefix findAvailablePrefixFromRange(final int start, final int end,
-            final int baseAddress, final int prefixRangeMask) {
-        int newSubPrefix = start;
-        while (newSubPrefix < end) {
-            final InetAddress address = intToInet4AddressHTH(baseAddress | newSubPrefix);
-            final IpPrefix prefix = new IpPrefix(address, PREFIX_LENGTH);
-
-            final IpPrefix conflictPrefix = getConflictPrefix(prefix);
-
-            if (conflictPrefix == null) return prefix;
-
-            newSubPrefix = getNextSubPrefix(conflictPrefix, prefixRangeMask);
+            final int baseAddress, final Ipv4BlockSet inUseDownstreamBlocks) {
+        final Ipv4BlockSet upstreamBlocks = getUpstreamBlocks();
+        long block = upstreamBlocks.getBlock(baseAddress + start);
+        // end may be the size of the whole IPv4 space after baseAddress, so don't compute
+        // baseAddress + end.
+        final long endBlock = upstreamBlocks.getBlock(baseAddress) + upstreamBlocks.getBlock(end);
+        while (block < endBlock) {
+            final long next = inUseDownstreamBlocks.nextUnusedBlock(
+                    upstreamBlocks.nextUnusedBlock(block));
+            if (next == block) {
+                return new IpPrefix(
+                        intToInet4AddressHTH(upstreamBlocks.getBlockAddress(block)),
+                        PREFIX_LENGTH);
+            }
+            block = next;
         }
 
         return null;
     }
 
+    private Ipv4BlockSet getUpstreamBlocks() {
+        if (!mUpstreamBlocksValid) {
+            mUpstreamBlocks.clear();
+            for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
+                for (IpPrefix upstream : mUpstreamPrefixMap.valueAt(i)) {
+                    mUpstreamBlocks.add(upstream);
+                }
+            }
+            mUpstreamBlocksValid = true;
+        }
+        return mUpstreamBlocks;
+    }
+
     /** Get random int which could be used to generate random address. */
     @VisibleForTesting
     public int getRandomInt() {
@@ -367,20 +355,13 @@ public class PrivateAddressCoordinator {
     /** Clear current upstream prefixes records. */
     public void clearUpstreamPrefixes() {
         mUpstreamPrefixMap.clear();
-    }
-
-    private IpPrefix getConflictWithUpstream(final IpPrefix prefix) {
-        for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
-            final List<IpPrefix> list = mUpstreamPrefixMap.valueAt(i);
-            for (IpPrefix upstream : list) {
-                if (isConflictPrefix(prefix, upstream)) return upstream;
-            }
-        }
-        return null;
+        mUpstreamBlocksValid = false;
     }
 
     private boolean isConflictWithUpstream(final IpPrefix prefix) {
-        return getConflictWithUpstream(prefix) != null;
+        // Downstream prefixes are PREFIX_LENGTH prefixes, so checking for conflicts at the
+        // granularity of PREFIX_LENGTH blocks is exact.
+        return getUpstreamBlocks().overlaps(prefix);
     }
 
     private boolean isConflictPrefix(final IpPrefix prefix1, final IpPrefix prefix2) {
@@ -393,21 +374,19 @@ public class PrivateAddressCoordinator {
 
     // InUse Prefixes are prefixes of mCachedAddresses which are active downstream addresses, last
     // downstream addresses(reserved for next time) and static addresses(e.g. bluetooth, wifi p2p).
-    private IpPrefix getInUseDownstreamPrefix(final IpPrefix prefix) {
+    private Ipv4BlockSet getInUseDownstreamBlocks() {
+        final Ipv4BlockSet blocks = new Ipv4BlockSet(PREFIX_LENGTH);
         for (int i = 0; i < mCachedAddresses.size(); i++) {
-            final IpPrefix downstream = asIpPrefix(mCachedAddresses.valueAt(i));
-            if (isConflictPrefix(prefix, downstream)) return downstream;
+            blocks.add(asIpPrefix(mCachedAddresses.valueAt(i)));
         }
 
         // IpServer may use manually-defined address (mStaticIpv4ServerAddr) which does not include
         // in mCachedAddresses.
         for (IpServer downstream : mDownstreams) {
-            final IpPrefix target = getDownstreamPrefix(downstream);
-
-            if (isConflictPrefix(prefix, target)) return target;
+            blocks.add(getDownstreamPrefix(downstream));
         }
 
-        return null;
+        return blocks;
     }
 
     @NonNull
@@ -458,6 +437,8 @@ public class PrivateAddressCoordinator {
         for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
             pw.println(mUpstreamPrefixMap.keyAt(i) + " - " + mUpstreamPrefixMap.valueAt(i));
         }
+        pw.println("Upstream /" + PREFIX_LENGTH + " ranges: "
+                + getUpstreamBlocks().getRangeCount());
         pw.decreaseIndent();
 
         pw.println("mDownstreams:");
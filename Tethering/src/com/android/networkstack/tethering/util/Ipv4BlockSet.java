@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering.util;
+
+import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
+
+import android.net.IpPrefix;
+
+import androidx.annotation.NonNull;
+
+import java.net.Inet4Address;
+import java.util.Arrays;
+
+/**
+ * A set of used IPv4 address blocks of a fixed prefix length, e.g. /24 blocks.
+ *
+ * Adding a prefix marks all blocks that it overlaps as used. The used blocks are kept as sorted,
+ * merged ranges, so finding the first unused block after a given block takes logarithmic time in
+ * the number of prefixes. Ranges are sorted and merged on the first query after modifications.
+ *
+ * This class is not thread-safe.
+ */
+public class Ipv4BlockSet {
+    private final int mBlockShift;
+    // Ranges of used blocks, encoded as (first block << 32 | last block). After compact(), the
+    // ranges are sorted, and neither overlapping nor adjacent.
+    private long[] mRanges = new long[16];
+    private int mSize;
+    private boolean mCompact = true;
+
+    /**
+     * Create an empty set.
+     *
+     * @param blockPrefixLength the prefix length of blocks, between 1 and 31.
+     */
+    public Ipv4BlockSet(int blockPrefixLength) {
+        if (blockPrefixLength < 1 || blockPrefixLength > 31) {
+            throw new IllegalArgumentException("Invalid block prefix length " + blockPrefixLength);
+        }
+        mBlockShift = 32 - blockPrefixLength;
+    }
+
+    /** Get the block containing the given address. */
+    public long getBlock(int address) {
+        return Integer.toUnsignedLong(address) >>> mBlockShift;
+    }
+
+    /** Get the first address of the given block. */
+    public int getBlockAddress(long block) {
+        return (int) (block << mBlockShift);
+    }
+
+    /** Mark the blocks overlapping the given prefix as used. Non-IPv4 prefixes are ignored. */
+    public void add(@NonNull IpPrefix prefix) {
+        if (!(prefix.getAddress() instanceof Inet4Address)) return;
+        final int first = inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
+        final int last = first | (int) (0xffffffffL >>> prefix.getPrefixLength());
+        if (mSize == mRanges.length) {
+            mRanges = Arrays.copyOf(mRanges, mSize * 2);
+        }
+        mRanges[mSize++] = (getBlock(first) << 32) | getBlock(last);
+        mCompact = false;
+    }
+
+    /** Remove all blocks from the set. */
+    public void clear() {
+        mSize = 0;
+        mCompact = true;
+    }
+
+    /** Returns whether any block overlapping the given IPv4 prefix is used. */
+    public boolean overlaps(@NonNull IpPrefix prefix) {
+        final int first = inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
+        final int last = first | (int) (0xffffffffL >>> prefix.getPrefixLength());
+        final int i = findLastRangeStartingAtOrBefore(getBlock(last));
+        return i >= 0 && lastBlock(mRanges[i]) >= getBlock(first);
+    }
+
+    /**
+     * Returns the first unused block at or after the given block. The returned block may be past
+     * the last IPv4 block if all following blocks are used.
+     */
+    public long nextUnusedBlock(long block) {
+        final int i = findLastRangeStartingAtOrBefore(block);
+        if (i >= 0 && lastBlock(mRanges[i]) >= block) {
+            // Ranges are not adjacent, so the block after the range is unused.
+            return lastBlock(mRanges[i]) + 1;
+        }
+        return block;
+    }
+
+    /** Returns the number of ranges of used blocks. */
+    public int getRangeCount() {
+        compact();
+        return mSize;
+    }
+
+    private int findLastRangeStartingAtOrBefore(long block) {
+        compact();
+        // Ranges starting at or before the block sort before this key.
+        final int i = Arrays.binarySearch(mRanges, 0, mSize, (block << 32) | 0xffffffffL);
+        return (i >= 0 ? i : -i - 1) - 1;
+    }
+
+    private static long firstBlock(long range) {
+        return range >>> 32;
+    }
+
+    private static long lastBlock(long range) {
+        return range & 0xffffffffL;
+    }
+
+    private void compact() {
+        if (mCompact) return;
+        Arrays.sort(mRanges, 0, mSize);
+        int merged = 0;
+        for (int i = 0; i < mSize; i++) {
+            final long range = mRanges[i];
+            if (merged > 0 && firstBlock(range) <= lastBlock(mRanges[merged - 1]) + 1) {
+                final long previous = mRanges[merged - 1];
+                final long last = Math.max(lastBlock(previous), lastBlock(range));
+                mRanges[merged - 1] = (firstBlock(previous) << 32) | last;
+            } else {
+                mRanges[merged++] = range;
+            }
+        }
+        mSize = merged;
+        mCompact = true;
+    }
+}
@@ -30,8 +30,10 @@ import static com.android.net.module.util.NetworkStackConstants.IPV6_HEADER_LEN;
 import static com.android.net.module.util.NetworkStackConstants.PIO_FLAG_AUTONOMOUS;
 import static com.android.net.module.util.NetworkStackConstants.PIO_FLAG_ON_LINK;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -47,6 +49,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.util.ArraySet;
 
 import androidx.test.InstrumentationRegistry;
@@ -78,6 +81,7 @@ import org.mockito.MockitoAnnotations;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -340,4 +344,107 @@ public final class RouterAdvertisementDaemonTest {
         mTetheredPacketReader.sendResponse(rs);
         assertUnicastRaPacket(new TestRaPacket(null, params1));
     }
+
+    private void enableUnicastRaResponses() throws Exception {
+        // See testSolicitRouterAdvertisement.
+        sNetd.setProcSysNet(INetd.IPV6, INetd.CONF, mTetheredParams.name, "forwarding", "1");
+        try {
+            sNetd.networkAddRoute(INetd.LOCAL_NET_ID, mTetheredParams.name,
+                    "fe80::/64", INetd.NEXTHOP_NONE);
+        } catch (RemoteException | ServiceSpecificException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isRa(final byte[] pkt) {
+        if (pkt.length < ETHER_HEADER_LEN + IPV6_HEADER_LEN + ICMPV6_RA_HEADER_LEN) return false;
+        final ByteBuffer buf = ByteBuffer.wrap(pkt);
+        final EthernetHeader ethHdr = Struct.parse(EthernetHeader.class, buf);
+        if (ethHdr.etherType != ETHER_TYPE_IPV6) return false;
+        Struct.parse(Ipv6Header.class, buf);
+        final Icmpv6Header icmpv6Hdr = Struct.parse(Icmpv6Header.class, buf);
+        return icmpv6Hdr.type == (short) ICMPV6_ROUTER_ADVERTISEMENT;
+    }
+
+    private static boolean isMulticastRa(final byte[] ra) {
+        final ByteBuffer buf = ByteBuffer.wrap(ra);
+        buf.position(ETHER_HEADER_LEN);
+        return Struct.parse(Ipv6Header.class, buf).dstIp.isMulticastAddress();
+    }
+
+    // Returns the ICMPv6 part of a sent RA, without the checksum computed by the kernel.
+    private static byte[] getRaPayload(final byte[] ra) {
+        final byte[] payload =
+                Arrays.copyOfRange(ra, ETHER_HEADER_LEN + IPV6_HEADER_LEN, ra.length);
+        payload[2] = 0;
+        payload[3] = 0;
+        return payload;
+    }
+
+    // RAs are counted after being sent, so the count may lag behind the packets read.
+    private void assertRaSentCount(final long expected) throws Exception {
+        final long deadline = SystemClock.elapsedRealtime() + PACKET_TIMEOUT_MS;
+        while (mRaDaemon.getRaSentCount() < expected
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, mRaDaemon.getRaSentCount());
+    }
+
+    @Test
+    public void testSolicitRouterAdvertisement_coalescesBursts() throws Exception {
+        enableUnicastRaResponses();
+        assertTrue(mRaDaemon.start());
+        final RaParams params1 = createRaParams("2001:1122:3344::5566");
+        mRaDaemon.buildNewRa(null, params1);
+        assertMulticastRaPacket(new TestRaPacket(null, params1));
+        assertRaSentCount(1);
+
+        // Solicitations beyond MAX_UNICAST_RAS_PER_WINDOW in a burst are answered by a single
+        // multicast RA instead of one unicast RA each. That RA is sent MIN_DELAY_BETWEEN_RAS_SEC
+        // after the previous multicast RA, so no other RA is sent before it.
+        final int rsCount = RouterAdvertisementDaemon.MAX_UNICAST_RAS_PER_WINDOW + 5;
+        for (int i = 0; i < rsCount; i++) {
+            mTetheredPacketReader.sendResponse(createRsPacket("fe80::1122:3344:5566:" + (i + 1)));
+        }
+        int unicastRaCount = 0;
+        byte[] ra;
+        while ((ra = mTetheredPacketReader.poll(PACKET_TIMEOUT_MS,
+                RouterAdvertisementDaemonTest::isRa)) != null && !isMulticastRa(ra)) {
+            unicastRaCount++;
+        }
+        assertNotNull("No multicast RA answering the coalesced solicitations", ra);
+        assertEquals(RouterAdvertisementDaemon.MAX_UNICAST_RAS_PER_WINDOW, unicastRaCount);
+
+        assertEquals(rsCount, mRaDaemon.getRsReceivedCount());
+        assertEquals(rsCount - RouterAdvertisementDaemon.MAX_UNICAST_RAS_PER_WINDOW,
+                mRaDaemon.getRsCoalescedCount());
+        assertRaSentCount(1 + unicastRaCount + 1);
+    }
+
+    @Test
+    public void testSolicitRouterAdvertisement_reusesPrebuiltRa() throws Exception {
+        enableUnicastRaResponses();
+        assertTrue(mRaDaemon.start());
+        final RaParams params1 = createRaParams("2001:1122:3344::5566");
+        mRaDaemon.buildNewRa(null, params1);
+        final byte[] prebuiltRa = mRaDaemon.getRaPacket();
+        assertNotNull(prebuiltRa);
+
+        final byte[] multicastRa =
+                mTetheredPacketReader.poll(PACKET_TIMEOUT_MS, RouterAdvertisementDaemonTest::isRa);
+        assertNotNull(multicastRa);
+        assertTrue(isMulticastRa(multicastRa));
+        assertArrayEquals(prebuiltRa, getRaPayload(multicastRa));
+
+        // Solicitations are answered with the same bytes, without assembling the RA again.
+        for (int i = 0; i < RouterAdvertisementDaemon.MAX_UNICAST_RAS_PER_WINDOW; i++) {
+            mTetheredPacketReader.sendResponse(createRsPacket("fe80::1122:3344:5566:" + (i + 1)));
+            final byte[] unicastRa = mTetheredPacketReader.poll(PACKET_TIMEOUT_MS,
+                    pkt -> isRa(pkt) && !isMulticastRa(pkt));
+            assertNotNull(unicastRa);
+            assertArrayEquals(prebuiltRa, getRaPayload(unicastRa));
+        }
+        assertSame(prebuiltRa, mRaDaemon.getRaPacket());
+    }
 }
@@ -55,6 +55,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
@@ -372,6 +374,37 @@ public final class BpfMapTest {
         assertNull(mTestMap.getFirstKey());
     }
 
+    @Test
+    public void testBatchOperations() throws Exception {
+        assertTrue(mTestMap.getAllEntries().isEmpty());
+
+        mTestMap.updateEntries(mTestData);
+        assertEquals(mTestData, mTestMap.getAllEntries());
+
+        // Existing entries are replaced.
+        final TetherDownstream6Key key = mTestData.keyAt(0);
+        final Tether6Value value = createTether6Value(44, "00:00:00:00:00:1a",
+                "44:44:44:00:00:1b", ETH_P_IPV6, 1600);
+        final ArrayMap<TetherDownstream6Key, Tether6Value> expected = new ArrayMap<>(mTestData);
+        expected.put(key, value);
+        mTestMap.updateEntries(Map.of(key, value));
+        assertEquals(value, mTestMap.getValue(key));
+        assertEquals(expected, mTestMap.getAllEntries());
+
+        // Keys which do not exist are ignored.
+        final TetherDownstream6Key nonexistentKey =
+                createTetherDownstream6Key(104, "00:00:00:00:00:dd", "2001:db8::4");
+        mTestMap.deleteEntries(List.of(nonexistentKey, key, mTestData.keyAt(1)));
+        expected.remove(key);
+        expected.remove(mTestData.keyAt(1));
+        assertEquals(expected, mTestMap.getAllEntries());
+        assertFalse(mTestMap.containsKey(key));
+
+        mTestMap.deleteEntries(mTestData.keySet());
+        assertTrue(mTestMap.getAllEntries().isEmpty());
+        assertNull(mTestMap.getFirstKey());
+    }
+
     @Test
     public void testClear() throws Exception {
         // Clear an empty map.
@@ -133,7 +133,7 @@ import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
 import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
-import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.NetlinkMessageBatcher;
 import com.android.networkstack.tethering.BpfCoordinator.BpfConntrackEventConsumer;
 import com.android.networkstack.tethering.BpfCoordinator.ClientInfo;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
@@ -455,6 +455,7 @@ public class BpfCoordinatorTest {
     @Mock private TetheringConfiguration mTetherConfig;
     @Mock private ConntrackMonitor mConntrackMonitor;
     @Mock private IpNeighborMonitor mIpNeighborMonitor;
+    @Mock private NetlinkMessageBatcher mConntrackTimeoutBatcher;
 
     // Late init since methods must be called by the thread that created this object.
     private TestableNetworkStatsProviderCbBinder mTetherStatsProviderCb;
@@ -515,6 +516,12 @@ public class BpfCoordinatorTest {
                         return new SharedLog("test");
                     }
 
+                    @NonNull
+                    public NetlinkMessageBatcher getNetlinkMessageBatcher(int nlProto,
+                            @NonNull NetlinkMessageBatcher.ErrorListener listener) {
+                        return mConntrackTimeoutBatcher;
+                    }
+
                     @Nullable
                     public TetheringConfiguration getTetherConfig() {
                         return mTetherConfig;
@@ -2259,48 +2266,40 @@ public class BpfCoordinatorTest {
         final long validTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L;
         final long expiredTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS + 1) * 1_000_000L;
 
-        // Static mocking for NetlinkUtils.
-        MockitoSession mockSession = ExtendedMockito.mockitoSession()
-                .mockStatic(NetlinkUtils.class)
-                .startMocking();
-        try {
-            final BpfCoordinator coordinator = makeBpfCoordinator();
-            bpfMap.insertEntry(tcpKey, tcpValue);
-            bpfMap.insertEntry(udpKey, udpValue);
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        bpfMap.insertEntry(tcpKey, tcpValue);
+        bpfMap.insertEntry(udpKey, udpValue);
 
-            // [1] Don't refresh conntrack timeout.
-            setElapsedRealtimeNanos(expiredTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
+        // [1] Don't refresh conntrack timeout.
+        setElapsedRealtimeNanos(expiredTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps).getNetlinkMessageBatcher(eq(NETLINK_NETFILTER), any());
+        verify(mConntrackTimeoutBatcher, never()).add(any());
+        clearInvocations(mConntrackTimeoutBatcher);
 
-            // [2] Refresh conntrack timeout.
-            setElapsedRealtimeNanos(validTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
-            final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
-            ExtendedMockito.verify(() -> NetlinkUtils.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkTcp)));
-            ExtendedMockito.verify(() -> NetlinkUtils.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkUdp)));
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
-
-            // [3] Don't refresh conntrack timeout if polling stopped.
-            coordinator.removeIpServer(mIpServer);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
-        } finally {
-            mockSession.finishMocking();
-        }
+        // [2] Refresh conntrack timeout. All the updates are sent in a single batch.
+        setElapsedRealtimeNanos(validTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
+        final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
+        verify(mConntrackTimeoutBatcher).add(eq(expectedNetlinkTcp));
+        verify(mConntrackTimeoutBatcher).add(eq(expectedNetlinkUdp));
+        verify(mConntrackTimeoutBatcher).flush();
+        verifyNoMoreInteractions(mConntrackTimeoutBatcher);
+        clearInvocations(mConntrackTimeoutBatcher);
+
+        // [3] Don't refresh conntrack timeout if polling stopped. The batcher socket is closed.
+        coordinator.removeIpServer(mIpServer);
+        verify(mConntrackTimeoutBatcher).close();
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verifyNoMoreInteractions(mConntrackTimeoutBatcher);
     }
 
     @Test
@@ -575,6 +575,67 @@ public final class PrivateAddressCoordinatorTest {
                 localHotspotAddress);
     }
 
+    @Test
+    public void testChooseAvailablePrefix_manyUpstreamPrefixes() throws Exception {
+        when(mPrivateAddressCoordinator.getRandomInt()).thenReturn(0);
+        // Upstreams use all of 192.168.0.0/16 and all of 172.16.0.0/12 but 172.20.7.0/24, spread
+        // over several networks with thousands of prefixes.
+        final Network[] upstreams = {mMobileNetwork, mMobileNetwork2, mMobileNetwork3,
+                mMobileNetwork4, mMobileNetwork5, mMobileNetwork6};
+        final LinkProperties[] props = new LinkProperties[upstreams.length];
+        for (int i = 0; i < props.length; i++) {
+            props[i] = new LinkProperties();
+            props[i].setInterfaceName(TEST_IFNAME);
+        }
+        int count = 0;
+        for (int i = 0; i < 256; i++) {
+            props[count++ % props.length].addLinkAddress(
+                    new LinkAddress("192.168." + i + ".1/24"));
+        }
+        for (int i = 16; i < 32; i++) {
+            for (int j = 0; j < 256; j++) {
+                if (i == 20 && j == 7) continue;
+                props[count++ % props.length].addLinkAddress(
+                        new LinkAddress("172." + i + "." + j + ".1/24"));
+            }
+        }
+        for (int i = 0; i < upstreams.length; i++) {
+            mPrivateAddressCoordinator.updateUpstreamPrefix(new UpstreamNetworkState(props[i],
+                    makeNetworkCapabilities(TRANSPORT_CELLULAR), upstreams[i]));
+        }
+
+        // Without reusing the last address, the hotspot's last address stays reserved, so each
+        // request goes through the whole selection and alternates between the only free prefix
+        // of 172.16.0.0/12 and the first prefix of 10.0.0.0/8.
+        for (int i = 0; i < 1000; i++) {
+            final LinkAddress address = requestDownstreamAddress(mHotspotIpServer,
+                    CONNECTIVITY_SCOPE_GLOBAL, false /* useLastAddress */);
+            final LinkAddress expected = new LinkAddress(
+                    i % 2 == 0 ? "172.20.7.2/24" : "10.0.0.2/24");
+            assertEquals("Wrong address at request " + i, expected, address);
+            mPrivateAddressCoordinator.releaseDownstream(mHotspotIpServer);
+        }
+
+        // Reusing the last address returns it as long as it does not conflict with upstreams.
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(new LinkAddress("10.0.0.2/24"), requestDownstreamAddress(
+                    mHotspotIpServer, CONNECTIVITY_SCOPE_GLOBAL, true /* useLastAddress */));
+            mPrivateAddressCoordinator.releaseDownstream(mHotspotIpServer);
+        }
+
+        // Once that prefix is in use, the next downstream gets a prefix from 10.0.0.0/8.
+        requestDownstreamAddress(mHotspotIpServer, CONNECTIVITY_SCOPE_GLOBAL,
+                false /* useLastAddress */);
+        assertEquals(new LinkAddress("10.0.0.2/24"), requestDownstreamAddress(mUsbIpServer,
+                CONNECTIVITY_SCOPE_GLOBAL, false /* useLastAddress */));
+
+        // Removing an upstream frees its prefixes.
+        mPrivateAddressCoordinator.removeUpstreamPrefix(mMobileNetwork);
+        mPrivateAddressCoordinator.releaseDownstream(mUsbIpServer);
+        assertEquals(new LinkAddress("192.168.0.2/24"), requestDownstreamAddress(mUsbIpServer,
+                CONNECTIVITY_SCOPE_GLOBAL, false /* useLastAddress */));
+    }
+
     @Test
     public void testStartedPrefixRange() throws Exception {
         when(mConfig.isRandomPrefixBaseEnabled()).thenReturn(true);
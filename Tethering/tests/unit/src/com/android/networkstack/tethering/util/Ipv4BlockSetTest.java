@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering.util;
+
+import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.InetAddresses;
+import android.net.IpPrefix;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.Inet4Address;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class Ipv4BlockSetTest {
+    private final Ipv4BlockSet mSet = new Ipv4BlockSet(24);
+
+    private long block(String address) {
+        return mSet.getBlock(inet4AddressToIntHTH(
+                (Inet4Address) InetAddresses.parseNumericAddress(address)));
+    }
+
+    @Test
+    public void testNextUnusedBlock() {
+        mSet.add(new IpPrefix("10.0.1.0/24"));
+        // Adjacent and overlapping prefixes are merged.
+        mSet.add(new IpPrefix("10.0.2.0/23"));
+        mSet.add(new IpPrefix("10.0.3.128/25"));
+        // A prefix longer than the block size uses the whole block.
+        mSet.add(new IpPrefix("10.0.8.4/30"));
+        assertEquals(2, mSet.getRangeCount());
+
+        assertEquals(block("10.0.0.0"), mSet.nextUnusedBlock(block("10.0.0.0")));
+        assertEquals(block("10.0.4.0"), mSet.nextUnusedBlock(block("10.0.1.0")));
+        assertEquals(block("10.0.4.0"), mSet.nextUnusedBlock(block("10.0.3.0")));
+        assertEquals(block("10.0.5.0"), mSet.nextUnusedBlock(block("10.0.5.0")));
+        assertEquals(block("10.0.9.0"), mSet.nextUnusedBlock(block("10.0.8.0")));
+    }
+
+    @Test
+    public void testOverlaps() {
+        mSet.add(new IpPrefix("192.168.43.0/24"));
+        mSet.add(new IpPrefix("172.16.0.0/16"));
+
+        assertTrue(mSet.overlaps(new IpPrefix("192.168.43.0/24")));
+        assertTrue(mSet.overlaps(new IpPrefix("192.168.0.0/16")));
+        assertTrue(mSet.overlaps(new IpPrefix("172.16.20.0/24")));
+        assertFalse(mSet.overlaps(new IpPrefix("192.168.44.0/24")));
+        assertFalse(mSet.overlaps(new IpPrefix("10.0.0.0/8")));
+
+        mSet.clear();
+        assertFalse(mSet.overlaps(new IpPrefix("192.168.43.0/24")));
+    }
+
+    @Test
+    public void testHighAddresses() {
+        mSet.add(new IpPrefix("255.255.255.0/24"));
+        mSet.add(new IpPrefix("128.0.0.0/1"));
+
+        assertEquals(1, mSet.getRangeCount());
+        assertEquals(1L << 24, mSet.nextUnusedBlock(block("192.168.1.0")));
+        assertEquals(block("127.255.255.0"), mSet.nextUnusedBlock(block("127.255.255.0")));
+    }
+}
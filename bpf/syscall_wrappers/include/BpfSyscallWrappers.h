@@ -17,6 +17,7 @@
 #pragma once
 
 #include <stdlib.h>
+#include <string.h>
 #include <unistd.h>
 #include <linux/bpf.h>
 #include <linux/unistd.h>
@@ -117,6 +118,55 @@ inline int getFirstMapKey(const BPF_FD_TYPE map_fd, void* firstKey) {
     return getNextMapKey(map_fd, NULL, firstKey);
 }
 
+// The batch operations below require a 5.6+ kernel, and are not supported by all map types.
+// On input, 'count' is the number of entries in 'keys' (and 'values'). On output, it is the
+// number of entries actually processed, which is meaningful even if the syscall failed.
+
+inline int updateMapEntriesBatch(const BPF_FD_TYPE map_fd, const void* keys, const void* values,
+                                 uint32_t* count, uint64_t elem_flags) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.values = ptr_to_u64(values);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    attr.batch.elem_flags = elem_flags;
+    int ret = bpf(BPF_MAP_UPDATE_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
+// Stops at the first key which does not exist, failing with ENOENT.
+inline int deleteMapEntriesBatch(const BPF_FD_TYPE map_fd, const void* keys, uint32_t* count) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    int ret = bpf(BPF_MAP_DELETE_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
+// 'in_batch' is NULL to start from the beginning of the map, or the 'out_batch' of the previous
+// call to continue from there. The batch token is opaque and its size depends on the map type;
+// a buffer of max(key size, 8) bytes is large enough. Fails with ENOENT once the end of the map
+// is reached, possibly after having read some entries.
+inline int lookupMapEntriesBatch(const BPF_FD_TYPE map_fd, const void* in_batch, void* out_batch,
+                                 void* keys, void* values, uint32_t* count) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.in_batch = ptr_to_u64(in_batch);
+    attr.batch.out_batch = ptr_to_u64(out_batch);
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.values = ptr_to_u64(values);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    int ret = bpf(BPF_MAP_LOOKUP_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
 inline int bpfFdPin(const BPF_FD_TYPE map_fd, const char* pathname) {
     return bpf(BPF_OBJ_PIN, {
                                     .pathname = ptr_to_u64(pathname),
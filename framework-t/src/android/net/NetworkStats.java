@@ -207,6 +207,10 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    // Minimum number of rows before key lookups use the hash index instead of a linear scan.
+    // Below this, scanning the parallel arrays is cheaper than building and probing the index.
+    private static final int INDEX_MIN_SIZE = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -245,6 +249,16 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private long[] operations;
 
+    /**
+     * Open-addressing hash index over the key columns, used to find rows in constant time.
+     * Each slot holds a row position plus one, or 0 if the slot is empty. When several rows
+     * share the same key, the slot points to the first one, consistent with {@link #findIndex}.
+     * Built lazily on the first lookup once {@link #size} reaches {@link #INDEX_MIN_SIZE}, kept
+     * up to date by {@link #insertEntry(Entry)}, and dropped by anything that moves rows.
+     */
+    @Nullable
+    private int[] mIndexSlots;
+
     /**
      * Basic element of network statistics. Contains the number of packets and number of bytes
      * transferred on both directions in a given set of conditions. See
@@ -615,6 +629,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public void clear() {
         this.capacity = 0;
+        this.mIndexSlots = null;
         this.iface = EmptyArray.STRING;
         this.uid = EmptyArray.INT;
         this.set = EmptyArray.INT;
@@ -682,6 +697,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
 
         setValues(size, entry);
         size++;
+        if (mIndexSlots != null) {
+            addToIndex(size - 1);
+        }
 
         return this;
     }
@@ -758,6 +776,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     private void maybeCopyEntry(int dest, int src) {
         if (dest == src) return;
+        mIndexSlots = null;
         iface[dest] = iface[src];
         uid[dest] = uid[src];
         set[dest] = set[src];
@@ -902,6 +921,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        if (size >= INDEX_MIN_SIZE) {
+            return findIndexInIndex(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -913,6 +935,82 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    private boolean keyEquals(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int metered, int roaming,
+            int defaultNetwork) {
+        int h = (iface == null) ? 0 : iface.hashCode();
+        h = 31 * h + uid;
+        h = 31 * h + set;
+        h = 31 * h + tag;
+        h = 31 * h + metered;
+        h = 31 * h + roaming;
+        h = 31 * h + defaultNetwork;
+        // The table size is a power of two, so fold the high bits into the low ones.
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find first stats index that matches the requested parameters using the hash index,
+     * building the index first if needed.
+     */
+    private int findIndexInIndex(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        if (mIndexSlots == null) {
+            rebuildIndex();
+        }
+        final int mask = mIndexSlots.length - 1;
+        int pos = hashKey(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+        while (true) {
+            final int slot = mIndexSlots[pos];
+            if (slot == 0) return -1;
+            if (keyEquals(slot - 1, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                return slot - 1;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    private void rebuildIndex() {
+        // Keep the load factor at or below 1/2 so that probe sequences stay short.
+        final int minSlots = Math.max(size, INDEX_MIN_SIZE) * 2;
+        mIndexSlots = new int[Integer.highestOneBit(minSlots - 1) << 1];
+        for (int i = 0; i < size; i++) {
+            addToIndex(i);
+        }
+    }
+
+    private void addToIndex(int i) {
+        if (size * 2 > mIndexSlots.length) {
+            // Rows up to and including i are already present in the arrays, so rebuilding
+            // the whole table also indexes row i.
+            rebuildIndex();
+            return;
+        }
+        final int mask = mIndexSlots.length - 1;
+        int pos = hashKey(iface[i], uid[i], set[i], tag[i], metered[i], roaming[i],
+                defaultNetwork[i]) & mask;
+        while (true) {
+            final int slot = mIndexSlots[pos];
+            if (slot == 0) {
+                mIndexSlots[pos] = i + 1;
+                return;
+            }
+            // Keep pointing at the first row with this key.
+            if (keyEquals(slot - 1, iface[i], uid[i], set[i], tag[i], metered[i], roaming[i],
+                    defaultNetwork[i])) {
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
     /**
      * Find first stats index that matches the requested parameters, starting
      * search around the hinted index as an optimization.
@@ -1147,6 +1245,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.mIndexSlots = null;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
@@ -1166,9 +1265,13 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             entry.operations = left.operations[i];
 
             // Find the remote row that matches and subtract.
-            // The returned row must be uniquely matched.
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            // The returned row must be uniquely matched. Large snapshots are looked up through
+            // the hash index, which turns the subtraction from O(n^2) into O(n).
+            final int j = right.size >= INDEX_MIN_SIZE
+                    ? right.findIndexInIndex(entry.iface, entry.uid, entry.set, entry.tag,
+                            entry.metered, entry.roaming, entry.defaultNetwork)
+                    : right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
+                            entry.metered, entry.roaming, entry.defaultNetwork, i);
             if (j != -1) {
                 // Found matching row, subtract remote value.
                 entry.rxBytes -= right.rxBytes[j];
@@ -1396,6 +1499,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     }
 
     private void filter(Predicate<Entry> predicate) {
+        mIndexSlots = null;
         Entry entry = new Entry();
         int nextOutputEntry = 0;
         for (int i = 0; i < size; i++) {
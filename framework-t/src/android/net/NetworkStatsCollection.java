@@ -56,8 +56,10 @@ import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FileRotator;
 import com.android.modules.utils.FastDataInput;
@@ -67,6 +69,7 @@ import com.android.net.module.util.NetworkStatsUtils;
 import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -80,6 +83,7 @@ import java.io.PrintWriter;
 import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -108,9 +112,40 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    /**
+     * Same content as {@link #VERSION_UNIFIED_INIT}, with keys sorted and listed in an index
+     * before the histories:
+     * identCount *NetworkIdentitySet
+     * keyCount *(identIndex uid set tag startMillis endMillis historyLength)
+     * keyCount *NetworkStatsHistory, in the order of the index
+     * This allows readers to skip histories they do not need without decoding them.
+     */
+    private static final int VERSION_INDEXED = 17;
+
+    /** Size of the buffer into which skipped histories are read. */
+    private static final int SKIP_BUFFER_SIZE = 512;
+
+    /** Maximum number of templates whose matching identity sets are cached. */
+    private static final int MAX_CACHED_TEMPLATES = 32;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    // Keys of mStats grouped by identity set and by UID, maintained by addKey and removeKey.
+    // Queries only visit the keys whose identity set matches the template, instead of evaluating
+    // the template against the identity set of every key.
+    private final ArrayMap<NetworkIdentitySet, ArraySet<Key>> mKeysByIdent = new ArrayMap<>();
+    private final SparseArray<ArraySet<Key>> mKeysByUid = new SparseArray<>();
+
+    // Identity sets of mKeysByIdent matching recently queried templates. Queries may run
+    // concurrently on binder threads, so this is guarded separately from the rest of the object.
+    // The generation is incremented whenever an identity set is added or removed, so a result
+    // computed while the identity sets changed is not cached.
+    @GuardedBy("mMatchingIdentsCache")
+    private final ArrayMap<NetworkTemplate, ArraySet<NetworkIdentitySet>> mMatchingIdentsCache =
+            new ArrayMap<>();
+    @GuardedBy("mMatchingIdentsCache")
+    private int mIdentsGeneration;
+
     private final long mBucketDurationMillis;
 
     private long mStartMillis;
@@ -118,6 +153,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private long mTotalBytes;
     private boolean mDirty;
     private final boolean mUseFastDataInput;
+    private boolean mUseIndexedFormat;
 
     /**
      * Construct a {@link NetworkStatsCollection} object.
@@ -142,6 +178,15 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         reset();
     }
 
+    /**
+     * Set whether {@link #write(OutputStream)} uses the indexed file format. Files in that format
+     * cannot be read by versions of this class which predate it.
+     * @hide
+     */
+    public void setUseIndexedFormat(boolean useIndexedFormat) {
+        mUseIndexedFormat = useIndexedFormat;
+    }
+
     /** @hide */
     public void clear() {
         reset();
@@ -150,6 +195,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mKeysByUid.clear();
+        if (mKeysByIdent.size() > 0) {
+            mKeysByIdent.clear();
+            invalidateMatchingIdents();
+        }
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -238,16 +288,12 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        // mKeysByUid is sorted by UID, so the result is sorted too.
         final ArrayList<Integer> uids = new ArrayList<>();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = Collections.binarySearch(uids, new Integer(key.uid));
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return CollectionUtils.toIntArray(uids);
@@ -309,12 +355,16 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        if (uidKeys != null) {
+            final ArraySet<NetworkIdentitySet> idents = getMatchingIdents(template);
+            for (int i = 0; i < uidKeys.size(); i++) {
+                final Key key = uidKeys.valueAt(i);
+                if (NetworkStats.setMatches(set, key.set) && key.tag == tag
+                        && idents.contains(key.ident)) {
+                    final NetworkStatsHistory value = mStats.get(key);
+                    combined.recordHistory(value, collectStart, collectEnd);
+                }
             }
         }
 
@@ -397,10 +447,9 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
+        for (int i : getIndicesOfKeysMatching(template)) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
                 final NetworkStatsHistory value = mStats.valueAt(i);
                 historyEntry = value.getValues(start, end, now, historyEntry);
@@ -428,6 +477,107 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return stats;
     }
 
+    /**
+     * Return the identity sets of this collection which match the given template.
+     *
+     * The returned set is shared and must not be modified.
+     */
+    @NonNull
+    private ArraySet<NetworkIdentitySet> getMatchingIdents(@NonNull NetworkTemplate template) {
+        final int generation;
+        synchronized (mMatchingIdentsCache) {
+            final ArraySet<NetworkIdentitySet> cached = mMatchingIdentsCache.get(template);
+            if (cached != null) return cached;
+            generation = mIdentsGeneration;
+        }
+
+        final ArraySet<NetworkIdentitySet> matching = new ArraySet<>();
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            final NetworkIdentitySet ident = mKeysByIdent.keyAt(i);
+            if (templateMatches(template, ident)) {
+                matching.add(ident);
+            }
+        }
+
+        synchronized (mMatchingIdentsCache) {
+            if (generation == mIdentsGeneration) {
+                if (mMatchingIdentsCache.size() >= MAX_CACHED_TEMPLATES) {
+                    mMatchingIdentsCache.clear();
+                }
+                mMatchingIdentsCache.put(template, matching);
+            }
+        }
+        return matching;
+    }
+
+    private void invalidateMatchingIdents() {
+        synchronized (mMatchingIdentsCache) {
+            mMatchingIdentsCache.clear();
+            mIdentsGeneration++;
+        }
+    }
+
+    /**
+     * Return the indices in {@link #mStats} of the keys whose identity set matches the given
+     * template, in ascending order so that results are built in the same order as when iterating
+     * over all the keys.
+     */
+    @NonNull
+    private int[] getIndicesOfKeysMatching(@NonNull NetworkTemplate template) {
+        final ArraySet<NetworkIdentitySet> idents = getMatchingIdents(template);
+        int count = 0;
+        for (int i = 0; i < idents.size(); i++) {
+            final ArraySet<Key> keys = mKeysByIdent.get(idents.valueAt(i));
+            if (keys != null) count += keys.size();
+        }
+
+        final int[] indices = new int[count];
+        int n = 0;
+        for (int i = 0; i < idents.size(); i++) {
+            final ArraySet<Key> keys = mKeysByIdent.get(idents.valueAt(i));
+            if (keys == null) continue;
+            for (int j = 0; j < keys.size(); j++) {
+                indices[n++] = mStats.indexOfKey(keys.valueAt(j));
+            }
+        }
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    private void addKey(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        mStats.put(key, history);
+
+        ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys == null) {
+            identKeys = new ArraySet<>();
+            mKeysByIdent.put(key.ident, identKeys);
+            invalidateMatchingIdents();
+        }
+        identKeys.add(key);
+
+        ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArraySet<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+    }
+
+    private void removeKey(@NonNull Key key) {
+        mStats.remove(key);
+
+        final ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys != null && identKeys.remove(key) && identKeys.isEmpty()) {
+            mKeysByIdent.remove(key.ident);
+            invalidateMatchingIdents();
+        }
+
+        final ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys != null && uidKeys.remove(key) && uidKeys.isEmpty()) {
+            mKeysByUid.remove(key.uid);
+        }
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      * @hide
@@ -453,7 +603,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            addKey(key, target);
         }
         target.recordEntireHistory(history);
     }
@@ -487,7 +637,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            if (existing == null) {
+                addKey(key, updated);
+            } else {
+                mStats.put(key, updated);
+            }
             return updated;
         } else {
             return existing;
@@ -497,14 +651,36 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     @Override
     public void read(InputStream in) throws IOException {
+        read(getDataInput(in), null /* filter */);
+    }
+
+    /**
+     * Read only the histories matching the given parameters. Histories stored in the indexed
+     * format which do not match are skipped without being decoded; histories stored in older
+     * formats are decoded and dropped.
+     *
+     * @param template the template matching the identities of the histories to read, or
+     *                 {@code null} to read histories of all identities.
+     * @param uid the UID of the histories to read, or {@link NetworkStats#UID_ALL}.
+     * @param start start of the range, timestamp in milliseconds since the epoch.
+     * @param end end of the range, timestamp in milliseconds since the epoch. Histories which
+     *            do not overlap the range are not read.
+     * @hide
+     */
+    public void readMatching(@NonNull InputStream in, @Nullable NetworkTemplate template,
+            int uid, long start, long end) throws IOException {
+        read(getDataInput(in), new ReadFilter(template, uid, start, end));
+    }
+
+    private DataInput getDataInput(InputStream in) {
         if (mUseFastDataInput) {
-            read(FastDataInput.obtain(in));
+            return FastDataInput.obtain(in);
         } else {
-            read((DataInput) new DataInputStream(in));
+            return new DataInputStream(in);
         }
     }
 
-    private void read(DataInput in) throws IOException {
+    private void read(DataInput in, @Nullable ReadFilter filter) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -518,6 +694,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 final int identSize = in.readInt();
                 for (int i = 0; i < identSize; i++) {
                     final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                    final boolean identMatches = filter == null || filter.matches(ident);
 
                     final int size = in.readInt();
                     for (int j = 0; j < size; j++) {
@@ -527,17 +704,85 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
+                        if (filter != null && !(identMatches && filter.matches(uid,
+                                history.getStart(), history.getEnd()))) {
+                            continue;
+                        }
                         recordHistory(key, history);
                     }
                 }
                 break;
             }
+            case VERSION_INDEXED: {
+                readIndexed(in, filter);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    private void readIndexed(DataInput in, @Nullable ReadFilter filter) throws IOException {
+        final int identCount = in.readInt();
+        if (identCount < 0) throw new ProtocolException("negative ident count");
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        final boolean[] identMatches = new boolean[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+            identMatches[i] = filter == null || filter.matches(idents[i]);
+        }
+
+        final int keyCount = in.readInt();
+        if (keyCount < 0) throw new ProtocolException("negative key count");
+        final Key[] keys = new Key[keyCount];
+        final int[] historyLengths = new int[keyCount];
+        int lastMatchingKey = -1;
+        for (int i = 0; i < keyCount; i++) {
+            final int identIndex = in.readInt();
+            if (identIndex < 0 || identIndex >= identCount) {
+                throw new ProtocolException("unexpected ident index: " + identIndex);
+            }
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final int tag = in.readInt();
+            final long startMillis = in.readLong();
+            final long endMillis = in.readLong();
+            historyLengths[i] = in.readInt();
+            if (historyLengths[i] < 0) throw new ProtocolException("negative history length");
+            if (identMatches[identIndex]
+                    && (filter == null || filter.matches(uid, startMillis, endMillis))) {
+                keys[i] = new Key(idents[identIndex], uid, set, tag);
+                lastMatchingKey = i;
+            }
+        }
+
+        // Histories follow the index in the same order. Nothing after the last matching one
+        // needs to be read.
+        final byte[] skipBuffer = new byte[SKIP_BUFFER_SIZE];
+        for (int i = 0; i <= lastMatchingKey; i++) {
+            if (keys[i] == null) {
+                skipFully(in, historyLengths[i], skipBuffer);
+            } else {
+                recordHistory(keys[i], new NetworkStatsHistory(in));
+            }
+        }
+    }
+
+    /**
+     * Skip the given number of bytes. FastDataInput does not support
+     * {@link DataInput#skipBytes}, so read them into a scratch buffer instead.
+     */
+    private static void skipFully(DataInput in, int length, byte[] buffer) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int count = Math.min(remaining, buffer.length);
+            // Throws EOFException if the stream is truncated.
+            in.readFully(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+
     /** @hide */
     @Override
     public void write(OutputStream out) throws IOException {
@@ -546,6 +791,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     }
 
     private void write(DataOutput out) throws IOException {
+        if (mUseIndexedFormat) {
+            writeIndexed(out);
+            return;
+        }
+
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = new HashMap<>();
         for (Key key : mStats.keySet()) {
@@ -576,6 +826,51 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
     }
 
+    private void writeIndexed(DataOutput out) throws IOException {
+        final ArrayList<Key> keys = getSortedKeys();
+        final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+        final HashMap<NetworkIdentitySet, Integer> identIndexes = new HashMap<>();
+        for (Key key : keys) {
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, idents.size());
+                idents.add(key.ident);
+            }
+        }
+
+        // Histories are serialized first, as the index contains their lengths.
+        final ByteArrayOutputStream histories = new ByteArrayOutputStream();
+        final DataOutputStream historiesOut = new DataOutputStream(histories);
+        final int[] historyLengths = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            final int offset = historiesOut.size();
+            mStats.get(keys.get(i)).writeDeltaEncodedToStream(historiesOut);
+            historyLengths[i] = historiesOut.size() - offset;
+        }
+        historiesOut.flush();
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_INDEXED);
+
+        out.writeInt(idents.size());
+        for (NetworkIdentitySet ident : idents) {
+            ident.writeToStream(out);
+        }
+
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final Key key = keys.get(i);
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeLong(history.getStart());
+            out.writeLong(history.getEnd());
+            out.writeInt(historyLengths[i]);
+        }
+        out.write(histories.toByteArray());
+    }
+
     /**
      * Read legacy network summary statistics file format into the collection,
      * See {@code NetworkStatsService#maybeUpgradeLegacyStatsLocked}.
@@ -701,12 +996,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeUids(int[] uids) {
-        final ArrayList<Key> knownKeys = new ArrayList<>();
-        knownKeys.addAll(mStats.keySet());
-
         // migrate all UID stats into special "removed" bucket
-        for (Key key : knownKeys) {
-            if (CollectionUtils.contains(uids, key.uid)) {
+        for (int uid : uids) {
+            final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+            if (uidKeys == null) continue;
+            for (Key key : new ArrayList<>(uidKeys)) {
                 // only migrate combined TAG_NONE history
                 if (key.tag == TAG_NONE) {
                     final NetworkStatsHistory uidHistory = mStats.get(key);
@@ -714,7 +1008,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                             key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
                     removedHistory.recordEntireHistory(uidHistory);
                 }
-                mStats.remove(key);
+                removeKey(key);
                 mDirty = true;
             }
         }
@@ -734,7 +1028,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
             history.removeBucketsStartingBefore(cutoffMillis);
             if (history.size() == 0) {
-                mStats.remove(key);
+                removeKey(key);
             }
             mDirty = true;
         }
@@ -817,11 +1111,10 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final ArrayMap<Key, NetworkStatsHistory> grouped = new ArrayMap<>();
 
         // Walk through all history, grouping by matching network templates
-        for (int i = 0; i < mStats.size(); i++) {
+        for (int i : getIndicesOfKeysMatching(groupTemplate)) {
             final Key key = mStats.keyAt(i);
             final NetworkStatsHistory value = mStats.valueAt(i);
 
-            if (!templateMatches(groupTemplate, key.ident)) continue;
             if (key.set >= NetworkStats.SET_DEBUG_START) continue;
 
             final Key groupKey = new Key(new NetworkIdentitySet(), key.uid, key.set, key.tag);
@@ -863,6 +1156,31 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return false;
     }
 
+    /** Parameters of {@link #readMatching}. */
+    private static final class ReadFilter {
+        @Nullable
+        private final NetworkTemplate mTemplate;
+        private final int mUid;
+        private final long mStartMillis;
+        private final long mEndMillis;
+
+        ReadFilter(@Nullable NetworkTemplate template, int uid, long startMillis, long endMillis) {
+            mTemplate = template;
+            mUid = uid;
+            mStartMillis = startMillis;
+            mEndMillis = endMillis;
+        }
+
+        boolean matches(NetworkIdentitySet ident) {
+            return mTemplate == null || templateMatches(mTemplate, ident);
+        }
+
+        boolean matches(int uid, long startMillis, long endMillis) {
+            return (mUid == UID_ALL || mUid == uid)
+                    && startMillis <= mEndMillis && endMillis >= mStartMillis;
+        }
+    }
+
     /**
      * Get the all historical stats of the collection {@link NetworkStatsCollection}.
      *
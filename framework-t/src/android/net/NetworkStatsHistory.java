@@ -79,6 +79,7 @@ public final class NetworkStatsHistory implements Parcelable {
     private static final int VERSION_INIT = 1;
     private static final int VERSION_ADD_PACKETS = 2;
     private static final int VERSION_ADD_ACTIVE = 3;
+    private static final int VERSION_DELTA_BUCKET_START = 4;
 
     /** @hide */
     public static final int FIELD_ACTIVE_TIME = 0x01;
@@ -357,9 +358,15 @@ public final class NetworkStatsHistory implements Parcelable {
                 break;
             }
             case VERSION_ADD_PACKETS:
-            case VERSION_ADD_ACTIVE: {
+            case VERSION_ADD_ACTIVE:
+            case VERSION_DELTA_BUCKET_START: {
                 bucketDuration = in.readLong();
                 bucketStart = readVarLongArray(in);
+                if (version >= VERSION_DELTA_BUCKET_START) {
+                    for (int i = 1; i < bucketStart.length; i++) {
+                        bucketStart[i] += bucketStart[i - 1];
+                    }
+                }
                 activeTime = (version >= VERSION_ADD_ACTIVE) ? readVarLongArray(in)
                         : new long[bucketStart.length];
                 rxBytes = readVarLongArray(in);
@@ -396,6 +403,27 @@ public final class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Write this history with each bucket start stored as the delta from the previous bucket
+     * start, which is a few bytes instead of the six bytes of an absolute timestamp. Can only be
+     * read back by {@link #NetworkStatsHistory(DataInput)} from the same or a later version.
+     */
+    void writeDeltaEncodedToStream(DataOutput out) throws IOException {
+        final long[] bucketStartDeltas = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            bucketStartDeltas[i] = (i == 0) ? bucketStart[0] : bucketStart[i] - bucketStart[i - 1];
+        }
+        out.writeInt(VERSION_DELTA_BUCKET_START);
+        out.writeLong(bucketDuration);
+        writeVarLongArray(out, bucketStartDeltas, bucketCount);
+        writeVarLongArray(out, activeTime, bucketCount);
+        writeVarLongArray(out, rxBytes, bucketCount);
+        writeVarLongArray(out, rxPackets, bucketCount);
+        writeVarLongArray(out, txBytes, bucketCount);
+        writeVarLongArray(out, txPackets, bucketCount);
+        writeVarLongArray(out, operations, bucketCount);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -19,6 +19,7 @@ package android.net;
 import static android.annotation.SystemApi.Client.MODULE_LIBRARIES;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.RequiresPermission;
 import android.annotation.SuppressLint;
 import android.annotation.SystemApi;
@@ -29,10 +30,13 @@ import android.app.usage.NetworkStatsManager;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.Context;
 import android.media.MediaPlayer;
+import android.net.netstats.TrafficStatsSnapshot;
 import android.os.Binder;
 import android.os.Build;
 import android.os.RemoteException;
+import android.os.SharedMemory;
 import android.os.StrictMode;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import java.io.FileDescriptor;
@@ -201,6 +205,16 @@ public class TrafficStats {
 
     private static final String LOOPBACK_IFACE = "lo";
 
+    private static final Object sSnapshotLock = new Object();
+    // Whether the snapshot was requested from the service, in which case sSnapshot is null if the
+    // service does not support it.
+    private static volatile boolean sSnapshotRequested;
+    /**
+     * Shared memory snapshot of the counters visible to this process, refreshed by the service,
+     * which allows reading them without binder calls.
+     */
+    private static volatile TrafficStatsSnapshot sSnapshot;
+
     /**
      * Initialization {@link TrafficStats} with the context, to
      * allow {@link TrafficStats} to fetch the needed binder.
@@ -228,6 +242,25 @@ public class TrafficStats {
         sStatsService = statsManager.getBinder();
     }
 
+    @Nullable
+    private static TrafficStatsSnapshot getSnapshot() {
+        if (sSnapshotRequested) return sSnapshot;
+        synchronized (sSnapshotLock) {
+            if (sSnapshotRequested) return sSnapshot;
+            // The service keeps the snapshot until this token, and thus the process, dies.
+            try (SharedMemory memory = getStatsService().openTrafficStatsSnapshot(new Binder())) {
+                // The mapping stays valid after the memory is closed.
+                if (memory != null) sSnapshot = new TrafficStatsSnapshot(memory.mapReadOnly());
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot map TrafficStats snapshot", e);
+            }
+            sSnapshotRequested = true;
+            return sSnapshot;
+        }
+    }
+
     /**
      * Attach the socket tagger implementation to the current process, to
      * get notified when a socket's {@link FileDescriptor} is assigned to
@@ -963,6 +996,11 @@ public class TrafficStats {
                 || android.os.Process.myUid() != uid) {
             return UNSUPPORTED;
         }
+        final TrafficStatsSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            final long value = snapshot.getUidStat(uid, type);
+            if (value != TrafficStatsSnapshot.NOT_AVAILABLE) return value;
+        }
         final NetworkStats stats;
         try {
             stats = getStatsService().getTypelessUidStats(uid);
@@ -977,6 +1015,11 @@ public class TrafficStats {
         if (!isEntryValueTypeValid(type)) {
             return UNSUPPORTED;
         }
+        final TrafficStatsSnapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            final long value = snapshot.getTotalStat(type);
+            if (value != TrafficStatsSnapshot.NOT_AVAILABLE) return value;
+        }
         final NetworkStats stats;
         try {
             stats = getStatsService().getTypelessTotalStats();
@@ -991,6 +1034,11 @@ public class TrafficStats {
         if (!isEntryValueTypeValid(type)) {
             return UNSUPPORTED;
         }
+        final TrafficStatsSnapshot snapshot = iface == null ? null : getSnapshot();
+        if (snapshot != null) {
+            final long value = snapshot.getIfaceStat(iface, type);
+            if (value != TrafficStatsSnapshot.NOT_AVAILABLE) return value;
+        }
         final NetworkStats stats;
         try {
             stats = getStatsService().getTypelessIfaceStats(iface);
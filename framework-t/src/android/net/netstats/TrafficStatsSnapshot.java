@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.netstats;
+
+import static android.net.TrafficStats.TYPE_RX_BYTES;
+import static android.net.TrafficStats.TYPE_RX_PACKETS;
+import static android.net.TrafficStats.TYPE_TX_BYTES;
+import static android.net.TrafficStats.TYPE_TX_PACKETS;
+import static android.net.TrafficStats.UNSUPPORTED;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.os.SystemClock;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of a shared memory region through which NetworkStatsService publishes the TrafficStats
+ * counters visible to an app, so that {@link android.net.TrafficStats} can read them without
+ * binder calls.
+ *
+ * The region contains the counters of a single UID, the total counters and the counters of the
+ * interfaces known to NetworkStatsService. It is only written by NetworkStatsService and mapped
+ * read-only by the app. Updates are guarded by a sequence lock: the writer makes the sequence
+ * number odd before updating the counters and even again after, and readers retry if the sequence
+ * number was odd or changed while they were reading.
+ *
+ * Readers return {@link #NOT_AVAILABLE} if the region is not initialized, was not refreshed
+ * recently or does not contain the requested interface, in which case the caller should query
+ * NetworkStatsService instead.
+ *
+ * @hide
+ */
+public final class TrafficStatsSnapshot {
+    /** Size of the shared memory region. */
+    public static final int SIZE = 4096;
+
+    /** Returned by the getters when the counter can't be read from the region. */
+    public static final long NOT_AVAILABLE = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x54535331; // "TSS1"
+
+    // Header
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_UPDATE_TIME_MS = 8;
+    private static final int OFFSET_REFRESH_INTERVAL_MS = 16;
+    private static final int OFFSET_UID = 20;
+    private static final int OFFSET_FLAGS = 24;
+    private static final int OFFSET_NUM_IFACES = 28;
+    // Counters, in the order of the TrafficStats TYPE_* constants
+    private static final int OFFSET_TOTAL = 32;
+    private static final int OFFSET_UID_STATS = 64;
+    private static final int COUNTERS_SIZE = 32;
+    // Interface records: a nul-terminated name followed by the counters
+    private static final int OFFSET_IFACES = 96;
+    private static final int IFACE_NAME_SIZE = 16; // IFNAMSIZ
+    private static final int IFACE_RECORD_SIZE = IFACE_NAME_SIZE + COUNTERS_SIZE;
+
+    /** Maximum number of interfaces in the region. */
+    public static final int MAX_IFACES = (SIZE - OFFSET_IFACES) / IFACE_RECORD_SIZE;
+
+    private static final int FLAG_HAS_TOTAL = 1 << 0;
+    private static final int FLAG_HAS_UID_STATS = 1 << 1;
+
+    // Counters older than this many refresh intervals are considered stale. This leaves some
+    // slack for the writer thread to be late, but still bounds how old the returned values are.
+    private static final int STALE_INTERVALS = 2;
+    // The writer holds the sequence lock for a few microseconds, so readers should rarely need
+    // more than a couple of attempts. Bound the number of attempts in case the writer died in the
+    // middle of an update.
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    private static final int KIND_TOTAL = 0;
+    private static final int KIND_UID = 1;
+    private static final int KIND_IFACE = 2;
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Create a snapshot reading or writing the given mapping of the shared memory region.
+     *
+     * @param buffer the mapping, e.g. returned by {@link android.os.SharedMemory#mapReadOnly()}.
+     */
+    public TrafficStatsSnapshot(@NonNull ByteBuffer buffer) {
+        if (buffer.capacity() < SIZE) {
+            throw new IllegalArgumentException("Buffer too small: " + buffer.capacity());
+        }
+        // Both sides of the region are on the same device.
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Publish new counters in the region.
+     *
+     * This must not be called concurrently for the same region. Interfaces beyond
+     * {@link #MAX_IFACES} or whose name does not fit in the region are not published.
+     *
+     * @param uid the UID whose counters are published.
+     * @param uidStats the counters of the UID, or null if not available.
+     * @param totalStats the total counters, or null if not available.
+     * @param ifaces the names of the interfaces.
+     * @param ifaceStats the counters of each interface, or null entries if not available.
+     * @param refreshIntervalMs how often the region is refreshed.
+     */
+    public void write(int uid, @Nullable NetworkStats.Entry uidStats,
+            @Nullable NetworkStats.Entry totalStats, @NonNull String[] ifaces,
+            @NonNull NetworkStats.Entry[] ifaceStats, int refreshIntervalMs) {
+        final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+
+        int flags = 0;
+        if (totalStats != null) {
+            flags |= FLAG_HAS_TOTAL;
+            writeCounters(OFFSET_TOTAL, totalStats);
+        }
+        if (uidStats != null) {
+            flags |= FLAG_HAS_UID_STATS;
+            writeCounters(OFFSET_UID_STATS, uidStats);
+        }
+        int numIfaces = 0;
+        for (int i = 0; i < ifaces.length && numIfaces < MAX_IFACES; i++) {
+            if (ifaceStats[i] == null || !isValidIfaceName(ifaces[i])) continue;
+            final int offset = OFFSET_IFACES + numIfaces * IFACE_RECORD_SIZE;
+            for (int j = 0; j < IFACE_NAME_SIZE; j++) {
+                mBuffer.put(offset + j, j < ifaces[i].length() ? (byte) ifaces[i].charAt(j) : 0);
+            }
+            writeCounters(offset + IFACE_NAME_SIZE, ifaceStats[i]);
+            numIfaces++;
+        }
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putLong(OFFSET_UPDATE_TIME_MS, SystemClock.elapsedRealtime());
+        mBuffer.putInt(OFFSET_REFRESH_INTERVAL_MS, refreshIntervalMs);
+        mBuffer.putInt(OFFSET_UID, uid);
+        mBuffer.putInt(OFFSET_FLAGS, flags);
+        mBuffer.putInt(OFFSET_NUM_IFACES, numIfaces);
+
+        VarHandle.storeStoreFence();
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * Invalidate the counters in the region until the next {@link #write}.
+     *
+     * This must not be called concurrently with {@link #write} for the same region.
+     */
+    public void invalidate() {
+        final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        mBuffer.putInt(OFFSET_MAGIC, 0);
+        VarHandle.storeStoreFence();
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+    }
+
+    private static boolean isValidIfaceName(@Nullable String iface) {
+        if (iface == null || iface.isEmpty() || iface.length() >= IFACE_NAME_SIZE) return false;
+        for (int i = 0; i < iface.length(); i++) {
+            final char c = iface.charAt(i);
+            if (c == 0 || c > 0x7f) return false;
+        }
+        return true;
+    }
+
+    private void writeCounters(int offset, @NonNull NetworkStats.Entry entry) {
+        mBuffer.putLong(offset + TYPE_RX_BYTES * Long.BYTES, entry.getRxBytes());
+        mBuffer.putLong(offset + TYPE_RX_PACKETS * Long.BYTES, entry.getRxPackets());
+        mBuffer.putLong(offset + TYPE_TX_BYTES * Long.BYTES, entry.getTxBytes());
+        mBuffer.putLong(offset + TYPE_TX_PACKETS * Long.BYTES, entry.getTxPackets());
+    }
+
+    /**
+     * Get a counter of the given UID.
+     *
+     * @param type one of the TrafficStats TYPE_* constants.
+     * @return the counter, {@link android.net.TrafficStats#UNSUPPORTED} if the UID has no
+     *         counters, or {@link #NOT_AVAILABLE} if the region can't be used.
+     */
+    public long getUidStat(int uid, int type) {
+        return read(KIND_UID, uid, null /* iface */, type);
+    }
+
+    /**
+     * Get a counter of the given interface.
+     *
+     * @param type one of the TrafficStats TYPE_* constants.
+     * @return the counter, or {@link #NOT_AVAILABLE} if the region can't be used or does not
+     *         contain the interface.
+     */
+    public long getIfaceStat(@NonNull String iface, int type) {
+        return read(KIND_IFACE, 0 /* uid */, iface, type);
+    }
+
+    /**
+     * Get a total counter.
+     *
+     * @param type one of the TrafficStats TYPE_* constants.
+     * @return the counter, {@link android.net.TrafficStats#UNSUPPORTED} if there are no total
+     *         counters, or {@link #NOT_AVAILABLE} if the region can't be used.
+     */
+    public long getTotalStat(int type) {
+        return read(KIND_TOTAL, 0 /* uid */, null /* iface */, type);
+    }
+
+    private long read(int kind, int uid, @Nullable String iface, int type) {
+        if (type < TYPE_RX_BYTES || type > TYPE_TX_PACKETS) return NOT_AVAILABLE;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+            VarHandle.loadLoadFence();
+            if ((sequence & 1) != 0) continue;
+            final long value = readUnlocked(kind, uid, iface, type);
+            VarHandle.loadLoadFence();
+            if (mBuffer.getInt(OFFSET_SEQUENCE) == sequence) return value;
+        }
+        return NOT_AVAILABLE;
+    }
+
+    // The values read here may be inconsistent if the region is being written, in which case they
+    // are discarded by the caller. They must only be used to compute offsets within the region.
+    private long readUnlocked(int kind, int uid, @Nullable String iface, int type) {
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC) return NOT_AVAILABLE;
+        final long ageMs = SystemClock.elapsedRealtime() - mBuffer.getLong(OFFSET_UPDATE_TIME_MS);
+        if (ageMs > (long) STALE_INTERVALS * mBuffer.getInt(OFFSET_REFRESH_INTERVAL_MS)) {
+            return NOT_AVAILABLE;
+        }
+        final int flags = mBuffer.getInt(OFFSET_FLAGS);
+        switch (kind) {
+            case KIND_TOTAL:
+                if ((flags & FLAG_HAS_TOTAL) == 0) return UNSUPPORTED;
+                return mBuffer.getLong(OFFSET_TOTAL + type * Long.BYTES);
+            case KIND_UID:
+                if (mBuffer.getInt(OFFSET_UID) != uid) return NOT_AVAILABLE;
+                if ((flags & FLAG_HAS_UID_STATS) == 0) return UNSUPPORTED;
+                return mBuffer.getLong(OFFSET_UID_STATS + type * Long.BYTES);
+            case KIND_IFACE:
+                final int numIfaces = Math.min(mBuffer.getInt(OFFSET_NUM_IFACES), MAX_IFACES);
+                for (int i = 0; i < numIfaces; i++) {
+                    final int offset = OFFSET_IFACES + i * IFACE_RECORD_SIZE;
+                    if (ifaceNameEquals(offset, iface)) {
+                        return mBuffer.getLong(offset + IFACE_NAME_SIZE + type * Long.BYTES);
+                    }
+                }
+                return NOT_AVAILABLE;
+            default:
+                throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+    }
+
+    private boolean ifaceNameEquals(int offset, @NonNull String iface) {
+        final int length = iface.length();
+        if (length >= IFACE_NAME_SIZE) return false;
+        for (int i = 0; i < length; i++) {
+            if (mBuffer.get(offset + i) != iface.charAt(i)) return false;
+        }
+        return mBuffer.get(offset + length) == 0;
+    }
+}
@@ -59,6 +59,12 @@ public class NearbyConfiguration {
      */
     public static final String NEARBY_ENABLE_BLE_IN_INIT = "nearby_enable_ble_in_init";
 
+    /**
+     * Flag to try the credentials of presence scan filters in parallel on a bounded executor.
+     */
+    public static final String NEARBY_PARALLEL_PRESENCE_DECRYPTION =
+            "nearby_parallel_presence_decryption";
+
     private static final boolean IS_USER_BUILD = "user".equals(Build.TYPE);
 
     private final DeviceConfigListener mDeviceConfigListener = new DeviceConfigListener();
@@ -74,6 +80,8 @@ public class NearbyConfiguration {
     private boolean mRefactorDiscoveryManager;
     @GuardedBy("mDeviceConfigLock")
     private boolean mEnableBleInInit;
+    @GuardedBy("mDeviceConfigLock")
+    private boolean mParallelPresenceDecryption;
 
     public NearbyConfiguration() {
         mDeviceConfigListener.start();
@@ -147,6 +155,16 @@ public class NearbyConfiguration {
         }
     }
 
+    /**
+     * @return {@code true} if the credentials matched against a presence advertisement are
+     * tried in parallel.
+     */
+    public boolean isParallelPresenceDecryptionEnabled() {
+        synchronized (mDeviceConfigLock) {
+            return mParallelPresenceDecryption;
+        }
+    }
+
     private class DeviceConfigListener implements DeviceConfig.OnPropertiesChangedListener {
         public void start() {
             DeviceConfig.addOnPropertiesChangedListener(getNamespace(),
@@ -167,6 +185,8 @@ public class NearbyConfiguration {
                         NEARBY_REFACTOR_DISCOVERY_MANAGER, false /* defaultValue */);
                 mEnableBleInInit = getDeviceConfigBoolean(
                         NEARBY_ENABLE_BLE_IN_INIT, true /* defaultValue */);
+                mParallelPresenceDecryption = getDeviceConfigBoolean(
+                        NEARBY_PARALLEL_PRESENCE_DECRYPTION, false /* defaultValue */);
             }
         }
     }
@@ -134,117 +134,203 @@ public class ExtendedAdvertisement extends Advertisement {
      */
     @Nullable
     public static ExtendedAdvertisement fromBytes(byte[] bytes, PublicCredential sharedCredential) {
-        @BroadcastVersion
-        int version = ExtendedAdvertisementUtils.getVersion(bytes);
-        if (version != PRESENCE_VERSION_V1) {
-            Log.v(TAG, "ExtendedAdvertisement is used in V1 only and version is " + version);
+        EncryptedSection section = EncryptedSection.parse(bytes);
+        if (section == null) {
             return null;
         }
+        return section.decrypt(sharedCredential,
+                CryptorMicImp.DerivedKeys.fromKeySeed(sharedCredential.getAuthenticityKey()));
+    }
 
-        byte[] keySeed = sharedCredential.getAuthenticityKey();
-        byte[] metadataEncryptionKeyUnsignedAdvTag = sharedCredential.getEncryptedMetadataKeyTag();
-        if (keySeed == null || metadataEncryptionKeyUnsignedAdvTag == null) {
-            return null;
+    /**
+     * The credential-independent part of an encrypted advertisement.
+     *
+     * <p>A scanner tries every credential it knows against each advertisement. Parsing the
+     * advertisement and deriving its nonce once with {@link #parse}, then calling
+     * {@link #decrypt} for each credential, avoids repeating that work per credential. This
+     * class is immutable, so {@link #decrypt} may be called from several threads.
+     */
+    public static final class EncryptedSection {
+        @BroadcastVersion
+        private final int mVersion;
+        private final byte[] mHeader;
+        private final byte[] mSectionHeader;
+        private final byte[] mFirstHeaderArray;
+        private final byte[] mFirstDeBytes;
+        private final byte[] mNonce;
+        private final byte[] mSalt;
+        private final byte[] mIdentityHeaderArray;
+        @PresenceCredential.IdentityType
+        private final int mIdentityType;
+        private final byte[] mCiphertext;
+        private final byte[] mExpectedHmacTag;
+
+        private EncryptedSection(@BroadcastVersion int version, byte[] header,
+                byte[] sectionHeader, byte[] firstHeaderArray, byte[] firstDeBytes, byte[] nonce,
+                byte[] salt, byte[] identityHeaderArray,
+                @PresenceCredential.IdentityType int identityType, byte[] ciphertext,
+                byte[] expectedHmacTag) {
+            mVersion = version;
+            mHeader = header;
+            mSectionHeader = sectionHeader;
+            mFirstHeaderArray = firstHeaderArray;
+            mFirstDeBytes = firstDeBytes;
+            mNonce = nonce;
+            mSalt = salt;
+            mIdentityHeaderArray = identityHeaderArray;
+            mIdentityType = identityType;
+            mCiphertext = ciphertext;
+            mExpectedHmacTag = expectedHmacTag;
         }
 
-        int index = 0;
-        // Header
-        byte[] header = new byte[]{bytes[index]};
-        index += HEADER_LENGTH;
-        // Section header
-        byte[] sectionHeader = new byte[]{bytes[index]};
-        index += HEADER_LENGTH;
-        // Salt or Encryption Info
-        byte[] firstHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
-        DataElementHeader firstHeader = DataElementHeader.fromBytes(version, firstHeaderArray);
-        if (firstHeader == null) {
-            Log.v(TAG, "Cannot find salt.");
-            return null;
-        }
-        @DataType int firstType = firstHeader.getDataType();
-        if (firstType != DataType.SALT && firstType != DataType.ENCRYPTION_INFO) {
-            Log.v(TAG, "First data element has to be Salt or Encryption Info.");
-            return null;
-        }
-        index += firstHeaderArray.length;
-        byte[] firstDeBytes = new byte[firstHeader.getDataLength()];
-        for (int i = 0; i < firstHeader.getDataLength(); i++) {
-            firstDeBytes[i] = bytes[index++];
-        }
-        byte[] nonce = getNonce(firstType, firstDeBytes);
-        if (nonce == null) {
-            return null;
-        }
-        byte[] saltBytes = firstType == DataType.SALT
-                ? firstDeBytes : (new EncryptionInfo(firstDeBytes)).getSalt();
-
-        // Identity header
-        byte[] identityHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
-        DataElementHeader identityHeader =
-                DataElementHeader.fromBytes(version, identityHeaderArray);
-        if (identityHeader == null || identityHeader.getDataLength() != IDENTITY_DATA_LENGTH) {
-            Log.v(TAG, "The second element has to be a 16-bytes identity.");
-            return null;
-        }
-        index += identityHeaderArray.length;
-        @PresenceCredential.IdentityType int identityType =
-                toPresenceCredentialIdentityType(identityHeader.getDataType());
-        if (identityType != PresenceCredential.IDENTITY_TYPE_PRIVATE
-                && identityType != PresenceCredential.IDENTITY_TYPE_TRUSTED) {
-            Log.v(TAG, "Only supports encrypted advertisement.");
-            return null;
-        }
-        // Ciphertext
-        Cryptor cryptor = CryptorMicImp.getInstance();
-        byte[] ciphertext = new byte[bytes.length - index - cryptor.getSignatureLength()];
-        System.arraycopy(bytes, index, ciphertext, 0, ciphertext.length);
-        byte[] plaintext = cryptor.decrypt(ciphertext, nonce, keySeed);
-        if (plaintext == null) {
-            return null;
-        }
+        /**
+         * Parses the headers of an advertisement and derives its nonce.
+         *
+         * @return the parsed section or {@code null} when the advertisement is not a valid
+         * encrypted V1 advertisement.
+         */
+        @Nullable
+        public static EncryptedSection parse(byte[] bytes) {
+            @BroadcastVersion
+            int version = ExtendedAdvertisementUtils.getVersion(bytes);
+            if (version != PRESENCE_VERSION_V1) {
+                Log.v(TAG, "ExtendedAdvertisement is used in V1 only and version is " + version);
+                return null;
+            }
 
-        // Verification
-        // Verify the computed metadata encryption key tag
-        // First 16 bytes is metadata encryption key data
-        byte[] metadataEncryptionKey = new byte[IDENTITY_DATA_LENGTH];
-        System.arraycopy(plaintext, 0, metadataEncryptionKey, 0, IDENTITY_DATA_LENGTH);
-        // Verify metadata encryption key tag
-        byte[] computedMetadataEncryptionKeyTag =
-                CryptorMicImp.generateMetadataEncryptionKeyTag(metadataEncryptionKey,
-                        keySeed);
-        if (!Arrays.equals(computedMetadataEncryptionKeyTag, metadataEncryptionKeyUnsignedAdvTag)) {
-            Log.w(TAG,
-                    "The calculated metadata encryption key tag is different from the metadata "
-                            + "encryption key unsigned adv tag in the SharedCredential.");
-            return null;
-        }
-        // Verify the computed HMAC tag is equal to HMAC tag in advertisement
-        byte[] expectedHmacTag = new byte[cryptor.getSignatureLength()];
-        System.arraycopy(
-                bytes, bytes.length - cryptor.getSignatureLength(),
-                expectedHmacTag, 0, cryptor.getSignatureLength());
-        byte[] micInput =  ArrayUtils.concatByteArrays(
-                PRESENCE_UUID_BYTES, header, sectionHeader,
-                firstHeaderArray, firstDeBytes,
-                nonce, identityHeaderArray, ciphertext);
-        if (!cryptor.verify(micInput, keySeed, expectedHmacTag)) {
-            Log.e(TAG, "HMAC tag not match.");
-            return null;
+            int index = 0;
+            // Header
+            byte[] header = new byte[]{bytes[index]};
+            index += HEADER_LENGTH;
+            // Section header
+            byte[] sectionHeader = new byte[]{bytes[index]};
+            index += HEADER_LENGTH;
+            // Salt or Encryption Info
+            byte[] firstHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
+            DataElementHeader firstHeader = DataElementHeader.fromBytes(version, firstHeaderArray);
+            if (firstHeader == null) {
+                Log.v(TAG, "Cannot find salt.");
+                return null;
+            }
+            @DataType int firstType = firstHeader.getDataType();
+            if (firstType != DataType.SALT && firstType != DataType.ENCRYPTION_INFO) {
+                Log.v(TAG, "First data element has to be Salt or Encryption Info.");
+                return null;
+            }
+            index += firstHeaderArray.length;
+            byte[] firstDeBytes = new byte[firstHeader.getDataLength()];
+            for (int i = 0; i < firstHeader.getDataLength(); i++) {
+                firstDeBytes[i] = bytes[index++];
+            }
+            byte[] nonce = getNonce(firstType, firstDeBytes);
+            if (nonce == null) {
+                return null;
+            }
+            byte[] saltBytes = firstType == DataType.SALT
+                    ? firstDeBytes : (new EncryptionInfo(firstDeBytes)).getSalt();
+
+            // Identity header
+            byte[] identityHeaderArray =
+                    ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
+            DataElementHeader identityHeader =
+                    DataElementHeader.fromBytes(version, identityHeaderArray);
+            if (identityHeader == null
+                    || identityHeader.getDataLength() != IDENTITY_DATA_LENGTH) {
+                Log.v(TAG, "The second element has to be a 16-bytes identity.");
+                return null;
+            }
+            index += identityHeaderArray.length;
+            @PresenceCredential.IdentityType int identityType =
+                    toPresenceCredentialIdentityType(identityHeader.getDataType());
+            if (identityType != PresenceCredential.IDENTITY_TYPE_PRIVATE
+                    && identityType != PresenceCredential.IDENTITY_TYPE_TRUSTED) {
+                Log.v(TAG, "Only supports encrypted advertisement.");
+                return null;
+            }
+            // Ciphertext
+            int signatureLength = CryptorMicImp.getInstance().getSignatureLength();
+            int ciphertextLength = bytes.length - index - signatureLength;
+            if (ciphertextLength < IDENTITY_DATA_LENGTH) {
+                Log.v(TAG, "The ciphertext is too short to contain the identity.");
+                return null;
+            }
+            byte[] ciphertext = new byte[ciphertextLength];
+            System.arraycopy(bytes, index, ciphertext, 0, ciphertext.length);
+            byte[] expectedHmacTag = new byte[signatureLength];
+            System.arraycopy(
+                    bytes, bytes.length - signatureLength, expectedHmacTag, 0, signatureLength);
+            return new EncryptedSection(version, header, sectionHeader, firstHeaderArray,
+                    firstDeBytes, nonce, saltBytes, identityHeaderArray, identityType, ciphertext,
+                    expectedHmacTag);
         }
 
-        byte[] otherDataElements = new byte[plaintext.length - IDENTITY_DATA_LENGTH];
-        System.arraycopy(plaintext, IDENTITY_DATA_LENGTH,
-                otherDataElements, 0, otherDataElements.length);
-        List<DataElement> dataElements = getDataElementsFromBytes(version, otherDataElements);
-        if (dataElements.isEmpty()) {
-            return null;
-        }
-        List<Integer> actions = getActionsFromDataElements(dataElements);
-        if (actions == null) {
-            return null;
+        /**
+         * Decrypts the section with a credential.
+         *
+         * <p>The metadata encryption key tag of the credential is checked first, after decrypting
+         * only the identity, so that non-matching credentials are rejected before the whole
+         * section is decrypted and its MIC verified.
+         *
+         * @param keys the keys derived from the authenticity key of {@code sharedCredential}
+         * @return the advertisement or {@code null} if the credential does not match.
+         */
+        @Nullable
+        public ExtendedAdvertisement decrypt(PublicCredential sharedCredential,
+                @Nullable CryptorMicImp.DerivedKeys keys) {
+            byte[] keySeed = sharedCredential.getAuthenticityKey();
+            byte[] metadataEncryptionKeyUnsignedAdvTag =
+                    sharedCredential.getEncryptedMetadataKeyTag();
+            if (keySeed == null || keys == null || metadataEncryptionKeyUnsignedAdvTag == null) {
+                return null;
+            }
+
+            // Verify the computed metadata encryption key tag
+            // First 16 bytes is metadata encryption key data
+            CryptorMicImp cryptor = CryptorMicImp.getInstance();
+            byte[] metadataEncryptionKey =
+                    cryptor.decrypt(mCiphertext, IDENTITY_DATA_LENGTH, mNonce, keys);
+            if (metadataEncryptionKey == null) {
+                return null;
+            }
+            byte[] computedMetadataEncryptionKeyTag =
+                    CryptorMicImp.generateMetadataEncryptionKeyTag(metadataEncryptionKey, keys);
+            if (!Arrays.equals(computedMetadataEncryptionKeyTag,
+                    metadataEncryptionKeyUnsignedAdvTag)) {
+                // Expected for all but one of the credentials tried against an advertisement.
+                Log.v(TAG,
+                        "The calculated metadata encryption key tag is different from the "
+                                + "metadata encryption key unsigned adv tag in the "
+                                + "SharedCredential.");
+                return null;
+            }
+            // Verify the computed HMAC tag is equal to HMAC tag in advertisement
+            byte[] micInput =  ArrayUtils.concatByteArrays(
+                    PRESENCE_UUID_BYTES, mHeader, mSectionHeader,
+                    mFirstHeaderArray, mFirstDeBytes,
+                    mNonce, mIdentityHeaderArray, mCiphertext);
+            if (!cryptor.verify(micInput, keys, mExpectedHmacTag)) {
+                Log.e(TAG, "HMAC tag not match.");
+                return null;
+            }
+
+            byte[] plaintext = cryptor.decrypt(mCiphertext, mCiphertext.length, mNonce, keys);
+            if (plaintext == null) {
+                return null;
+            }
+            byte[] otherDataElements = new byte[plaintext.length - IDENTITY_DATA_LENGTH];
+            System.arraycopy(plaintext, IDENTITY_DATA_LENGTH,
+                    otherDataElements, 0, otherDataElements.length);
+            List<DataElement> dataElements = getDataElementsFromBytes(mVersion, otherDataElements);
+            if (dataElements.isEmpty()) {
+                return null;
+            }
+            List<Integer> actions = getActionsFromDataElements(dataElements);
+            if (actions == null) {
+                return null;
+            }
+            return new ExtendedAdvertisement(mIdentityType, metadataEncryptionKey, mSalt, keySeed,
+                    actions, dataElements);
         }
-        return new ExtendedAdvertisement(identityType, metadataEncryptionKey, saltBytes, keySeed,
-                actions, dataElements);
     }
 
     @PresenceCredential.IdentityType
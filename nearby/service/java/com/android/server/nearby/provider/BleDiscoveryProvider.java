@@ -41,18 +41,30 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.server.nearby.NearbyConfiguration;
 import com.android.server.nearby.injector.Injector;
 import com.android.server.nearby.presence.ExtendedAdvertisement;
 import com.android.server.nearby.util.ArrayUtils;
 import com.android.server.nearby.util.ForegroundThread;
+import com.android.server.nearby.util.encryption.CryptorMicImp;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Discovery provider that uses Bluetooth Low Energy to do scanning.
@@ -61,13 +73,27 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
 
     // Don't block the thread as it may be used by other services.
     private static final Executor NEARBY_EXECUTOR = ForegroundThread.getExecutor();
+    // Maximum number of threads trying credentials in parallel.
+    private static final int MAX_DECRYPTION_THREADS = 4;
+    // With fewer credentials, handing them over to other threads costs more than trying them.
+    private static final int MIN_CREDENTIALS_FOR_PARALLEL_DECRYPTION = 8;
+    private static final long DECRYPTION_THREAD_KEEP_ALIVE_MS = 10_000L;
     private final Injector mInjector;
+    private final NearbyConfiguration mNearbyConfiguration;
     private final Object mLock = new Object();
     // Null when the filters are never set
     @VisibleForTesting
     @GuardedBy("mLock")
     @Nullable
     private List<android.nearby.ScanFilter> mScanFilters;
+    // The credentials of the presence filters in mScanFilters with their derived keys. The list is
+    // immutable, so scan results are matched against it without holding mLock.
+    @GuardedBy("mLock")
+    @Nullable
+    private List<CredentialKeys> mCredentialKeys;
+    @GuardedBy("mLock")
+    @Nullable
+    private ExecutorService mDecryptionExecutor;
     private android.bluetooth.le.ScanCallback mScanCallback =
             new android.bluetooth.le.ScanCallback() {
                 @Override
@@ -108,6 +134,29 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     public BleDiscoveryProvider(Context context, Injector injector) {
         super(context, NEARBY_EXECUTOR);
         mInjector = injector;
+        mNearbyConfiguration = new NearbyConfiguration();
+    }
+
+    /** A credential of a presence scan filter and the keys derived from it. */
+    @VisibleForTesting
+    static final class CredentialKeys {
+        final PublicCredential mCredential;
+        final CryptorMicImp.DerivedKeys mKeys;
+
+        CredentialKeys(PublicCredential credential, CryptorMicImp.DerivedKeys keys) {
+            mCredential = credential;
+            mKeys = keys;
+        }
+    }
+
+    private static final class Match {
+        final PublicCredential mCredential;
+        final ExtendedAdvertisement mAdvertisement;
+
+        Match(PublicCredential credential, ExtendedAdvertisement advertisement) {
+            mCredential = credential;
+            mAdvertisement = advertisement;
+        }
     }
 
     private static PresenceDevice getPresenceDevice(ExtendedAdvertisement advertisement,
@@ -181,6 +230,7 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
             if (mScanFilters != null) {
                 mScanFilters = null;
             }
+            mCredentialKeys = null;
         }
     }
 
@@ -194,6 +244,50 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     protected void onSetScanFilters(List<android.nearby.ScanFilter> filters) {
         synchronized (mLock) {
             mScanFilters = filters == null ? null : List.copyOf(filters);
+            mCredentialKeys = mScanFilters == null
+                    ? null : deriveCredentialKeys(mScanFilters, mCredentialKeys);
+        }
+    }
+
+    /**
+     * Derives the keys of all the credentials of the presence filters, reusing the keys derived
+     * for the previous filters when the authenticity key did not change.
+     */
+    private static List<CredentialKeys> deriveCredentialKeys(
+            List<android.nearby.ScanFilter> filters, @Nullable List<CredentialKeys> previous) {
+        Map<ByteBuffer, CryptorMicImp.DerivedKeys> previousKeys = new HashMap<>();
+        if (previous != null) {
+            for (CredentialKeys credentialKeys : previous) {
+                previousKeys.put(ByteBuffer.wrap(credentialKeys.mCredential.getAuthenticityKey()),
+                        credentialKeys.mKeys);
+            }
+        }
+        List<CredentialKeys> result = new ArrayList<>();
+        for (android.nearby.ScanFilter scanFilter : filters) {
+            if (!(scanFilter instanceof PresenceScanFilter)) {
+                continue;
+            }
+            for (PublicCredential credential : ((PresenceScanFilter) scanFilter).getCredentials()) {
+                byte[] authenticityKey = credential.getAuthenticityKey();
+                if (authenticityKey == null || credential.getEncryptedMetadataKeyTag() == null) {
+                    continue;
+                }
+                CryptorMicImp.DerivedKeys keys = previousKeys.computeIfAbsent(
+                        ByteBuffer.wrap(authenticityKey),
+                        k -> CryptorMicImp.DerivedKeys.fromKeySeed(authenticityKey));
+                if (keys != null) {
+                    result.add(new CredentialKeys(credential, keys));
+                }
+            }
+        }
+        return List.copyOf(result);
+    }
+
+    @VisibleForTesting
+    @Nullable
+    List<CredentialKeys> getCredentialKeys() {
+        synchronized (mLock) {
+            return mCredentialKeys;
         }
     }
 
@@ -253,31 +347,101 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
 
     private void setPresenceDevice(byte[] data, NearbyDeviceParcelable.Builder builder,
             String deviceName, int rssi) {
+        final List<CredentialKeys> credentialKeys;
         synchronized (mLock) {
-            if (mScanFilters == null) {
-                return;
+            credentialKeys = mCredentialKeys;
+        }
+        if (credentialKeys == null || credentialKeys.isEmpty()) {
+            return;
+        }
+        // Iterate all possible authenticity key and identity combinations to decrypt
+        // advertisement. The parts of the advertisement which do not depend on the credential are
+        // parsed only once.
+        ExtendedAdvertisement.EncryptedSection section =
+                ExtendedAdvertisement.EncryptedSection.parse(data);
+        if (section == null) {
+            return;
+        }
+        Match match = credentialKeys.size() >= MIN_CREDENTIALS_FOR_PARALLEL_DECRYPTION
+                && mNearbyConfiguration.isParallelPresenceDecryptionEnabled()
+                ? findMatchInParallel(section, credentialKeys)
+                : findMatch(section, credentialKeys, 0, credentialKeys.size(), null /* found */);
+        if (match == null) {
+            return;
+        }
+        PublicCredential credential = match.mCredential;
+        builder.setPresenceDevice(getPresenceDevice(match.mAdvertisement, deviceName, rssi));
+        builder.setEncryptionKeyTag(credential.getEncryptedMetadataKeyTag());
+        if (!ArrayUtils.isEmpty(credential.getSecretId())) {
+            builder.setDeviceId(Arrays.hashCode(credential.getSecretId()));
+        }
+    }
+
+    /**
+     * Tries the credentials in [from, to) against the section, stopping early once
+     * {@code found} is set by another thread.
+     */
+    @Nullable
+    private static Match findMatch(ExtendedAdvertisement.EncryptedSection section,
+            List<CredentialKeys> credentialKeys, int from, int to, @Nullable AtomicBoolean found) {
+        for (int i = from; i < to; i++) {
+            if (found != null && found.get()) {
+                return null;
             }
-            for (android.nearby.ScanFilter scanFilter : mScanFilters) {
-                if (scanFilter instanceof PresenceScanFilter) {
-                    // Iterate all possible authenticity key and identity combinations to decrypt
-                    // advertisement
-                    PresenceScanFilter presenceFilter = (PresenceScanFilter) scanFilter;
-                    for (PublicCredential credential : presenceFilter.getCredentials()) {
-                        ExtendedAdvertisement advertisement =
-                                ExtendedAdvertisement.fromBytes(data, credential);
-                        if (advertisement == null) {
-                            continue;
-                        }
-                        builder.setPresenceDevice(getPresenceDevice(advertisement, deviceName,
-                                rssi));
-                        builder.setEncryptionKeyTag(credential.getEncryptedMetadataKeyTag());
-                        if (!ArrayUtils.isEmpty(credential.getSecretId())) {
-                            builder.setDeviceId(Arrays.hashCode(credential.getSecretId()));
-                        }
-                        return;
-                    }
+            CredentialKeys candidate = credentialKeys.get(i);
+            ExtendedAdvertisement advertisement =
+                    section.decrypt(candidate.mCredential, candidate.mKeys);
+            if (advertisement != null) {
+                if (found != null) {
+                    found.set(true);
                 }
+                return new Match(candidate.mCredential, advertisement);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Match findMatchInParallel(ExtendedAdvertisement.EncryptedSection section,
+            List<CredentialKeys> credentialKeys) {
+        CompletionService<Match> completionService =
+                new ExecutorCompletionService<>(getDecryptionExecutor());
+        AtomicBoolean found = new AtomicBoolean(false);
+        int size = credentialKeys.size();
+        int tasks = Math.min(MAX_DECRYPTION_THREADS, size);
+        for (int i = 0; i < tasks; i++) {
+            int from = size * i / tasks;
+            int to = size * (i + 1) / tasks;
+            completionService.submit(() -> findMatch(section, credentialKeys, from, to, found));
+        }
+        for (int i = 0; i < tasks; i++) {
+            try {
+                Match match = completionService.take().get();
+                if (match != null) {
+                    return match;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                found.set(true);
+                return null;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to decrypt presence advertisement.", e);
+            }
+        }
+        return null;
+    }
+
+    private ExecutorService getDecryptionExecutor() {
+        synchronized (mLock) {
+            if (mDecryptionExecutor == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_DECRYPTION_THREADS,
+                        MAX_DECRYPTION_THREADS, DECRYPTION_THREAD_KEEP_ALIVE_MS,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+                // Do not keep threads around while not scanning.
+                executor.allowCoreThreadTimeOut(true);
+                mDecryptionExecutor = executor;
             }
+            return mDecryptionExecutor;
         }
     }
 }
@@ -65,6 +65,44 @@ public class CryptorMicImp extends Cryptor {
     private static final int ADV_NONCE_SIZE_ENCRYPTION_INFO_DE = 12;
     private static final int HMAC_KEY_SIZE = 32;
 
+    /**
+     * The keys derived from the key seed of a credential.
+     *
+     * <p>Each derivation runs HKDF, which dominates the cost of trying a credential against an
+     * advertisement. Scanners matching advertisements against the same credentials should derive
+     * the keys once with {@link #fromKeySeed} and reuse them.
+     */
+    public static final class DerivedKeys {
+        private final byte[] mAesKey;
+        private final byte[] mMetadataKeyHmacKey;
+        private final byte[] mMicHmacKey;
+
+        private DerivedKeys(byte[] aesKey, byte[] metadataKeyHmacKey, byte[] micHmacKey) {
+            mAesKey = aesKey;
+            mMetadataKeyHmacKey = metadataKeyHmacKey;
+            mMicHmacKey = micHmacKey;
+        }
+
+        /**
+         * Derives the keys from the authenticity key of a credential.
+         *
+         * @return the derived keys or {@code null} when there is an error
+         */
+        @Nullable
+        public static DerivedKeys fromKeySeed(@Nullable byte[] keySeed) {
+            if (keySeed == null) {
+                return null;
+            }
+            try {
+                return new DerivedKeys(generateAesKey(keySeed),
+                        generateMetadataKeyHmacKey(keySeed), generateMicHmacKey(keySeed));
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, "Failed to derive keys from the key seed.", e);
+                return null;
+            }
+        }
+    }
+
     // Lazily instantiated when {@link #getInstance()} is called.
     @Nullable
     private static CryptorMicImp sCryptor;
@@ -99,6 +137,22 @@ public class CryptorMicImp extends Cryptor {
         }
     }
 
+    /**
+     * Generate the meta data encryption key tag with keys derived beforehand.
+     * @return bytes generated by hmac or {@code null} when there is an error
+     */
+    @Nullable
+    public static byte[] generateMetadataEncryptionKeyTag(byte[] metadataEncryptionKey,
+            DerivedKeys keys) {
+        try {
+            return Cryptor.generateHmac(/* algorithm= */ HMAC_SHA256_ALGORITHM, /* input= */
+                    metadataEncryptionKey, /* key= */ keys.mMetadataKeyHmacKey);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Failed to generate Metadata encryption key tag.", e);
+            return null;
+        }
+    }
+
     /**
      * @param salt from the 2 bytes Salt Data Element
      */
@@ -178,7 +232,35 @@ public class CryptorMicImp extends Cryptor {
         if (encryptedData == null || iv == null || keySeed == null) {
             return null;
         }
+        byte[] aesKey;
+        try {
+            aesKey = generateAesKey(keySeed);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Decryption failed because failed to generate the AES key.", e);
+            return null;
+        }
+        return decryptWithAesKey(encryptedData, 0, encryptedData.length, iv, aesKey);
+    }
+
+    /**
+     * Decrypts the first {@code length} bytes of {@code encryptedData} with keys derived
+     * beforehand. As the cipher is a stream cipher, decrypting a prefix of the data yields the
+     * same bytes as the prefix of the whole decrypted data.
+     *
+     * @return decrypted data, {@code null} if failed to decrypt.
+     */
+    @Nullable
+    public byte[] decrypt(byte[] encryptedData, int length, byte[] iv, DerivedKeys keys) {
+        if (encryptedData == null || iv == null || keys == null
+                || length < 0 || length > encryptedData.length) {
+            return null;
+        }
+        return decryptWithAesKey(encryptedData, 0, length, iv, keys.mAesKey);
+    }
 
+    @Nullable
+    private static byte[] decryptWithAesKey(byte[] encryptedData, int offset, int length,
+            byte[] iv, byte[] aesKey) {
         Cipher cipher;
         try {
             cipher = Cipher.getInstance(CIPHER_ALGORITHM);
@@ -186,13 +268,6 @@ public class CryptorMicImp extends Cryptor {
             Log.e(TAG, "Failed to get cipher instance.", e);
             return null;
         }
-        byte[] aesKey;
-        try {
-            aesKey = generateAesKey(keySeed);
-        } catch (GeneralSecurityException e) {
-            Log.e(TAG, "Decryption failed because failed to generate the AES key.", e);
-            return null;
-        }
         SecretKey secretKey = new SecretKeySpec(aesKey, ENCRYPT_ALGORITHM);
         try {
             cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
@@ -202,7 +277,7 @@ public class CryptorMicImp extends Cryptor {
         }
 
         try {
-            return cipher.doFinal(encryptedData);
+            return cipher.doFinal(encryptedData, offset, length);
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             Log.e(TAG, "Failed to decrypt bytes with secret key.", e);
             return null;
@@ -226,6 +301,14 @@ public class CryptorMicImp extends Cryptor {
         return Arrays.equals(sign(data, key), signature);
     }
 
+    /** Verifies the signature of the data with keys derived beforehand. */
+    public boolean verify(byte[] data, DerivedKeys keys, byte[] signature) {
+        if (data == null || keys == null) {
+            return false;
+        }
+        return Arrays.equals(computeHmacTag(data, keys.mMicHmacKey), signature);
+    }
+
     /**
      * Generates a 16 bytes HMAC tag. This is used for decryptor to verify if the computed HMAC tag
      * is equal to HMAC tag in advertisement to see data integrity.
@@ -238,11 +321,22 @@ public class CryptorMicImp extends Cryptor {
     @Nullable
     @VisibleForTesting
     byte[] generateHmacTag(byte[] input, byte[] keySeed) {
+        if (input == null || keySeed == null) {
+            return null;
+        }
+        byte[] micHmacKey;
+        try {
+            micHmacKey = generateMicHmacKey(keySeed);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Failed to generate mic hmac key.", e);
+            return null;
+        }
+        return computeHmacTag(input, micHmacKey);
+    }
+
+    @Nullable
+    private static byte[] computeHmacTag(byte[] input, byte[] micHmacKey) {
         try {
-            if (input == null || keySeed == null) {
-                return null;
-            }
-            byte[] micHmacKey = generateMicHmacKey(keySeed);
             byte[] hmac = Cryptor.generateHmac(/* algorithm= */ HMAC_SHA256_ALGORITHM, /* input= */
                     input, /* key= */ micHmacKey);
             if (ArrayUtils.isEmpty(hmac)) {
@@ -250,7 +344,7 @@ public class CryptorMicImp extends Cryptor {
             }
             return Arrays.copyOf(hmac, MIC_LENGTH);
         } catch (GeneralSecurityException e) {
-            Log.e(TAG, "Failed to generate mic hmac key.", e);
+            Log.e(TAG, "Failed to generate mic hmac tag.", e);
             return null;
         }
     }
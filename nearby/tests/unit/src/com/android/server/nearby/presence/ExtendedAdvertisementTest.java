@@ -309,6 +309,24 @@ public class ExtendedAdvertisementTest {
         assertThat(adv).isNull();
     }
 
+    @Test
+    public void test_encryptedSection_decryptWithDerivedKeys() throws Exception {
+        ExtendedAdvertisement.EncryptedSection section =
+                ExtendedAdvertisement.EncryptedSection.parse(getExtendedAdvertisementByteArray());
+        assertThat(section).isNotNull();
+
+        // The section is parsed once and tried against several credentials.
+        assertThat(section.decrypt(mPublicCredential2,
+                CryptorMicImp.DerivedKeys.fromKeySeed(AUTHENTICITY_KEY_2))).isNull();
+        ExtendedAdvertisement adv = section.decrypt(mPublicCredential,
+                CryptorMicImp.DerivedKeys.fromKeySeed(AUTHENTICITY_KEY));
+        assertThat(adv.getIdentity()).isEqualTo(METADATA_ENCRYPTION_KEY);
+        assertThat(adv.getSalt()).isEqualTo(SALT);
+        assertThat(adv.getDataElements())
+                .containsExactly(MODE_ID_ADDRESS_ELEMENT, BLE_ADDRESS_ELEMENT,
+                        PRESENCE_ACTION_DE_1, PRESENCE_ACTION_DE_2);
+    }
+
     @Test
     public void test_toString() {
         ExtendedAdvertisement adv = ExtendedAdvertisement.createFromRequest(mBuilder.build());
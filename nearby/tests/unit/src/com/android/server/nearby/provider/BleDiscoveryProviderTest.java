@@ -111,6 +111,28 @@ public final class BleDiscoveryProviderTest {
         assertThat(mBleDiscoveryProvider.getFiltersLocked()).isNull();
     }
 
+    @Test
+    public void test_setScanFilters_credentialKeysReused() {
+        List<ScanFilter> filterList = new ArrayList<>();
+        filterList.add(getSanFilter());
+        mBleDiscoveryProvider.onSetScanFilters(filterList);
+        List<BleDiscoveryProvider.CredentialKeys> keys = mBleDiscoveryProvider.getCredentialKeys();
+        assertThat(keys).hasSize(1);
+
+        // Keys are not derived again for credentials which are still in the filters.
+        filterList.add(getSanFilter());
+        mBleDiscoveryProvider.onSetScanFilters(filterList);
+        List<BleDiscoveryProvider.CredentialKeys> newKeys =
+                mBleDiscoveryProvider.getCredentialKeys();
+        assertThat(newKeys).hasSize(2);
+        assertThat(newKeys.get(0).mKeys).isSameInstanceAs(keys.get(0).mKeys);
+        assertThat(newKeys.get(1).mKeys).isSameInstanceAs(keys.get(0).mKeys);
+
+        mBleDiscoveryProvider.onStart();
+        mBleDiscoveryProvider.onStop();
+        assertThat(mBleDiscoveryProvider.getCredentialKeys()).isNull();
+    }
+
     @Test
     public void testInvalidateScanMode() {
         mBleDiscoveryProvider.invalidateScanMode();
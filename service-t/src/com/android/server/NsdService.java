@@ -1943,6 +1943,10 @@ public class NsdService extends INsdManager.Stub {
                 .setCachedServicesRetentionTime(mDeps.getDeviceConfigPropertyInt(
                         MdnsFeatureFlags.NSD_CACHED_SERVICES_RETENTION_TIME,
                         MdnsFeatureFlags.DEFAULT_CACHED_SERVICES_RETENTION_TIME_MILLISECONDS))
+                .setIsResponseRoutingEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_RESPONSE_ROUTING))
+                .setIsQueryCoalescingEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_QUERY_COALESCING))
                 .setOverrideProvider(new MdnsFeatureFlags.FlagOverrideProvider() {
                     @Override
                     public boolean isForceEnabledForTest(@NonNull String flag) {
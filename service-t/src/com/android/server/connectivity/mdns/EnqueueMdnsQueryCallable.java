@@ -19,6 +19,7 @@ package com.android.server.connectivity.mdns;
 import static com.android.server.connectivity.mdns.MdnsServiceTypeClient.INVALID_TRANSACTION_ID;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Pair;
@@ -86,6 +87,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
     @NonNull
     private final List<MdnsResponse> existingServices;
     private final boolean isQueryWithKnownAnswer;
+    @Nullable
+    private final MdnsQueryAggregator queryAggregator;
 
     EnqueueMdnsQueryCallable(
             @NonNull MdnsSocketClientBase requestSender,
@@ -101,7 +104,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
             @NonNull SharedLog sharedLog,
             @NonNull MdnsServiceTypeClient.Dependencies dependencies,
             @NonNull Collection<MdnsResponse> existingServices,
-            boolean isQueryWithKnownAnswer) {
+            boolean isQueryWithKnownAnswer,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         weakRequestSender = new WeakReference<>(requestSender);
         serviceTypeLabels = TextUtils.split(serviceType, "\\.");
         this.subtypes = new ArrayList<>(subtypes);
@@ -116,6 +120,7 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         this.dependencies = dependencies;
         this.existingServices = new ArrayList<>(existingServices);
         this.isQueryWithKnownAnswer = isQueryWithKnownAnswer;
+        this.queryAggregator = queryAggregator;
     }
 
     /**
@@ -216,7 +221,13 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
                     knownAnswers,
                     Collections.emptyList(), /* authorityRecords */
                     Collections.emptyList() /* additionalRecords */);
-            sendPacketToIpv4AndIpv6(requestSender, MdnsConstants.MDNS_PORT, queryPacket);
+            if (queryAggregator != null) {
+                // Sent together with the queries of other service types on the same socket.
+                queryAggregator.enqueue(
+                        queryPacket, expectUnicastResponse, onlyUseIpv6OnIpv6OnlyNetworks);
+            } else {
+                sendPacketToIpv4AndIpv6(requestSender, MdnsConstants.MDNS_PORT, queryPacket);
+            }
             for (Integer emulatorPort : castShellEmulatorMdnsPorts) {
                 sendPacketToIpv4AndIpv6(requestSender, emulatorPort, queryPacket);
             }
@@ -232,6 +243,16 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
             MdnsPacket mdnsPacket) throws IOException {
         final List<DatagramPacket> packets = dependencies.getDatagramPacketsFromMdnsPacket(
                 packetCreationBuffer, mdnsPacket, address, isQueryWithKnownAnswer);
+        sendPackets(requestSender, packets, socketKey, expectUnicastResponse,
+                onlyUseIpv6OnIpv6OnlyNetworks);
+    }
+
+    /**
+     * Send query packets on the given socket, requesting unicast or multicast responses.
+     */
+    static void sendPackets(@NonNull MdnsSocketClientBase requestSender,
+            @NonNull List<DatagramPacket> packets, @NonNull SocketKey socketKey,
+            boolean expectUnicastResponse, boolean onlyUseIpv6OnIpv6OnlyNetworks) {
         if (expectUnicastResponse) {
             // MdnsMultinetworkSocketClient is only available on T+
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
@@ -62,10 +62,16 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
     // Only accessed on the handler thread, initialized before first use
     @Nullable
     private MdnsServiceCache serviceCache;
+    // Query aggregators shared by the service type clients of each socket. Only accessed on the
+    // handler thread.
+    @NonNull
+    private final ArrayMap<SocketKey, MdnsQueryAggregator> queryAggregators = new ArrayMap<>();
 
     private static class PerSocketServiceTypeClients {
         private final ArrayMap<Pair<String, SocketKey>, MdnsServiceTypeClient> clients =
                 new ArrayMap<>();
+        // The same clients, indexed by service type to route received records.
+        private final MdnsResponseRouter responseRouter = new MdnsResponseRouter();
 
         public void put(@NonNull String serviceType, @NonNull SocketKey socketKey,
                 @NonNull MdnsServiceTypeClient client) {
@@ -73,6 +79,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
             final Pair<String, SocketKey> perSocketServiceType = new Pair<>(dnsUpperServiceType,
                     socketKey);
             clients.put(perSocketServiceType, client);
+            responseRouter.addClient(serviceType, client);
         }
 
         @Nullable
@@ -118,6 +125,12 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                     break;
                 }
             }
+            responseRouter.removeClient(client);
+        }
+
+        @NonNull
+        public MdnsResponseRouter getResponseRouter() {
+            return responseRouter;
         }
 
         public boolean isEmpty() {
@@ -301,6 +314,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                         serviceTypeClient.notifySocketDestroyed();
                         executorProvider.shutdownExecutorService(serviceTypeClient.getExecutor());
                         perSocketServiceTypeClients.remove(serviceTypeClient);
+                        removeUnusedQueryAggregators();
                         // The cached services may not be reliable after the socket is disconnected,
                         // the service type client won't receive any updates for them. Therefore,
                         // remove these cached services after exceeding the retention time
@@ -348,6 +362,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                 // of the service type clients.
                 executorProvider.shutdownExecutorService(serviceTypeClient.getExecutor());
                 perSocketServiceTypeClients.remove(serviceTypeClient);
+                removeUnusedQueryAggregators();
                 // The cached services may not be reliable after the socket is disconnected, the
                 // service type client won't receive any updates for them. Therefore, remove these
                 // cached services after exceeding the retention time (currently 10s) if no service
@@ -401,8 +416,22 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
 
     private void handleOnResponseReceived(@NonNull MdnsPacket packet,
             @NonNull SocketKey socketKey) {
-        for (MdnsServiceTypeClient serviceTypeClient : getMdnsServiceTypeClient(socketKey)) {
-            serviceTypeClient.processResponse(packet, socketKey);
+        final List<MdnsServiceTypeClient> serviceTypeClients = getMdnsServiceTypeClient(socketKey);
+        if (!mdnsFeatureFlags.isResponseRoutingEnabled()) {
+            for (MdnsServiceTypeClient serviceTypeClient : serviceTypeClients) {
+                serviceTypeClient.processResponse(packet, socketKey);
+            }
+            return;
+        }
+        // Only pass each client the records relevant to its service type, instead of having every
+        // client scan the whole packet.
+        final ArrayMap<MdnsServiceTypeClient, MdnsPacket> routedPackets =
+                perSocketServiceTypeClients.getResponseRouter().route(packet, serviceTypeClients);
+        for (MdnsServiceTypeClient serviceTypeClient : serviceTypeClients) {
+            final MdnsPacket routedPacket = routedPackets.get(serviceTypeClient);
+            if (routedPacket != null) {
+                serviceTypeClient.processResponse(routedPacket, socketKey);
+            }
         }
     }
 
@@ -459,10 +488,31 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
         if (serviceCache == null) {
             serviceCache = new MdnsServiceCache(looper, mdnsFeatureFlags);
         }
+        MdnsQueryAggregator queryAggregator = null;
+        if (mdnsFeatureFlags.isQueryCoalescingEnabled()) {
+            queryAggregator = queryAggregators.get(socketKey);
+            if (queryAggregator == null) {
+                queryAggregator = new MdnsQueryAggregator(socketClient, socketKey, looper,
+                        sharedLog.forSubComponent("QueryAggregator-" + socketKey.getNetwork()
+                                + "/" + socketKey.getInterfaceIndex()),
+                        mdnsFeatureFlags.isQueryWithKnownAnswerEnabled());
+                queryAggregators.put(socketKey, queryAggregator);
+            }
+        }
         return new MdnsServiceTypeClient(
                 serviceType, socketClient,
                 executorProvider.newServiceTypeClientSchedulerExecutor(), socketKey,
-                sharedLog.forSubComponent(tag), looper, serviceCache, mdnsFeatureFlags);
+                sharedLog.forSubComponent(tag), looper, serviceCache, mdnsFeatureFlags,
+                queryAggregator);
+    }
+
+    private void removeUnusedQueryAggregators() {
+        for (int i = queryAggregators.size() - 1; i >= 0; i--) {
+            if (perSocketServiceTypeClients.getBySocketKey(queryAggregators.keyAt(i)).isEmpty()) {
+                queryAggregators.valueAt(i).cancel();
+                queryAggregators.removeAt(i);
+            }
+        }
     }
 
     /**
@@ -477,6 +527,16 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                 serviceTypeClient.dump(pw);
             }
             pw.println();
+            if (mdnsFeatureFlags.isResponseRoutingEnabled()) {
+                perSocketServiceTypeClients.getResponseRouter().dump(pw);
+                pw.println();
+            }
+            if (mdnsFeatureFlags.isQueryCoalescingEnabled()) {
+                for (int i = 0; i < queryAggregators.size(); i++) {
+                    queryAggregators.valueAt(i).dump(pw);
+                }
+                pw.println();
+            }
             // Dump ServiceCache
             pw.println("Cached services:");
             if (serviceCache != null) {
@@ -89,6 +89,18 @@ public class MdnsFeatureFlags {
             "nsd_cached_services_retention_time";
     public static final int DEFAULT_CACHED_SERVICES_RETENTION_TIME_MILLISECONDS = 10000;
 
+    /**
+     * A feature flag to control whether received packets should be split by service type, so that
+     * each service type client only processes the records relevant to it.
+     */
+    public static final String NSD_RESPONSE_ROUTING = "nsd_response_routing";
+
+    /**
+     * A feature flag to control whether queries of different service types on the same socket
+     * should be coalesced into fewer packets.
+     */
+    public static final String NSD_QUERY_COALESCING = "nsd_query_coalescing";
+
     // Flag for offload feature
     public final boolean mIsMdnsOffloadFeatureEnabled;
 
@@ -122,6 +134,12 @@ public class MdnsFeatureFlags {
     // Retention Time for cached services
     public final long mCachedServicesRetentionTime;
 
+    // Flag for routing received records by service type
+    public final boolean mIsResponseRoutingEnabled;
+
+    // Flag for coalescing queries of different service types
+    public final boolean mIsQueryCoalescingEnabled;
+
     @Nullable
     private final FlagOverrideProvider mOverrideProvider;
 
@@ -208,6 +226,20 @@ public class MdnsFeatureFlags {
                 || isForceEnabledForTest(NSD_CACHED_SERVICES_REMOVAL);
     }
 
+    /**
+     * Indicates whether {@link #NSD_RESPONSE_ROUTING} is enabled, including for testing.
+     */
+    public boolean isResponseRoutingEnabled() {
+        return mIsResponseRoutingEnabled || isForceEnabledForTest(NSD_RESPONSE_ROUTING);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_QUERY_COALESCING} is enabled, including for testing.
+     */
+    public boolean isQueryCoalescingEnabled() {
+        return mIsQueryCoalescingEnabled || isForceEnabledForTest(NSD_QUERY_COALESCING);
+    }
+
     /**
      * Get the value which is set to {@link #NSD_CACHED_SERVICES_RETENTION_TIME}, including for
      * testing.
@@ -231,6 +263,8 @@ public class MdnsFeatureFlags {
             boolean avoidAdvertisingEmptyTxtRecords,
             boolean isCachedServicesRemovalEnabled,
             long cachedServicesRetentionTime,
+            boolean isResponseRoutingEnabled,
+            boolean isQueryCoalescingEnabled,
             @Nullable FlagOverrideProvider overrideProvider) {
         mIsMdnsOffloadFeatureEnabled = isOffloadFeatureEnabled;
         mIncludeInetAddressRecordsInProbing = includeInetAddressRecordsInProbing;
@@ -243,6 +277,8 @@ public class MdnsFeatureFlags {
         mAvoidAdvertisingEmptyTxtRecords = avoidAdvertisingEmptyTxtRecords;
         mIsCachedServicesRemovalEnabled = isCachedServicesRemovalEnabled;
         mCachedServicesRetentionTime = cachedServicesRetentionTime;
+        mIsResponseRoutingEnabled = isResponseRoutingEnabled;
+        mIsQueryCoalescingEnabled = isQueryCoalescingEnabled;
         mOverrideProvider = overrideProvider;
     }
 
@@ -266,6 +302,8 @@ public class MdnsFeatureFlags {
         private boolean mAvoidAdvertisingEmptyTxtRecords;
         private boolean mIsCachedServicesRemovalEnabled;
         private long mCachedServicesRetentionTime;
+        private boolean mIsResponseRoutingEnabled;
+        private boolean mIsQueryCoalescingEnabled;
         private FlagOverrideProvider mOverrideProvider;
 
         /**
@@ -283,6 +321,8 @@ public class MdnsFeatureFlags {
             mAvoidAdvertisingEmptyTxtRecords = true; // Default enabled.
             mIsCachedServicesRemovalEnabled = false;
             mCachedServicesRetentionTime = DEFAULT_CACHED_SERVICES_RETENTION_TIME_MILLISECONDS;
+            mIsResponseRoutingEnabled = false;
+            mIsQueryCoalescingEnabled = false;
             mOverrideProvider = null;
         }
 
@@ -408,6 +448,26 @@ public class MdnsFeatureFlags {
             return this;
         }
 
+        /**
+         * Set whether received records are routed to service type clients by service type.
+         *
+         * @see #NSD_RESPONSE_ROUTING
+         */
+        public Builder setIsResponseRoutingEnabled(boolean isResponseRoutingEnabled) {
+            mIsResponseRoutingEnabled = isResponseRoutingEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether queries of different service types on a socket are coalesced.
+         *
+         * @see #NSD_QUERY_COALESCING
+         */
+        public Builder setIsQueryCoalescingEnabled(boolean isQueryCoalescingEnabled) {
+            mIsQueryCoalescingEnabled = isQueryCoalescingEnabled;
+            return this;
+        }
+
         /**
          * Builds a {@link MdnsFeatureFlags} with the arguments supplied to this builder.
          */
@@ -423,6 +483,8 @@ public class MdnsFeatureFlags {
                     mAvoidAdvertisingEmptyTxtRecords,
                     mIsCachedServicesRemovalEnabled,
                     mCachedServicesRetentionTime,
+                    mIsResponseRoutingEnabled,
+                    mIsQueryCoalescingEnabled,
                     mOverrideProvider);
         }
     }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * A bounded dictionary of DNS labels, shared across packets.
+ *
+ * mDNS traffic repeats the same few labels ("local", "_tcp", service types and instance names)
+ * in every packet. Looking labels up by their raw bytes in the receive buffer allows returning the
+ * same String instance for each occurrence, instead of decoding a new String every time.
+ *
+ * The dictionary is a direct-mapped table: a label colliding with another one replaces it. Entries
+ * are immutable, so the table can be read and written from any thread without locking; a racing
+ * write can only cause a label to be decoded again.
+ */
+public final class MdnsLabelInterner {
+    // Labels are at most 63 bytes (RFC1035 2.3.4); longer strings are never interned.
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int DEFAULT_TABLE_SIZE = 1024;
+
+    private static final MdnsLabelInterner sInstance = new MdnsLabelInterner(DEFAULT_TABLE_SIZE);
+
+    private static final class Entry {
+        @NonNull
+        final byte[] bytes;
+        @NonNull
+        final String label;
+
+        Entry(@NonNull byte[] bytes, @NonNull String label) {
+            this.bytes = bytes;
+            this.label = label;
+        }
+    }
+
+    @NonNull
+    private final Entry[] mTable;
+
+    @VisibleForTesting
+    MdnsLabelInterner(int tableSize) {
+        if (Integer.bitCount(tableSize) != 1) {
+            throw new IllegalArgumentException("Table size must be a power of 2: " + tableSize);
+        }
+        mTable = new Entry[tableSize];
+    }
+
+    /** Returns the dictionary shared by all packet readers. */
+    @NonNull
+    public static MdnsLabelInterner getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the label encoded in UTF-8 in {@code buf} at {@code offset}, reusing a previously
+     * decoded String if the same bytes were seen before.
+     */
+    @NonNull
+    public String intern(@NonNull byte[] buf, int offset, int length) {
+        if (length > MAX_LABEL_LENGTH) {
+            return new String(buf, offset, length, MdnsConstants.getUtf8Charset());
+        }
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ buf[i]) * 0x01000193;
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (mTable.length - 1);
+
+        final Entry entry = mTable[slot];
+        if (entry != null && bytesEqual(entry.bytes, buf, offset, length)) {
+            return entry.label;
+        }
+
+        final byte[] bytes = new byte[length];
+        System.arraycopy(buf, offset, bytes, 0, length);
+        final String label = new String(bytes, MdnsConstants.getUtf8Charset());
+        mTable[slot] = new Entry(bytes, label);
+        return label;
+    }
+
+    private static boolean bytesEqual(@NonNull byte[] a, @NonNull byte[] buf, int offset,
+            int length) {
+        if (a.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (a[i] != buf[offset + i]) return false;
+        }
+        return true;
+    }
+}
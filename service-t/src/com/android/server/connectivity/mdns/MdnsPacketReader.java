@@ -19,14 +19,14 @@ package com.android.server.connectivity.mdns;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Locale;
 
 /** Simple decoder for mDNS packets. */
@@ -38,7 +38,13 @@ public class MdnsPacketReader {
     private static final int LABEL_COUNT_LIMIT = 128;
     private final byte[] buf;
     private final int count;
-    private final SparseArray<LabelEntry> labelDictionary;
+    // Labels read in this packet and the offset of the label following each of them (0 if none),
+    // indexed by their offset in the packet, to resolve label pointers.
+    private final SparseArray<String> labelDictionary;
+    private final SparseIntArray nextLabelOffsets;
+    private final MdnsLabelInterner labelInterner;
+    // Scratch space for the labels of the name being read, reused across names.
+    private String[] labelsBuffer = new String[8];
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     private int pos;
     private int limit;
@@ -55,6 +61,8 @@ public class MdnsPacketReader {
         pos = 0;
         limit = -1;
         labelDictionary = new SparseArray<>(16);
+        nextLabelOffsets = new SparseIntArray(16);
+        labelInterner = MdnsLabelInterner.getInstance();
         mMdnsFeatureFlags = mdnsFeatureFlags;
     }
 
@@ -143,8 +151,8 @@ public class MdnsPacketReader {
      * @throws IOException  If invalid data is read.
      */
     public String[] readLabels() throws IOException {
-        List<String> result = new ArrayList<>(5);
-        LabelEntry previousEntry = null;
+        int labelCount = 0;
+        int previousOffset = -1;
         int tracingHops = 0;
 
         while (getRemaining() > 0) {
@@ -160,11 +168,11 @@ public class MdnsPacketReader {
 
             boolean isLabelPointer = (nextByte & 0xC0) == 0xC0;
             if (isLabelPointer) {
-                // A pointer terminates a sequence of labels. Store the pointer value in the
-                // previous label entry.
+                // A pointer terminates a sequence of labels. Store the pointer value as the next
+                // offset of the previous label.
                 int labelOffset = ((readUInt8() & 0x3F) << 8) | (readUInt8() & 0xFF);
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = labelOffset;
+                if (previousOffset >= 0) {
+                    nextLabelOffsets.put(previousOffset, labelOffset);
                 }
 
                 // Follow the chain of labels starting at this pointer, adding all of them onto the
@@ -174,33 +182,50 @@ public class MdnsPacketReader {
                             && tracingHops > LABEL_COUNT_LIMIT) {
                         throw new IOException("Invalid MDNS response packet: Too many labels.");
                     }
-                    LabelEntry entry = labelDictionary.get(labelOffset);
-                    if (entry == null) {
+                    String label = labelDictionary.get(labelOffset);
+                    if (label == null) {
                         throw new IOException(
                                 String.format(Locale.ROOT, "Invalid label pointer: %04X",
                                         labelOffset));
                     }
-                    result.add(entry.label);
-                    labelOffset = entry.nextOffset;
+                    labelCount = appendLabel(labelCount, label);
+                    labelOffset = nextLabelOffsets.get(labelOffset);
                     tracingHops++;
                 }
                 break;
             } else {
-                // It's an ordinary label. Chain it onto the previous label entry (if any), and add
-                // it onto the result.
-                String val = readString();
-                LabelEntry newEntry = new LabelEntry(val);
-                labelDictionary.put(currentOffset, newEntry);
+                // It's an ordinary label. Chain it onto the previous label (if any), and add it
+                // onto the result.
+                String val = readLabel();
+                labelDictionary.put(currentOffset, val);
 
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = currentOffset;
+                if (previousOffset >= 0) {
+                    nextLabelOffsets.put(previousOffset, currentOffset);
                 }
-                previousEntry = newEntry;
-                result.add(val);
+                previousOffset = currentOffset;
+                labelCount = appendLabel(labelCount, val);
             }
         }
 
-        return result.toArray(new String[result.size()]);
+        return Arrays.copyOf(labelsBuffer, labelCount);
+    }
+
+    private int appendLabel(int labelCount, @NonNull String label) {
+        if (labelCount == labelsBuffer.length) {
+            labelsBuffer = Arrays.copyOf(labelsBuffer, labelCount * 2);
+        }
+        labelsBuffer[labelCount] = label;
+        return labelCount + 1;
+    }
+
+    // Reads a length-prefixed label. Labels are interned across packets, as the same labels are
+    // repeated in most mDNS packets.
+    private String readLabel() throws EOFException {
+        int len = readUInt8();
+        checkRemaining(len);
+        String val = labelInterner.intern(buf, pos, len);
+        pos += len;
+        return val;
     }
 
     /**
@@ -274,13 +299,4 @@ public class MdnsPacketReader {
             throw new EOFException();
         }
     }
-
-    private static class LabelEntry {
-        public final String label;
-        public int nextOffset = 0;
-
-        public LabelEntry(String label) {
-            this.label = label;
-        }
-    }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.GuardedBy;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.DnsUtils;
+import com.android.net.module.util.SharedLog;
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends the queries of all service type clients of a socket together.
+ *
+ * Queries enqueued within {@link #COALESCING_WINDOW_MS} of each other are merged, and packed into
+ * as few packets as fit in the MTU, instead of sending one small packet per service type. When
+ * known-answer queries are enabled, known answers that do not fit are sent in continuation packets
+ * with the TC bit set, as per RFC6762 7.2.
+ *
+ * Queries may be enqueued from any thread; packets are built and sent on the looper thread.
+ */
+public class MdnsQueryAggregator {
+    // Delay before sending the first enqueued query. RFC6762 5.2 already requires delaying the
+    // first query by 20-120ms, so this is within what responders expect.
+    @VisibleForTesting
+    static final long COALESCING_WINDOW_MS = 20L;
+
+    @NonNull
+    private final MdnsSocketClientBase socketClient;
+    @NonNull
+    private final SocketKey socketKey;
+    @NonNull
+    private final Handler handler;
+    @NonNull
+    private final SharedLog sharedLog;
+    private final boolean isQueryWithKnownAnswer;
+    // Only used on the handler thread
+    private final byte[] packetCreationBuffer = new byte[1500]; // TODO: use interface MTU
+
+    @GuardedBy("pendingQueries")
+    private final ArrayList<PendingQuery> pendingQueries = new ArrayList<>();
+    // Number of queries enqueued. Without coalescing, each query is sent in one packet to each of
+    // the IPv4 and IPv6 addresses.
+    @GuardedBy("pendingQueries")
+    private long queriesEnqueued;
+    // Number of packets sent, to both destination addresses.
+    @GuardedBy("pendingQueries")
+    private long packetsSent;
+
+    private static class PendingQuery {
+        @NonNull
+        final MdnsPacket packet;
+        final boolean expectUnicastResponse;
+        final boolean onlyUseIpv6OnIpv6OnlyNetworks;
+
+        PendingQuery(@NonNull MdnsPacket packet, boolean expectUnicastResponse,
+                boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+            this.packet = packet;
+            this.expectUnicastResponse = expectUnicastResponse;
+            this.onlyUseIpv6OnIpv6OnlyNetworks = onlyUseIpv6OnIpv6OnlyNetworks;
+        }
+
+        boolean canBeSentWith(@NonNull PendingQuery other) {
+            return expectUnicastResponse == other.expectUnicastResponse
+                    && onlyUseIpv6OnIpv6OnlyNetworks == other.onlyUseIpv6OnIpv6OnlyNetworks;
+        }
+    }
+
+    public MdnsQueryAggregator(@NonNull MdnsSocketClientBase socketClient,
+            @NonNull SocketKey socketKey, @NonNull Looper looper, @NonNull SharedLog sharedLog,
+            boolean isQueryWithKnownAnswer) {
+        this.socketClient = socketClient;
+        this.socketKey = socketKey;
+        this.handler = new Handler(looper);
+        this.sharedLog = sharedLog;
+        this.isQueryWithKnownAnswer = isQueryWithKnownAnswer;
+    }
+
+    /**
+     * Enqueue a query to be sent with the other queries enqueued within the coalescing window.
+     */
+    public void enqueue(@NonNull MdnsPacket query, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+        synchronized (pendingQueries) {
+            pendingQueries.add(
+                    new PendingQuery(query, expectUnicastResponse, onlyUseIpv6OnIpv6OnlyNetworks));
+            queriesEnqueued++;
+            if (pendingQueries.size() == 1) {
+                handler.postDelayed(this::flush, COALESCING_WINDOW_MS);
+            }
+        }
+    }
+
+    /**
+     * Drop all pending queries, for example when the socket is destroyed.
+     */
+    public void cancel() {
+        synchronized (pendingQueries) {
+            pendingQueries.clear();
+        }
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Send all pending queries.
+     */
+    @VisibleForTesting
+    void flush() {
+        MdnsUtils.ensureRunningOnHandlerThread(handler);
+        final ArrayList<PendingQuery> queries;
+        synchronized (pendingQueries) {
+            queries = new ArrayList<>(pendingQueries);
+            pendingQueries.clear();
+        }
+
+        // Queries requesting different kinds of responses cannot share packets.
+        while (!queries.isEmpty()) {
+            final PendingQuery first = queries.get(0);
+            final ArrayList<PendingQuery> group = new ArrayList<>();
+            for (int i = queries.size() - 1; i >= 0; i--) {
+                if (queries.get(i).canBeSentWith(first)) {
+                    group.add(0, queries.remove(i));
+                }
+            }
+            final int sent = sendToIpv4AndIpv6(group, first.expectUnicastResponse,
+                    first.onlyUseIpv6OnIpv6OnlyNetworks);
+            synchronized (pendingQueries) {
+                packetsSent += sent;
+            }
+        }
+    }
+
+    /**
+     * Merge the given queries and send them to the IPv4 and IPv6 mDNS addresses.
+     *
+     * @return the number of packets sent to both addresses.
+     */
+    private int sendToIpv4AndIpv6(@NonNull List<PendingQuery> queries,
+            boolean expectUnicastResponse, boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+        int sent = 0;
+        try {
+            final List<DatagramPacket> packets = buildPackets(queries,
+                    new InetSocketAddress(MdnsConstants.getMdnsIPv4Address(),
+                            MdnsConstants.MDNS_PORT));
+            EnqueueMdnsQueryCallable.sendPackets(socketClient, packets, socketKey,
+                    expectUnicastResponse, onlyUseIpv6OnIpv6OnlyNetworks);
+            sent = packets.size();
+        } catch (IOException e) {
+            sharedLog.e("Can't send coalesced queries to IPv4", e);
+        }
+        try {
+            final List<DatagramPacket> packets = buildPackets(queries,
+                    new InetSocketAddress(MdnsConstants.getMdnsIPv6Address(),
+                            MdnsConstants.MDNS_PORT));
+            EnqueueMdnsQueryCallable.sendPackets(socketClient, packets, socketKey,
+                    expectUnicastResponse, onlyUseIpv6OnIpv6OnlyNetworks);
+            sent += packets.size();
+        } catch (IOException e) {
+            sharedLog.e("Can't send coalesced queries to IPv6", e);
+        }
+        return sent;
+    }
+
+    /**
+     * Pack queries into as few packets as possible.
+     */
+    @NonNull
+    private List<DatagramPacket> buildPackets(@NonNull List<PendingQuery> queries,
+            @NonNull InetSocketAddress destination) throws IOException {
+        if (isQueryWithKnownAnswer) {
+            // Questions are written first, and known answers that do not fit are continued in
+            // packets with the TC bit set.
+            return MdnsUtils.createQueryDatagramPackets(
+                    packetCreationBuffer, mergeQueries(queries), destination);
+        }
+
+        // Without continuation packets, each packet must contain whole queries.
+        final List<DatagramPacket> packets = new ArrayList<>();
+        final ArrayList<PendingQuery> current = new ArrayList<>();
+        byte[] currentBytes = null;
+        for (PendingQuery query : queries) {
+            current.add(query);
+            try {
+                currentBytes = MdnsUtils.createRawDnsPacket(
+                        packetCreationBuffer, mergeQueries(current));
+                continue;
+            } catch (IOException e) {
+                if (current.size() == 1) throw e;
+            }
+            // The query does not fit with the previous ones: send them, and start a new packet.
+            packets.add(new DatagramPacket(currentBytes, currentBytes.length, destination));
+            current.clear();
+            current.add(query);
+            currentBytes = MdnsUtils.createRawDnsPacket(
+                    packetCreationBuffer, mergeQueries(current));
+        }
+        if (currentBytes != null) {
+            packets.add(new DatagramPacket(currentBytes, currentBytes.length, destination));
+        }
+        return packets;
+    }
+
+    @NonNull
+    private static MdnsPacket mergeQueries(@NonNull List<PendingQuery> queries) {
+        final MdnsPacket first = queries.get(0).packet;
+        if (queries.size() == 1) return first;
+        final ArrayList<MdnsRecord> questions = new ArrayList<>();
+        final ArrayList<MdnsRecord> knownAnswers = new ArrayList<>();
+        for (PendingQuery query : queries) {
+            // Different clients may ask the same question, for example when resolving the same
+            // service, or include the same known answer.
+            for (MdnsRecord question : query.packet.questions) {
+                if (!containsQuestion(questions, question)) questions.add(question);
+            }
+            for (MdnsRecord answer : query.packet.answers) {
+                if (!knownAnswers.contains(answer)) knownAnswers.add(answer);
+            }
+        }
+        return new MdnsPacket(first.transactionId, first.flags, questions, knownAnswers,
+                Collections.emptyList() /* authorityRecords */,
+                Collections.emptyList() /* additionalRecords */);
+    }
+
+    private static boolean containsQuestion(@NonNull List<MdnsRecord> questions,
+            @NonNull MdnsRecord question) {
+        for (MdnsRecord q : questions) {
+            // Questions have no data, so they are equal if their header fields are.
+            if (q.getType() == question.getType()
+                    && q.getRecordClass() == question.getRecordClass()
+                    && DnsUtils.equalsDnsLabelIgnoreDnsCase(q.getName(), question.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dump the number of packets saved by coalescing queries.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        synchronized (pendingQueries) {
+            pw.println("Query aggregator for " + socketKey + ": queries " + queriesEnqueued
+                    + ", packets sent " + packetsSent
+                    + ", packets saved " + Math.max(0, 2 * queriesEnqueued - packetsSent));
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -52,6 +53,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -102,6 +104,11 @@ public class MdnsRecordRepository {
     private final SparseArray<ServiceRegistration> mServices = new SparseArray<>();
     @NonNull
     private final List<RecordInfo<?>> mGeneralRecords = new ArrayList<>();
+    // Index of the services in mServices by the names of their records, so that replies only look
+    // at the services that have records for the questioned names. The keys of each
+    // SparseBooleanArray are service IDs, sorted like mServices.
+    private final HashMap<DnsNameKey, SparseBooleanArray> mServiceIdsByRecordName =
+            new HashMap<>();
     @NonNull
     private final Looper mLooper;
     @NonNull
@@ -183,6 +190,32 @@ public class MdnsRecordRepository {
         }
     }
 
+    /**
+     * Key for indexing records by name, ignoring the DNS case of the labels.
+     */
+    private static final class DnsNameKey {
+        @NonNull
+        private final String[] mUpperCaseLabels;
+        private final int mHashCode;
+
+        DnsNameKey(@NonNull String[] labels) {
+            mUpperCaseLabels = DnsUtils.toDnsLabelsUpperCase(labels);
+            mHashCode = Arrays.hashCode(mUpperCaseLabels);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object other) {
+            if (this == other) return true;
+            if (!(other instanceof DnsNameKey)) return false;
+            return Arrays.equals(mUpperCaseLabels, ((DnsNameKey) other).mUpperCaseLabels);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
     private static class ServiceRegistration {
         @NonNull
         public final List<RecordInfo<?>> allRecords;
@@ -451,7 +484,7 @@ public class MdnsRecordRepository {
         }
         final ServiceRegistration updatedRegistration = existingRegistration.withSubtypes(
                 subtypes, mMdnsFeatureFlags);
-        mServices.put(serviceId, updatedRegistration);
+        putService(serviceId, updatedRegistration);
     }
 
     /**
@@ -483,13 +516,41 @@ public class MdnsRecordRepository {
                 mDeviceHostname, serviceInfo, NO_PACKET /* repliedServiceCount */,
                 NO_PACKET /* sentPacketCount */, ttl,
                 mMdnsFeatureFlags);
-        mServices.put(serviceId, registration);
+        putService(serviceId, registration);
 
         // Remove existing exiting service
-        mServices.remove(existing);
+        removeServiceInternal(existing);
         return existing;
     }
 
+    /**
+     * Add or replace a service in mServices, and index its records.
+     */
+    private void putService(int serviceId, @NonNull ServiceRegistration registration) {
+        removeServiceInternal(serviceId);
+        mServices.put(serviceId, registration);
+        for (RecordInfo<?> info : registration.allRecords) {
+            mServiceIdsByRecordName.computeIfAbsent(new DnsNameKey(info.record.getName()),
+                    k -> new SparseBooleanArray()).put(serviceId, true);
+        }
+    }
+
+    /**
+     * Remove a service from mServices and from the record name index, if it exists.
+     */
+    private void removeServiceInternal(int serviceId) {
+        final ServiceRegistration registration = mServices.get(serviceId);
+        if (registration == null) return;
+        for (RecordInfo<?> info : registration.allRecords) {
+            final DnsNameKey key = new DnsNameKey(info.record.getName());
+            final SparseBooleanArray ids = mServiceIdsByRecordName.get(key);
+            if (ids == null) continue;
+            ids.delete(serviceId);
+            if (ids.size() == 0) mServiceIdsByRecordName.remove(key);
+        }
+        mServices.remove(serviceId);
+    }
+
     /**
      * @return The ID of the service identified by its name and type, or -1 if none.
      */
@@ -605,7 +666,7 @@ public class MdnsRecordRepository {
     }
 
     public void removeService(int id) {
-        mServices.remove(id);
+        removeServiceInternal(id);
     }
 
     /**
@@ -644,6 +705,7 @@ public class MdnsRecordRepository {
             ret[i] = mServices.keyAt(i);
         }
         mServices.clear();
+        mServiceIdsByRecordName.clear();
         return ret;
     }
 
@@ -688,9 +750,13 @@ public class MdnsRecordRepository {
                 replyUnicast &= question.isUnicastReplyRequested();
             }
 
-            // Add answers from each service
-            for (int i = 0; i < mServices.size(); i++) {
-                final ServiceRegistration registration = mServices.valueAt(i);
+            // Add answers from each service that has records with the questioned name. Services
+            // without such records cannot answer the question (RFC6762 6.).
+            final SparseBooleanArray serviceIds =
+                    mServiceIdsByRecordName.get(new DnsNameKey(question.getName()));
+            final int serviceCount = (serviceIds == null) ? 0 : serviceIds.size();
+            for (int i = 0; i < serviceCount; i++) {
+                final ServiceRegistration registration = mServices.get(serviceIds.keyAt(i));
                 if (registration.exiting || registration.isProbing) continue;
                 if (addReplyFromService(question, registration.allRecords, registration.ptrRecords,
                         registration.srvRecord, registration.txtRecord,
@@ -710,16 +776,16 @@ public class MdnsRecordRepository {
         // to the additional answer section).
         additionalAnswerInfo.removeAll(answerInfo);
 
-        final List<MdnsRecord> additionalAnswerRecords =
-                new ArrayList<>(additionalAnswerInfo.size());
+        // Different RecordInfos may contain the same record.
+        // For example, when there are multiple services referring to the same custom host,
+        // there are multiple RecordInfos containing the same address record.
+        final Set<MdnsRecord> additionalAnswerRecordSet =
+                new LinkedHashSet<>(additionalAnswerInfo.size());
         for (RecordInfo<?> info : additionalAnswerInfo) {
-            // Different RecordInfos may contain the same record.
-            // For example, when there are multiple services referring to the same custom host,
-            // there are multiple RecordInfos containing the same address record.
-            if (!additionalAnswerRecords.contains(info.record)) {
-                additionalAnswerRecords.add(info.record);
-            }
+            additionalAnswerRecordSet.add(info.record);
         }
+        final List<MdnsRecord> additionalAnswerRecords =
+                new ArrayList<>(additionalAnswerRecordSet);
 
         // RFC6762 6.1: negative responses
         // "On receipt of a question for a particular name, rrtype, and rrclass, for which a
@@ -781,7 +847,7 @@ public class MdnsRecordRepository {
         }
 
         // Build the list of answer records from their RecordInfo
-        final ArrayList<MdnsRecord> answerRecords = new ArrayList<>(answerInfo.size());
+        final Set<MdnsRecord> answerRecordSet = new LinkedHashSet<>(answerInfo.size());
         for (RecordInfo<?> info : answerInfo) {
             // TODO: consider actual packet send delay after response aggregation
             info.lastSentTimeMs = now + delayMs;
@@ -793,13 +859,11 @@ public class MdnsRecordRepository {
                 }
             }
             // Different RecordInfos may the contain the same record
-            if (!answerRecords.contains(info.record)) {
-                answerRecords.add(info.record);
-            }
+            answerRecordSet.add(info.record);
         }
 
-        return new MdnsReplyInfo(answerRecords, additionalAnswerRecords, delayMs, dest, src,
-                new ArrayList<>(packet.answers));
+        return new MdnsReplyInfo(new ArrayList<>(answerRecordSet), additionalAnswerRecords,
+                delayMs, dest, src, new ArrayList<>(packet.answers));
     }
 
     private boolean isKnownAnswer(MdnsRecord answer, @NonNull List<MdnsRecord> knownAnswerRecords) {
@@ -985,8 +1049,10 @@ public class MdnsRecordRepository {
     private int countUniqueRecords(String[] name) {
         int cnt = countUniqueRecords(mGeneralRecords, name);
 
-        for (int i = 0; i < mServices.size(); i++) {
-            final ServiceRegistration registration = mServices.valueAt(i);
+        final SparseBooleanArray serviceIds = mServiceIdsByRecordName.get(new DnsNameKey(name));
+        if (serviceIds == null) return cnt;
+        for (int i = 0; i < serviceIds.size(); i++) {
+            final ServiceRegistration registration = mServices.get(serviceIds.keyAt(i));
             cnt += countUniqueRecords(registration.allRecords, name);
         }
         return cnt;
@@ -1419,7 +1485,7 @@ public class MdnsRecordRepository {
         final ServiceRegistration newService = new ServiceRegistration(mDeviceHostname, newInfo,
                 existing.repliedServiceCount, existing.sentPacketCount, existing.ttl,
                 mMdnsFeatureFlags);
-        mServices.put(serviceId, newService);
+        putService(serviceId, newService);
         return makeProbingInfo(serviceId, newService);
     }
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+
+import com.android.net.module.util.DnsUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits received mDNS packets into the records relevant to each {@link MdnsServiceTypeClient}.
+ *
+ * Clients are indexed by service type. PTR records are routed by their name, without the subtype
+ * labels if any; SRV and TXT records are routed by the service type of the instance they
+ * describe. Address records are routed to the clients that receive an SRV record for their host in
+ * the same packet, or that already know a service on that host. Other records are not used by
+ * service type clients, and are dropped.
+ *
+ * This class is not thread safe; it is only used on the discovery manager handler thread.
+ */
+public class MdnsResponseRouter {
+    private static final int SECTION_ANSWER = 0;
+    private static final int SECTION_AUTHORITY = 1;
+    private static final int SECTION_ADDITIONAL = 2;
+
+    // Clients indexed by service type in DNS upper case, such as "_TYPE._TCP.LOCAL".
+    @NonNull
+    private final ArrayMap<String, ArrayList<MdnsServiceTypeClient>> mClientsByType =
+            new ArrayMap<>();
+    // Number of received records that were passed to at least one client.
+    private long mRecordsRouted;
+    // Number of received records that were not relevant to any client.
+    private long mRecordsDropped;
+
+    /** The records of a packet that are routed to a client, by packet section. */
+    private static class RoutedRecords {
+        final ArrayList<MdnsRecord> mAnswers = new ArrayList<>();
+        final ArrayList<MdnsRecord> mAuthorityRecords = new ArrayList<>();
+        final ArrayList<MdnsRecord> mAdditionalRecords = new ArrayList<>();
+        // Hosts of the SRV records routed to the client.
+        final ArrayList<String[]> mServiceHosts = new ArrayList<>();
+    }
+
+    /** Add a client receiving records for the given service type, such as "_type._tcp.local". */
+    public void addClient(@NonNull String serviceType, @NonNull MdnsServiceTypeClient client) {
+        final String key = DnsUtils.toDnsUpperCase(serviceType);
+        ArrayList<MdnsServiceTypeClient> clients = mClientsByType.get(key);
+        if (clients == null) {
+            clients = new ArrayList<>();
+            mClientsByType.put(key, clients);
+        }
+        clients.add(client);
+    }
+
+    /** Remove a client added with {@link #addClient}. */
+    public void removeClient(@NonNull MdnsServiceTypeClient client) {
+        for (int i = mClientsByType.size() - 1; i >= 0; i--) {
+            final ArrayList<MdnsServiceTypeClient> clients = mClientsByType.valueAt(i);
+            if (clients.remove(client) && clients.isEmpty()) {
+                mClientsByType.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Split a packet into the records relevant to each client.
+     *
+     * @param packet the received packet.
+     * @param candidates the clients that may receive records, i.e. those of the socket on which
+     *                   the packet was received.
+     * @return a packet for each candidate that has relevant records. Candidates without relevant
+     *         records are not included.
+     */
+    @NonNull
+    public ArrayMap<MdnsServiceTypeClient, MdnsPacket> route(@NonNull MdnsPacket packet,
+            @NonNull List<MdnsServiceTypeClient> candidates) {
+        final ArrayMap<MdnsServiceTypeClient, RoutedRecords> routed = new ArrayMap<>();
+        // Candidates by service type key, filled as service types are seen in the packet.
+        final ArrayMap<String, List<MdnsServiceTypeClient>> recipientsByType = new ArrayMap<>();
+
+        // SRV records are routed first, so that address records can follow the hosts they target
+        // regardless of the order of the records in the packet.
+        routeServiceRecords(packet.answers, candidates, recipientsByType, routed);
+        routeServiceRecords(packet.authorityRecords, candidates, recipientsByType, routed);
+        routeServiceRecords(packet.additionalRecords, candidates, recipientsByType, routed);
+
+        routeSection(packet.answers, candidates, recipientsByType, routed, SECTION_ANSWER);
+        routeSection(packet.authorityRecords, candidates, recipientsByType, routed,
+                SECTION_AUTHORITY);
+        routeSection(packet.additionalRecords, candidates, recipientsByType, routed,
+                SECTION_ADDITIONAL);
+
+        final ArrayMap<MdnsServiceTypeClient, MdnsPacket> packets = new ArrayMap<>(routed.size());
+        for (int i = 0; i < routed.size(); i++) {
+            final RoutedRecords records = routed.valueAt(i);
+            if (records.mAnswers.isEmpty() && records.mAuthorityRecords.isEmpty()
+                    && records.mAdditionalRecords.isEmpty()) {
+                continue;
+            }
+            packets.put(routed.keyAt(i), new MdnsPacket(packet.transactionId, packet.flags,
+                    Collections.emptyList() /* questions */, records.mAnswers,
+                    records.mAuthorityRecords, records.mAdditionalRecords));
+        }
+        return packets;
+    }
+
+    private void routeServiceRecords(@NonNull List<MdnsRecord> records,
+            @NonNull List<MdnsServiceTypeClient> candidates,
+            @NonNull ArrayMap<String, List<MdnsServiceTypeClient>> recipientsByType,
+            @NonNull ArrayMap<MdnsServiceTypeClient, RoutedRecords> routed) {
+        for (int i = 0; i < records.size(); i++) {
+            final MdnsRecord record = records.get(i);
+            if (!(record instanceof MdnsServiceRecord)) continue;
+            final String[] host = ((MdnsServiceRecord) record).getServiceHost();
+            for (MdnsServiceTypeClient client
+                    : getRecipients(record, candidates, recipientsByType)) {
+                getOrCreateRoutedRecords(routed, client).mServiceHosts.add(host);
+            }
+        }
+    }
+
+    private void routeSection(@NonNull List<MdnsRecord> records,
+            @NonNull List<MdnsServiceTypeClient> candidates,
+            @NonNull ArrayMap<String, List<MdnsServiceTypeClient>> recipientsByType,
+            @NonNull ArrayMap<MdnsServiceTypeClient, RoutedRecords> routed, int section) {
+        for (int i = 0; i < records.size(); i++) {
+            final MdnsRecord record = records.get(i);
+            final List<MdnsServiceTypeClient> recipients;
+            if (record instanceof MdnsInetAddressRecord) {
+                recipients = getAddressRecipients(record.getName(), candidates, routed);
+            } else {
+                recipients = getRecipients(record, candidates, recipientsByType);
+            }
+            if (recipients.isEmpty()) {
+                mRecordsDropped++;
+                continue;
+            }
+            mRecordsRouted++;
+            for (int j = 0; j < recipients.size(); j++) {
+                final RoutedRecords routedRecords =
+                        getOrCreateRoutedRecords(routed, recipients.get(j));
+                switch (section) {
+                    case SECTION_ANSWER:
+                        routedRecords.mAnswers.add(record);
+                        break;
+                    case SECTION_AUTHORITY:
+                        routedRecords.mAuthorityRecords.add(record);
+                        break;
+                    default:
+                        routedRecords.mAdditionalRecords.add(record);
+                        break;
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private List<MdnsServiceTypeClient> getRecipients(@NonNull MdnsRecord record,
+            @NonNull List<MdnsServiceTypeClient> candidates,
+            @NonNull ArrayMap<String, List<MdnsServiceTypeClient>> recipientsByType) {
+        final String key = getServiceTypeKey(record);
+        if (key == null) return Collections.emptyList();
+        List<MdnsServiceTypeClient> recipients = recipientsByType.get(key);
+        if (recipients == null) {
+            final ArrayList<MdnsServiceTypeClient> clients = mClientsByType.get(key);
+            if (clients == null) {
+                recipients = Collections.emptyList();
+            } else {
+                recipients = new ArrayList<>(clients.size());
+                for (int i = 0; i < clients.size(); i++) {
+                    if (candidates.contains(clients.get(i))) recipients.add(clients.get(i));
+                }
+            }
+            recipientsByType.put(key, recipients);
+        }
+        return recipients;
+    }
+
+    @NonNull
+    private static List<MdnsServiceTypeClient> getAddressRecipients(@NonNull String[] hostName,
+            @NonNull List<MdnsServiceTypeClient> candidates,
+            @NonNull ArrayMap<MdnsServiceTypeClient, RoutedRecords> routed) {
+        List<MdnsServiceTypeClient> recipients = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            final MdnsServiceTypeClient client = candidates.get(i);
+            final RoutedRecords routedRecords = routed.get(client);
+            if ((routedRecords != null && containsHost(routedRecords.mServiceHosts, hostName))
+                    || client.hasServiceOnHost(hostName)) {
+                if (recipients == null) recipients = new ArrayList<>();
+                recipients.add(client);
+            }
+        }
+        return recipients == null ? Collections.emptyList() : recipients;
+    }
+
+    private static boolean containsHost(@NonNull List<String[]> hosts, @NonNull String[] host) {
+        for (int i = 0; i < hosts.size(); i++) {
+            if (DnsUtils.equalsDnsLabelIgnoreDnsCase(hosts.get(i), host)) return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    private static RoutedRecords getOrCreateRoutedRecords(
+            @NonNull ArrayMap<MdnsServiceTypeClient, RoutedRecords> routed,
+            @NonNull MdnsServiceTypeClient client) {
+        RoutedRecords records = routed.get(client);
+        if (records == null) {
+            records = new RoutedRecords();
+            routed.put(client, records);
+        }
+        return records;
+    }
+
+    /**
+     * Get the key of the service type that a record is relevant to, or null if the record is not
+     * relevant to any service type.
+     */
+    @Nullable
+    private static String getServiceTypeKey(@NonNull MdnsRecord record) {
+        final String[] name = record.getName();
+        final int start;
+        if (record instanceof MdnsPointerRecord) {
+            // Subtype PTR records are named "<subtype>._sub.<service type>".
+            start = (name.length > 2 && DnsUtils.equalsIgnoreDnsCase(
+                    name[1], MdnsConstants.SUBTYPE_LABEL)) ? 2 : 0;
+        } else if (record instanceof MdnsServiceRecord || record instanceof MdnsTextRecord) {
+            // Instance names are "<instance>.<service type>".
+            start = 1;
+        } else {
+            return null;
+        }
+        if (start >= name.length) return null;
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = start; i < name.length; i++) {
+            if (i > start) sb.append('.');
+            sb.append(name[i]);
+        }
+        return DnsUtils.toDnsUpperCase(sb.toString());
+    }
+
+    /** Get the number of received records that were passed to at least one client. */
+    public long getRecordsRouted() {
+        return mRecordsRouted;
+    }
+
+    /** Get the number of received records that were not relevant to any client. */
+    public long getRecordsDropped() {
+        return mRecordsDropped;
+    }
+
+    /** Dump the routing counters. */
+    public void dump(@NonNull PrintWriter pw) {
+        pw.println("Records routed: " + mRecordsRouted + ", dropped: " + mRecordsDropped);
+    }
+}
@@ -90,6 +90,7 @@ public class MdnsServiceTypeClient {
                 }
             };
     @NonNull private final MdnsFeatureFlags featureFlags;
+    @Nullable private final MdnsQueryAggregator queryAggregator;
     private final ArrayMap<MdnsServiceBrowserListener, ListenerInfo> listeners =
             new ArrayMap<>();
     private final boolean removeServiceAfterTtlExpires =
@@ -267,9 +268,10 @@ public class MdnsServiceTypeClient {
             @NonNull SharedLog sharedLog,
             @NonNull Looper looper,
             @NonNull MdnsServiceCache serviceCache,
-            @NonNull MdnsFeatureFlags featureFlags) {
+            @NonNull MdnsFeatureFlags featureFlags,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this(serviceType, socketClient, executor, new Clock(), socketKey, sharedLog, looper,
-                new Dependencies(), serviceCache, featureFlags);
+                new Dependencies(), serviceCache, featureFlags, queryAggregator);
     }
 
     @VisibleForTesting
@@ -284,6 +286,23 @@ public class MdnsServiceTypeClient {
             @NonNull Dependencies dependencies,
             @NonNull MdnsServiceCache serviceCache,
             @NonNull MdnsFeatureFlags featureFlags) {
+        this(serviceType, socketClient, executor, clock, socketKey, sharedLog, looper,
+                dependencies, serviceCache, featureFlags, null /* queryAggregator */);
+    }
+
+    @VisibleForTesting
+    public MdnsServiceTypeClient(
+            @NonNull String serviceType,
+            @NonNull MdnsSocketClientBase socketClient,
+            @NonNull ScheduledExecutorService executor,
+            @NonNull Clock clock,
+            @NonNull SocketKey socketKey,
+            @NonNull SharedLog sharedLog,
+            @NonNull Looper looper,
+            @NonNull Dependencies dependencies,
+            @NonNull MdnsServiceCache serviceCache,
+            @NonNull MdnsFeatureFlags featureFlags,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this.serviceType = serviceType;
         this.socketClient = socketClient;
         this.executor = executor;
@@ -298,6 +317,7 @@ public class MdnsServiceTypeClient {
         this.mdnsQueryScheduler = new MdnsQueryScheduler();
         this.cacheKey = new MdnsServiceCache.CacheKey(serviceType, socketKey);
         this.featureFlags = featureFlags;
+        this.queryAggregator = queryAggregator;
     }
 
     /**
@@ -464,6 +484,22 @@ public class MdnsServiceTypeClient {
         return cacheKey;
     }
 
+    /**
+     * Indicates whether a known service of this client is hosted on the given host, so that
+     * address records of that host are relevant to this client.
+     */
+    public boolean hasServiceOnHost(@NonNull String[] hostName) {
+        ensureRunningOnHandlerThread(handler);
+        for (MdnsResponse response : serviceCache.getCachedServices(cacheKey)) {
+            final MdnsServiceRecord serviceRecord = response.getServiceRecord();
+            if (serviceRecord != null && DnsUtils.equalsDnsLabelIgnoreDnsCase(
+                    serviceRecord.getServiceHost(), hostName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void removeScheduledTask() {
         dependencies.removeMessages(handler, EVENT_START_QUERYTASK);
         sharedLog.log("Remove EVENT_START_QUERYTASK"
@@ -777,7 +813,8 @@ public class MdnsServiceTypeClient {
                                 sharedLog,
                                 dependencies,
                                 existingServices,
-                                featureFlags.isQueryWithKnownAnswerEnabled())
+                                featureFlags.isQueryWithKnownAnswerEnabled(),
+                                queryAggregator)
                                 .call();
             } catch (RuntimeException e) {
                 sharedLog.e(String.format("Failed to run EnqueueMdnsQueryCallable for subtype: %s",
@@ -136,7 +136,7 @@ public class EthernetConfigStore {
             }
 
             if (modified) {
-                mStore.writeIpConfigurations(filepath, mIpConfigurations);
+                mStore.writeIpConfiguration(filepath, iface, config, mIpConfigurations);
             }
         }
     }
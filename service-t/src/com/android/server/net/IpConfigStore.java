@@ -16,6 +16,7 @@
 
 package com.android.server.net;
 
+import android.annotation.Nullable;
 import android.net.InetAddresses;
 import android.net.IpConfiguration;
 import android.net.IpConfiguration.IpAssignment;
@@ -25,34 +26,66 @@ import android.net.ProxyInfo;
 import android.net.StaticIpConfiguration;
 import android.net.Uri;
 import android.util.ArrayMap;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.ProxyUtils;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * This class provides an API to store and manage L3 network IP configuration.
+ *
+ * Configurations are stored in a snapshot file containing all of them. Changes to single
+ * configurations made with {@link #writeIpConfiguration} are appended to a journal next to the
+ * snapshot, which is compacted into the snapshot once it grows larger than it. Reading replays the
+ * journal on top of the snapshot.
  */
 public class IpConfigStore {
     private static final String TAG = "IpConfigStore";
     private static final boolean DBG = false;
 
+    @VisibleForTesting
+    static final String JOURNAL_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x49504a31; // "IPJ1"
+    // Records larger than this can only come from corruption: a configuration is a few hundred
+    // bytes.
+    private static final int MAX_JOURNAL_RECORD_SIZE = 64 * 1024;
+    /**
+     * The journal is compacted when it has more records than the snapshot has configurations,
+     * and at least this many, so that writes stay proportional to the number of changes.
+     */
+    @VisibleForTesting
+    static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 16;
+
     protected final DelayedDiskWrite mWriter;
 
+    // Number of records in the journal of each file written by this store. The journal of a file
+    // that is not in the map may have been written before this store was created, and is compacted
+    // on first write.
+    @GuardedBy("mJournalRecords")
+    private final ArrayMap<String, Integer> mJournalRecords = new ArrayMap<>();
+
     /* IP and proxy configuration keys */
     protected static final String ID_KEY = "id";
     protected static final String IP_ASSIGNMENT_KEY = "ipAssignment";
@@ -203,28 +236,226 @@ public class IpConfigStore {
      */
     public void writeIpConfigurations(String filePath,
                                       ArrayMap<String, IpConfiguration> networks) {
-        mWriter.write(filePath, out -> {
-            out.writeInt(IPCONFIG_FILE_VERSION);
-            for (int i = 0; i < networks.size(); i++) {
-                writeConfig(out, networks.keyAt(i), networks.valueAt(i));
+        synchronized (mJournalRecords) {
+            mWriter.write(filePath, out -> {
+                writeSnapshot(out, networks);
+                // The snapshot supersedes all journaled changes.
+                out.flush();
+                new File(filePath + JOURNAL_SUFFIX).delete();
+            });
+            mJournalRecords.put(filePath, 0);
+        }
+    }
+
+    private static void writeSnapshot(DataOutputStream out,
+            ArrayMap<String, IpConfiguration> networks) throws IOException {
+        out.writeInt(IPCONFIG_FILE_VERSION);
+        for (int i = 0; i < networks.size(); i++) {
+            writeConfig(out, networks.keyAt(i), networks.valueAt(i));
+        }
+    }
+
+    /**
+     * Write a change to the IP configuration of one network to the destination path.
+     *
+     * The change is appended to the journal of the file, so the cost of the write does not depend
+     * on the number of networks, except when the journal is compacted.
+     *
+     * @param filePath the destination path.
+     * @param key the network identifier.
+     * @param config the new configuration of the network, or null if it was removed.
+     * @param networks the configurations of all networks, including the change. Only used to
+     *                 compact the journal, and not retained.
+     */
+    public void writeIpConfiguration(String filePath, String key,
+            @Nullable IpConfiguration config, ArrayMap<String, IpConfiguration> networks) {
+        synchronized (mJournalRecords) {
+            final Integer records = mJournalRecords.get(filePath);
+            if (records == null || records >= Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION,
+                    networks.size())) {
+                compact(filePath, new ArrayMap<>(networks));
+                mJournalRecords.put(filePath, 0);
+                return;
             }
-        });
+            final byte[] record;
+            try {
+                record = makeJournalRecord(key, config);
+            } catch (IOException e) {
+                // Cannot happen when writing to memory.
+                throw new IllegalStateException(e);
+            }
+            // Counted before writing, as a failed append removes the count.
+            mJournalRecords.put(filePath, records + 1);
+            mWriter.write(filePath, unused -> appendJournalRecord(filePath, record),
+                    false /* open */);
+        }
+    }
+
+    private void compact(String filePath, ArrayMap<String, IpConfiguration> networks) {
+        mWriter.write(filePath, unused -> {
+            // The journal is only deleted once the snapshot is complete. Replaying it on an
+            // up-to-date snapshot is harmless.
+            final AtomicFile file = new AtomicFile(new File(filePath));
+            FileOutputStream fos = null;
+            try {
+                fos = file.startWrite();
+                final DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(fos));
+                writeSnapshot(out, networks);
+                out.flush();
+                file.finishWrite(fos);
+            } catch (IOException e) {
+                file.failWrite(fos);
+                throw e;
+            }
+            new File(filePath + JOURNAL_SUFFIX).delete();
+        }, false /* open */);
+    }
+
+    /**
+     * Make a journal record: the length and CRC32 of the payload, followed by the payload. The
+     * payload is the network identifier, whether the network has a configuration, and if so a
+     * snapshot containing only that configuration.
+     */
+    private static byte[] makeJournalRecord(String key, @Nullable IpConfiguration config)
+            throws IOException {
+        final ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(payloadStream);
+        payload.writeUTF(key);
+        payload.writeBoolean(config != null);
+        if (config != null) {
+            payload.writeInt(IPCONFIG_FILE_VERSION);
+            writeConfig(payload, key, config);
+        }
+        payload.flush();
+        final byte[] payloadBytes = payloadStream.toByteArray();
+
+        final ByteArrayOutputStream recordStream = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(recordStream);
+        record.writeInt(payloadBytes.length);
+        record.writeInt(crc32(payloadBytes));
+        record.write(payloadBytes);
+        record.flush();
+        return recordStream.toByteArray();
+    }
+
+    private static int crc32(byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a record to the journal of the given file.
+     *
+     * On failure, the journal is truncated back to its previous length, as replay would ignore
+     * all records appended after a torn one. The file is also compacted on the next write, so the
+     * change is not lost if the journal could not be truncated.
+     */
+    private void appendJournalRecord(String filePath, byte[] record) throws IOException {
+        final File journal = new File(filePath + JOURNAL_SUFFIX);
+        final long length = journal.length();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal, true /* append */)))) {
+            if (length == 0) {
+                out.writeInt(JOURNAL_MAGIC);
+            }
+            out.write(record);
+        } catch (IOException e) {
+            try (FileOutputStream out = new FileOutputStream(journal, true /* append */)) {
+                out.getChannel().truncate(length);
+            } catch (IOException truncateError) {
+                loge("Error truncating IP configuration journal: " + truncateError);
+            }
+            synchronized (mJournalRecords) {
+                mJournalRecords.remove(filePath);
+            }
+            throw e;
+        }
     }
 
     /**
-     * Read the IP configuration from the destination path to {@link BufferedInputStream}.
+     * Apply the changes in the journal of the given file to the given configurations.
+     *
+     * Replay stops at the first incomplete or corrupted record, which is what a crash while
+     * appending leaves behind.
+     */
+    private static void replayJournal(String filePath,
+            ArrayMap<String, IpConfiguration> networks) {
+        final File journal = new File(filePath + JOURNAL_SUFFIX);
+        if (!journal.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal)))) {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                loge("Bad magic on IP configuration journal, ignore read");
+                return;
+            }
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                final int crc = in.readInt();
+                if (length < 0 || length > MAX_JOURNAL_RECORD_SIZE) {
+                    loge("Bad record length " + length + " in IP configuration journal");
+                    return;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc32(payload) != crc) {
+                    loge("Corrupted record in IP configuration journal, ignore the rest");
+                    return;
+                }
+                applyJournalRecord(payload, networks);
+            }
+        } catch (EOFException e) {
+            loge("Truncated record in IP configuration journal, ignore it");
+        } catch (IOException e) {
+            loge("Error reading IP configuration journal: " + e);
+        }
+    }
+
+    private static void applyJournalRecord(byte[] payload,
+            ArrayMap<String, IpConfiguration> networks) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final String key = in.readUTF();
+        final IpConfiguration config;
+        if (in.readBoolean()) {
+            final ArrayMap<String, IpConfiguration> parsed = readIpConfigurations(in);
+            config = parsed == null ? null : parsed.get(key);
+        } else {
+            config = null;
+        }
+        // Configurations that writeConfig does not write, such as unassigned ones, are not in the
+        // snapshot either.
+        if (config == null) {
+            networks.remove(key);
+        } else {
+            networks.put(key, config);
+        }
+    }
+
+    /**
+     * Read the IP configuration from the destination path to {@link BufferedInputStream}, and
+     * apply the changes in its journal.
      */
     public static ArrayMap<String, IpConfiguration> readIpConfigurations(String filePath) {
-        BufferedInputStream bufferedInputStream;
+        ArrayMap<String, IpConfiguration> networks;
         try {
-            bufferedInputStream = new BufferedInputStream(new FileInputStream(filePath));
+            networks = readIpConfigurations(
+                    new BufferedInputStream(new FileInputStream(filePath)));
         } catch (FileNotFoundException e) {
             // Return an empty array here because callers expect an empty array when the file is
             // not present.
             loge("Error opening configuration file: " + e);
-            return new ArrayMap<>(0);
+            networks = new ArrayMap<>(0);
+        }
+        if (networks != null) {
+            replayJournal(filePath, networks);
         }
-        return readIpConfigurations(bufferedInputStream);
+        return networks;
     }
 
     /** @deprecated use {@link #readIpConfigurations(String)} */
@@ -17,18 +17,19 @@
 package com.android.server.net;
 
 import static android.app.usage.NetworkStatsManager.MIN_THRESHOLD_BYTES;
+import static android.net.NetworkStats.SET_DEBUG_START;
+import static android.net.NetworkStats.TAG_NONE;
 
 import android.annotation.NonNull;
 import android.app.usage.NetworkStatsManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.DataUsageRequest;
+import android.net.NetworkIdentity;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStack;
 import android.net.NetworkStats;
 import android.net.NetworkStatsAccess;
-import android.net.NetworkStatsCollection;
-import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.netstats.IUsageCallback;
 import android.os.Handler;
@@ -42,10 +43,12 @@ import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.PerUidCounter;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -72,6 +75,12 @@ class NetworkStatsObservers {
     // indexed by DataUsageRequest#requestId
     private final SparseArray<RequestInfo> mDataUsageRequests = new SparseArray<>();
 
+    // Observers of interface stats and of per-UID stats. Each computes the delta between
+    // consecutive snapshots once per update, and routes it to the observers it concerns.
+    // All access must be done from the handler thread.
+    private final SnapshotFanOut mXtFanOut = new SnapshotFanOut();
+    private final SnapshotFanOut mUidFanOut = new SnapshotFanOut();
+
     // Request counters per uid, this is thread safe.
     private final PerUidCounter mDataUsageRequestsPerUid = new PerUidCounter(MAX_REQUESTS_PER_UID);
 
@@ -182,6 +191,11 @@ class NetworkStatsObservers {
      */
     private void handleRegister(RequestInfo requestInfo) {
         mDataUsageRequests.put(requestInfo.mRequest.requestId, requestInfo);
+        getFanOut(requestInfo).add(requestInfo);
+    }
+
+    private SnapshotFanOut getFanOut(RequestInfo requestInfo) {
+        return requestInfo.isPerUid() ? mUidFanOut : mXtFanOut;
     }
 
     /**
@@ -203,6 +217,7 @@ class NetworkStatsObservers {
 
         if (LOG) Log.d(TAG, "Unregistering " + requestInfo);
         mDataUsageRequests.remove(request.requestId);
+        getFanOut(requestInfo).remove(requestInfo);
         mDataUsageRequestsPerUid.decrementCountOrThrow(requestInfo.mCallingUid);
         requestInfo.unlinkDeathRecipient();
         requestInfo.callCallback(NetworkStatsManager.CALLBACK_RELEASED);
@@ -213,9 +228,189 @@ class NetworkStatsObservers {
             return;
         }
 
-        for (int i = 0; i < mDataUsageRequests.size(); i++) {
-            RequestInfo requestInfo = mDataUsageRequests.valueAt(i);
-            requestInfo.updateStats(statsContext);
+        final ArrayList<RequestInfo> thresholdReached = new ArrayList<>();
+        mXtFanOut.update(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
+                thresholdReached);
+        mUidFanOut.update(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
+                thresholdReached);
+
+        for (RequestInfo requestInfo : thresholdReached) {
+            requestInfo.resetUsage();
+            requestInfo.callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
+        }
+    }
+
+    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+        for (NetworkIdentity ident : identSet) {
+            if (template.matches(ident)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The observers of one kind of snapshot, grouped by template.
+     *
+     * On each update, the delta from the previous snapshot is computed once. Each interface seen
+     * in the delta is matched once against each template, and the usage of each delta entry is
+     * then added to the running counters of the observers of the matching templates.
+     */
+    private static class SnapshotFanOut {
+        private final ArrayMap<NetworkTemplate, TemplateRequests> mRequestsByTemplate =
+                new ArrayMap<>();
+        // The previous snapshot, or null if there was none since the first observer registered.
+        private NetworkStats mLastSnapshot;
+
+        void add(RequestInfo requestInfo) {
+            TemplateRequests requests = mRequestsByTemplate.get(requestInfo.mRequest.template);
+            if (requests == null) {
+                requests = new TemplateRequests();
+                mRequestsByTemplate.put(requestInfo.mRequest.template, requests);
+            }
+            requests.add(requestInfo);
+        }
+
+        void remove(RequestInfo requestInfo) {
+            final TemplateRequests requests =
+                    mRequestsByTemplate.get(requestInfo.mRequest.template);
+            if (requests == null) return;
+            requests.remove(requestInfo);
+            if (requests.isEmpty()) {
+                mRequestsByTemplate.remove(requestInfo.mRequest.template);
+            }
+            if (mRequestsByTemplate.isEmpty()) {
+                mLastSnapshot = null;
+            }
+        }
+
+        /**
+         * Record the usage since the previous snapshot, and add the observers which reached
+         * their threshold to {@code thresholdReached}.
+         */
+        void update(NetworkStats snapshot, ArrayMap<String, NetworkIdentitySet> ifaceIdents,
+                ArrayList<RequestInfo> thresholdReached) {
+            // Skip recording when snapshot missing
+            if (snapshot == null || mRequestsByTemplate.isEmpty()) return;
+
+            if (mLastSnapshot != null) {
+                recordDelta(NetworkStats.subtract(snapshot, mLastSnapshot,
+                        null /* observer */, null /* cookie */), ifaceIdents);
+            }
+            mLastSnapshot = snapshot;
+
+            for (int i = 0; i < mRequestsByTemplate.size(); i++) {
+                mRequestsByTemplate.valueAt(i).startCountingAndCheck(thresholdReached);
+            }
+        }
+
+        private void recordDelta(NetworkStats delta,
+                ArrayMap<String, NetworkIdentitySet> ifaceIdents) {
+            // For each interface, whether it matches each template. Computed on first use.
+            final ArrayMap<String, boolean[]> templateMatchesByIface = new ArrayMap<>();
+            NetworkStats.Entry entry = null;
+            for (int i = 0; i < delta.size(); i++) {
+                entry = delta.getValues(i, entry);
+                // Only untagged traffic counts towards thresholds.
+                if (entry.tag != TAG_NONE || entry.set >= SET_DEBUG_START) continue;
+                // Counters that went backwards are clamped, as in NetworkStatsRecorder.
+                final long bytes = Math.max(entry.rxBytes, 0) + Math.max(entry.txBytes, 0);
+                if (bytes == 0) continue;
+
+                boolean[] templateMatches = templateMatchesByIface.get(entry.iface);
+                if (templateMatches == null) {
+                    templateMatches = new boolean[mRequestsByTemplate.size()];
+                    final NetworkIdentitySet ident = ifaceIdents.get(entry.iface);
+                    // Usage on unknown interfaces is ignored.
+                    if (ident != null) {
+                        for (int t = 0; t < templateMatches.length; t++) {
+                            templateMatches[t] = templateMatches(
+                                    mRequestsByTemplate.keyAt(t), ident);
+                        }
+                    }
+                    templateMatchesByIface.put(entry.iface, templateMatches);
+                }
+                for (int t = 0; t < templateMatches.length; t++) {
+                    if (templateMatches[t]) {
+                        mRequestsByTemplate.valueAt(t).recordUsage(entry.uid, bytes);
+                    }
+                }
+            }
+        }
+    }
+
+    /** The observers of one template, indexed by the UIDs whose usage they may see. */
+    private static class TemplateRequests {
+        // Observers which can only see the usage of their own UID, indexed by that UID.
+        private final SparseArray<ArrayList<RequestInfo>> mOwnUidRequests = new SparseArray<>();
+        // Observers which can see the usage of other UIDs too.
+        private final ArrayList<RequestInfo> mOtherRequests = new ArrayList<>();
+        private int mSize;
+
+        void add(RequestInfo requestInfo) {
+            if (requestInfo.mAccessLevel == NetworkStatsAccess.Level.DEFAULT) {
+                ArrayList<RequestInfo> requests = mOwnUidRequests.get(requestInfo.mCallingUid);
+                if (requests == null) {
+                    requests = new ArrayList<>();
+                    mOwnUidRequests.put(requestInfo.mCallingUid, requests);
+                }
+                requests.add(requestInfo);
+            } else {
+                mOtherRequests.add(requestInfo);
+            }
+            mSize++;
+        }
+
+        void remove(RequestInfo requestInfo) {
+            if (requestInfo.mAccessLevel == NetworkStatsAccess.Level.DEFAULT) {
+                final ArrayList<RequestInfo> requests =
+                        mOwnUidRequests.get(requestInfo.mCallingUid);
+                if (requests == null || !requests.remove(requestInfo)) return;
+                if (requests.isEmpty()) mOwnUidRequests.remove(requestInfo.mCallingUid);
+            } else {
+                if (!mOtherRequests.remove(requestInfo)) return;
+            }
+            mSize--;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        void recordUsage(int uid, long bytes) {
+            final ArrayList<RequestInfo> ownUidRequests = mOwnUidRequests.get(uid);
+            if (ownUidRequests != null) {
+                for (int i = 0; i < ownUidRequests.size(); i++) {
+                    ownUidRequests.get(i).maybeRecordUsage(uid, bytes);
+                }
+            }
+            for (int i = 0; i < mOtherRequests.size(); i++) {
+                mOtherRequests.get(i).maybeRecordUsage(uid, bytes);
+            }
+        }
+
+        /**
+         * Start counting usage for the observers which registered since the previous snapshot,
+         * and add the others which reached their threshold to {@code thresholdReached}.
+         */
+        void startCountingAndCheck(ArrayList<RequestInfo> thresholdReached) {
+            for (int i = 0; i < mOwnUidRequests.size(); i++) {
+                startCountingAndCheck(mOwnUidRequests.valueAt(i), thresholdReached);
+            }
+            startCountingAndCheck(mOtherRequests, thresholdReached);
+        }
+
+        private static void startCountingAndCheck(ArrayList<RequestInfo> requests,
+                ArrayList<RequestInfo> thresholdReached) {
+            for (int i = 0; i < requests.size(); i++) {
+                final RequestInfo requestInfo = requests.get(i);
+                if (!requestInfo.mCounting) {
+                    // First snapshot for this observer; establish baseline
+                    requestInfo.mCounting = true;
+                } else if (requestInfo.checkStats()) {
+                    thresholdReached.add(requestInfo);
+                }
+            }
         }
     }
 
@@ -264,8 +459,8 @@ class NetworkStatsObservers {
         protected final int mCallingUid;
         protected final String mCallingPackage;
         protected final @NetworkStatsAccess.Level int mAccessLevel;
-        protected NetworkStatsRecorder mRecorder;
-        protected NetworkStatsCollection mCollection;
+        // Whether usage is being counted, i.e. a snapshot was seen since registration.
+        private boolean mCounting;
 
         RequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
@@ -306,21 +501,15 @@ class NetworkStatsObservers {
         }
 
         /**
-         * Update stats given the samples and interface to identity mappings.
+         * Record usage on a network matching the template of this request, if this request
+         * is counting and allowed to see the usage of the given UID.
          */
-        private void updateStats(StatsContext statsContext) {
-            if (mRecorder == null) {
-                // First run; establish baseline stats
-                resetRecorder();
-                recordSample(statsContext);
+        private void maybeRecordUsage(int uid, long bytes) {
+            if (!mCounting || !NetworkStatsAccess.isAccessibleToUser(uid, mCallingUid,
+                    mAccessLevel)) {
                 return;
             }
-            recordSample(statsContext);
-
-            if (checkStats()) {
-                resetRecorder();
-                callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
-            }
+            recordUsage(uid, bytes);
         }
 
         private void callCallback(int callbackType) {
@@ -343,14 +532,14 @@ class NetworkStatsObservers {
             }
         }
 
-        private void resetRecorder() {
-            mRecorder = new NetworkStatsRecorder();
-            mCollection = mRecorder.getSinceBoot();
-        }
+        /** Whether usage is measured from per-UID stats rather than from interface stats. */
+        protected abstract boolean isPerUid();
+
+        protected abstract void recordUsage(int uid, long bytes);
 
         protected abstract boolean checkStats();
 
-        protected abstract void recordSample(StatsContext statsContext);
+        protected abstract void resetUsage();
 
         private String callbackTypeToName(int callbackType) {
             switch (callbackType) {
@@ -365,6 +554,9 @@ class NetworkStatsObservers {
     }
 
     private static class NetworkUsageRequestInfo extends RequestInfo {
+        // Bytes used on networks matching the template since the last notification.
+        private long mBytesSoFar;
+
         NetworkUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -372,42 +564,36 @@ class NetworkStatsObservers {
                     accessLevel);
         }
 
+        @Override
+        protected boolean isPerUid() {
+            return false;
+        }
+
+        @Override
+        protected void recordUsage(int uid, long bytes) {
+            mBytesSoFar += bytes;
+        }
+
         @Override
         protected boolean checkStats() {
-            long bytesSoFar = getTotalBytesForNetwork(mRequest.template);
             if (LOGV) {
-                Log.v(TAG, bytesSoFar + " bytes so far since notification for "
+                Log.v(TAG, mBytesSoFar + " bytes so far since notification for "
                         + mRequest.template);
             }
-            if (bytesSoFar > mRequest.thresholdInBytes) {
-                return true;
-            }
-            return false;
+            return mBytesSoFar > mRequest.thresholdInBytes;
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass a null VPN array because usage is aggregated by uid
-            // for this snapshot, so VPN traffic can't be reattributed to responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
-                    statsContext.mCurrentTime);
-        }
-
-        /**
-         * Reads stats matching the given template. {@link NetworkStatsCollection} will aggregate
-         * over all buckets, which in this case should be only one since we built it big enough
-         * that it will outlive the caller. If it doesn't, then there will be multiple buckets.
-         */
-        private long getTotalBytesForNetwork(NetworkTemplate template) {
-            NetworkStats stats = mCollection.getSummary(template,
-                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                    mAccessLevel, mCallingUid);
-            return stats.getTotalBytes();
+        protected void resetUsage() {
+            mBytesSoFar = 0;
         }
     }
 
     private static class UserUsageRequestInfo extends RequestInfo {
+        // Bytes used by each UID on networks matching the template since the last notification.
+        private final SparseLongArray mBytesSoFarPerUid = new SparseLongArray();
+        private boolean mThresholdReached;
+
         UserUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -416,47 +602,28 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected boolean checkStats() {
-            int[] uidsToMonitor = mCollection.getRelevantUids(mAccessLevel, mCallingUid);
+        protected boolean isPerUid() {
+            return true;
+        }
 
-            for (int i = 0; i < uidsToMonitor.length; i++) {
-                long bytesSoFar = getTotalBytesForNetworkUid(mRequest.template, uidsToMonitor[i]);
-                if (bytesSoFar > mRequest.thresholdInBytes) {
-                    return true;
-                }
+        @Override
+        protected void recordUsage(int uid, long bytes) {
+            final long bytesSoFar = mBytesSoFarPerUid.get(uid) + bytes;
+            mBytesSoFarPerUid.put(uid, bytesSoFar);
+            if (bytesSoFar > mRequest.thresholdInBytes) {
+                mThresholdReached = true;
             }
-            return false;
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass the VPN info so VPN traffic is reattributed to
-            // responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
-                    statsContext.mCurrentTime);
+        protected boolean checkStats() {
+            return mThresholdReached;
         }
 
-        /**
-         * Reads all stats matching the given template and uid. Ther history will likely only
-         * contain one bucket per ident since we build it big enough that it will outlive the
-         * caller lifetime.
-         */
-        private long getTotalBytesForNetworkUid(NetworkTemplate template, int uid) {
-            try {
-                NetworkStatsHistory history = mCollection.getHistory(template, null, uid,
-                        NetworkStats.SET_ALL, NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL,
-                        Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                        mAccessLevel, mCallingUid);
-                return history.getTotalBytes();
-            } catch (SecurityException e) {
-                if (LOGV) {
-                    Log.w(TAG, "CallerUid " + mCallingUid + " may have lost access to uid "
-                            + uid);
-                }
-                return 0;
-            }
+        @Override
+        protected void resetUsage() {
+            mBytesSoFarPerUid.clear();
+            mThresholdReached = false;
         }
     }
 
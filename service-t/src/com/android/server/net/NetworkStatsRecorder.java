@@ -17,6 +17,7 @@
 package com.android.server.net;
 
 import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
@@ -86,6 +87,7 @@ public class NetworkStatsRecorder {
     private final boolean mUseFastDataInput;
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
+    private boolean mUseIndexedFileFormat;
     private NetworkStats mLastSnapshot;
 
     private final NetworkStatsCollection mPending;
@@ -150,6 +152,24 @@ public class NetworkStatsRecorder {
                 thresholdBytes, 1 * KB_IN_BYTES, 100 * MB_IN_BYTES);
     }
 
+    /**
+     * Set whether files are written in the indexed format, which allows partial loads to skip
+     * the histories they do not need. Files in both formats can always be read.
+     */
+    public void setUseIndexedFileFormat(boolean useIndexedFileFormat) {
+        mUseIndexedFileFormat = useIndexedFileFormat;
+        if (mPending != null) {
+            mPending.setUseIndexedFormat(useIndexedFileFormat);
+        }
+    }
+
+    /**
+     * Whether files are written in the indexed format.
+     */
+    public boolean getUseIndexedFileFormat() {
+        return mUseIndexedFileFormat;
+    }
+
     public void resetLocked() {
         mLastSnapshot = null;
         if (mPending != null) {
@@ -206,15 +226,30 @@ public class NetworkStatsRecorder {
     }
 
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
+        return getOrLoadPartialLocked(null /* template */, UID_ALL, start, end);
+    }
+
+    /**
+     * Load the histories of the given UID matching the given template and overlapping the given
+     * range, along with pending stats. Returns the complete history instead if it is already
+     * loaded. Histories stored in the indexed file format which do not match are not decoded.
+     */
+    public NetworkStatsCollection getOrLoadPartialLocked(@Nullable NetworkTemplate template,
+            int uid, long start, long end) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
         if (res == null) {
-            res = loadLocked(start, end);
+            res = loadLocked(template, uid, start, end);
         }
         return res;
     }
 
     private NetworkStatsCollection loadLocked(long start, long end) {
+        return loadLocked(null /* template */, UID_ALL, start, end);
+    }
+
+    private NetworkStatsCollection loadLocked(@Nullable NetworkTemplate template, int uid,
+            long start, long end) {
         if (LOGD) {
             Log.d(TAG, "loadLocked() reading from disk for " + mCookie
                     + " useFastDataInput: " + mUseFastDataInput);
@@ -222,7 +257,12 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection res =
                 new NetworkStatsCollection(mBucketDuration, mUseFastDataInput);
         try {
-            mRotator.readMatching(res, start, end);
+            if (template == null && uid == UID_ALL) {
+                mRotator.readMatching(res, start, end);
+            } else {
+                mRotator.readMatching(in -> res.readMatching(in, template, uid, start, end),
+                        start, end);
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -353,7 +393,8 @@ public class NetworkStatsRecorder {
         if (mRotator != null) {
             try {
                 // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                mRotator.rewriteAll(
+                        new RemoveUidRewriter(mBucketDuration, uids, mUseIndexedFileFormat));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverAndDeleteData();
@@ -422,8 +463,9 @@ public class NetworkStatsRecorder {
         private final NetworkStatsCollection mTemp;
         private final int[] mUids;
 
-        public RemoveUidRewriter(long bucketDuration, int[] uids) {
+        public RemoveUidRewriter(long bucketDuration, int[] uids, boolean useIndexedFileFormat) {
             mTemp = new NetworkStatsCollection(bucketDuration);
+            mTemp.setUseIndexedFormat(useIndexedFileFormat);
             mUids = uids;
         }
 
@@ -475,8 +517,10 @@ public class NetworkStatsRecorder {
         private final NetworkStatsCollection mTemp;
         private final long mCutoffMills;
 
-        public RemoveDataBeforeRewriter(long bucketDuration, long cutoffMills) {
+        public RemoveDataBeforeRewriter(long bucketDuration, long cutoffMills,
+                boolean useIndexedFileFormat) {
             mTemp = new NetworkStatsCollection(bucketDuration);
+            mTemp.setUseIndexedFormat(useIndexedFileFormat);
             mCutoffMills = cutoffMills;
         }
 
@@ -510,7 +554,7 @@ public class NetworkStatsRecorder {
         if (mRotator != null) {
             try {
                 mRotator.rewriteAll(new RemoveDataBeforeRewriter(
-                        mBucketDuration, cutoffMillis));
+                        mBucketDuration, cutoffMillis, mUseIndexedFileFormat));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem importing netstats", e);
                 recoverAndDeleteData();
@@ -144,6 +144,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SharedMemory;
 import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
@@ -301,6 +302,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             "netstats_fastdatainput_target_attempts";
     static final String NETSTATS_FASTDATAINPUT_SUCCESSES_COUNTER_NAME = "fastdatainput.successes";
     static final String NETSTATS_FASTDATAINPUT_FALLBACKS_COUNTER_NAME = "fastdatainput.fallbacks";
+    /**
+     * DeviceConfig flag used to indicate whether the files should be written in the indexed
+     * format. Files in that format cannot be read after the mainline module gets rollback to a
+     * version predating it, so they would be wiped.
+     */
+    static final String NETSTATS_INDEXED_FILE_FORMAT = "netstats_indexed_file_format";
 
     static final String TRAFFIC_STATS_CACHE_EXPIRY_DURATION_NAME =
             "trafficstats_cache_expiry_duration_ms";
@@ -492,10 +499,17 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             "trafficstats_rate_limit_cache_enabled_flag";
     static final String BROADCAST_NETWORK_STATS_UPDATED_RATE_LIMIT_ENABLED_FLAG =
             "broadcast_network_stats_updated_rate_limit_enabled_flag";
+    static final String TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG =
+            "trafficstats_shared_memory_snapshot_enabled_flag";
+    // Refreshing the TrafficStats snapshots more often than this would cost more than the binder
+    // calls they save.
+    private static final int MIN_TRAFFIC_STATS_SNAPSHOT_REFRESH_INTERVAL_MS = 100;
     private final boolean mAlwaysUseTrafficStatsServiceRateLimitCache;
     private final int mTrafficStatsRateLimitCacheExpiryDuration;
     private final int mTrafficStatsServiceRateLimitCacheMaxEntries;
     private final boolean mBroadcastNetworkStatsUpdatedRateLimitEnabled;
+    @Nullable
+    private final TrafficStatsSnapshotPublisher mTrafficStatsSnapshotPublisher;
 
 
 
@@ -705,6 +719,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mTrafficStatsUidCache = new TrafficStatsRateLimitCache(mClock,
                 mTrafficStatsRateLimitCacheExpiryDuration,
                 mTrafficStatsServiceRateLimitCacheMaxEntries);
+        if (mDeps.supportTrafficStatsSnapshot(mContext)
+                && mTrafficStatsRateLimitCacheExpiryDuration
+                        >= MIN_TRAFFIC_STATS_SNAPSHOT_REFRESH_INTERVAL_MS) {
+            mTrafficStatsSnapshotPublisher = new TrafficStatsSnapshotPublisher(mHandler,
+                    new TrafficStatsSnapshotSource(), mTrafficStatsRateLimitCacheExpiryDuration);
+        } else {
+            mTrafficStatsSnapshotPublisher = null;
+        }
 
         // TODO: Remove bpfNetMaps creation and always start SkDestroyListener
         // Following code is for the experiment to verify the SkDestroyListener refactoring. Based
@@ -774,6 +796,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS, 0);
         }
 
+        /**
+         * Get whether the stats files should be written in the indexed format.
+         */
+        public boolean useIndexedStatsFileFormat() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING, NETSTATS_INDEXED_FILE_FORMAT, false);
+        }
+
         /**
          * Compare two {@link NetworkStatsCollection} instances and returning a human-readable
          * string description of difference for debugging purpose.
@@ -974,6 +1004,17 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     ctx, TRAFFICSTATS_SERVICE_RATE_LIMIT_CACHE_ENABLED_FLAG);
         }
 
+        /**
+         * Get whether TrafficStats counters can be published to apps in shared memory.
+         *
+         * This method should only be called once in the constructor,
+         * to ensure that the code does not need to deal with flag values changing at runtime.
+         */
+        public boolean supportTrafficStatsSnapshot(@NonNull Context ctx) {
+            return DeviceConfigUtils.isTetheringFeatureEnabled(
+                    ctx, TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG);
+        }
+
         /**
          * Get TrafficStats rate-limit cache expiry.
          *
@@ -1133,10 +1174,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             File baseDir, boolean wipeOnError, boolean useFastDataInput) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
-        return new NetworkStatsRecorder(new FileRotator(
+        final NetworkStatsRecorder recorder = new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
                 wipeOnError, useFastDataInput, baseDir);
+        recorder.setUseIndexedFileFormat(mDeps.useIndexedStatsFileFormat());
+        return recorder;
     }
 
     @GuardedBy("mStatsLock")
@@ -1675,6 +1718,26 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Get the histories of the given UID. If files are written in the indexed format and
+             * this session has not loaded the complete histories yet, only the histories
+             * matching the query are loaded. Otherwise, partial loads would decode every file
+             * anyway, so the complete histories are loaded and cached for the session.
+             */
+            private NetworkStatsCollection getUidHistories(NetworkTemplate template, int uid,
+                    int tag, long start, long end) {
+                synchronized (mStatsLock) {
+                    final NetworkStatsRecorder recorder =
+                            tag == TAG_NONE ? mUidRecorder : mUidTagRecorder;
+                    final NetworkStatsCollection complete =
+                            tag == TAG_NONE ? mUidComplete : mUidTagComplete;
+                    if (complete != null || !recorder.getUseIndexedFileFormat()) {
+                        return tag == TAG_NONE ? getUidComplete() : getUidTagComplete();
+                    }
+                    return recorder.getOrLoadPartialLocked(template, uid, start, end);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -1750,13 +1813,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 enforceTemplatePermissions(template, callingPackage);
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                }
+                return getUidHistories(template, uid, tag, Long.MIN_VALUE, Long.MAX_VALUE)
+                        .getHistory(template, null, uid, set, tag, fields,
+                                Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
             }
 
             @Override
@@ -1767,12 +1826,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 // TODO(b/200768422): Redact returned history if the template is location
                 //  sensitive but the caller is not privileged.
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                if (tag == TAG_NONE || uid == Binder.getCallingUid()) {
+                    return getUidHistories(template, uid, tag, start, end).getHistory(template,
+                            null, uid, set, tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -2146,6 +2202,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         if (callingUid != android.os.Process.SYSTEM_UID && callingUid != uid) {
             return stats;
         }
+        maybeNotifyTrafficStatsSnapshotQuery(callingUid);
         final NetworkStats.Entry entry;
         if (mAlwaysUseTrafficStatsServiceRateLimitCache
                 || mDeps.isChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE, callingUid)) {
@@ -2177,6 +2234,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     @Override
     public NetworkStats getTypelessIfaceStats(@NonNull String iface) {
         Objects.requireNonNull(iface);
+        maybeNotifyTrafficStatsSnapshotQuery(Binder.getCallingUid());
 
         final NetworkStats.Entry entry;
         if (mAlwaysUseTrafficStatsServiceRateLimitCache
@@ -2206,6 +2264,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     @NonNull
     @Override
     public NetworkStats getTypelessTotalStats() {
+        maybeNotifyTrafficStatsSnapshotQuery(Binder.getCallingUid());
         final NetworkStats.Entry entry;
         if (mAlwaysUseTrafficStatsServiceRateLimitCache
                 || mDeps.isChangeEnabled(
@@ -2221,12 +2280,74 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return stats;
     }
 
+    @Nullable
+    @Override
+    public SharedMemory openTrafficStatsSnapshot(@NonNull IBinder token) {
+        Objects.requireNonNull(token);
+        final int callingUid = Binder.getCallingUid();
+        // The snapshot is refreshed at the expiry of the rate-limit caches, so only offer it to
+        // callers whose binder queries go through the caches.
+        if (mTrafficStatsSnapshotPublisher == null
+                || !(mAlwaysUseTrafficStatsServiceRateLimitCache
+                        || mDeps.isChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE,
+                                callingUid))) {
+            return null;
+        }
+        return mTrafficStatsSnapshotPublisher.open(callingUid, token);
+    }
+
+    private void maybeNotifyTrafficStatsSnapshotQuery(int callingUid) {
+        if (mTrafficStatsSnapshotPublisher != null) {
+            mTrafficStatsSnapshotPublisher.onBinderQuery(callingUid);
+        }
+    }
+
+    /**
+     * Provides the counters published in TrafficStats snapshots, bypassing the rate-limit caches
+     * since the snapshots are already refreshed at their expiry.
+     */
+    private class TrafficStatsSnapshotSource implements TrafficStatsSnapshotPublisher.StatsSource {
+        @Nullable
+        @Override
+        public NetworkStats.Entry getUidStats(int uid) {
+            return mDeps.nativeGetUidStat(uid);
+        }
+
+        @Nullable
+        @Override
+        public NetworkStats.Entry getIfaceStats(@NonNull String iface) {
+            return getIfaceStatsInternal(iface);
+        }
+
+        @Nullable
+        @Override
+        public NetworkStats.Entry getTotalStats() {
+            return getTotalStatsInternal();
+        }
+
+        @NonNull
+        @Override
+        public String[] getIfaces() {
+            final ArraySet<String> ifaces = new ArraySet<>();
+            synchronized (mStatsLock) {
+                ifaces.addAll(mActiveIfaces.keySet());
+            }
+            Collections.addAll(ifaces, mMobileIfaces);
+            // Queried by TrafficStats#getLoopback*.
+            ifaces.add("lo");
+            return ifaces.toArray(new String[0]);
+        }
+    }
+
     @Override
     public void clearTrafficStatsRateLimitCaches() {
         PermissionUtils.enforceNetworkStackPermissionOr(mContext, NETWORK_SETTINGS);
         mTrafficStatsUidCache.clear();
         mTrafficStatsIfaceCache.clear();
         mTrafficStatsTotalCache.clear();
+        if (mTrafficStatsSnapshotPublisher != null) {
+            mTrafficStatsSnapshotPublisher.invalidate();
+        }
     }
 
     private NetworkStats.Entry getProviderIfaceStats(@Nullable String iface) {
@@ -3005,6 +3126,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.print(TRAFFIC_STATS_SERVICE_CACHE_MAX_ENTRIES_NAME,
                     mTrafficStatsServiceRateLimitCacheMaxEntries);
             pw.println();
+            pw.print("TrafficStats uid cache: ");
+            mTrafficStatsUidCache.dump(pw);
+            pw.print("TrafficStats iface cache: ");
+            mTrafficStatsIfaceCache.dump(pw);
+            pw.print("TrafficStats total cache: ");
+            mTrafficStatsTotalCache.dump(pw);
+            if (mTrafficStatsSnapshotPublisher != null) {
+                pw.print("TrafficStats snapshots: ");
+                mTrafficStatsSnapshotPublisher.dump(pw);
+            }
 
             pw.decreaseIndent();
 
@@ -19,21 +19,37 @@ package com.android.server.net;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.net.NetworkStats;
-import android.util.LruCache;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
 
 import java.time.Clock;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 /**
  * A thread-safe cache for storing and retrieving {@link NetworkStats.Entry} objects,
  * with an adjustable expiry duration to manage data freshness.
+ *
+ * Entries are keyed by a long combining the UID and the hash of the interface name, and spread
+ * over independently locked stripes, so lookups do not allocate and lookups of different keys
+ * rarely contend. Locks are never held while computing an entry: concurrent misses for the same
+ * key wait for a single computation, while misses for other keys proceed in parallel.
  */
 class TrafficStatsRateLimitCache {
+    private static final int MAX_STRIPES = 16;
+    // Small caches use fewer stripes, so that evicting the least recently used entry of a stripe
+    // stays close to evicting the least recently used entry of the cache.
+    private static final int MIN_ENTRIES_PER_STRIPE = 16;
+
     private final Clock mClock;
     private final long mExpiryDurationMs;
+    @NonNull
+    private final Stripe[] mStripes;
 
     /**
      * Constructs a new {@link TrafficStatsRateLimitCache} with the specified expiry duration.
@@ -45,46 +61,103 @@ class TrafficStatsRateLimitCache {
     TrafficStatsRateLimitCache(@NonNull Clock clock, long expiryDurationMs, int maxSize) {
         mClock = clock;
         mExpiryDurationMs = expiryDurationMs;
-        mMap = new LruCache<>(maxSize);
+        int numStripes = 1;
+        while (numStripes < MAX_STRIPES && numStripes * 2 * MIN_ENTRIES_PER_STRIPE <= maxSize) {
+            numStripes *= 2;
+        }
+        final int stripeSize = Math.max(1, (maxSize + numStripes - 1) / numStripes);
+        mStripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            mStripes[i] = new Stripe(stripeSize);
+        }
     }
 
-    private static class TrafficStatsCacheKey {
+    private static class TrafficStatsCacheValue {
         @Nullable
         public final String iface;
-        public final int uid;
+        public final long timestamp;
+        @NonNull
+        public final NetworkStats.Entry entry;
+        // Value of Stripe#mAccessCount when the entry was last used, for LRU eviction
+        public long lastAccess;
 
-        TrafficStatsCacheKey(@Nullable String iface, int uid) {
+        TrafficStatsCacheValue(@Nullable String iface, long timestamp, NetworkStats.Entry entry) {
             this.iface = iface;
-            this.uid = uid;
+            this.timestamp = timestamp;
+            this.entry = entry;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof TrafficStatsCacheKey)) return false;
-            TrafficStatsCacheKey that = (TrafficStatsCacheKey) o;
-            return uid == that.uid && Objects.equals(iface, that.iface);
-        }
+    /**
+     * An entry being computed by one thread, which other threads missing on the same key wait for.
+     */
+    private static class Computation {
+        @Nullable
+        public final String iface;
+        public final CompletableFuture<NetworkStats.Entry> result = new CompletableFuture<>();
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(iface, uid);
+        Computation(@Nullable String iface) {
+            this.iface = iface;
         }
     }
 
-    private static class TrafficStatsCacheValue {
-        public final long timestamp;
-        @NonNull
-        public final NetworkStats.Entry entry;
+    private static class Stripe {
+        private final int mMaxSize;
+        @GuardedBy("this")
+        private final LongSparseArray<TrafficStatsCacheValue> mValues = new LongSparseArray<>();
+        @GuardedBy("this")
+        private final LongSparseArray<Computation> mComputations = new LongSparseArray<>();
+        @GuardedBy("this")
+        private long mAccessCount;
 
-        TrafficStatsCacheValue(long timestamp, NetworkStats.Entry entry) {
-            this.timestamp = timestamp;
-            this.entry = entry;
+        // Lookups that returned a cached entry, lookups that computed the entry, lookups that
+        // waited for the computation of another thread, and the time spent waiting.
+        @GuardedBy("this")
+        private long mHits;
+        @GuardedBy("this")
+        private long mMisses;
+        @GuardedBy("this")
+        private long mSharedMisses;
+        @GuardedBy("this")
+        private long mWaitTimeNs;
+
+        Stripe(int maxSize) {
+            mMaxSize = maxSize;
         }
+
+        @GuardedBy("this")
+        @Nullable
+        TrafficStatsCacheValue getLocked(long key, @Nullable String iface) {
+            final TrafficStatsCacheValue value = mValues.get(key);
+            // Different interfaces may have the same hash.
+            if (value == null || !Objects.equals(value.iface, iface)) return null;
+            value.lastAccess = ++mAccessCount;
+            return value;
+        }
+
+        @GuardedBy("this")
+        void putLocked(long key, @NonNull TrafficStatsCacheValue value) {
+            if (mValues.size() >= mMaxSize && mValues.indexOfKey(key) < 0) {
+                int lru = 0;
+                for (int i = 1; i < mValues.size(); i++) {
+                    if (mValues.valueAt(i).lastAccess < mValues.valueAt(lru).lastAccess) lru = i;
+                }
+                mValues.removeAt(lru);
+            }
+            value.lastAccess = ++mAccessCount;
+            mValues.put(key, value);
+        }
+    }
+
+    private static long makeKey(@Nullable String iface, int uid) {
+        return ((long) Objects.hashCode(iface) << 32) | (uid & 0xffffffffL);
     }
 
-    @GuardedBy("mMap")
-    private final LruCache<TrafficStatsCacheKey, TrafficStatsCacheValue> mMap;
+    @NonNull
+    private Stripe getStripe(long key) {
+        final int hash = Long.hashCode(key) * 0x9e3779b9;
+        return mStripes[(hash ^ (hash >>> 16)) & (mStripes.length - 1)];
+    }
 
     /**
      * Retrieves a {@link NetworkStats.Entry} from the cache, associated with the given key.
@@ -95,16 +168,24 @@ class TrafficStatsRateLimitCache {
      */
     @Nullable
     NetworkStats.Entry get(String iface, int uid) {
-        final TrafficStatsCacheKey key = new TrafficStatsCacheKey(iface, uid);
-        synchronized (mMap) { // Synchronize for thread-safety
-            final TrafficStatsCacheValue value = mMap.get(key);
-            if (value != null && !isExpired(value.timestamp)) {
-                return value.entry;
-            } else {
-                mMap.remove(key); // Remove expired entries
-                return null;
-            }
+        final long key = makeKey(iface, uid);
+        final Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            return getValidEntryLocked(stripe, key, iface);
+        }
+    }
+
+    @GuardedBy("stripe")
+    @Nullable
+    private NetworkStats.Entry getValidEntryLocked(@NonNull Stripe stripe, long key,
+            @Nullable String iface) {
+        final TrafficStatsCacheValue value = stripe.getLocked(key, iface);
+        if (value == null) return null;
+        if (isExpired(value.timestamp)) {
+            stripe.mValues.remove(key); // Remove expired entries
+            return null;
         }
+        return value.entry;
     }
 
     /**
@@ -112,28 +193,79 @@ class TrafficStatsRateLimitCache {
      * If the entry is not found in the cache or has expired, computes it using the provided
      * {@code supplier} and stores the result in the cache.
      *
+     * If another thread is already computing the entry for the same key, this waits for its
+     * result instead of calling the supplier.
+     *
      * @param iface The interface name to include in the cache key. {@code IFACE_ALL}
      *              if not applicable.
      * @param uid The UID to include in the cache key. {@code UID_ALL} if not applicable.
      * @param supplier The {@link Supplier} to compute the {@link NetworkStats.Entry} if not found.
      * @return The cached or computed {@link NetworkStats.Entry}, or null if not found, expired,
-     *         or if the {@code supplier} returns null.
+     *         or if the {@code supplier} returns null or throws in another thread.
      */
     @Nullable
     NetworkStats.Entry getOrCompute(String iface, int uid,
             @NonNull Supplier<NetworkStats.Entry> supplier) {
-        synchronized (mMap) {
-            final NetworkStats.Entry cachedValue = get(iface, uid);
+        final long key = makeKey(iface, uid);
+        final Stripe stripe = getStripe(key);
+        final Computation inFlight;
+        Computation computation = null;
+        synchronized (stripe) {
+            final NetworkStats.Entry cachedValue = getValidEntryLocked(stripe, key, iface);
             if (cachedValue != null) {
+                stripe.mHits++;
                 return cachedValue;
             }
+            inFlight = stripe.mComputations.get(key);
+            if (inFlight == null) {
+                computation = new Computation(iface);
+                stripe.mComputations.put(key, computation);
+                stripe.mMisses++;
+            } else if (Objects.equals(inFlight.iface, iface)) {
+                stripe.mSharedMisses++;
+            } else {
+                stripe.mMisses++;
+            }
+        }
 
-            // Entry not found or expired, compute it
-            final NetworkStats.Entry computedEntry = supplier.get();
-            if (computedEntry != null && !computedEntry.isEmpty()) {
-                put(iface, uid, computedEntry);
+        if (computation != null) return compute(stripe, key, computation, supplier);
+        if (!Objects.equals(inFlight.iface, iface)) {
+            // Another interface with the same hash is being computed, compute this one without
+            // caching it.
+            return supplier.get();
+        }
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        try {
+            return inFlight.result.join();
+        } finally {
+            final long waitTimeNs = SystemClock.elapsedRealtimeNanos() - startNs;
+            synchronized (stripe) {
+                stripe.mWaitTimeNs += waitTimeNs;
             }
+        }
+    }
+
+    @Nullable
+    private NetworkStats.Entry compute(@NonNull Stripe stripe, long key,
+            @NonNull Computation computation, @NonNull Supplier<NetworkStats.Entry> supplier) {
+        NetworkStats.Entry computedEntry = null;
+        try {
+            computedEntry = supplier.get();
             return computedEntry;
+        } finally {
+            synchronized (stripe) {
+                // The computation is not in the map anymore if the cache was cleared while the
+                // entry was being computed, in which case the entry may be out of date.
+                if (stripe.mComputations.get(key) == computation) {
+                    stripe.mComputations.remove(key);
+                    if (computedEntry != null && !computedEntry.isEmpty()) {
+                        stripe.putLocked(key, new TrafficStatsCacheValue(computation.iface,
+                                mClock.millis(), computedEntry));
+                    }
+                }
+            }
+            // Threads waiting for the entry get null if the supplier threw.
+            computation.result.complete(computedEntry);
         }
     }
 
@@ -146,19 +278,60 @@ class TrafficStatsRateLimitCache {
      */
     void put(String iface, int uid, @NonNull final NetworkStats.Entry entry) {
         Objects.requireNonNull(entry);
-        final TrafficStatsCacheKey key = new TrafficStatsCacheKey(iface, uid);
-        synchronized (mMap) { // Synchronize for thread-safety
-            mMap.put(key, new TrafficStatsCacheValue(mClock.millis(), entry));
+        final long key = makeKey(iface, uid);
+        final Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.putLocked(key, new TrafficStatsCacheValue(iface, mClock.millis(), entry));
         }
     }
 
     /**
-     * Clear the cache.
+     * Clear the cache. Entries being computed are not cached.
      */
     void clear() {
-        synchronized (mMap) {
-            mMap.evictAll();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.mValues.clear();
+                stripe.mComputations.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups that waited for the computation of another thread.
+     */
+    @VisibleForTesting
+    long getSharedMissCount() {
+        long sharedMisses = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                sharedMisses += stripe.mSharedMisses;
+            }
+        }
+        return sharedMisses;
+    }
+
+    /**
+     * Dump the hit and miss counters of the cache.
+     */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        long hits = 0;
+        long misses = 0;
+        long sharedMisses = 0;
+        long waitTimeNs = 0;
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                hits += stripe.mHits;
+                misses += stripe.mMisses;
+                sharedMisses += stripe.mSharedMisses;
+                waitTimeNs += stripe.mWaitTimeNs;
+                size += stripe.mValues.size();
+            }
         }
+        pw.println("size=" + size + " stripes=" + mStripes.length + " hits=" + hits
+                + " misses=" + misses + " sharedMisses=" + sharedMisses
+                + " waitTimeMs=" + waitTimeNs / 1_000_000);
     }
 
     private boolean isExpired(long timestamp) {
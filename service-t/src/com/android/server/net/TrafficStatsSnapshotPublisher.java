@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.system.OsConstants.PROT_READ;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.netstats.TrafficStatsSnapshot;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Publishes the TrafficStats counters visible to each app in a shared memory region, so that
+ * {@link android.net.TrafficStats} can read them without binder calls.
+ *
+ * Each UID gets its own region, containing only its own counters besides the total and interface
+ * counters that any app may query, and mapped read-only by the app. The regions are refreshed on
+ * the handler thread once per refresh interval, which is the expiry of the TrafficStats rate-limit
+ * caches, so apps never see counters updated more often than through binder calls.
+ *
+ * Regions are only refreshed for a while after they were opened or after the UID last made a
+ * TrafficStats binder call, which apps do when the counters in the region are stale. This keeps
+ * idle apps from causing periodic work, while apps that keep reading counters only make one binder
+ * call every {@link #IDLE_TIMEOUT_INTERVALS} intervals.
+ */
+class TrafficStatsSnapshotPublisher {
+    private static final String TAG = TrafficStatsSnapshotPublisher.class.getSimpleName();
+
+    @VisibleForTesting
+    static final int IDLE_TIMEOUT_INTERVALS = 60;
+    // Bound the resources that apps can make the service allocate.
+    @VisibleForTesting
+    static final int MAX_REGIONS = 100;
+    @VisibleForTesting
+    static final int MAX_TOKENS_PER_REGION = 16;
+
+    /**
+     * Source of the counters published in the regions.
+     */
+    interface StatsSource {
+        /** Get the counters of the given UID, or null if not available. */
+        @Nullable
+        NetworkStats.Entry getUidStats(int uid);
+
+        /** Get the counters of the given interface, or null if not available. */
+        @Nullable
+        NetworkStats.Entry getIfaceStats(@NonNull String iface);
+
+        /** Get the total counters, or null if not available. */
+        @Nullable
+        NetworkStats.Entry getTotalStats();
+
+        /** Get the interfaces whose counters should be published. */
+        @NonNull
+        String[] getIfaces();
+    }
+
+    private class Region implements IBinder.DeathRecipient {
+        final int mUid;
+        @NonNull
+        final SharedMemory mMemory;
+        @NonNull
+        final ByteBuffer mMapping;
+        @NonNull
+        final TrafficStatsSnapshot mSnapshot;
+        @GuardedBy("mLock")
+        final ArraySet<IBinder> mTokens = new ArraySet<>();
+        // Time until which the region is refreshed, in the SystemClock#elapsedRealtime base
+        @GuardedBy("mLock")
+        long mActiveUntilMs;
+
+        Region(int uid, @NonNull SharedMemory memory, @NonNull ByteBuffer mapping) {
+            mUid = uid;
+            mMemory = memory;
+            mMapping = mapping;
+            mSnapshot = new TrafficStatsSnapshot(mapping);
+        }
+
+        @Override
+        public void binderDied() {
+            // Not used, the IBinder variant is overridden.
+        }
+
+        @Override
+        public void binderDied(@NonNull IBinder who) {
+            synchronized (mLock) {
+                mTokens.remove(who);
+                if (!mTokens.isEmpty() || mRegions.get(mUid) != this) return;
+                mRegions.remove(mUid);
+                // Apps that already mapped the region keep their mapping.
+                SharedMemory.unmap(mMapping);
+                mMemory.close();
+            }
+        }
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final StatsSource mSource;
+    private final int mRefreshIntervalMs;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<Region> mRegions = new SparseArray<>();
+    @GuardedBy("mLock")
+    private boolean mRefreshScheduled;
+    @GuardedBy("mLock")
+    private long mRefreshCount;
+    // Incremented when the published counters are invalidated, so that counters read before that
+    // are not published.
+    @GuardedBy("mLock")
+    private int mGeneration;
+
+    private final Runnable mRefreshRunnable = this::refresh;
+
+    TrafficStatsSnapshotPublisher(@NonNull Handler handler, @NonNull StatsSource source,
+            int refreshIntervalMs) {
+        mHandler = handler;
+        mSource = source;
+        mRefreshIntervalMs = refreshIntervalMs;
+    }
+
+    /**
+     * Open the region of the given UID.
+     *
+     * @param uid the UID of the caller.
+     * @param token a binder owned by the caller, used to release the region when it dies.
+     * @return the region, write-protected, or null if it could not be opened.
+     */
+    @Nullable
+    SharedMemory open(int uid, @NonNull IBinder token) {
+        synchronized (mLock) {
+            Region region = mRegions.get(uid);
+            if (region == null) {
+                if (mRegions.size() >= MAX_REGIONS) return null;
+                region = createRegion(uid);
+                if (region == null) return null;
+                mRegions.put(uid, region);
+            }
+            if (!region.mTokens.contains(token)) {
+                if (region.mTokens.size() >= MAX_TOKENS_PER_REGION) return null;
+                try {
+                    token.linkToDeath(region, 0 /* flags */);
+                } catch (RemoteException e) {
+                    // The caller already died.
+                    region.binderDied(token);
+                    return null;
+                }
+                region.mTokens.add(token);
+            }
+            activateLocked(region);
+            return region.mMemory;
+        }
+    }
+
+    @Nullable
+    private Region createRegion(int uid) {
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("TrafficStatsSnapshot-" + uid, TrafficStatsSnapshot.SIZE);
+            final ByteBuffer mapping = memory.mapReadWrite();
+            // The existing mapping stays writable, but new mappings can only be read-only.
+            if (!memory.setProtect(PROT_READ)) {
+                SharedMemory.unmap(mapping);
+                memory.close();
+                return null;
+            }
+            return new Region(uid, memory, mapping);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Cannot create TrafficStats snapshot region for uid " + uid, e);
+            if (memory != null) memory.close();
+            return null;
+        }
+    }
+
+    /**
+     * Notify that the given UID queried TrafficStats counters through a binder call.
+     *
+     * This restarts the refresh of the region of the UID if it was idle.
+     */
+    void onBinderQuery(int uid) {
+        synchronized (mLock) {
+            final Region region = mRegions.get(uid);
+            if (region != null) activateLocked(region);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void activateLocked(@NonNull Region region) {
+        final long now = SystemClock.elapsedRealtime();
+        final boolean wasActive = region.mActiveUntilMs >= now;
+        region.mActiveUntilMs = now + (long) IDLE_TIMEOUT_INTERVALS * mRefreshIntervalMs;
+        if (wasActive) return;
+        // Publish counters right away rather than at the next refresh, since the app is reading.
+        mHandler.removeCallbacks(mRefreshRunnable);
+        mHandler.post(mRefreshRunnable);
+        mRefreshScheduled = true;
+    }
+
+    /**
+     * Refresh the active regions, and schedule the next refresh if any region is still active.
+     *
+     * Must be called on the handler thread.
+     */
+    @VisibleForTesting
+    void refresh() {
+        final long now = SystemClock.elapsedRealtime();
+        final int[] uids;
+        final int generation;
+        synchronized (mLock) {
+            mRefreshScheduled = false;
+            generation = mGeneration;
+            int numActive = 0;
+            for (int i = 0; i < mRegions.size(); i++) {
+                if (mRegions.valueAt(i).mActiveUntilMs >= now) numActive++;
+            }
+            if (numActive == 0) return;
+            uids = new int[numActive];
+            numActive = 0;
+            for (int i = 0; i < mRegions.size(); i++) {
+                if (mRegions.valueAt(i).mActiveUntilMs >= now) {
+                    uids[numActive++] = mRegions.keyAt(i);
+                }
+            }
+        }
+
+        // Read the counters without holding the lock, as this may be slow. The total and interface
+        // counters are the same for all regions.
+        final NetworkStats.Entry totalStats = mSource.getTotalStats();
+        final String[] ifaces = mSource.getIfaces();
+        final NetworkStats.Entry[] ifaceStats = new NetworkStats.Entry[ifaces.length];
+        for (int i = 0; i < ifaces.length; i++) {
+            ifaceStats[i] = mSource.getIfaceStats(ifaces[i]);
+        }
+        final NetworkStats.Entry[] uidStats = new NetworkStats.Entry[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            uidStats[i] = mSource.getUidStats(uids[i]);
+        }
+
+        synchronized (mLock) {
+            // Regions may have been released in the meantime.
+            for (int i = 0; i < uids.length && generation == mGeneration; i++) {
+                final Region region = mRegions.get(uids[i]);
+                if (region == null) continue;
+                region.mSnapshot.write(uids[i], uidStats[i], totalStats, ifaces, ifaceStats,
+                        mRefreshIntervalMs);
+            }
+            mRefreshCount++;
+            if (!mRefreshScheduled) {
+                mHandler.postDelayed(mRefreshRunnable, mRefreshIntervalMs);
+                mRefreshScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Invalidate the published counters, so that apps query the service until the next refresh.
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            for (int i = 0; i < mRegions.size(); i++) {
+                mRegions.valueAt(i).mSnapshot.invalidate();
+            }
+            if (mRegions.size() == 0) return;
+            mHandler.removeCallbacks(mRefreshRunnable);
+            mHandler.post(mRefreshRunnable);
+            mRefreshScheduled = true;
+        }
+    }
+
+    /**
+     * Dump the state of the publisher.
+     */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            int numActive = 0;
+            int numTokens = 0;
+            for (int i = 0; i < mRegions.size(); i++) {
+                if (mRegions.valueAt(i).mActiveUntilMs >= now) numActive++;
+                numTokens += mRegions.valueAt(i).mTokens.size();
+            }
+            pw.println("regions=" + mRegions.size() + " active=" + numActive
+                    + " clients=" + numTokens + " refreshes=" + mRefreshCount
+                    + " refreshIntervalMs=" + mRefreshIntervalMs);
+        }
+    }
+}
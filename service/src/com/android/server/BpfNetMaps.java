@@ -58,6 +58,7 @@ import android.os.ServiceSpecificException;
 import android.os.UserHandle;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
@@ -85,8 +86,10 @@ import com.android.net.module.util.bpf.IngressDiscardValue;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringJoiner;
 
@@ -519,28 +522,42 @@ public class BpfNetMaps {
             throw new IllegalArgumentException("Invalid firewall chain: " + chain);
         }
         final Set<Integer> uidSet = asSet(uids);
-        final Set<Integer> uidSetToRemoveRule = new ArraySet<>();
+        // Compute all the changes from a single snapshot of the map, then apply them with batch
+        // operations, instead of reading and writing each entry with separate syscalls.
+        final Map<S32, UidOwnerValue> entriesToUpdate = new ArrayMap<>();
+        final List<S32> keysToDelete = new ArrayList<>();
         try {
             synchronized (sUidOwnerMap) {
-                sUidOwnerMap.forEach((uid, config) -> {
-                    // config could be null if there is a concurrent entry deletion.
-                    // http://b/220084230. But sUidOwnerMap update must be done while holding a
-                    // lock, so this should not happen.
-                    if (config == null) {
-                        Log.wtf(TAG, "sUidOwnerMap entry was deleted while holding a lock");
-                    } else if (!uidSet.contains((int) uid.val) && (config.rule & match) != 0) {
-                        uidSetToRemoveRule.add((int) uid.val);
+                final Map<S32, UidOwnerValue> entries = sUidOwnerMap.getAllEntries();
+                for (Map.Entry<S32, UidOwnerValue> entry : entries.entrySet()) {
+                    final S32 uid = entry.getKey();
+                    final UidOwnerValue config = entry.getValue();
+                    if (uidSet.contains((int) uid.val) || (config.rule & match) == 0) continue;
+
+                    // Same as removeRule.
+                    final UidOwnerValue newMatch = new UidOwnerValue(
+                            (match == IIF_MATCH) ? 0 : config.iif, config.rule & ~match);
+                    if (newMatch.rule == 0) {
+                        keysToDelete.add(uid);
+                    } else {
+                        entriesToUpdate.put(uid, newMatch);
                     }
-                });
-
-                for (final int uid : uidSetToRemoveRule) {
-                    removeRule(uid, match, "replaceUidChain");
                 }
                 for (final int uid : uids) {
-                    addRule(uid, match, "replaceUidChain");
+                    // Same as addRule, with a zero interface index.
+                    final S32 key = new S32(uid);
+                    final UidOwnerValue oldMatch = entries.get(key);
+                    final UidOwnerValue newMatch = (oldMatch != null)
+                            ? new UidOwnerValue((match == IIF_MATCH) ? 0 : oldMatch.iif,
+                                    oldMatch.rule | match)
+                            : new UidOwnerValue(0 /* iif */, match);
+                    entriesToUpdate.put(key, newMatch);
                 }
+
+                sUidOwnerMap.deleteEntries(keysToDelete);
+                sUidOwnerMap.updateEntries(entriesToUpdate);
             }
-        } catch (ErrnoException | ServiceSpecificException e) {
+        } catch (ErrnoException e) {
             Log.e(TAG, "replaceUidChain failed: " + e);
         }
     }
@@ -789,23 +806,29 @@ public class BpfNetMaps {
 
         // Remove the entry if package is uninstalled or uid has only INTERNET permission.
         if (permissions == PERMISSION_UNINSTALLED || permissions == PERMISSION_INTERNET) {
+            final List<S32> keys = new ArrayList<>(uids.length);
             for (final int uid : uids) {
-                try {
-                    sUidPermissionMap.deleteEntry(new S32(uid));
-                } catch (ErrnoException e) {
-                    Log.e(TAG, "Failed to remove uid " + uid + " from permission map: " + e);
-                }
+                keys.add(new S32(uid));
+            }
+            try {
+                sUidPermissionMap.deleteEntries(keys);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Failed to remove uids " + Arrays.toString(uids)
+                        + " from permission map: " + e);
             }
             return;
         }
 
+        final U8 value = new U8((short) permissions);
+        final Map<S32, U8> entries = new ArrayMap<>(uids.length);
         for (final int uid : uids) {
-            try {
-                sUidPermissionMap.updateEntry(new S32(uid), new U8((short) permissions));
-            } catch (ErrnoException e) {
-                Log.e(TAG, "Failed to set permission "
-                        + permissions + " to uid " + uid + ": " + e);
-            }
+            entries.put(new S32(uid), value);
+        }
+        try {
+            sUidPermissionMap.updateEntries(entries);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to set permission "
+                    + permissions + " to uids " + Arrays.toString(uids) + ": " + e);
         }
     }
 
@@ -336,6 +336,7 @@ import com.android.net.module.util.PermissionUtils;
 import com.android.net.module.util.RoutingCoordinatorService;
 import com.android.net.module.util.TcUtils;
 import com.android.net.module.util.netlink.InetDiagMessage;
+import com.android.net.module.util.netlink.InetDiagSocketDestroyer;
 import com.android.networkstack.apishim.BroadcastOptionsShimImpl;
 import com.android.networkstack.apishim.ConstantsShim;
 import com.android.networkstack.apishim.common.BroadcastOptionsShim;
@@ -352,6 +353,7 @@ import com.android.server.connectivity.DnsManager;
 import com.android.server.connectivity.DnsManager.PrivateDnsValidationUpdate;
 import com.android.server.connectivity.DscpPolicyTracker;
 import com.android.server.connectivity.FullScore;
+import com.android.server.connectivity.HandlerLatencyTracker;
 import com.android.server.connectivity.InvalidTagException;
 import com.android.server.connectivity.KeepaliveResourceUtil;
 import com.android.server.connectivity.KeepaliveTracker;
@@ -366,6 +368,7 @@ import com.android.server.connectivity.NetworkNotificationManager.NotificationTy
 import com.android.server.connectivity.NetworkOffer;
 import com.android.server.connectivity.NetworkPreferenceList;
 import com.android.server.connectivity.NetworkRanker;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.NetworkRequestStateStatsMetrics;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.ProfileNetworkPreferenceInfo;
@@ -398,6 +401,7 @@ import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -408,6 +412,7 @@ import java.util.SortedSet;
 import java.util.StringJoiner;
 import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
@@ -971,6 +976,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
     final private InternalHandler mHandler;
     /** Handler used for incoming {@link NetworkStateTracker} events. */
     final private NetworkStateTrackerHandler mTrackerHandler;
+    /** Latency of the messages processed by the handlers above, and of network callbacks. */
+    private final HandlerLatencyTracker mHandlerLatencyTracker = new HandlerLatencyTracker();
     /** Handler used for processing {@link android.net.ConnectivityDiagnosticsManager} events */
     @VisibleForTesting
     final ConnectivityDiagnosticsHandler mConnectivityDiagnosticsHandler;
@@ -1806,6 +1813,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 null /* binder */, NetworkCallback.FLAG_INCLUDE_LOCATION_INFO,
                 null /* attributionTags */, DECLARED_METHODS_NONE);
         mNetworkRequests.put(defaultInternetRequest, mDefaultRequest);
+        mNetworkRequestIndex.add(mDefaultRequest, mDefaultRequest.mRequests);
         mDefaultNetworkRequests.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + mDefaultRequest);
 
@@ -2856,13 +2864,6 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 callingAttributionTag);
     }
 
-    private void redactUnderlyingNetworksForCapabilities(NetworkCapabilities nc, int pid, int uid) {
-        if (nc.getUnderlyingNetworks() != null
-                && !hasNetworkFactoryOrSettingsPermission(pid, uid)) {
-            nc.setUnderlyingNetworks(null);
-        }
-    }
-
     private boolean canSeeAllowedUids(final int pid, final int uid, final int netOwnerUid) {
         return Process.SYSTEM_UID == uid
                 || netOwnerUid == uid
@@ -2878,24 +2879,61 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // sent) and possibly dangerous : apps normally can't lose ACCESS_NETWORK_STATE, if
         // it happens for some reason (e.g. the package is uninstalled while CS is trying to
         // send the callback) it would crash the system server with NPE.
-        final NetworkCapabilities newNc = new NetworkCapabilities(nc);
+        return restrictNetworkCapabilities(nc,
+                getRestrictionsForCallerPermissions(nc, callerPid, callerUid));
+    }
+
+    // Fields of NetworkCapabilities removed by restrictNetworkCapabilities.
+    private static final int RESTRICT_UIDS_AND_SSID = 1 << 0;
+    private static final int RESTRICT_ADMINISTRATOR_UIDS = 1 << 1;
+    private static final int RESTRICT_ALLOWED_UIDS = 1 << 2;
+    private static final int RESTRICT_UNDERLYING_NETWORKS = 1 << 3;
+
+    /**
+     * Returns the RESTRICT_* flags for the fields of the given capabilities that the caller does
+     * not have the permission to see.
+     */
+    private int getRestrictionsForCallerPermissions(@NonNull NetworkCapabilities nc,
+            int callerPid, int callerUid) {
+        int restrictions = 0;
         if (!hasSettingsPermission(callerPid, callerUid)) {
+            restrictions |= RESTRICT_UIDS_AND_SSID;
+        }
+        if (!hasAnyPermissionOf(mContext, callerPid, callerUid,
+                android.Manifest.permission.NETWORK_STACK,
+                NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK)) {
+            restrictions |= RESTRICT_ADMINISTRATOR_UIDS;
+        }
+        if (!canSeeAllowedUids(callerPid, callerUid, nc.getOwnerUid())) {
+            restrictions |= RESTRICT_ALLOWED_UIDS;
+        }
+        if (nc.getUnderlyingNetworks() != null
+                && !hasNetworkFactoryOrSettingsPermission(callerPid, callerUid)) {
+            restrictions |= RESTRICT_UNDERLYING_NETWORKS;
+        }
+        return restrictions;
+    }
+
+    @NonNull
+    private static NetworkCapabilities restrictNetworkCapabilities(
+            @NonNull NetworkCapabilities nc, int restrictions) {
+        final NetworkCapabilities newNc = new NetworkCapabilities(nc);
+        if ((restrictions & RESTRICT_UIDS_AND_SSID) != 0) {
             newNc.setUids(null);
             newNc.setSSID(null);
         }
         if (newNc.getNetworkSpecifier() != null) {
             newNc.setNetworkSpecifier(newNc.getNetworkSpecifier().redact());
         }
-        if (!hasAnyPermissionOf(mContext, callerPid, callerUid,
-                android.Manifest.permission.NETWORK_STACK,
-                NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK)) {
+        if ((restrictions & RESTRICT_ADMINISTRATOR_UIDS) != 0) {
             newNc.setAdministratorUids(new int[0]);
         }
-        if (!canSeeAllowedUids(callerPid, callerUid, newNc.getOwnerUid())) {
+        if ((restrictions & RESTRICT_ALLOWED_UIDS) != 0) {
             newNc.setAllowedUids(new ArraySet<>());
         }
-        redactUnderlyingNetworksForCapabilities(newNc, callerPid, callerUid);
-
+        if ((restrictions & RESTRICT_UNDERLYING_NETWORKS) != 0) {
+            newNc.setUnderlyingNetworks(null);
+        }
         return newNc;
     }
 
@@ -3030,18 +3068,24 @@ public class ConnectivityService extends IConnectivityManager.Stub
         final long redactions = retrieveRequiredRedactions(
                 nc.getApplicableRedactions(), redactionPermissionChecker,
                 includeLocationSensitiveInfo);
-        final NetworkCapabilities newNc = new NetworkCapabilities(nc, redactions);
+        return redactNetworkCapabilities(nc, redactions, shouldResetOwnerUid(nc,
+                includeLocationSensitiveInfo, callingUid, callingPkgName,
+                redactionPermissionChecker));
+    }
+
+    private boolean shouldResetOwnerUid(@NonNull NetworkCapabilities nc,
+            boolean includeLocationSensitiveInfo, int callingUid, @NonNull String callingPkgName,
+            @NonNull RedactionPermissionChecker redactionPermissionChecker) {
         // Reset owner uid if not destined for the owner app.
         // TODO : calling UID is redacted because apps should generally not know what UID is
         // bringing up the VPN, but this should not apply to some very privileged apps like settings
         if (callingUid != nc.getOwnerUid()) {
-            newNc.setOwnerUid(INVALID_UID);
-            return newNc;
+            return true;
         }
         // Allow VPNs to see ownership of their own VPN networks - not location sensitive.
         if (nc.hasTransport(TRANSPORT_VPN)) {
             // Owner UIDs already checked above. No need to re-check.
-            return newNc;
+            return false;
         }
         // If the calling does not want location sensitive data & target SDK >= S, then mask info.
         // Else include the owner UID iff the calling has location permission to provide backwards
@@ -3049,11 +3093,17 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (!includeLocationSensitiveInfo
                 && isTargetSdkAtleast(
                         Build.VERSION_CODES.S, callingUid, callingPkgName)) {
-            newNc.setOwnerUid(INVALID_UID);
-            return newNc;
+            return true;
         }
         // Reset owner uid if the app has no location permission.
-        if (!redactionPermissionChecker.hasLocationPermission()) {
+        return !redactionPermissionChecker.hasLocationPermission();
+    }
+
+    @NonNull
+    private static NetworkCapabilities redactNetworkCapabilities(@NonNull NetworkCapabilities nc,
+            @NetworkCapabilities.RedactionType long redactions, boolean resetOwnerUid) {
+        final NetworkCapabilities newNc = new NetworkCapabilities(nc, redactions);
+        if (resetOwnerUid) {
             newNc.setOwnerUid(INVALID_UID);
         }
         return newNc;
@@ -3069,23 +3119,134 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // it happens for some reason (e.g. the package is uninstalled while CS is trying to
         // send the callback) it would crash the system server with NPE.
 
+        return sanitizeLinkProperties(lp,
+                getLinkPropertiesSanitizationForCaller(lp, callerPid, callerUid));
+    }
+
+    // How link properties are sanitized by sanitizeLinkProperties.
+    private static final int LP_NO_SENSITIVE_FIELDS = 0;
+    private static final int LP_PARCEL_SENSITIVE_FIELDS = 1;
+    private static final int LP_REMOVE_SENSITIVE_FIELDS = 2;
+    private static final int LP_SANITIZATION_COUNT = 3;
+
+    private int getLinkPropertiesSanitizationForCaller(@NonNull LinkProperties lp,
+            int callerPid, int callerUid) {
         // Only do a permission check if sanitization is needed, to avoid unnecessary binder calls.
         final boolean needsSanitization =
                 (lp.getCaptivePortalApiUrl() != null || lp.getCaptivePortalData() != null);
         if (!needsSanitization) {
-            return new LinkProperties(lp);
+            return LP_NO_SENSITIVE_FIELDS;
         }
+        return hasSettingsPermission(callerPid, callerUid)
+                ? LP_PARCEL_SENSITIVE_FIELDS : LP_REMOVE_SENSITIVE_FIELDS;
+    }
 
-        if (hasSettingsPermission(callerPid, callerUid)) {
-            return new LinkProperties(lp, true /* parcelSensitiveFields */);
+    @NonNull
+    private static LinkProperties sanitizeLinkProperties(@NonNull LinkProperties lp,
+            int sanitization) {
+        switch (sanitization) {
+            case LP_NO_SENSITIVE_FIELDS:
+                return new LinkProperties(lp);
+            case LP_PARCEL_SENSITIVE_FIELDS:
+                return new LinkProperties(lp, true /* parcelSensitiveFields */);
+            default:
+                final LinkProperties newLp = new LinkProperties(lp);
+                // Sensitive fields would not be parceled anyway, but sanitize for consistency
+                // before the object gets parceled.
+                newLp.setCaptivePortalApiUrl(null);
+                newLp.setCaptivePortalData(null);
+                return newLp;
         }
+    }
 
-        final LinkProperties newLp = new LinkProperties(lp);
-        // Sensitive fields would not be parceled anyway, but sanitize for consistency before the
-        // object gets parceled.
-        newLp.setCaptivePortalApiUrl(null);
-        newLp.setCaptivePortalData(null);
-        return newLp;
+    /**
+     * Capabilities and link properties of a network redacted for the permissions of callback
+     * receivers, shared by all receivers that need the same redactions while one callback is sent
+     * to all requests of the network.
+     *
+     * Capabilities and link properties are sometimes modified in place, so this must not be kept
+     * longer than needed to send one callback.
+     */
+    private static class CallbackRedactionCache {
+        final ArrayMap<CapabilitiesRedactionKey, NetworkCapabilities> mCapabilities =
+                new ArrayMap<>();
+        final LinkProperties[] mLinkProperties = new LinkProperties[LP_SANITIZATION_COUNT];
+    }
+
+    private static final class CapabilitiesRedactionKey {
+        private final int mRestrictions;
+        private final long mRedactions;
+        private final boolean mResetOwnerUid;
+
+        CapabilitiesRedactionKey(int restrictions, long redactions, boolean resetOwnerUid) {
+            mRestrictions = restrictions;
+            mRedactions = redactions;
+            mResetOwnerUid = resetOwnerUid;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (!(o instanceof CapabilitiesRedactionKey)) return false;
+            final CapabilitiesRedactionKey other = (CapabilitiesRedactionKey) o;
+            return mRestrictions == other.mRestrictions && mRedactions == other.mRedactions
+                    && mResetOwnerUid == other.mResetOwnerUid;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mRestrictions, mRedactions, mResetOwnerUid);
+        }
+    }
+
+    /**
+     * Returns the capabilities of the network to send to the given request in a callback.
+     *
+     * This is equivalent to restricting the capabilities for the permissions of the receiver, and
+     * then sanitizing them for location info, but the result is shared through the cache with
+     * other receivers needing the same redactions.
+     */
+    @NonNull
+    private NetworkCapabilities capabilitiesForCallback(@NonNull NetworkRequestInfo nri,
+            @NonNull NetworkAgentInfo nai, boolean includeLocationSensitiveInfo,
+            @Nullable CallbackRedactionCache cache) {
+        final NetworkCapabilities nc = nai.networkCapabilities;
+        final String packageName = nri.getNetworkRequestForCallback().getRequestorPackageName();
+        final int restrictions = getRestrictionsForCallerPermissions(nc, nri.mPid, nri.mUid);
+        // Restricting capabilities does not change the owner UID or the applicable redactions,
+        // so they can be computed on the original capabilities.
+        final RedactionPermissionChecker redactionPermissionChecker =
+                new RedactionPermissionChecker(nri.mPid, nri.mUid, packageName,
+                        nri.mCallingAttributionTag);
+        final long redactions = retrieveRequiredRedactions(nc.getApplicableRedactions(),
+                redactionPermissionChecker, includeLocationSensitiveInfo);
+        final boolean resetOwnerUid = shouldResetOwnerUid(nc, includeLocationSensitiveInfo,
+                nri.mUid, packageName, redactionPermissionChecker);
+        final CapabilitiesRedactionKey key =
+                new CapabilitiesRedactionKey(restrictions, redactions, resetOwnerUid);
+        NetworkCapabilities result = cache == null ? null : cache.mCapabilities.get(key);
+        if (result == null) {
+            result = redactNetworkCapabilities(restrictNetworkCapabilities(nc, restrictions),
+                    redactions, resetOwnerUid);
+            if (cache != null) cache.mCapabilities.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the link properties of the network to send to the given request in a callback,
+     * shared through the cache with other receivers needing the same sanitization.
+     */
+    @NonNull
+    private LinkProperties linkPropertiesForCallback(@NonNull NetworkRequestInfo nri,
+            @NonNull NetworkAgentInfo nai, @Nullable CallbackRedactionCache cache) {
+        final LinkProperties lp = nai.linkProperties;
+        final int sanitization = getLinkPropertiesSanitizationForCaller(lp, nri.mPid, nri.mUid);
+        LinkProperties result = cache == null ? null : cache.mLinkProperties[sanitization];
+        if (result == null) {
+            result = sanitizeLinkProperties(lp, sanitization);
+            if (cache != null) cache.mLinkProperties[sanitization] = result;
+        }
+        return result;
     }
 
     private void restrictRequestUidsForCallerAndSetRequestorInfo(NetworkCapabilities nc,
@@ -3665,6 +3826,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             pw.print(uid + ": reasons=" + reasons);
         }
         pw.decreaseIndent();
+        InetDiagSocketDestroyer.dump(pw);
         pw.decreaseIndent();
     }
 
@@ -4222,6 +4384,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void dumpNetworkDiagnostics(IndentingPrintWriter pw) {
         final List<NetworkDiagnostics> netDiags = new ArrayList<>();
         final long DIAG_TIME_MS = 5000;
+        final long deadline = SystemClock.elapsedRealtime() + DIAG_TIME_MS;
+        // Released every time a measurement finishes, so that each network is dumped as soon as
+        // its own measurements are done instead of after the slowest network before it.
+        final Semaphore measurementsFinished = new Semaphore(0);
         for (NetworkAgentInfo nai : networksSortedById()) {
             PrivateDnsConfig privateDnsCfg = mDnsManager.getPrivateDnsConfig(nai.network);
             // Start gathering diagnostic information.
@@ -4229,9 +4395,29 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     nai.network,
                     new LinkProperties(nai.linkProperties),  // Must be a copy.
                     privateDnsCfg,
-                    DIAG_TIME_MS));
+                    DIAG_TIME_MS,
+                    measurement -> measurementsFinished.release()));
+        }
+
+        while (!netDiags.isEmpty()) {
+            final Iterator<NetworkDiagnostics> it = netDiags.iterator();
+            while (it.hasNext()) {
+                final NetworkDiagnostics netDiag = it.next();
+                if (!netDiag.isFinished()) continue;
+                pw.println();
+                netDiag.dump(pw);
+                it.remove();
+            }
+            final long remainingMs = deadline - SystemClock.elapsedRealtime();
+            if (netDiags.isEmpty() || remainingMs <= 0) break;
+            try {
+                measurementsFinished.tryAcquire(remainingMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
         }
 
+        // Networks whose measurements did not finish in time.
         for (NetworkDiagnostics netDiag : netDiags) {
             pw.println();
             netDiag.waitForMeasurements();
@@ -4424,6 +4610,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
 
         pw.println();
+        pw.println("Handler latency:");
+        pw.increaseIndent();
+        mHandlerLatencyTracker.dump(pw, ConnectivityService::eventName,
+                ConnectivityManager::getCallbackName);
+        pw.decreaseIndent();
 
         pw.println();
         pw.println("Permission Monitor:");
@@ -4618,8 +4809,32 @@ public class ConnectivityService extends IConnectivityManager.Stub
         return info.getState() == NetworkInfo.State.DISCONNECTED;
     }
 
+    /**
+     * Handler recording the time taken to process each message in mHandlerLatencyTracker.
+     */
+    private class LatencyTrackingHandler extends Handler {
+        LatencyTrackingHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void dispatchMessage(@NonNull Message msg) {
+            // Processing may modify the message, so save its fields first.
+            final int what = msg.what;
+            final int arg1 = msg.arg1;
+            final int arg2 = msg.arg2;
+            final Object obj = msg.obj != null ? msg.obj : msg.getCallback();
+            final long delayMs = SystemClock.uptimeMillis() - msg.getWhen();
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            super.dispatchMessage(msg);
+            mHandlerLatencyTracker.recordMessage(what, arg1, arg2, obj, delayMs,
+                    (SystemClock.elapsedRealtimeNanos() - startNs) / 1000,
+                    System.currentTimeMillis());
+        }
+    }
+
     // must be stateless - things change under us.
-    private class NetworkStateTrackerHandler extends Handler {
+    private class NetworkStateTrackerHandler extends LatencyTrackingHandler {
         public NetworkStateTrackerHandler(Looper looper) {
             super(looper);
         }
@@ -4805,7 +5020,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     // This rematch is almost certainly not going to result in any changes, because
                     // the destroyed flag is only just above the "current satisfier wins"
                     // tie-breaker. But technically anything that affects scoring should rematch.
-                    rematchAllNetworksAndRequests();
+                    rematchNetworksAndRequestsForNetworkUpdate(nai);
                     mHandler.postDelayed(() -> nai.disconnect(), timeoutMs);
                     break;
                 }
@@ -4983,7 +5198,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             } else if (becameEvaluated) {
                 // If valid or partial connectivity changed, updateCapabilities* has
                 // done the rematch.
-                rematchAllNetworksAndRequests();
+                rematchNetworksAndRequestsForNetworkUpdate(nai);
             }
             updateInetCondition(nai);
 
@@ -5763,6 +5978,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     mNetworkRequestStateStatsMetrics.onNetworkRequestReceived(req);
                 }
             }
+            mNetworkRequestIndex.add(nri, nri.mRequests);
 
             // If this NRI has a satisfier already, it is replacing an older request that
             // has been removed. Track it.
@@ -5992,6 +6208,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 mNetworkRequestStateStatsMetrics.onNetworkRequestRemoved(req);
             }
         }
+        mNetworkRequestIndex.remove(nri);
         nri.unlinkDeathRecipient();
         if (mDefaultNetworkRequests.remove(nri)) {
             // If this request was one of the defaults, then the UID rules need to be updated
@@ -6205,7 +6422,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // PARTIAL_CONNECTIVITY notification to user again.
             nai.networkAgentConfig.acceptPartialConnectivity = accept;
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetworkUpdate(nai);
         }
 
         if (always) {
@@ -6273,7 +6490,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (0L == nai.getAvoidUnvalidated()) {
             nai.setAvoidUnvalidated();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetworkUpdate(nai);
         }
     }
 
@@ -6562,7 +6779,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // This may have an impact on request matching if bad WiFi avoidance is off and the
             // network was found not to have Internet access.
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetworkUpdate(nai);
 
             // Also, if this is WiFi and it should be preferred actively, now is the time to
             // prompt the user that they walked past and connected to a bad WiFi.
@@ -6634,7 +6851,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         return mDefaultRequest.mRequests.get(0);
     }
 
-    private class InternalHandler extends Handler {
+    private class InternalHandler extends LatencyTrackingHandler {
         public InternalHandler(Looper looper) {
             super(looper);
         }
@@ -7561,6 +7778,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkProviderInfo> mNetworkProviderInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // Index of the values of mNetworkRequests by the transports and capabilities they request,
+    // used to find the requests a network could satisfy without evaluating all of them.
+    // Must be updated whenever an NRI is added to or removed from mNetworkRequests.
+    private final NetworkRequestIndex<NetworkRequestInfo> mNetworkRequestIndex =
+            new NetworkRequestIndex<>();
 
     private static class NetworkProviderInfo {
         public final String name;
@@ -10017,7 +10239,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
             // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetworkUpdate(nai);
             notifyNetworkCallbacks(nai, CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
@@ -10554,6 +10776,18 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void callCallbackForRequest(@NonNull final NetworkRequestInfo nri,
             @Nullable final NetworkAgentInfo networkAgent, final int notificationType,
             final int arg1) {
+        callCallbackForRequest(nri, networkAgent, notificationType, arg1,
+                null /* redactionCache */);
+    }
+
+    /**
+     * Send a callback to the given request, reusing the redacted capabilities and link properties
+     * in redactionCache if it is not null.
+     */
+    private void callCallbackForRequest(@NonNull final NetworkRequestInfo nri,
+            @Nullable final NetworkAgentInfo networkAgent, final int notificationType,
+            final int arg1, @Nullable final CallbackRedactionCache redactionCache) {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
         if (nri.mMessenger == null) {
             // Default request has no msgr. Also prevents callbacks from being invoked for
             // NetworkRequestInfos registered with ConnectivityDiagnostics requests. Those callbacks
@@ -10575,19 +10809,16 @@ public class ConnectivityService extends IConnectivityManager.Stub
         final Bundle bundle = makeCommonBundleForCallback(nri, bundleNetwork);
         final boolean includeLocationSensitiveInfo =
                 (nri.mCallbackFlags & NetworkCallback.FLAG_INCLUDE_LOCATION_INFO) != 0;
-        final NetworkRequest nrForCallback = nri.getNetworkRequestForCallback();
+        // Receivers in this process get the objects in the bundle without parceling, so they
+        // must not share them. Checking the UID rather than the PID also excludes other
+        // processes running as the same UID, which is conservative.
+        final CallbackRedactionCache cache =
+                nri.mUid == Process.myUid() ? null : redactionCache;
         switch (notificationType) {
             case CALLBACK_AVAILABLE: {
-                final NetworkCapabilities nc =
-                        createWithLocationInfoSanitizedIfNecessaryWhenParceled(
-                                networkCapabilitiesRestrictedForCallerPermissions(
-                                        networkAgent.networkCapabilities, nri.mPid, nri.mUid),
-                                includeLocationSensitiveInfo, nri.mPid, nri.mUid,
-                                nrForCallback.getRequestorPackageName(),
-                                nri.mCallingAttributionTag);
-                putParcelable(bundle, nc);
-                putParcelable(bundle, linkPropertiesRestrictedForCallerPermissions(
-                        networkAgent.linkProperties, nri.mPid, nri.mUid));
+                putParcelable(bundle, capabilitiesForCallback(nri, networkAgent,
+                        includeLocationSensitiveInfo, cache));
+                putParcelable(bundle, linkPropertiesForCallback(nri, networkAgent, cache));
                 // The local network info is often null, so can't use the static putParcelable
                 // method here.
                 bundle.putParcelable(LocalNetworkInfo.class.getSimpleName(),
@@ -10596,20 +10827,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
             case CALLBACK_CAP_CHANGED: {
                 // networkAgent can't be null as it has been accessed a few lines above.
-                final NetworkCapabilities netCap =
-                        networkCapabilitiesRestrictedForCallerPermissions(
-                                networkAgent.networkCapabilities, nri.mPid, nri.mUid);
-                putParcelable(
-                        bundle,
-                        createWithLocationInfoSanitizedIfNecessaryWhenParceled(
-                                netCap, includeLocationSensitiveInfo, nri.mPid, nri.mUid,
-                                nrForCallback.getRequestorPackageName(),
-                                nri.mCallingAttributionTag));
+                putParcelable(bundle, capabilitiesForCallback(nri, networkAgent,
+                        includeLocationSensitiveInfo, cache));
                 break;
             }
             case CALLBACK_IP_CHANGED: {
-                putParcelable(bundle, linkPropertiesRestrictedForCallerPermissions(
-                        networkAgent.linkProperties, nri.mPid, nri.mUid));
+                putParcelable(bundle, linkPropertiesForCallback(nri, networkAgent, cache));
                 break;
             }
             case CALLBACK_BLK_CHANGED: {
@@ -10626,6 +10849,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
         }
         callCallbackForRequest(nri, notificationType, bundle, arg1);
+        mHandlerLatencyTracker.recordCallback(notificationType, nri.mUid,
+                bundleNetwork == null ? NETID_UNSET : bundleNetwork.getNetId(),
+                (SystemClock.elapsedRealtimeNanos() - startNs) / 1000,
+                System.currentTimeMillis());
     }
 
     private void callCallbackForRequest(@NonNull final NetworkRequestInfo nri, int notificationType,
@@ -11128,6 +11355,29 @@ public class ConnectivityService extends IConnectivityManager.Stub
         rematchNetworksAndRequests(getNrisFromGlobalRequests());
     }
 
+    /**
+     * Attempt to rematch the NetworkRequests that may be affected by a change in the score or
+     * the capabilities of the given network.  This may result in Networks being disconnected.
+     *
+     * Such a change can only move the requests that the network currently satisfies, which may
+     * now be better served by another network, and the requests that it could satisfy, which
+     * may now be better served by it. The satisfier of all other requests can't change, so they
+     * are not evaluated.
+     */
+    private void rematchNetworksAndRequestsForNetworkUpdate(@NonNull final NetworkAgentInfo nai) {
+        if (!mFlags.incrementalRematchOnNetworkUpdate()) {
+            rematchAllNetworksAndRequests();
+            return;
+        }
+        final Set<NetworkRequestInfo> nris = new HashSet<>();
+        for (int i = 0; i < nai.numNetworkRequests(); i++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(nai.requestAt(i));
+            if (null != nri) nris.add(nri);
+        }
+        mNetworkRequestIndex.collectCandidates(nai.networkCapabilities, nris);
+        rematchNetworksAndRequests(nris);
+    }
+
     /**
      * Attempt to rematch all Networks with given NetworkRequests.  This may result in Networks
      * being disconnected.
@@ -11718,7 +11968,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        rematchNetworksAndRequestsForNetworkUpdate(nai);
     }
 
     // Notify only this one new request of the current state. Transfer all the
@@ -11896,12 +12146,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
             String notification = ConnectivityManager.getCallbackName(notifyType);
             log("notifyType " + notification + " for " + networkAgent.toShortString());
         }
+        // Receivers with the same permissions get the same capabilities and link properties.
+        final CallbackRedactionCache redactionCache = new CallbackRedactionCache();
         for (int i = 0; i < networkAgent.numNetworkRequests(); i++) {
             NetworkRequest nr = networkAgent.requestAt(i);
             NetworkRequestInfo nri = mNetworkRequests.get(nr);
             if (VDBG) log(" sending notification for " + nr);
             if (nri.mPendingIntent == null) {
-                callCallbackForRequest(nri, networkAgent, notifyType, arg1);
+                callCallbackForRequest(nri, networkAgent, notifyType, arg1, redactionCache);
             } else {
                 sendPendingIntentForRequest(nri, networkAgent, notifyType);
             }
@@ -47,10 +47,12 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructTimeval;
+import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
@@ -60,6 +62,7 @@ import com.android.net.module.util.DeviceConfigUtils;
 import com.android.net.module.util.HexDump;
 import com.android.net.module.util.SocketUtils;
 import com.android.net.module.util.netlink.InetDiagMessage;
+import com.android.net.module.util.netlink.NetlinkErrorMessage;
 import com.android.net.module.util.netlink.NetlinkMessage;
 import com.android.net.module.util.netlink.NetlinkUtils;
 import com.android.net.module.util.netlink.StructNlAttr;
@@ -72,6 +75,7 @@ import java.net.SocketException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -89,6 +93,14 @@ public class AutomaticOnOffKeepaliveTracker {
     private static final int[] ADDRESS_FAMILIES = new int[] {AF_INET6, AF_INET};
     private static final long LOW_TCP_POLLING_INTERVAL_MS = 1_000L;
     private static final int ADJUST_TCP_POLLING_DELAY_MS = 2000;
+    // Polling alarms are aligned to this period, so that keepalives due around the same time are
+    // polled together.
+    private static final long TCP_POLLING_ALIGNMENT_MS = 1_000L;
+    // Maximum time during which the result of a TCP socket poll answers other keepalives.
+    private static final long SHARED_TCP_POLL_WINDOW_MS = 1_000L;
+    // The polling interval of enabled keepalives doubles each time TCP sockets are found still
+    // connected, up to (1 << MAX_TCP_POLLING_BACKOFF_SHIFT) times the normal interval.
+    private static final int MAX_TCP_POLLING_BACKOFF_SHIFT = 2;
     private static final String AUTOMATIC_ON_OFF_KEEPALIVE_DISABLE_FLAG =
             "automatic_on_off_keepalive_disable_flag";
     public static final long METRICS_COLLECTION_DURATION_MS = 24 * 60 * 60 * 1_000L;
@@ -164,6 +176,23 @@ public class AutomaticOnOffKeepaliveTracker {
      * This should only be accessed in the connectivity service handler thread.
      */
     private final SparseArray<byte[]> mSockDiagMsg = new SparseArray<>();
+    /**
+     * Whether to ask the kernel to only return the sockets on the polled networks. This is
+     * disabled if the kernel does not support filtering by mark.
+     *
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    private boolean mUseKernelMarkFilter = true;
+    /**
+     * The result of the last TCP socket poll. This answers the keepalives that are due within
+     * {@link #SHARED_TCP_POLL_WINDOW_MS} of the poll, once each.
+     *
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    @Nullable
+    private TcpSocketPoll mLastTcpSocketPoll;
+    private int mTcpSocketPollCount;
+    private int mSharedTcpSocketPollCount;
     private final Dependencies mDependencies;
     private final INetd mNetd;
     /**
@@ -181,6 +210,23 @@ public class AutomaticOnOffKeepaliveTracker {
 
     private final long mMetricsWriteTimeBase;
 
+    /**
+     * The result of polling the TCP sockets of some networks.
+     */
+    private static class TcpSocketPoll {
+        final long mTimeMs;
+        // For each polled netId, whether any TCP socket is connected on it.
+        @NonNull
+        final SparseBooleanArray mConnected;
+        // The keepalives answered by this poll.
+        final ArraySet<AutomaticOnOffKeepalive> mAnswered = new ArraySet<>();
+
+        TcpSocketPoll(long timeMs, @NonNull SparseBooleanArray connected) {
+            mTimeMs = timeMs;
+            mConnected = connected;
+        }
+    }
+
     /**
      * Information about a managed keepalive.
      *
@@ -206,6 +252,8 @@ public class AutomaticOnOffKeepaliveTracker {
         private int mAutomaticOnOffState;
         @Nullable
         private final Network mUnderpinnedNetwork;
+        // Number of consecutive polls that found TCP sockets while this keepalive was enabled.
+        private int mConnectedPollCount;
 
         AutomaticOnOffKeepalive(@NonNull final KeepaliveTracker.KeepaliveInfo ki,
                 final boolean autoOnOff, @Nullable Network underpinnedNetwork)
@@ -360,8 +408,8 @@ public class AutomaticOnOffKeepaliveTracker {
     private void startTcpPollingAlarm(@NonNull AutomaticOnOffKeepalive ki) {
         if (ki.mAlarmListener == null) return;
 
-        final long triggerAtMillis =
-                mDependencies.getElapsedRealtime() + getTcpPollingIntervalMs(ki);
+        final long now = mDependencies.getElapsedRealtime();
+        final long triggerAtMillis = alignTcpPollingTime(now, now + getTcpPollingIntervalMs(ki));
         // Setup a non-wake up alarm.
         mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, triggerAtMillis, null /* tag */,
                 ki.mAlarmListener, mConnectivityServiceHandler);
@@ -390,14 +438,17 @@ public class AutomaticOnOffKeepaliveTracker {
         if (STATE_ALWAYS_ON == ki.mAutomaticOnOffState) {
             throw new IllegalStateException("Should not monitor non-auto keepalive");
         }
-        if (!isAnyTcpSocketConnected(vpnNetId)) {
+        final boolean wasEnabled = ki.mAutomaticOnOffState == STATE_ENABLED;
+        if (!isAnyTcpSocketConnectedForKeepalive(ki, vpnNetId)) {
             // No TCP socket exists. Stop keepalive if ENABLED, and remain SUSPENDED if currently
             // SUSPENDED.
+            ki.mConnectedPollCount = 0;
             if (ki.mAutomaticOnOffState == STATE_ENABLED) {
                 ki.mAutomaticOnOffState = STATE_SUSPENDED;
                 handlePauseKeepalive(ki.mKi);
             }
         } else {
+            ki.mConnectedPollCount = wasEnabled ? ki.mConnectedPollCount + 1 : 0;
             handleMaybeResumeKeepalive(ki);
         }
         // TODO: listen to socket status instead of periodically check.
@@ -706,6 +757,9 @@ public class AutomaticOnOffKeepaliveTracker {
         for (AutomaticOnOffKeepalive autoKi : mAutomaticOnOffKeepalives) {
             pw.println(autoKi.toString());
         }
+        pw.println("TCP socket polls: " + mTcpSocketPollCount
+                + ", answered by a shared poll: " + mSharedTcpSocketPollCount
+                + ", kernel mark filter: " + mUseKernelMarkFilter);
         pw.decreaseIndent();
 
         pw.println("Events (most recent first):");
@@ -741,23 +795,86 @@ public class AutomaticOnOffKeepaliveTracker {
         }
     }
 
+    /**
+     * Returns whether any TCP socket is connected on the VPN network of the given keepalive.
+     *
+     * A poll checks the networks of all monitored keepalives at once, and its result answers each
+     * keepalive due within {@link #SHARED_TCP_POLL_WINDOW_MS} of the poll. Since polling alarms
+     * are aligned, keepalives due around the same time are answered by a single poll.
+     */
+    private boolean isAnyTcpSocketConnectedForKeepalive(@NonNull AutomaticOnOffKeepalive ki,
+            int vpnNetId) {
+        final long now = mDependencies.getElapsedRealtime();
+        final TcpSocketPoll lastPoll = mLastTcpSocketPoll;
+        // A keepalive polled again is due for a new poll, even if the last one is recent.
+        if (lastPoll != null && now - lastPoll.mTimeMs < SHARED_TCP_POLL_WINDOW_MS
+                && lastPoll.mConnected.indexOfKey(vpnNetId) >= 0
+                && !lastPoll.mAnswered.contains(ki)) {
+            lastPoll.mAnswered.add(ki);
+            mSharedTcpSocketPollCount++;
+            return lastPoll.mConnected.get(vpnNetId);
+        }
+
+        final ArraySet<Integer> netIds = new ArraySet<>();
+        netIds.add(vpnNetId);
+        for (AutomaticOnOffKeepalive autoKi : mAutomaticOnOffKeepalives) {
+            if (autoKi.mAutomaticOnOffState == STATE_ALWAYS_ON
+                    || autoKi.mUnderpinnedNetwork == null) {
+                continue;
+            }
+            netIds.add(autoKi.mUnderpinnedNetwork.getNetId());
+        }
+        final TcpSocketPoll poll =
+                new TcpSocketPoll(now, pollTcpSockets(CollectionUtils.toIntArray(netIds)));
+        poll.mAnswered.add(ki);
+        mLastTcpSocketPoll = poll;
+        return poll.mConnected.get(vpnNetId);
+    }
+
     @VisibleForTesting
     boolean isAnyTcpSocketConnected(int netId) {
+        return pollTcpSockets(new int[] { netId }).get(netId);
+    }
+
+    /**
+     * Find out which of the given networks have connected TCP sockets, with one socket dump per
+     * IP family for all networks.
+     *
+     * @return for each netId, whether any TCP socket is connected on the network.
+     */
+    private SparseBooleanArray pollTcpSockets(@NonNull int[] netIds) {
+        ensureRunningOnHandlerThread();
+        mTcpSocketPollCount++;
+        final SparseBooleanArray connected = new SparseBooleanArray(netIds.length);
+        for (int netId : netIds) {
+            connected.put(netId, false);
+        }
         FileDescriptor fd = null;
 
         try {
-            fd = mDependencies.createConnectedNetlinkSocket();
+            // Get network marks and masks. Networks without a mark never have sockets.
+            final int[] targetNetIds = new int[netIds.length];
+            final int[] marks = new int[netIds.length];
+            final int[] masks = new int[netIds.length];
+            int numTargets = 0;
+            for (int netId : netIds) {
+                final MarkMaskParcel parcel = mNetd.getFwmarkForNetwork(netId);
+                if (parcel == null) continue;
+                targetNetIds[numTargets] = netId;
+                marks[numTargets] = parcel.mark;
+                masks[numTargets] = parcel.mask;
+                numTargets++;
+            }
+            if (numTargets == 0) return connected;
 
-            // Get network mask
-            final MarkMaskParcel parcel = mNetd.getFwmarkForNetwork(netId);
-            final int networkMark = (parcel != null) ? parcel.mark : NetlinkUtils.UNKNOWN_MARK;
-            final int networkMask = (parcel != null) ? parcel.mask : NetlinkUtils.NULL_MASK;
+            final TcpSocketTargets targets = new TcpSocketTargets(
+                    Arrays.copyOf(targetNetIds, numTargets), Arrays.copyOf(marks, numTargets),
+                    Arrays.copyOf(masks, numTargets));
+            fd = mDependencies.createConnectedNetlinkSocket();
 
             // Send request for each IP family
             for (final int family : ADDRESS_FAMILIES) {
-                if (isAnyTcpSocketConnectedForFamily(fd, family, networkMark, networkMask)) {
-                    return true;
-                }
+                if (pollTcpSocketsForFamily(fd, family, targets, connected)) break;
             }
         } catch (ErrnoException | SocketException | InterruptedIOException | RemoteException e) {
             Log.e(TAG, "Fail to get socket info via netlink.", e);
@@ -765,18 +882,60 @@ public class AutomaticOnOffKeepaliveTracker {
             SocketUtils.closeSocketQuietly(fd);
         }
 
-        return false;
+        return connected;
     }
 
-    private boolean isAnyTcpSocketConnectedForFamily(FileDescriptor fd, int family, int networkMark,
-            int networkMask)
-            throws ErrnoException, InterruptedIOException {
-        ensureRunningOnHandlerThread();
+    /**
+     * The networks polled for TCP sockets, and their marks and masks.
+     */
+    private static class TcpSocketTargets {
+        final int[] mNetIds;
+        final int[] mMarks;
+        final int[] mMasks;
+        int mNumFound;
+
+        TcpSocketTargets(@NonNull int[] netIds, @NonNull int[] marks, @NonNull int[] masks) {
+            mNetIds = netIds;
+            mMarks = marks;
+            mMasks = masks;
+        }
+    }
+
+    private byte[] getAliveTcpSocketsRequest(int family, @NonNull TcpSocketTargets targets) {
+        if (mUseKernelMarkFilter && targets.mMarks.length <= InetDiagMessage.MAX_MARK_CONDITIONS) {
+            return InetDiagMessage.buildInetDiagReqForAliveTcpSockets(
+                    family, targets.mMarks, targets.mMasks);
+        }
         // Build SocketDiag messages and cache it.
         if (mSockDiagMsg.get(family) == null) {
             mSockDiagMsg.put(family, InetDiagMessage.buildInetDiagReqForAliveTcpSockets(family));
         }
-        mDependencies.sendRequest(fd, mSockDiagMsg.get(family));
+        return mSockDiagMsg.get(family);
+    }
+
+    /**
+     * Returns whether the kernel rejected the mark filter of a request, either because it does
+     * not support filtering by mark or because the caller lacks CAP_NET_ADMIN. Other errors do
+     * not mean that the filter can't be used.
+     */
+    private static boolean isMarkFilterRejected(@NonNull NetlinkErrorMessage msg) {
+        if (msg.getNlMsgError() == null) return false;
+        // Kernel errnos are negative.
+        final int errno = -msg.getNlMsgError().error;
+        return errno == OsConstants.EINVAL || errno == OsConstants.EPERM;
+    }
+
+    /**
+     * Dump the TCP sockets of a family and mark the targets that have sockets as connected.
+     *
+     * @return whether all targets have connected sockets, so there is no need to look further.
+     */
+    private boolean pollTcpSocketsForFamily(FileDescriptor fd, int family,
+            @NonNull TcpSocketTargets targets, @NonNull SparseBooleanArray connected)
+            throws ErrnoException, InterruptedIOException {
+        ensureRunningOnHandlerThread();
+        final boolean kernelFiltered = mUseKernelMarkFilter;
+        mDependencies.sendRequest(fd, getAliveTcpSocketsRequest(family, targets));
 
         // Iteration limitation as a protection to avoid possible infinite loops.
         // DEFAULT_RECV_BUFSIZE could read more than 20 sockets per time. Max iteration
@@ -792,21 +951,36 @@ public class AutomaticOnOffKeepaliveTracker {
                     // TODO: Parse dst address information to filter socket.
                     final NetlinkMessage nlMsg = NetlinkMessage.parse(
                             bytes, OsConstants.NETLINK_INET_DIAG);
+                    if (kernelFiltered && nlMsg instanceof NetlinkErrorMessage
+                            && isMarkFilterRejected((NetlinkErrorMessage) nlMsg)) {
+                        // The kernel does not support filtering by mark: filter in userspace.
+                        Log.w(TAG, "Kernel filtering by mark not supported: " + nlMsg);
+                        mUseKernelMarkFilter = false;
+                        return pollTcpSocketsForFamily(fd, family, targets, connected);
+                    }
                     if (!(nlMsg instanceof InetDiagMessage)) {
                         if (DBG) Log.e(TAG, "Not a SOCK_DIAG_BY_FAMILY msg");
                         return false;
                     }
 
                     final InetDiagMessage diagMsg = (InetDiagMessage) nlMsg;
-                    if (isTargetTcpSocket(diagMsg, networkMark, networkMask)) {
+                    final int mark = readSocketDataAndReturnMark(diagMsg);
+                    for (int i = 0; i < targets.mNetIds.length; i++) {
+                        final int netId = targets.mNetIds[i];
+                        if (connected.get(netId)
+                                || (mark & targets.mMasks[i]) != targets.mMarks[i]) {
+                            continue;
+                        }
                         if (DBG) {
                             Log.d(TAG, String.format("Found open TCP connection by uid %d to %s"
-                                            + " cookie %d",
+                                            + " cookie %d on netId %d",
                                     diagMsg.inetDiagMsg.idiag_uid,
                                     diagMsg.inetDiagMsg.id.remSocketAddress,
-                                    diagMsg.inetDiagMsg.id.cookie));
+                                    diagMsg.inetDiagMsg.id.cookie, netId));
                         }
-                        return true;
+                        connected.put(netId, true);
+                        targets.mNumFound++;
+                        if (targets.mNumFound == targets.mNetIds.length) return true;
                     }
                 }
             } catch (BufferUnderflowException e) {
@@ -824,12 +998,6 @@ public class AutomaticOnOffKeepaliveTracker {
         return false;
     }
 
-    private boolean isTargetTcpSocket(@NonNull InetDiagMessage diagMsg,
-            int networkMark, int networkMask) {
-        final int mark = readSocketDataAndReturnMark(diagMsg);
-        return (mark & networkMask) == networkMark;
-    }
-
     private int readSocketDataAndReturnMark(@NonNull InetDiagMessage diagMsg) {
         int mark = NetlinkUtils.INIT_MARK_VALUE;
         // Get socket mark
@@ -858,7 +1026,21 @@ public class AutomaticOnOffKeepaliveTracker {
         if (timer < MIN_INTERVAL_SEC) {
             Log.wtf(TAG, "Unreasonably low keepalive delay: " + ki.mKi.getKeepaliveIntervalSec());
         }
-        return useLowTimer ? LOW_TCP_POLLING_INTERVAL_MS : Math.max(timer, MIN_INTERVAL_SEC);
+        if (useLowTimer) return LOW_TCP_POLLING_INTERVAL_MS;
+        final long interval = Math.max(timer, MIN_INTERVAL_SEC);
+        // Suspended keepalives must be resumed quickly when a socket connects, but enabled
+        // keepalives only need to be paused eventually, so back off while sockets stay connected.
+        if (ki.mAutomaticOnOffState != STATE_ENABLED) return interval;
+        return interval << Math.min(ki.mConnectedPollCount, MAX_TCP_POLLING_BACKOFF_SHIFT);
+    }
+
+    /**
+     * Align a polling time so that keepalives due around the same time are polled together. The
+     * time is only moved earlier, so that polls are never later than needed.
+     */
+    private static long alignTcpPollingTime(long nowMs, long triggerAtMs) {
+        final long aligned = triggerAtMs - triggerAtMs % TCP_POLLING_ALIGNMENT_MS;
+        return aligned > nowMs ? aligned : triggerAtMs;
     }
 
     /**
@@ -33,6 +33,15 @@ public final class ConnectivityFlags {
     public static final String NO_REMATCH_ALL_REQUESTS_ON_REGISTER =
             "no_rematch_all_requests_on_register";
 
+    /**
+     * Minimum module version at which to rematch only the requests that a network currently
+     * satisfies or could satisfy when that network's score or capabilities change, instead of
+     * rematching all requests.
+     */
+    @VisibleForTesting
+    public static final String INCREMENTAL_REMATCH_ON_NETWORK_UPDATE =
+            "incremental_rematch_on_network_update";
+
     public static final String CARRIER_SERVICE_CHANGED_USE_CALLBACK =
             "carrier_service_changed_use_callback_version";
 
@@ -54,6 +63,8 @@ public final class ConnectivityFlags {
 
     private boolean mNoRematchAllRequestsOnRegister;
 
+    private boolean mIncrementalRematchOnNetworkUpdate;
+
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
      * request is registered, and rematch only the registered requests instead.
@@ -74,6 +85,17 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should rematch only the requests affected by a network when
+     * the score or capabilities of that network change, instead of rematching all requests.
+     *
+     * This flag is disabled by default. Like {@link #noRematchAllRequestsOnRegister}, it is only
+     * a performance optimization, so it is loaded in systemReady and is not volatile.
+     */
+    public boolean incrementalRematchOnNetworkUpdate() {
+        return mIncrementalRematchOnNetworkUpdate;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -81,5 +103,7 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER);
+        mIncrementalRematchOnNetworkUpdate = deps.isFeatureEnabled(
+                ctx, INCREMENTAL_REMATCH_ON_NETWORK_UPDATE);
     }
 }
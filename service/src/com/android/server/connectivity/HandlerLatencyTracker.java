@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Records the latency of events processed on the ConnectivityService handler thread.
+ *
+ * This keeps, for each message type and each callback type, a histogram of processing times in
+ * fixed exponential buckets. It also keeps a histogram of how late messages started being
+ * processed compared to when they were due, which grows with the depth of the message queue, and
+ * the slowest events with their context.
+ *
+ * All data is kept in primitive arrays that only grow when a new type of event is first seen, so
+ * recording an event does not allocate. Events are recorded on the handler thread, and the data
+ * can be dumped from any thread.
+ */
+public class HandlerLatencyTracker {
+    /**
+     * Number of histogram buckets. Bucket 0 counts events shorter than 64us, bucket i counts
+     * events in [32us << i, 64us << i), and the last bucket counts all longer events.
+     */
+    public static final int NUM_BUCKETS = 16;
+    private static final int FIRST_BUCKET_SHIFT = 6;
+
+    @VisibleForTesting
+    static final int MAX_SLOWEST_EVENTS = 10;
+
+    private static final int EVENT_TYPE_MESSAGE = 0;
+    private static final int EVENT_TYPE_CALLBACK = 1;
+
+    /**
+     * Histograms of latencies keyed by an int, e.g. the message what.
+     */
+    private static class Histograms {
+        // Index of the histogram of each key in the arrays below
+        private final SparseIntArray mIndices = new SparseIntArray();
+        private int mSize;
+        private int[] mKeys = new int[16];
+        private long[] mCounts = new long[16];
+        private long[] mTotalUs = new long[16];
+        private long[] mMaxUs = new long[16];
+        // NUM_BUCKETS counts for each key
+        private long[] mBuckets = new long[16 * NUM_BUCKETS];
+
+        void record(int key, long latencyUs) {
+            int index = mIndices.get(key, -1);
+            if (index < 0) {
+                index = addKey(key);
+            }
+            mCounts[index]++;
+            mTotalUs[index] += latencyUs;
+            mMaxUs[index] = Math.max(mMaxUs[index], latencyUs);
+            mBuckets[index * NUM_BUCKETS + getBucket(latencyUs)]++;
+        }
+
+        private int addKey(int key) {
+            if (mSize == mKeys.length) {
+                final int capacity = mSize * 2;
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mCounts = Arrays.copyOf(mCounts, capacity);
+                mTotalUs = Arrays.copyOf(mTotalUs, capacity);
+                mMaxUs = Arrays.copyOf(mMaxUs, capacity);
+                mBuckets = Arrays.copyOf(mBuckets, capacity * NUM_BUCKETS);
+            }
+            mKeys[mSize] = key;
+            mIndices.put(key, mSize);
+            return mSize++;
+        }
+
+        void dump(@NonNull IndentingPrintWriter pw, @NonNull IntFunction<String> keyNamer) {
+            for (int i = 0; i < mSize; i++) {
+                final long[] buckets = Arrays.copyOfRange(
+                        mBuckets, i * NUM_BUCKETS, (i + 1) * NUM_BUCKETS);
+                pw.println(keyNamer.apply(mKeys[i]) + ": count=" + mCounts[i]
+                        + " avgUs=" + mTotalUs[i] / mCounts[i] + " maxUs=" + mMaxUs[i]
+                        + " buckets=" + Arrays.toString(buckets));
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Histograms mMessageLatencies = new Histograms();
+    @GuardedBy("mLock")
+    private final Histograms mCallbackLatencies = new Histograms();
+    // Only uses key 0
+    @GuardedBy("mLock")
+    private final Histograms mSchedulingDelays = new Histograms();
+
+    // The slowest events, in no particular order
+    @GuardedBy("mLock")
+    private int mNumSlowest;
+    @GuardedBy("mLock")
+    private final int[] mSlowestTypes = new int[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final int[] mSlowestKeys = new int[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final long[] mSlowestLatenciesUs = new long[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final long[] mSlowestTimestampsMs = new long[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final int[] mSlowestArgs1 = new int[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final int[] mSlowestArgs2 = new int[MAX_SLOWEST_EVENTS];
+    @GuardedBy("mLock")
+    private final Class<?>[] mSlowestObjClasses = new Class<?>[MAX_SLOWEST_EVENTS];
+
+    /**
+     * Get the histogram bucket of the given latency.
+     */
+    @VisibleForTesting
+    static int getBucket(long latencyUs) {
+        if (latencyUs <= 0) return 0;
+        final int bucket = Long.SIZE - Long.numberOfLeadingZeros(latencyUs >>> FIRST_BUCKET_SHIFT);
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Record the processing of a handler message.
+     *
+     * @param what the message what.
+     * @param arg1 the message arg1.
+     * @param arg2 the message arg2.
+     * @param obj the message obj, only used to record its class.
+     * @param delayMs the delay between the time the message was due and the time its processing
+     *                started.
+     * @param latencyUs the time taken to process the message.
+     * @param timestampMs the wall clock time at which the message was processed.
+     */
+    public void recordMessage(int what, int arg1, int arg2, @Nullable Object obj, long delayMs,
+            long latencyUs, long timestampMs) {
+        synchronized (mLock) {
+            mMessageLatencies.record(what, latencyUs);
+            mSchedulingDelays.record(0, Math.max(0, delayMs) * 1000);
+            maybeRecordSlowestLocked(EVENT_TYPE_MESSAGE, what, latencyUs, timestampMs, arg1, arg2,
+                    obj == null ? null : obj.getClass());
+        }
+    }
+
+    /**
+     * Record the dispatch of a network callback.
+     *
+     * @param callbackType the callback type, e.g. CALLBACK_AVAILABLE.
+     * @param uid the uid of the callback recipient.
+     * @param netId the netId of the network the callback is about, or NETID_UNSET.
+     * @param latencyUs the time taken to build and send the callback.
+     * @param timestampMs the wall clock time at which the callback was sent.
+     */
+    public void recordCallback(int callbackType, int uid, int netId, long latencyUs,
+            long timestampMs) {
+        synchronized (mLock) {
+            mCallbackLatencies.record(callbackType, latencyUs);
+            maybeRecordSlowestLocked(EVENT_TYPE_CALLBACK, callbackType, latencyUs, timestampMs,
+                    uid, netId, null /* objClass */);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void maybeRecordSlowestLocked(int type, int key, long latencyUs, long timestampMs,
+            int arg1, int arg2, @Nullable Class<?> objClass) {
+        final int index;
+        if (mNumSlowest < MAX_SLOWEST_EVENTS) {
+            index = mNumSlowest++;
+        } else {
+            int fastest = 0;
+            for (int i = 1; i < MAX_SLOWEST_EVENTS; i++) {
+                if (mSlowestLatenciesUs[i] < mSlowestLatenciesUs[fastest]) fastest = i;
+            }
+            if (latencyUs <= mSlowestLatenciesUs[fastest]) return;
+            index = fastest;
+        }
+        mSlowestTypes[index] = type;
+        mSlowestKeys[index] = key;
+        mSlowestLatenciesUs[index] = latencyUs;
+        mSlowestTimestampsMs[index] = timestampMs;
+        mSlowestArgs1[index] = arg1;
+        mSlowestArgs2[index] = arg2;
+        mSlowestObjClasses[index] = objClass;
+    }
+
+    /**
+     * Dump the recorded latencies.
+     *
+     * @param messageNamer returns the name of a message what.
+     * @param callbackNamer returns the name of a callback type.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw, @NonNull IntFunction<String> messageNamer,
+            @NonNull IntFunction<String> callbackNamer) {
+        synchronized (mLock) {
+            pw.println("Message processing latency:");
+            pw.increaseIndent();
+            mMessageLatencies.dump(pw, messageNamer);
+            pw.decreaseIndent();
+
+            pw.println("Callback dispatch latency:");
+            pw.increaseIndent();
+            mCallbackLatencies.dump(pw, callbackNamer);
+            pw.decreaseIndent();
+
+            pw.println("Message scheduling delay:");
+            pw.increaseIndent();
+            mSchedulingDelays.dump(pw, key -> "all messages");
+            pw.decreaseIndent();
+
+            pw.println("Slowest events:");
+            pw.increaseIndent();
+            final Integer[] order = new Integer[mNumSlowest];
+            for (int i = 0; i < mNumSlowest; i++) order[i] = i;
+            Arrays.sort(order,
+                    (a, b) -> Long.compare(mSlowestLatenciesUs[b], mSlowestLatenciesUs[a]));
+            for (int i : order) {
+                final String context;
+                if (mSlowestTypes[i] == EVENT_TYPE_MESSAGE) {
+                    context = messageNamer.apply(mSlowestKeys[i])
+                            + " arg1=" + mSlowestArgs1[i] + " arg2=" + mSlowestArgs2[i]
+                            + " obj=" + (mSlowestObjClasses[i] == null
+                                    ? null : mSlowestObjClasses[i].getSimpleName());
+                } else {
+                    context = callbackNamer.apply(mSlowestKeys[i])
+                            + " uid=" + mSlowestArgs1[i] + " netId=" + mSlowestArgs2[i];
+                }
+                pw.println(Instant.ofEpochMilli(mSlowestTimestampsMs[i]) + ": "
+                        + mSlowestLatenciesUs[i] + "us " + context);
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
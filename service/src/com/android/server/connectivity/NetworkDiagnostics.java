@@ -16,6 +16,8 @@
 
 package com.android.server.connectivity;
 
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
 import static android.system.OsConstants.*;
 
 import static com.android.net.module.util.NetworkStackConstants.DNS_OVER_TLS_PORT;
@@ -39,14 +41,18 @@ import android.net.TrafficStats;
 import android.net.shared.PrivateDnsConfig;
 import android.net.util.NetworkConstants;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.MessageQueue.OnFileDescriptorEventListener;
 import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
-import android.system.StructTimeval;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.net.module.util.NetworkStackConstants;
 
@@ -76,6 +82,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SNIHostName;
 import javax.net.ssl.SNIServerName;
@@ -104,6 +111,12 @@ import javax.net.ssl.SSLSocketFactory;
  * check class must implement this upper bound on measurements in whichever
  * manner is most appropriate and effective.
  *
+ * ICMP and DNS UDP checks use non-blocking sockets and all run concurrently on
+ * a single thread shared by all instances, which resends requests on timers and
+ * listens for replies on the socket file descriptors.  That thread is started
+ * when needed and quit once all instances have finished their measurements.
+ * DNS-over-TLS checks use blocking SSL sockets and run on their own threads.
+ *
  * @hide
  */
 public class NetworkDiagnostics {
@@ -135,6 +148,37 @@ public class NetworkDiagnostics {
     // so callers can wait for completion.
     private final CountDownLatch mCountDownLatch;
 
+    // Runs the non-blocking checks. Shared by all instances.
+    private final Handler mProbeHandler;
+    // Whether this instance released its reference to the probe thread.
+    private final AtomicBoolean mProbeHandlerReleased = new AtomicBoolean(false);
+    @Nullable
+    private final Listener mListener;
+
+    // The thread running the non-blocking checks, and the number of instances with unfinished
+    // measurements using it. The thread is quit when the last of them finishes.
+    @GuardedBy("NetworkDiagnostics.class")
+    @Nullable
+    private static Handler sProbeHandler;
+    @GuardedBy("NetworkDiagnostics.class")
+    private static int sProbeHandlerUsers;
+
+    /**
+     * Receives measurement results as soon as each measurement finishes, instead of waiting for
+     * {@link #waitForMeasurements()}.
+     */
+    public interface Listener {
+        /**
+         * Called when a measurement has finished, on the thread that ran the measurement.
+         */
+        void onMeasurementFinished(@NonNull Measurement measurement);
+    }
+
+    /** A check that can be started without blocking. */
+    private interface Probe {
+        void start();
+    }
+
     public class Measurement {
         private static final String SUCCEEDED = "SUCCEEDED";
         private static final String FAILED = "FAILED";
@@ -146,7 +190,7 @@ public class NetworkDiagnostics {
         long startTime;
         long finishTime;
         String result = "";
-        Thread thread;
+        Probe probe;
 
         public boolean checkSucceeded() { return succeeded; }
 
@@ -155,7 +199,7 @@ public class NetworkDiagnostics {
             succeeded = true;
             result = SUCCEEDED + ": " + msg;
             if (mCountDownLatch != null) {
-                mCountDownLatch.countDown();
+                onMeasurementFinished(this);
             }
         }
 
@@ -164,7 +208,7 @@ public class NetworkDiagnostics {
             succeeded = false;
             result = FAILED + ": " + msg;
             if (mCountDownLatch != null) {
-                mCountDownLatch.countDown();
+                onMeasurementFinished(this);
             }
         }
 
@@ -194,6 +238,12 @@ public class NetworkDiagnostics {
 
     public NetworkDiagnostics(Network network, LinkProperties lp,
             @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs) {
+        this(network, lp, privateDnsCfg, timeoutMs, null /* listener */);
+    }
+
+    public NetworkDiagnostics(Network network, LinkProperties lp,
+            @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs,
+            @Nullable Listener listener) {
         mNetwork = network;
         mLinkProperties = lp;
         mPrivateDnsCfg = privateDnsCfg;
@@ -201,6 +251,8 @@ public class NetworkDiagnostics {
         mTimeoutMs = timeoutMs;
         mStartTime = now();
         mDeadlineTime = mStartTime + mTimeoutMs;
+        mProbeHandler = acquireProbeHandler();
+        mListener = listener;
 
         // Hardcode measurements to TEST_DNS4 and TEST_DNS6 in order to test off-link connectivity.
         // We are free to modify mLinkProperties with impunity because ConnectivityService passes us
@@ -247,6 +299,7 @@ public class NetworkDiagnostics {
         }
 
         mCountDownLatch = new CountDownLatch(totalMeasurementCount());
+        if (mCountDownLatch.getCount() == 0) maybeReleaseProbeHandler();
 
         startMeasurements();
 
@@ -256,6 +309,35 @@ public class NetworkDiagnostics {
                 + " nethandle{" + mNetwork.getNetworkHandle() + "}";
     }
 
+    private static synchronized Handler acquireProbeHandler() {
+        if (sProbeHandler == null) {
+            final HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sProbeHandler = new Handler(thread.getLooper());
+        }
+        sProbeHandlerUsers++;
+        return sProbeHandler;
+    }
+
+    private static synchronized void releaseProbeHandler() {
+        if (--sProbeHandlerUsers > 0) return;
+        // Checks remove their pending resends when they finish, so nothing is lost by quitting.
+        sProbeHandler.getLooper().quitSafely();
+        sProbeHandler = null;
+    }
+
+    private void maybeReleaseProbeHandler() {
+        if (mProbeHandlerReleased.compareAndSet(false, true)) releaseProbeHandler();
+    }
+
+    private void onMeasurementFinished(@NonNull Measurement measurement) {
+        mCountDownLatch.countDown();
+        if (mCountDownLatch.getCount() == 0) maybeReleaseProbeHandler();
+        if (mListener != null) {
+            mListener.onMeasurementFinished(measurement);
+        }
+    }
+
     private static Integer getInterfaceIndex(String ifname) {
         try {
             NetworkInterface ni = NetworkInterface.getByName(ifname);
@@ -321,7 +403,7 @@ public class NetworkDiagnostics {
                 new Pair<>(target, Integer.valueOf(payloadLen));
         if (!mIcmpChecks.containsKey(lenTarget)) {
             final Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new IcmpCheck(target, payloadLen, measurement));
+            measurement.probe = new IcmpCheck(target, payloadLen, measurement);
             mIcmpChecks.put(lenTarget, measurement);
         }
     }
@@ -365,7 +447,7 @@ public class NetworkDiagnostics {
                 Pair<InetAddress, InetAddress> srcTarget = new Pair<>(source, target);
                 if (!mExplicitSourceIcmpChecks.containsKey(srcTarget)) {
                     Measurement measurement = new Measurement();
-                    measurement.thread = new Thread(new IcmpCheck(source, target, 0, measurement));
+                    measurement.probe = new IcmpCheck(source, target, 0, measurement);
                     mExplicitSourceIcmpChecks.put(srcTarget, measurement);
                 }
             }
@@ -375,7 +457,7 @@ public class NetworkDiagnostics {
     private void prepareDnsMeasurement(InetAddress target) {
         if (!mDnsUdpChecks.containsKey(target)) {
             Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new DnsUdpCheck(target, measurement));
+            measurement.probe = new DnsUdpCheck(target, measurement);
             mDnsUdpChecks.put(target, measurement);
         }
     }
@@ -384,9 +466,9 @@ public class NetworkDiagnostics {
         // This might overwrite an existing entry in mDnsTlsChecks, because |target| can be an IP
         // address configured by the network as well as an IP address learned by resolving the
         // strict mode DNS hostname. If the entry is overwritten, the overwritten measurement
-        // thread will not execute.
+        // will not be started.
         Measurement measurement = new Measurement();
-        measurement.thread = new Thread(new DnsTlsCheck(hostname, target, measurement));
+        measurement.probe = new DnsTlsCheck(hostname, target, measurement);
         mDnsTlsChecks.put(target, measurement);
     }
 
@@ -397,19 +479,26 @@ public class NetworkDiagnostics {
 
     private void startMeasurements() {
         for (Measurement measurement : mIcmpChecks.values()) {
-            measurement.thread.start();
+            measurement.probe.start();
         }
         for (Measurement measurement : mExplicitSourceIcmpChecks.values()) {
-            measurement.thread.start();
+            measurement.probe.start();
         }
         for (Measurement measurement : mDnsUdpChecks.values()) {
-            measurement.thread.start();
+            measurement.probe.start();
         }
         for (Measurement measurement : mDnsTlsChecks.values()) {
-            measurement.thread.start();
+            measurement.probe.start();
         }
     }
 
+    /**
+     * Returns whether all measurements have finished.
+     */
+    public boolean isFinished() {
+        return mCountDownLatch.getCount() == 0;
+    }
+
     public void waitForMeasurements() {
         try {
             mCountDownLatch.await(mDeadlineTime - now(), TimeUnit.MILLISECONDS);
@@ -531,23 +620,17 @@ public class NetworkDiagnostics {
             this(null, target, measurement);
         }
 
-        protected void setupSocket(
-                int sockType, int protocol, long writeTimeout, long readTimeout, int dstPort)
+        protected void setupSocket(int sockType, int protocol, int dstPort)
                 throws ErrnoException, IOException {
             final int oldTag = TrafficStats.getAndSetThreadStatsTag(
                     NetworkStackConstants.TAG_SYSTEM_PROBE);
             try {
-                mFileDescriptor = Os.socket(mAddressFamily, sockType, protocol);
+                mFileDescriptor = Os.socket(mAddressFamily, sockType | SOCK_NONBLOCK, protocol);
             } finally {
                 // TODO: The tag should remain set until all traffic is sent and received.
                 // Consider tagging the socket after the measurement thread is started.
                 TrafficStats.setThreadStatsTag(oldTag);
             }
-            // Setting SNDTIMEO is purely for defensive purposes.
-            Os.setsockoptTimeval(mFileDescriptor,
-                    SOL_SOCKET, SO_SNDTIMEO, StructTimeval.fromMillis(writeTimeout));
-            Os.setsockoptTimeval(mFileDescriptor,
-                    SOL_SOCKET, SO_RCVTIMEO, StructTimeval.fromMillis(readTimeout));
             // TODO: Use IP_RECVERR/IPV6_RECVERR, pending OsContants availability.
             mNetwork.bindSocket(mFileDescriptor);
             if (mSource != null) {
@@ -561,7 +644,7 @@ public class NetworkDiagnostics {
             if (mMeasurement.finishTime == 0) return false;
 
             // Countdown latch was not decremented when the measurement failed during setup.
-            mCountDownLatch.countDown();
+            onMeasurementFinished(mMeasurement);
             return true;
         }
 
@@ -574,10 +657,118 @@ public class NetworkDiagnostics {
     }
 
 
-    private class IcmpCheck extends SimpleSocketCheck implements Runnable {
+    /**
+     * A check sending a request on a non-blocking socket, and resending it every
+     * {@code resendIntervalMs} until a reply is received or there is not enough time left before
+     * the deadline. Runs on the probe thread, like all other checks of this type.
+     */
+    private abstract class RequestReplyCheck extends SimpleSocketCheck
+            implements Probe, OnFileDescriptorEventListener {
+        private static final int PACKET_BUFSIZE = 512;
+        private final long mResendIntervalMs;
+        // No request is sent after (mDeadlineTime - mDeadlineMarginMs).
+        private final long mDeadlineMarginMs;
+        private final Runnable mSendRequest = this::sendRequest;
+        private byte[] mRequest;
+        private boolean mListening;
+        protected int mCount;
+
+        protected RequestReplyCheck(InetAddress source, InetAddress target,
+                Measurement measurement, long resendIntervalMs, long deadlineMarginMs) {
+            super(source, target, measurement);
+            mResendIntervalMs = resendIntervalMs;
+            mDeadlineMarginMs = deadlineMarginMs;
+        }
+
+        /** Create and connect the socket with {@link #setupSocket}. */
+        protected abstract void openSocket() throws ErrnoException, IOException;
+
+        /** Build the request to send, once the socket is connected. */
+        protected abstract byte[] buildRequest();
+
+        /** Record the measurement result for the given reply. */
+        protected abstract void onReply(ByteBuffer reply);
+
+        @Override
+        public void start() {
+            mProbeHandler.post(this::startOnProbeThread);
+        }
+
+        private void startOnProbeThread() {
+            if (ensureMeasurementNecessary()) return;
+
+            try {
+                openSocket();
+            } catch (ErrnoException | IOException e) {
+                mMeasurement.recordFailure(e.toString());
+                close();
+                return;
+            }
+            mRequest = buildRequest();
+            getMessageQueue().addOnFileDescriptorEventListener(
+                    mFileDescriptor, EVENT_INPUT | EVENT_ERROR, this);
+            mListening = true;
+            mMeasurement.startTime = now();
+            sendRequest();
+        }
+
+        private void sendRequest() {
+            if (now() >= mDeadlineTime - mDeadlineMarginMs) {
+                mMeasurement.recordFailure("0/" + mCount);
+                close();
+                return;
+            }
+            mCount++;
+            updateRequest(mRequest);
+            try {
+                Os.write(mFileDescriptor, mRequest, 0, mRequest.length);
+            } catch (ErrnoException | InterruptedIOException e) {
+                mMeasurement.recordFailure(e.toString());
+                close();
+                return;
+            }
+            mProbeHandler.postDelayed(mSendRequest, mResendIntervalMs);
+        }
+
+        /** Update the request before each send. */
+        protected void updateRequest(byte[] request) {}
+
+        @Override
+        public int onFileDescriptorEvents(FileDescriptor fd, int events) {
+            final ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
+            try {
+                Os.read(mFileDescriptor, reply);
+            } catch (ErrnoException | InterruptedIOException e) {
+                // Nothing to read yet, or an error from the network such as ECONNREFUSED: wait
+                // for a reply to the next request.
+                return EVENT_INPUT | EVENT_ERROR;
+            }
+            mListening = false;
+            onReply(reply);
+            close();
+            // Unregister the listener.
+            return 0;
+        }
+
+        private MessageQueue getMessageQueue() {
+            return mProbeHandler.getLooper().getQueue();
+        }
+
+        @Override
+        public void close() {
+            mProbeHandler.removeCallbacks(mSendRequest);
+            if (mListening) {
+                getMessageQueue().removeOnFileDescriptorEventListener(mFileDescriptor);
+                mListening = false;
+            }
+            super.close();
+        }
+    }
+
+
+    private class IcmpCheck extends RequestReplyCheck {
         private static final int TIMEOUT_SEND = 100;
         private static final int TIMEOUT_RECV = 300;
-        private static final int PACKET_BUFSIZE = 512;
         private final int mProtocol;
         private final int mIcmpType;
         private final int mPayloadSize;
@@ -585,7 +776,7 @@ public class NetworkDiagnostics {
         // data bytes to be sent.
         IcmpCheck(InetAddress source, InetAddress target, int length, Measurement measurement) {
 
-            super(source, target, measurement);
+            super(source, target, measurement, TIMEOUT_RECV, TIMEOUT_SEND + TIMEOUT_RECV);
 
             if (mAddressFamily == AF_INET6) {
                 mProtocol = IPPROTO_ICMPV6;
@@ -606,16 +797,12 @@ public class NetworkDiagnostics {
         }
 
         @Override
-        public void run() {
-            if (ensureMeasurementNecessary()) return;
+        protected void openSocket() throws ErrnoException, IOException {
+            setupSocket(SOCK_DGRAM, mProtocol, 0);
+        }
 
-            try {
-                setupSocket(SOCK_DGRAM, mProtocol, TIMEOUT_SEND, TIMEOUT_RECV, 0);
-            } catch (ErrnoException | IOException e) {
-                mMeasurement.recordFailure(e.toString());
-                close();
-                return;
-            }
+        @Override
+        protected byte[] buildRequest() {
             mMeasurement.description += " src{" + socketAddressToString(mSocketAddress) + "}";
 
             // Build a trivial ICMP packet.
@@ -624,44 +811,26 @@ public class NetworkDiagnostics {
             // Use 8 bytes for both v4 and v6 for simplicity.
             final byte[] icmpPacket = new byte[ICMP_HEADER_LEN + mPayloadSize];
             icmpPacket[0] = (byte) mIcmpType;
+            return icmpPacket;
+        }
 
-            int count = 0;
-            mMeasurement.startTime = now();
-            while (now() < mDeadlineTime - (TIMEOUT_SEND + TIMEOUT_RECV)) {
-                count++;
-                icmpPacket[icmpPacket.length - 1] = (byte) count;
-                try {
-                    Os.write(mFileDescriptor, icmpPacket, 0, icmpPacket.length);
-                } catch (ErrnoException | InterruptedIOException e) {
-                    mMeasurement.recordFailure(e.toString());
-                    break;
-                }
-
-                try {
-                    ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
-                    Os.read(mFileDescriptor, reply);
-                    // TODO: send a few pings back to back to guesstimate packet loss.
-                    mMeasurement.recordSuccess("1/" + count);
-                    break;
-                } catch (ErrnoException | InterruptedIOException e) {
-                    continue;
-                }
-            }
-            if (mMeasurement.finishTime == 0) {
-                mMeasurement.recordFailure("0/" + count);
-            }
+        @Override
+        protected void updateRequest(byte[] request) {
+            request[request.length - 1] = (byte) mCount;
+        }
 
-            close();
+        @Override
+        protected void onReply(ByteBuffer reply) {
+            // TODO: send a few pings back to back to guesstimate packet loss.
+            mMeasurement.recordSuccess("1/" + mCount);
         }
     }
 
 
-    private class DnsUdpCheck extends SimpleSocketCheck implements Runnable {
-        private static final int TIMEOUT_SEND = 100;
+    private class DnsUdpCheck extends RequestReplyCheck {
         private static final int TIMEOUT_RECV = 500;
         private static final int RR_TYPE_A = 1;
         private static final int RR_TYPE_AAAA = 28;
-        private static final int PACKET_BUFSIZE = 512;
 
         protected final Random mRandom = new Random();
 
@@ -677,7 +846,8 @@ public class NetworkDiagnostics {
         protected final int mQueryType;
 
         public DnsUdpCheck(InetAddress target, Measurement measurement) {
-            super(target, measurement);
+            super(null /* source */, target, measurement, TIMEOUT_RECV,
+                    TIMEOUT_RECV + TIMEOUT_RECV);
 
             // TODO: Ideally, query the target for both types regardless of address family.
             if (mAddressFamily == AF_INET6) {
@@ -690,55 +860,28 @@ public class NetworkDiagnostics {
         }
 
         @Override
-        public void run() {
-            if (ensureMeasurementNecessary()) return;
-
-            try {
-                setupSocket(SOCK_DGRAM, IPPROTO_UDP, TIMEOUT_SEND, TIMEOUT_RECV,
-                        NetworkConstants.DNS_SERVER_PORT);
-            } catch (ErrnoException | IOException e) {
-                mMeasurement.recordFailure(e.toString());
-                close();
-                return;
-            }
+        protected void openSocket() throws ErrnoException, IOException {
+            setupSocket(SOCK_DGRAM, IPPROTO_UDP, NetworkConstants.DNS_SERVER_PORT);
+        }
 
+        @Override
+        protected byte[] buildRequest() {
             // This needs to be fixed length so it can be dropped into the pre-canned packet.
             final String sixRandomDigits = String.valueOf(mRandom.nextInt(900000) + 100000);
             appendDnsToMeasurementDescription(sixRandomDigits, mSocketAddress);
 
             // Build a trivial DNS packet.
-            final byte[] dnsPacket = getDnsQueryPacket(sixRandomDigits);
-
-            int count = 0;
-            mMeasurement.startTime = now();
-            while (now() < mDeadlineTime - (TIMEOUT_RECV + TIMEOUT_RECV)) {
-                count++;
-                try {
-                    Os.write(mFileDescriptor, dnsPacket, 0, dnsPacket.length);
-                } catch (ErrnoException | InterruptedIOException e) {
-                    mMeasurement.recordFailure(e.toString());
-                    break;
-                }
-
-                try {
-                    ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
-                    Os.read(mFileDescriptor, reply);
-                    // TODO: more correct and detailed evaluation of the response,
-                    // possibly adding the returned IP address(es) to the output.
-                    final String rcodeStr = (reply.limit() > 3)
-                            ? " " + responseCodeStr((int) (reply.get(3)) & 0x0f)
-                            : "";
-                    mMeasurement.recordSuccess("1/" + count + rcodeStr);
-                    break;
-                } catch (ErrnoException | InterruptedIOException e) {
-                    continue;
-                }
-            }
-            if (mMeasurement.finishTime == 0) {
-                mMeasurement.recordFailure("0/" + count);
-            }
+            return getDnsQueryPacket(sixRandomDigits);
+        }
 
-            close();
+        @Override
+        protected void onReply(ByteBuffer reply) {
+            // TODO: more correct and detailed evaluation of the response,
+            // possibly adding the returned IP address(es) to the output.
+            final String rcodeStr = (reply.limit() > 3)
+                    ? " " + responseCodeStr((int) (reply.get(3)) & 0x0f)
+                    : "";
+            mMeasurement.recordSuccess("1/" + mCount + rcodeStr);
         }
 
         protected byte[] getDnsQueryPacket(String sixRandomDigits) {
@@ -771,7 +914,7 @@ public class NetworkDiagnostics {
 
     // TODO: Have it inherited from SimpleSocketCheck, and separate common DNS helpers out of
     // DnsUdpCheck.
-    private class DnsTlsCheck extends DnsUdpCheck {
+    private class DnsTlsCheck extends DnsUdpCheck implements Runnable {
         private static final int TCP_CONNECT_TIMEOUT_MS = 2500;
         private static final int TCP_TIMEOUT_MS = 2000;
         private static final int DNS_HEADER_SIZE = 12;
@@ -839,6 +982,12 @@ public class NetworkDiagnostics {
             }
         }
 
+        @Override
+        public void start() {
+            // SSLSocket has no non-blocking handshake, so each DoT check uses its own thread.
+            new Thread(this).start();
+        }
+
         @Override
         public void run() {
             if (ensureMeasurementNecessary()) return;
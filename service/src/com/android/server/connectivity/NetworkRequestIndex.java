@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArrayMap;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An index of request holders by the transports and capabilities their requests ask for.
+ *
+ * This is used to find the requests that a network could possibly satisfy without evaluating
+ * every registered request against it. Only transports and required capabilities are looked at,
+ * so the index returns a superset of the requests the network actually satisfies ; callers must
+ * still check candidates fully, e.g. with {@link NetworkAgentInfo#satisfies}.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <T> the type holding the requests, e.g. ConnectivityService's NetworkRequestInfo.
+ */
+public class NetworkRequestIndex<T> {
+    private static class Entry {
+        // Transports and required capabilities of each request of the holder, as bitmasks.
+        // A transport mask of 0 means that the request accepts any transport.
+        @NonNull
+        public final long[] transports;
+        @NonNull
+        public final long[] capabilities;
+
+        Entry(@NonNull final List<NetworkRequest> requests) {
+            transports = new long[requests.size()];
+            capabilities = new long[requests.size()];
+            for (int i = 0; i < requests.size(); i++) {
+                final NetworkCapabilities nc = requests.get(i).networkCapabilities;
+                transports[i] = nc.getTransportTypesInternal();
+                capabilities[i] = nc.getCapabilitiesInternal();
+            }
+        }
+
+        boolean maybeSatisfiedBy(final long ncTransports, final long ncCapabilities) {
+            for (int i = 0; i < transports.length; i++) {
+                if ((transports[i] == 0 || (transports[i] & ncTransports) != 0)
+                        && (capabilities[i] & ncCapabilities) == capabilities[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final ArrayMap<T, Entry> mEntries = new ArrayMap<>();
+    // Holders with at least one request that accepts any transport.
+    private final ArrayMap<T, Entry> mAnyTransport = new ArrayMap<>();
+    // Holders by the transports their requests ask for, indexed by transport.
+    @SuppressWarnings("unchecked")
+    private final ArrayMap<T, Entry>[] mByTransport =
+            new ArrayMap[NetworkCapabilities.MAX_TRANSPORT + 1];
+
+    /**
+     * Add a holder to the index, replacing any previous entry for it.
+     *
+     * @param item the holder to add.
+     * @param requests the requests of the holder. They must not change while the holder is in
+     *                 the index.
+     */
+    public void add(@NonNull final T item, @NonNull final List<NetworkRequest> requests) {
+        remove(item);
+        final Entry entry = new Entry(requests);
+        mEntries.put(item, entry);
+        for (final long transports : entry.transports) {
+            if (transports == 0 || (transports >>> mByTransport.length) != 0) {
+                // Transports not known to the index are treated as "any transport", so that the
+                // holder is never missed.
+                mAnyTransport.put(item, entry);
+                continue;
+            }
+            for (long t = transports; t != 0; t &= t - 1) {
+                final int transport = Long.numberOfTrailingZeros(t);
+                if (null == mByTransport[transport]) mByTransport[transport] = new ArrayMap<>();
+                mByTransport[transport].put(item, entry);
+            }
+        }
+    }
+
+    /**
+     * Remove a holder from the index. Does nothing if the holder is not in the index.
+     */
+    public void remove(@NonNull final T item) {
+        if (null == mEntries.remove(item)) return;
+        mAnyTransport.remove(item);
+        for (final ArrayMap<T, Entry> bucket : mByTransport) {
+            if (null != bucket) bucket.remove(item);
+        }
+    }
+
+    /** Returns the number of holders in the index. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Add to {@code out} all holders with at least one request whose transports and required
+     * capabilities could be satisfied by the passed capabilities.
+     *
+     * A holder may be added several times, so {@code out} should usually be a set.
+     */
+    public void collectCandidates(@NonNull final NetworkCapabilities nc,
+            @NonNull final Collection<T> out) {
+        final long ncTransports = nc.getTransportTypesInternal();
+        final long ncCapabilities = nc.getCapabilitiesInternal();
+        collectFrom(mAnyTransport, ncTransports, ncCapabilities, out);
+        for (long t = ncTransports; t != 0; t &= t - 1) {
+            final int transport = Long.numberOfTrailingZeros(t);
+            if (transport >= mByTransport.length || null == mByTransport[transport]) continue;
+            collectFrom(mByTransport[transport], ncTransports, ncCapabilities, out);
+        }
+    }
+
+    private void collectFrom(@NonNull final ArrayMap<T, Entry> bucket, final long ncTransports,
+            final long ncCapabilities, @NonNull final Collection<T> out) {
+        for (int i = 0; i < bucket.size(); i++) {
+            if (bucket.valueAt(i).maybeSatisfiedBy(ncTransports, ncCapabilities)) {
+                out.add(bucket.keyAt(i));
+            }
+        }
+    }
+}
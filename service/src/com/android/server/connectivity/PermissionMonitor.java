@@ -77,10 +77,15 @@ import com.android.networkstack.apishim.common.ProcessShim;
 import com.android.server.BpfNetMaps;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A utility class to inform Netd of UID permissions.
@@ -92,6 +97,8 @@ public class PermissionMonitor {
     private static final String TAG = "PermissionMonitor";
     private static final boolean DBG = true;
     private static final int VERSION_Q = Build.VERSION_CODES.Q;
+    // Maximum number of threads used to load the packages of all users at startup.
+    private static final int MAX_STARTUP_THREADS = 4;
 
     private final PackageManager mPackageManager;
     private final UserManager mUserManager;
@@ -463,13 +470,70 @@ public class PermissionMonitor {
         mUsersTrafficPermissions.put(UserHandle.ALL, getSystemTrafficPerm());
 
         final List<UserHandle> usrs = mUserManager.getUserHandles(true /* excludeDying */);
-        // Update netd permissions for all users.
-        for (UserHandle user : usrs) {
-            onUserAdded(user);
+        // Update netd permissions for all users. Packages of all users are loaded concurrently,
+        // and traffic permissions are sent once for all users.
+        final List<UserPackages> userPackages = loadPackagesForUsers(usrs);
+        for (int i = 0; i < usrs.size(); i++) {
+            addUser(usrs.get(i), userPackages.get(i));
         }
+        sendAppIdsTrafficPermission(makeAppIdsTrafficPermForAllUsers());
         log("Users: " + mUsers.size() + ", UidToNetworkPerm: " + mUidToNetworkPerm.size());
     }
 
+    /**
+     * The installed packages of a user and their traffic permissions.
+     */
+    private static class UserPackages {
+        final List<PackageInfo> mApps;
+        final SparseIntArray mAppIdsTrafficPerm;
+
+        UserPackages(@NonNull List<PackageInfo> apps) {
+            mApps = apps;
+            mAppIdsTrafficPerm = makeAppIdsTrafficPerm(apps);
+        }
+    }
+
+    /**
+     * Load the installed packages of the given users, concurrently if there are several users.
+     *
+     * This must not call synchronized methods from other threads, as the caller holds the lock.
+     *
+     * @return the packages of each user, in the same order as the users.
+     */
+    private List<UserPackages> loadPackagesForUsers(@NonNull List<UserHandle> users) {
+        final List<UserPackages> result = new ArrayList<>(users.size());
+        if (users.size() <= 1) {
+            for (UserHandle user : users) {
+                result.add(new UserPackages(getInstalledPackagesAsUser(user)));
+            }
+            return result;
+        }
+
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(users.size(), MAX_STARTUP_THREADS));
+        try {
+            final List<Future<UserPackages>> futures = new ArrayList<>(users.size());
+            for (UserHandle user : users) {
+                futures.add(executor.submit(
+                        () -> new UserPackages(getInstalledPackagesAsUser(user))));
+            }
+            for (int i = 0; i < users.size(); i++) {
+                try {
+                    result.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    loge("Failed to load packages of " + users.get(i) + " concurrently", e);
+                    result.add(new UserPackages(getInstalledPackagesAsUser(users.get(i))));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.add(new UserPackages(getInstalledPackagesAsUser(users.get(i))));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
     @VisibleForTesting
     synchronized void updateUidsAllowedOnRestrictedNetworks(final Set<Integer> uids) {
         mUidsAllowedOnRestrictedNetworks.clear();
@@ -584,27 +648,50 @@ public class PermissionMonitor {
      */
     @VisibleForTesting
     synchronized void onUserAdded(@NonNull UserHandle user) {
-        mUsers.add(user);
+        final SparseIntArray oldAppIds = makeAppIdsTrafficPermForAllUsers();
+        addUser(user, new UserPackages(getInstalledPackagesAsUser(user)));
+        // Generate appIds from all users and send the ones that changed to netd.
+        sendAppIdsTrafficPermission(
+                diffAppIdsTrafficPerm(oldAppIds, makeAppIdsTrafficPermForAllUsers()));
+    }
 
-        final List<PackageInfo> apps = getInstalledPackagesAsUser(user);
+    /**
+     * Add the apps of a user and send their network permissions to netd. Traffic permissions are
+     * not sent, so that they can be sent once after adding several users.
+     */
+    private synchronized void addUser(@NonNull UserHandle user, @NonNull UserPackages packages) {
+        mUsers.add(user);
 
         // Save all apps
-        updateAllApps(apps);
+        updateAllApps(packages.mApps);
 
         // Uids network permissions
-        final SparseIntArray uids = makeUidsNetworkPerm(apps);
+        final SparseIntArray uids = makeUidsNetworkPerm(packages.mApps);
         updateUidsNetworkPermission(uids);
 
         // Add new user appIds permissions.
-        final SparseIntArray addedUserAppIds = makeAppIdsTrafficPerm(apps);
-        mUsersTrafficPermissions.put(user, addedUserAppIds);
-        // Generate appIds from all users and send result to netd.
-        final SparseIntArray appIds = makeAppIdsTrafficPermForAllUsers();
-        sendAppIdsTrafficPermission(appIds);
+        mUsersTrafficPermissions.put(user, packages.mAppIdsTrafficPerm);
 
         // Log user added
         mPermissionUpdateLogs.log("New user(" + user.getIdentifier() + ") added: nPerm uids="
-                + uids + ", tPerm appIds=" + addedUserAppIds);
+                + uids + ", tPerm appIds=" + packages.mAppIdsTrafficPerm);
+    }
+
+    /**
+     * Returns the appIds of newAppIds whose permission is different in oldAppIds.
+     */
+    private static SparseIntArray diffAppIdsTrafficPerm(@NonNull SparseIntArray oldAppIds,
+            @NonNull SparseIntArray newAppIds) {
+        final SparseIntArray changed = new SparseIntArray();
+        for (int i = 0; i < newAppIds.size(); i++) {
+            final int appId = newAppIds.keyAt(i);
+            final int permission = newAppIds.valueAt(i);
+            final int oldIndex = oldAppIds.indexOfKey(appId);
+            if (oldIndex < 0 || oldAppIds.valueAt(oldIndex) != permission) {
+                changed.put(appId, permission);
+            }
+        }
+        return changed;
     }
 
     /**
@@ -631,6 +718,7 @@ public class PermissionMonitor {
         sendUidsNetworkPermission(removedUids, false /* add */);
 
         // Remove appIds traffic permission that belongs to the user
+        final SparseIntArray oldAppIds = makeAppIdsTrafficPermForAllUsers();
         final SparseIntArray removedUserAppIds = mUsersTrafficPermissions.remove(user);
         // Generate appIds from the remaining users.
         final SparseIntArray appIds = makeAppIdsTrafficPermForAllUsers();
@@ -649,7 +737,7 @@ public class PermissionMonitor {
                 appIds.put(appId, PERMISSION_UNINSTALLED);
             }
         }
-        sendAppIdsTrafficPermission(appIds);
+        sendAppIdsTrafficPermission(diffAppIdsTrafficPerm(oldAppIds, appIds));
 
         // Log user removed
         mPermissionUpdateLogs.log("User(" + user.getIdentifier() + ") removed: nPerm uids="
@@ -1060,17 +1148,24 @@ public class PermissionMonitor {
      *   2. matches one of the appIds
      */
     private Set<Integer> intersectUids(Set<UidRange> ranges, Set<Integer> appIds) {
+        // Sort the appIds so that only the appIds within each range are visited, instead of
+        // checking every appId against every range.
+        final int[] sortedAppIds = toIntArray(appIds);
+        Arrays.sort(sortedAppIds);
         Set<Integer> result = new HashSet<>();
         for (UidRange range : ranges) {
             for (int userId = range.getStartUser(); userId <= range.getEndUser(); userId++) {
-                for (int appId : appIds) {
-                    final UserHandle handle = UserHandle.of(userId);
-                    if (handle == null) continue;
-
-                    final int uid = handle.getUid(appId);
-                    if (range.contains(uid)) {
-                        result.add(uid);
-                    }
+                final UserHandle handle = UserHandle.of(userId);
+                if (handle == null) continue;
+
+                // The uid of an appId on this user is firstUid + appId.
+                final int firstUid = handle.getUid(0 /* appId */);
+                int index = Arrays.binarySearch(sortedAppIds, range.start - firstUid);
+                if (index < 0) index = -index - 1;
+                for (; index < sortedAppIds.length; index++) {
+                    final int uid = firstUid + sortedAppIds[index];
+                    if (uid > range.stop) break;
+                    result.add(uid);
                 }
             }
         }
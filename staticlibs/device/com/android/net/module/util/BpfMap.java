@@ -18,6 +18,7 @@ package com.android.net.module.util;
 import static android.system.OsConstants.EBUSY;
 import static android.system.OsConstants.EEXIST;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.EOPNOTSUPP;
 
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
@@ -30,6 +31,11 @@ import androidx.annotation.RequiresApi;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
@@ -64,11 +70,20 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private static final int BPF_NOEXIST = 1;
     private static final int BPF_EXIST = 2;
 
+    // Kernel-internal errno returned by map types which do not implement batch operations.
+    private static final int ENOTSUPP = 524;
+
+    // Maximum number of entries passed to a single BPF_MAP_*_BATCH syscall.
+    private static final int MAX_BATCH_ENTRIES = 256;
+
     private final ParcelFileDescriptor mMapFd;
     private final Class<K> mKeyClass;
     private final Class<V> mValueClass;
     private final int mKeySize;
     private final int mValueSize;
+    // Set once the kernel rejected a batch syscall because it does not support it for this map.
+    // Batch methods then use one syscall per entry.
+    private volatile boolean mBatchOpsUnsupported;
 
     private static ConcurrentHashMap<Pair<String, Integer>, ParcelFileDescriptor> sFdCache =
             new ConcurrentHashMap<>();
@@ -262,6 +277,152 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
         return Struct.parse(mValueClass, buffer);
     }
 
+    /**
+     * Update existing or create new key -> value entries, using BPF_MAP_UPDATE_BATCH if the
+     * kernel supports it.
+     */
+    @Override
+    public void updateEntries(@NonNull Map<K, V> entries) throws ErrnoException {
+        Objects.requireNonNull(entries);
+        final List<Map.Entry<K, V>> list = new ArrayList<>(entries.entrySet());
+        for (int start = 0; start < list.size(); start += MAX_BATCH_ENTRIES) {
+            final List<Map.Entry<K, V>> batch =
+                    list.subList(start, Math.min(list.size(), start + MAX_BATCH_ENTRIES));
+            if (!mBatchOpsUnsupported) {
+                final byte[] rawKeys = new byte[batch.size() * mKeySize];
+                final byte[] rawValues = new byte[batch.size() * mValueSize];
+                final ByteBuffer keyBuffer =
+                        ByteBuffer.wrap(rawKeys).order(ByteOrder.nativeOrder());
+                final ByteBuffer valueBuffer =
+                        ByteBuffer.wrap(rawValues).order(ByteOrder.nativeOrder());
+                for (int i = 0; i < batch.size(); i++) {
+                    keyBuffer.position(i * mKeySize);
+                    batch.get(i).getKey().writeToByteBuffer(keyBuffer);
+                    valueBuffer.position(i * mValueSize);
+                    batch.get(i).getValue().writeToByteBuffer(valueBuffer);
+                }
+                try {
+                    nativeUpdateMapEntries(mMapFd.getFd(), rawKeys, rawValues, batch.size(),
+                            BPF_ANY);
+                    continue;
+                } catch (ErrnoException e) {
+                    maybeDisableBatchOps(e);
+                    // Updates are idempotent, so retry the whole batch one entry at a time.
+                    // If the failure was caused by an entry, this throws for that entry.
+                }
+            }
+            for (Map.Entry<K, V> entry : batch) {
+                updateEntry(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove existing keys, ignoring keys which do not exist, using BPF_MAP_DELETE_BATCH if the
+     * kernel supports it.
+     */
+    @Override
+    public void deleteEntries(@NonNull Collection<K> keys) throws ErrnoException {
+        Objects.requireNonNull(keys);
+        final List<K> list = new ArrayList<>(keys);
+        for (int start = 0; start < list.size(); start += MAX_BATCH_ENTRIES) {
+            final List<K> batch =
+                    list.subList(start, Math.min(list.size(), start + MAX_BATCH_ENTRIES));
+            if (!mBatchOpsUnsupported) {
+                final byte[] rawKeys = new byte[batch.size() * mKeySize];
+                final ByteBuffer keyBuffer =
+                        ByteBuffer.wrap(rawKeys).order(ByteOrder.nativeOrder());
+                for (int i = 0; i < batch.size(); i++) {
+                    keyBuffer.position(i * mKeySize);
+                    batch.get(i).writeToByteBuffer(keyBuffer);
+                }
+                try {
+                    int i = 0;
+                    while (i < batch.size()) {
+                        final int deleted = nativeDeleteMapEntries(mMapFd.getFd(), rawKeys,
+                                i * mKeySize, batch.size() - i);
+                        // The kernel stops at the first key which does not exist: skip it.
+                        i += deleted + 1;
+                    }
+                    continue;
+                } catch (ErrnoException e) {
+                    maybeDisableBatchOps(e);
+                    // Deleting keys which no longer exist is a no-op, so retry the whole batch
+                    // one key at a time.
+                }
+            }
+            for (K key : batch) {
+                deleteEntry(key);
+            }
+        }
+    }
+
+    /** Returns all the entries of the map, using BPF_MAP_LOOKUP_BATCH if the kernel supports it. */
+    @Override
+    @NonNull
+    public Map<K, V> getAllEntries() throws ErrnoException {
+        if (!mBatchOpsUnsupported) {
+            try {
+                return lookupAllEntries();
+            } catch (ErrnoException e) {
+                maybeDisableBatchOps(e);
+            }
+        }
+        return IBpfMap.super.getAllEntries();
+    }
+
+    /**
+     * Clears the map, deleting a snapshot of its keys with BPF_MAP_DELETE_BATCH if the kernel
+     * supports it. Otherwise, keys are deleted one at a time without reading any value.
+     */
+    @Override
+    public void clear() throws ErrnoException {
+        if (!mBatchOpsUnsupported) {
+            Map<K, V> entries = null;
+            try {
+                entries = lookupAllEntries();
+            } catch (ErrnoException e) {
+                maybeDisableBatchOps(e);
+            }
+            if (entries != null) deleteEntries(entries.keySet());
+        }
+        // Delete any entry that was added concurrently, or all of them if batch lookup failed.
+        IBpfMap.super.clear();
+    }
+
+    private Map<K, V> lookupAllEntries() throws ErrnoException {
+        final Map<K, V> entries = new HashMap<>();
+        // The batch token is a key for some map types, and a 32-bit bucket index for others.
+        final byte[] batchToken = new byte[Math.max(mKeySize, Long.BYTES)];
+        final byte[] rawKeys = new byte[MAX_BATCH_ENTRIES * mKeySize];
+        final byte[] rawValues = new byte[MAX_BATCH_ENTRIES * mValueSize];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(rawKeys).order(ByteOrder.nativeOrder());
+        final ByteBuffer valueBuffer = ByteBuffer.wrap(rawValues).order(ByteOrder.nativeOrder());
+        boolean first = true;
+        while (true) {
+            final int count = nativeLookupMapEntries(mMapFd.getFd(), batchToken, first, rawKeys,
+                    rawValues, MAX_BATCH_ENTRIES);
+            if (count == 0) break;
+            first = false;
+            for (int i = 0; i < count; i++) {
+                keyBuffer.position(i * mKeySize);
+                valueBuffer.position(i * mValueSize);
+                entries.put(Struct.parse(mKeyClass, keyBuffer),
+                        Struct.parse(mValueClass, valueBuffer));
+            }
+        }
+        return entries;
+    }
+
+    private void maybeDisableBatchOps(@NonNull ErrnoException e) {
+        // The native methods fail with EOPNOTSUPP on kernels before 5.6, which reject the batch
+        // commands with EINVAL. Other EINVAL errors are caused by the arguments of a call, and
+        // must not disable batch operations for later calls.
+        if (e.errno == EOPNOTSUPP || e.errno == ENOTSUPP) {
+            mBatchOpsUnsupported = true;
+        }
+    }
+
     /** Synchronize Kernel RCU */
     public static void synchronizeKernelRCU() throws ErrnoException {
         nativeSynchronizeKernelRCU();
@@ -289,5 +450,18 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private native boolean nativeFindMapEntry(int fd, byte[] key, byte[] value)
             throws ErrnoException;
 
+    private native void nativeUpdateMapEntries(int fd, byte[] keys, byte[] values, int count,
+            int flags) throws ErrnoException;
+
+    // Deletes the count keys starting at offset in keys. Returns the number of keys deleted before
+    // the first key which was not found, or count if all keys were deleted.
+    private native int nativeDeleteMapEntries(int fd, byte[] keys, int offset, int count)
+            throws ErrnoException;
+
+    // Reads up to count entries, continuing from the position in batch unless first is true, and
+    // updates batch with the position to continue from. Returns 0 once all entries were read.
+    private native int nativeLookupMapEntries(int fd, byte[] batch, boolean first, byte[] keys,
+            byte[] values, int count) throws ErrnoException;
+
     private static native void nativeSynchronizeKernelRCU() throws ErrnoException;
 }
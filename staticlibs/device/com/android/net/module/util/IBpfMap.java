@@ -21,6 +21,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -50,6 +53,28 @@ public interface IBpfMap<K extends Struct, V extends Struct> extends AutoCloseab
     /** Remove existing key from eBpf map. Return true if something was deleted. */
     boolean deleteEntry(K key) throws ErrnoException;
 
+    /**
+     * Update existing or create new key -> value entries in an eBpf map. Implementations may
+     * update many entries per syscall. If an exception is thrown, some of the entries may have
+     * been updated.
+     */
+    default void updateEntries(@NonNull Map<K, V> entries) throws ErrnoException {
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            updateEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove existing keys from eBpf map. Keys which do not exist are ignored. Implementations may
+     * delete many keys per syscall. If an exception is thrown, some of the keys may have been
+     * deleted.
+     */
+    default void deleteEntries(@NonNull Collection<K> keys) throws ErrnoException {
+        for (K key : keys) {
+            deleteEntry(key);
+        }
+    }
+
     /** Get the key after the passed-in key. */
     K getNextKey(@NonNull K key) throws ErrnoException;
 
@@ -89,6 +114,20 @@ public interface IBpfMap<K extends Struct, V extends Struct> extends AutoCloseab
         }
     }
 
+    /**
+     * Returns a snapshot of all the key -> value entries of the map. Implementations may read
+     * many entries per syscall. Entries added or deleted concurrently may or may not be included.
+     */
+    @NonNull
+    default Map<K, V> getAllEntries() throws ErrnoException {
+        final Map<K, V> entries = new HashMap<>();
+        forEach((key, value) -> {
+            // value could be null if there is a concurrent entry deletion.
+            if (value != null) entries.put(key, value);
+        });
+        return entries;
+    }
+
     /**
      * Clears the map. The map may already be empty.
      *
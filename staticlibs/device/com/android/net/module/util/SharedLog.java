@@ -18,28 +18,44 @@ package com.android.net.module.util;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.IllegalFormatException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Class to centralize logging functionality for tethering.
  *
- * All access to class methods other than dump() must be on the same thread.
+ * All access to class methods other than dump() must be on the same thread, unless the log was
+ * created with {@link #newRingBufferLog}.
  *
  * @hide
  */
 public class SharedLog {
     private static final int DEFAULT_MAX_RECORDS = 500;
     private static final String COMPONENT_DELIMITER = ".";
+    // Maximum number of threads that get their own ring buffer in a ring buffer log. Further
+    // threads share a synchronized ring buffer.
+    private static final int MAX_THREAD_RINGS = 8;
 
     private enum Category {
         NONE,
@@ -50,7 +66,7 @@ public class SharedLog {
         TERRIBLE,
     }
 
-    private final LocalLog mLocalLog;
+    private final Backend mBackend;
     // The tag to use for output to the system log. This is not output to the
     // LocalLog because that would be redundant.
     private final String mTag;
@@ -59,6 +75,9 @@ public class SharedLog {
     // their SharedLog instance. The tag is not included in the component for
     // brevity.
     private final String mComponent;
+    // The prefix added to the lines of this log, or null for the root log.
+    @Nullable
+    private final String mPrefix;
 
     public SharedLog(String tag) {
         this(DEFAULT_MAX_RECORDS, tag);
@@ -68,10 +87,25 @@ public class SharedLog {
         this(new LocalLog(maxRecords), tag, tag);
     }
 
-    private SharedLog(LocalLog localLog, String tag, String component) {
-        mLocalLog = localLog;
+    private SharedLog(Backend backend, String tag, String component) {
+        mBackend = backend;
         mTag = tag;
         mComponent = component;
+        mPrefix = isRootLogInstance() ? null : "[" + mComponent + "]";
+    }
+
+    /**
+     * Create a SharedLog that can be used on any thread, and defers formatting to dump time.
+     *
+     * <p>Each logging thread appends to its own preallocated ring buffer without locking, and
+     * {@link #logf} stores the format and arguments instead of the formatted message. The rings
+     * are merged by time when dumping, and the most recent {@code maxRecords} entries are dumped.
+     * Messages that are also sent to the system log are formatted immediately.
+     *
+     * <p>This is intended for logs written at a high rate and rarely dumped.
+     */
+    public static SharedLog newRingBufferLog(int maxRecords, String tag) {
+        return new SharedLog(new RingBufferLog(maxRecords), tag, tag);
     }
 
     public String getTag() {
@@ -85,7 +119,7 @@ public class SharedLog {
         if (!isRootLogInstance()) {
             component = mComponent + COMPONENT_DELIMITER + component;
         }
-        return new SharedLog(mLocalLog, mTag, component);
+        return new SharedLog(mBackend, mTag, component);
     }
 
     /**
@@ -94,7 +128,7 @@ public class SharedLog {
      * <p>This method may be called on any thread.
      */
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-        mLocalLog.dump(writer);
+        mBackend.dump(writer);
     }
 
     /**
@@ -103,7 +137,7 @@ public class SharedLog {
      * <p>This method may be called on any thread.
      */
     public void reverseDump(PrintWriter writer) {
-        mLocalLog.reverseDump(writer);
+        mBackend.reverseDump(writer);
     }
 
     //////
@@ -206,7 +240,7 @@ public class SharedLog {
      * <p>The log entry will *not* be added to the system log.
      */
     public void log(String msg) {
-        record(Category.NONE, msg);
+        mBackend.append(mPrefix, Category.NONE, msg, null /* args */);
     }
 
     /**
@@ -216,7 +250,7 @@ public class SharedLog {
      * @see String#format(String, Object...)
      */
     public void logf(String fmt, Object... args) {
-        log(String.format(fmt, args));
+        mBackend.append(mPrefix, Category.NONE, fmt, args);
     }
 
     /**
@@ -225,22 +259,27 @@ public class SharedLog {
      * <p>The log entry will *not* be added to the system log.
      */
     public void mark(String msg) {
-        record(Category.MARK, msg);
+        mBackend.append(mPrefix, Category.MARK, msg, null /* args */);
     }
 
     private String record(Category category, String msg) {
-        final String entry = logLine(category, msg);
-        mLocalLog.append(entry);
+        final String entry = logLine(mPrefix, category, msg);
+        mBackend.append(null /* prefix */, Category.NONE, entry, null /* args */);
         return entry;
     }
 
-    private String logLine(Category category, String msg) {
+    private static String logLine(@Nullable String prefix, Category category, String msg) {
         final StringJoiner sj = new StringJoiner(" ");
-        if (!isRootLogInstance()) sj.add("[" + mComponent + "]");
+        if (prefix != null) sj.add(prefix);
         if (category != Category.NONE) sj.add(category.toString());
         return sj.add(msg).toString();
     }
 
+    private static String logLine(@Nullable String prefix, Category category, String fmt,
+            @Nullable Object[] args) {
+        return logLine(prefix, category, args == null ? fmt : String.format(fmt, args));
+    }
+
     // Check whether this SharedLog instance is nominally the top level in
     // a potential hierarchy of shared logs (the root of a tree),
     // or is a subcomponent within the hierarchy.
@@ -248,7 +287,26 @@ public class SharedLog {
         return TextUtils.isEmpty(mComponent) || mComponent.equals(mTag);
     }
 
-    private static final class LocalLog {
+    /**
+     * Storage of the log entries, shared by a SharedLog and its subcomponents.
+     */
+    private interface Backend {
+        /**
+         * Append an entry.
+         *
+         * @param prefix the component prefix, or null for none.
+         * @param fmt the message, or its format if args is not null.
+         * @param args the format arguments, or null if fmt is the message.
+         */
+        void append(@Nullable String prefix, Category category, String fmt,
+                @Nullable Object[] args);
+
+        void dump(PrintWriter pw);
+
+        void reverseDump(PrintWriter pw);
+    }
+
+    private static final class LocalLog implements Backend {
         private final Deque<String> mLog;
         private final int mMaxLines;
 
@@ -257,6 +315,13 @@ public class SharedLog {
             mLog = new ArrayDeque<>(mMaxLines);
         }
 
+        @Override
+        public void append(@Nullable String prefix, Category category, String fmt,
+                @Nullable Object[] args) {
+            if (mMaxLines <= 0) return;
+            append(logLine(prefix, category, fmt, args));
+        }
+
         synchronized void append(String logLine) {
             if (mMaxLines <= 0) return;
             while (mLog.size() >= mMaxLines) {
@@ -270,17 +335,218 @@ public class SharedLog {
          *
          * @param pw printer writer to write into
          */
-        synchronized void dump(PrintWriter pw) {
+        @Override
+        public synchronized void dump(PrintWriter pw) {
             for (final String s : mLog) {
                 pw.println(s);
             }
         }
 
-        synchronized void reverseDump(PrintWriter pw) {
+        @Override
+        public synchronized void reverseDump(PrintWriter pw) {
             final Iterator<String> itr = mLog.descendingIterator();
             while (itr.hasNext()) {
                 pw.println(itr.next());
             }
         }
     }
+
+    /**
+     * A log entry copied out of a ring buffer for dumping.
+     */
+    private static final class Entry {
+        final long mTimeNs;
+        @Nullable
+        final String mPrefix;
+        final Category mCategory;
+        final String mFmt;
+        @Nullable
+        final Object[] mArgs;
+
+        Entry(long timeNs, @Nullable String prefix, Category category, String fmt,
+                @Nullable Object[] args) {
+            mTimeNs = timeNs;
+            mPrefix = prefix;
+            mCategory = category;
+            mFmt = fmt;
+            mArgs = args;
+        }
+    }
+
+    /**
+     * A preallocated ring buffer of entries with a single writer at a time.
+     *
+     * <p>Readers do not lock: they copy the entries, then drop those that the writer may have
+     * overwritten while they were being copied. As the oldest entry may be being overwritten at
+     * any time, at most capacity - 1 entries are returned.
+     */
+    private static final class Ring {
+        private final int mCapacity;
+        private final long[] mTimesNs;
+        private final String[] mPrefixes;
+        private final Category[] mCategories;
+        private final String[] mFmts;
+        private final Object[][] mArgs;
+        // Number of entries ever written. Written after the entry fields, so that readers see
+        // the fields of all entries before this index.
+        private volatile long mWritten;
+
+        Ring(int capacity) {
+            mCapacity = capacity;
+            mTimesNs = new long[capacity];
+            mPrefixes = new String[capacity];
+            mCategories = new Category[capacity];
+            mFmts = new String[capacity];
+            mArgs = new Object[capacity][];
+        }
+
+        void append(long timeNs, @Nullable String prefix, Category category, String fmt,
+                @Nullable Object[] args) {
+            final long written = mWritten;
+            final int i = (int) (written % mCapacity);
+            mTimesNs[i] = timeNs;
+            mPrefixes[i] = prefix;
+            mCategories[i] = category;
+            mFmts[i] = fmt;
+            mArgs[i] = args;
+            mWritten = written + 1;
+        }
+
+        void copyTo(List<Entry> out) {
+            final long end = mWritten;
+            final long start = Math.max(0, end - mCapacity);
+            final ArrayList<Entry> entries = new ArrayList<>((int) (end - start));
+            for (long n = start; n < end; n++) {
+                final int i = (int) (n % mCapacity);
+                entries.add(new Entry(mTimesNs[i], mPrefixes[i], mCategories[i], mFmts[i],
+                        mArgs[i]));
+            }
+            // The writer may have overwritten the entries up to this index during the copy.
+            final long firstValid = Math.max(start, mWritten - mCapacity + 1);
+            if (firstValid >= end) return;
+            out.addAll(entries.subList((int) (firstValid - start), entries.size()));
+        }
+    }
+
+    /**
+     * A backend with one ring buffer per logging thread, which defers formatting until dump.
+     */
+    private static final class RingBufferLog implements Backend {
+        private final int mMaxLines;
+        private final CopyOnWriteArrayList<Ring> mRings = new CopyOnWriteArrayList<>();
+        // Used by threads logging after MAX_THREAD_RINGS threads already have their own ring.
+        private final Ring mSharedRing;
+        private final ThreadLocal<Ring> mThreadRing = ThreadLocal.withInitial(this::newRing);
+
+        RingBufferLog(int maxLines) {
+            mMaxLines = Math.max(0, maxLines);
+            // Rings return one entry less than their capacity.
+            mSharedRing = new Ring(mMaxLines + 1);
+        }
+
+        private Ring newRing() {
+            synchronized (mRings) {
+                if (mRings.size() >= MAX_THREAD_RINGS) return mSharedRing;
+                final Ring ring = new Ring(mMaxLines + 1);
+                mRings.add(ring);
+                return ring;
+            }
+        }
+
+        @Override
+        public void append(@Nullable String prefix, Category category, String fmt,
+                @Nullable Object[] args) {
+            if (mMaxLines <= 0) return;
+            final Object[] storedArgs = args == null ? null : toImmutableArgs(args);
+            final long timeNs = SystemClock.elapsedRealtimeNanos();
+            final Ring ring = mThreadRing.get();
+            if (ring == mSharedRing) {
+                synchronized (mSharedRing) {
+                    ring.append(timeNs, prefix, category, fmt, storedArgs);
+                }
+            } else {
+                ring.append(timeNs, prefix, category, fmt, storedArgs);
+            }
+        }
+
+        /**
+         * Returns arguments that will format the same at dump time as now. Arguments of types
+         * known to be immutable are kept as is, and atomic numbers are replaced by their value;
+         * others are converted to strings immediately.
+         */
+        private static Object[] toImmutableArgs(Object[] args) {
+            Object[] result = args;
+            for (int i = 0; i < args.length; i++) {
+                if (isImmutable(args[i])) continue;
+                if (result == args) result = args.clone();
+                if (args[i] instanceof AtomicInteger) {
+                    result[i] = ((AtomicInteger) args[i]).get();
+                } else if (args[i] instanceof AtomicLong) {
+                    result[i] = ((AtomicLong) args[i]).get();
+                } else {
+                    result[i] = String.valueOf(args[i]);
+                }
+            }
+            return result;
+        }
+
+        private static boolean isImmutable(@Nullable Object arg) {
+            return arg == null || arg instanceof String || arg instanceof Integer
+                    || arg instanceof Long || arg instanceof Boolean || arg instanceof Short
+                    || arg instanceof Byte || arg instanceof Character || arg instanceof Double
+                    || arg instanceof Float || arg instanceof BigInteger
+                    || arg instanceof BigDecimal || arg instanceof Enum;
+        }
+
+        /**
+         * Returns the most recent entries of all rings, ordered by time.
+         */
+        private List<Entry> getEntries() {
+            final ArrayList<Entry> entries = new ArrayList<>();
+            for (Ring ring : mRings) {
+                ring.copyTo(entries);
+            }
+            synchronized (mSharedRing) {
+                mSharedRing.copyTo(entries);
+            }
+            // Stable sort, so entries of the same thread with the same time keep their order.
+            entries.sort((a, b) -> Long.compare(a.mTimeNs, b.mTimeNs));
+            return entries.subList(Math.max(0, entries.size() - mMaxLines), entries.size());
+        }
+
+        private static String formatEntry(Entry entry, long nowNs, long nowMs) {
+            final long timeMs = nowMs - (nowNs - entry.mTimeNs) / 1_000_000L;
+            final LocalDateTime time =
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMs), ZoneId.systemDefault());
+            String line;
+            try {
+                line = logLine(entry.mPrefix, entry.mCategory, entry.mFmt, entry.mArgs);
+            } catch (IllegalFormatException e) {
+                // Arguments converted to strings when logged may not match the format anymore.
+                // This must not break the dump of the whole log.
+                line = logLine(entry.mPrefix, entry.mCategory,
+                        entry.mFmt + " " + Arrays.toString(entry.mArgs));
+            }
+            return time + " - " + line;
+        }
+
+        @Override
+        public void dump(PrintWriter pw) {
+            final long nowNs = SystemClock.elapsedRealtimeNanos();
+            final long nowMs = System.currentTimeMillis();
+            for (Entry entry : getEntries()) {
+                pw.println(formatEntry(entry, nowNs, nowMs));
+            }
+        }
+
+        @Override
+        public void reverseDump(PrintWriter pw) {
+            final long nowNs = SystemClock.elapsedRealtimeNanos();
+            final long nowMs = System.currentTimeMillis();
+            final List<Entry> entries = getEntries();
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                pw.println(formatEntry(entries.get(i), nowNs, nowMs));
+            }
+        }
+    }
 }
@@ -23,7 +23,9 @@ import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -42,6 +44,8 @@ import java.util.NoSuchElementException;
  * state (without synchronization, two concurrent writes might update the underlying map and the
  * cache in the opposite order, resulting in the cache being out of sync with the map).
  *
+ * getAllEntries is served from the cache, so it does not need any system call.
+ *
  * getNextKey and iteration over the map are not synchronized or cached and always access the
  * isunderlying map. The values returned by these calls may be temporarily out of sync with the
  * values read and written through this object.
@@ -135,6 +139,47 @@ public class SingleWriterBpfMap<K extends Struct, V extends Struct> extends BpfM
         return ret;
     }
 
+    @Override
+    public synchronized void updateEntries(@NonNull Map<K, V> entries) throws ErrnoException {
+        try {
+            super.updateEntries(entries);
+        } catch (ErrnoException e) {
+            reloadCacheEntries(entries.keySet());
+            throw e;
+        }
+        mCache.putAll(entries);
+    }
+
+    @Override
+    public synchronized void deleteEntries(@NonNull Collection<K> keys) throws ErrnoException {
+        try {
+            super.deleteEntries(keys);
+        } catch (ErrnoException e) {
+            reloadCacheEntries(keys);
+            throw e;
+        }
+        mCache.keySet().removeAll(keys);
+    }
+
+    // After a failed batch operation, the entries which were modified are unknown.
+    @GuardedBy("this")
+    private void reloadCacheEntries(@NonNull Collection<K> keys) throws ErrnoException {
+        for (K key : keys) {
+            final V value = super.getValue(key);
+            if (value == null) {
+                mCache.remove(key);
+            } else {
+                mCache.put(key, value);
+            }
+        }
+    }
+
+    @Override
+    @NonNull
+    public synchronized Map<K, V> getAllEntries() throws ErrnoException {
+        return new HashMap<>(mCache);
+    }
+
     @Override
     public synchronized boolean containsKey(@NonNull K key) throws ErrnoException {
         return mCache.containsKey(key);
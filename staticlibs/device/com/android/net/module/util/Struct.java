@@ -102,6 +102,12 @@ import java.util.concurrent.ConcurrentHashMap;
  *      buf.order(ByteOrder.nativeOrder());
  *      final NduserOptHeaderMessage nduserHdrMsg = Struct.parse(NduserOptHeaderMessage.class, buf);
  *      assertEquals(10, nduserHdrMsg.family);
+ *
+ * Subclasses with non-final fields and a default constructor are parsed and written without
+ * boxing primitive fields. Subclasses with final fields, such as most BPF map keys and values,
+ * are parsed by passing all field values to the explicit constructor as an Object array, so
+ * their primitive fields are boxed on every parse; declare the fields non-final if parsing
+ * them is performance sensitive.
  */
 public class Struct {
     public enum Type {
@@ -168,6 +174,31 @@ public class Struct {
     }
     private static ConcurrentHashMap<Class, FieldInfo[]> sFieldCache = new ConcurrentHashMap();
 
+    /**
+     * Everything {@link #parse} needs to know about a Struct subclass, resolved and validated
+     * once per class so that parsing does not walk the constructors or check the annotations
+     * again on every call.
+     */
+    private static class StructParser {
+        @NonNull
+        public final FieldInfo[] fields;
+        // Constructor whose parameters match the annotated fields in order, if any. Preferred
+        // over the default constructor when both exist.
+        @Nullable
+        public final Constructor<?> constructor;
+        @Nullable
+        public final Constructor<?> defaultConstructor;
+
+        StructParser(final FieldInfo[] fields, final Constructor<?> constructor,
+                final Constructor<?> defaultConstructor) {
+            this.fields = fields;
+            this.constructor = constructor;
+            this.defaultConstructor = defaultConstructor;
+        }
+    }
+    private static final ConcurrentHashMap<Class, StructParser> sParserCache =
+            new ConcurrentHashMap<>();
+
     private static void checkAnnotationType(final Field annotation, final Class fieldType) {
         switch (annotation.type()) {
             case Bool:
@@ -360,7 +391,6 @@ public class Struct {
     private static Object getFieldValue(final ByteBuffer buf, final FieldInfo fieldInfo)
             throws BufferUnderflowException {
         final Object value;
-        checkAnnotationType(fieldInfo.annotation, fieldInfo.field.getType());
         switch (fieldInfo.annotation.type()) {
             case Bool:
                 value = buf.get() != 0;
@@ -453,6 +483,158 @@ public class Struct {
         return value;
     }
 
+    /**
+     * Whether the annotation type maps to a Java primitive field (boolean, byte, short, int or
+     * long), which can be read and written without boxing.
+     */
+    private static boolean isPrimitiveType(final Type type) {
+        switch (type) {
+            case Bool:
+            case U8:
+            case U16:
+            case U32:
+            case U63:
+            case S8:
+            case S16:
+            case S32:
+            case S64:
+            case UBE16:
+            case UBE32:
+            case UBE63:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read a primitive type from ByteBuffer, widened to long. Booleans are read as 0 or 1.
+     */
+    private static long readPrimitive(final ByteBuffer buf, final Type type)
+            throws BufferUnderflowException {
+        final boolean reverseBytes = (buf.order() == ByteOrder.LITTLE_ENDIAN);
+        switch (type) {
+            case Bool:
+                return buf.get() != 0 ? 1 : 0;
+            case U8:
+                return buf.get() & 0xFF;
+            case U16:
+                return buf.getShort() & 0xFFFF;
+            case U32:
+                return buf.getInt() & 0xFFFFFFFFL;
+            case S8:
+                return buf.get();
+            case S16:
+                return buf.getShort();
+            case S32:
+                return buf.getInt();
+            case U63:
+            case S64:
+                return buf.getLong();
+            case UBE16:
+                final short s = buf.getShort();
+                return (reverseBytes ? Short.reverseBytes(s) : s) & 0xFFFF;
+            case UBE32:
+                final int i = buf.getInt();
+                return (reverseBytes ? Integer.reverseBytes(i) : i) & 0xFFFFFFFFL;
+            case UBE63:
+                final long l = buf.getLong();
+                return reverseBytes ? Long.reverseBytes(l) : l;
+            default:
+                throw new IllegalArgumentException("Not a primitive type:" + type);
+        }
+    }
+
+    /**
+     * Write a primitive type, passed widened to long, to ByteBuffer.
+     */
+    private static void writePrimitive(final ByteBuffer output, final Type type,
+            final long value) {
+        final boolean reverseBytes = (output.order() == ByteOrder.LITTLE_ENDIAN);
+        switch (type) {
+            case Bool:
+                output.put((byte) (value != 0 ? 1 : 0));
+                break;
+            case U8:
+            case S8:
+                output.put((byte) value);
+                break;
+            case U16:
+            case S16:
+                output.putShort((short) value);
+                break;
+            case U32:
+            case S32:
+                output.putInt((int) value);
+                break;
+            case U63:
+            case S64:
+                output.putLong(value);
+                break;
+            case UBE16:
+                output.putShort(reverseBytes ? Short.reverseBytes((short) value) : (short) value);
+                break;
+            case UBE32:
+                output.putInt(reverseBytes ? Integer.reverseBytes((int) value) : (int) value);
+                break;
+            case UBE63:
+                output.putLong(reverseBytes ? Long.reverseBytes(value) : value);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a primitive type:" + type);
+        }
+    }
+
+    /**
+     * Set a primitive field of the object without boxing. The field type has already been
+     * checked against the annotation type by {@link #checkAnnotationType}.
+     */
+    private static void setPrimitiveField(final java.lang.reflect.Field field,
+            final Object instance, final long value) throws IllegalAccessException {
+        final Class<?> fieldType = field.getType();
+        if (fieldType == Long.TYPE) {
+            field.setLong(instance, value);
+        } else if (fieldType == Integer.TYPE) {
+            field.setInt(instance, (int) value);
+        } else if (fieldType == Short.TYPE) {
+            field.setShort(instance, (short) value);
+        } else if (fieldType == Byte.TYPE) {
+            field.setByte(instance, (byte) value);
+        } else {
+            field.setBoolean(instance, value != 0);
+        }
+    }
+
+    /**
+     * Get a primitive field of the object without boxing, widened to long. The field type must
+     * have been checked against the annotation type by {@link #checkAnnotationType}.
+     */
+    private static long getPrimitiveField(final java.lang.reflect.Field field,
+            final Object instance) throws IllegalAccessException {
+        final Class<?> fieldType = field.getType();
+        if (fieldType == Long.TYPE) return field.getLong(instance);
+        if (fieldType == Integer.TYPE) return field.getInt(instance);
+        if (fieldType == Short.TYPE) return field.getShort(instance);
+        if (fieldType == Byte.TYPE) return field.getByte(instance);
+        return field.getBoolean(instance) ? 1 : 0;
+    }
+
+    /**
+     * Read a field from ByteBuffer and store it into the object, including any padding.
+     */
+    private static void readFieldInto(final ByteBuffer buf, final FieldInfo fieldInfo,
+            final Object instance) throws BufferUnderflowException, IllegalAccessException {
+        if (!isPrimitiveType(fieldInfo.annotation.type())) {
+            fieldInfo.field.set(instance, getFieldValue(buf, fieldInfo));
+            return;
+        }
+        setPrimitiveField(fieldInfo.field, instance,
+                readPrimitive(buf, fieldInfo.annotation.type()));
+        if (fieldInfo.annotation.padding() > 0) {
+            buf.position(buf.position() + fieldInfo.annotation.padding());
+        }
+    }
+
     @Nullable
     private Object getFieldValue(@NonNull java.lang.reflect.Field field) {
         try {
@@ -581,43 +763,65 @@ public class Struct {
         return annotationFields;
     }
 
+    private static StructParser getStructParser(final Class clazz) {
+        final StructParser cachedParser = sParserCache.get(clazz);
+        if (cachedParser != null) {
+            return cachedParser;
+        }
+
+        final FieldInfo[] foundFields = getClassFieldInfo(clazz);
+        if (hasBothMutableAndImmutableFields(foundFields)) {
+            throw new IllegalArgumentException("Class has both final and non-final fields");
+        }
+        for (FieldInfo fi : foundFields) {
+            checkAnnotationType(fi.annotation, fi.field.getType());
+        }
+
+        Constructor<?> constructor = null;
+        Constructor<?> defaultConstructor = null;
+        final Constructor<?>[] constructors = clazz.getDeclaredConstructors();
+        for (Constructor cons : constructors) {
+            if (matchConstructor(cons, foundFields)) constructor = cons;
+            if (cons.getParameterTypes().length == 0) defaultConstructor = cons;
+        }
+
+        if (constructor == null && defaultConstructor == null) {
+            throw new IllegalArgumentException("Fail to find available constructor");
+        }
+        final StructParser parser = new StructParser(foundFields, constructor,
+                defaultConstructor);
+        sParserCache.putIfAbsent(clazz, parser);
+        return parser;
+    }
+
     /**
      * Parse raw data from ByteBuffer according to the pre-defined annotation rule and return
      * the type-variable object which is subclass of Struct class.
      *
+     * The constructor lookup and annotation checks are done once per class and cached. Classes
+     * with non-final fields and a default constructor are populated without boxing primitive
+     * values; classes with final fields still pass the values to the matching constructor as
+     * an Object array.
+     *
      * TODO:
      * 1. Support subclass inheritance.
      * 2. Introduce annotation processor to enforce the subclass naming schema.
      */
     public static <T> T parse(final Class<T> clazz, final ByteBuffer buf) {
+        final StructParser parser = getStructParser(clazz);
         try {
-            final FieldInfo[] foundFields = getClassFieldInfo(clazz);
-            if (hasBothMutableAndImmutableFields(foundFields)) {
-                throw new IllegalArgumentException("Class has both final and non-final fields");
-            }
-
-            Constructor<?> constructor = null;
-            Constructor<?> defaultConstructor = null;
-            final Constructor<?>[] constructors = clazz.getDeclaredConstructors();
-            for (Constructor cons : constructors) {
-                if (matchConstructor(cons, foundFields)) constructor = cons;
-                if (cons.getParameterTypes().length == 0) defaultConstructor = cons;
-            }
-
-            if (constructor == null && defaultConstructor == null) {
-                throw new IllegalArgumentException("Fail to find available constructor");
-            }
-            if (constructor != null) {
+            final FieldInfo[] foundFields = parser.fields;
+            if (parser.constructor != null) {
                 final Object[] args = new Object[foundFields.length];
                 for (int i = 0; i < args.length; i++) {
                     args[i] = getFieldValue(buf, foundFields[i]);
                 }
-                return (T) constructor.newInstance(args);
+                return (T) parser.constructor.newInstance(args);
             }
 
-            final Object instance = defaultConstructor.newInstance();
+            final Object instance = parser.defaultConstructor.newInstance();
             for (FieldInfo fi : foundFields) {
-                fi.field.set(instance, getFieldValue(buf, fi));
+                readFieldInto(buf, fi, instance);
             }
             return (T) instance;
         } catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
@@ -649,9 +853,19 @@ public class Struct {
 
     private void writeToByteBufferInternal(final ByteBuffer output, final FieldInfo[] fieldInfos) {
         for (FieldInfo fi : fieldInfos) {
-            final Object value = getFieldValue(fi.field);
+            // The typed getters below would otherwise silently widen or narrow a field whose
+            // type does not match its annotation.
+            checkAnnotationType(fi.annotation, fi.field.getType());
             try {
-                putFieldValue(output, fi, value);
+                if (isPrimitiveType(fi.annotation.type())) {
+                    // Read the field as a primitive to avoid boxing it.
+                    writePrimitive(output, fi.annotation.type(), getPrimitiveField(fi.field, this));
+                    for (int i = 0; i < fi.annotation.padding(); i++) output.put((byte) 0);
+                } else {
+                    putFieldValue(output, fi, getFieldValue(fi.field));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access field: " + fi.field, e);
             } catch (BufferUnderflowException e) {
                 throw new IllegalArgumentException("Fail to fill raw data to ByteBuffer", e);
             }
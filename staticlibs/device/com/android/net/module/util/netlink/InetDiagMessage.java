@@ -19,18 +19,13 @@ package com.android.net.module.util.netlink;
 import static android.os.Process.INVALID_UID;
 import static android.system.OsConstants.AF_INET;
 import static android.system.OsConstants.AF_INET6;
-import static android.system.OsConstants.ENOENT;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.NETLINK_INET_DIAG;
 
-import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DESTROY;
 import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DIAG_BY_FAMILY;
 import static com.android.net.module.util.netlink.NetlinkConstants.SOCKDIAG_MSG_HEADER_SIZE;
-import static com.android.net.module.util.netlink.NetlinkConstants.stringForAddressFamily;
-import static com.android.net.module.util.netlink.NetlinkConstants.stringForProtocol;
 import static com.android.net.module.util.netlink.NetlinkUtils.DEFAULT_RECV_BUFSIZE;
-import static com.android.net.module.util.netlink.NetlinkUtils.IO_TIMEOUT_MS;
 import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_RECV_BUFSIZE;
 import static com.android.net.module.util.netlink.NetlinkUtils.TCP_ALIVE_STATE_FILTER;
 import static com.android.net.module.util.netlink.NetlinkUtils.connectToKernel;
@@ -38,8 +33,6 @@ import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_DUMP;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
 
 import android.net.util.SocketUtils;
-import android.os.Process;
-import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.util.Log;
 import android.util.Range;
@@ -53,7 +46,6 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
@@ -62,9 +54,6 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
-import java.util.function.Predicate;
 
 /**
  * A NetlinkMessage subclass for netlink inet_diag messages.
@@ -308,136 +297,85 @@ public class InetDiagMessage extends NetlinkMessage {
                 TCP_ALIVE_STATE_FILTER);
     }
 
-    private static void sendNetlinkDestroyRequest(FileDescriptor fd, int proto,
-            InetDiagMessage diagMsg) throws InterruptedIOException, ErrnoException {
-        final byte[] destroyMsg = InetDiagMessage.inetDiagReqV2(
-                proto,
-                diagMsg.inetDiagMsg.id,
-                diagMsg.inetDiagMsg.idiag_family,
-                SOCK_DESTROY,
-                (short) (StructNlMsgHdr.NLM_F_REQUEST | StructNlMsgHdr.NLM_F_ACK),
-                0 /* pad */,
-                0 /* idiagExt */,
-                1 << diagMsg.inetDiagMsg.idiag_state
-        );
-        NetlinkUtils.sendMessage(fd, destroyMsg, 0, destroyMsg.length, IO_TIMEOUT_MS);
-        NetlinkUtils.receiveNetlinkAck(fd);
-    }
-
-    private static byte [] makeNetlinkDumpRequest(int proto, int states, int family) {
-        return InetDiagMessage.inetDiagReqV2(
-                proto,
-                null /* id */,
-                family,
-                SOCK_DIAG_BY_FAMILY,
-                (short) (StructNlMsgHdr.NLM_F_REQUEST | StructNlMsgHdr.NLM_F_DUMP),
-                0 /* pad */,
-                0 /* idiagExt */,
-                states);
-    }
-
-    private static int processNetlinkDumpAndDestroySockets(byte[] dumpReq,
-            FileDescriptor destroyFd, int proto, Predicate<InetDiagMessage> filter)
-            throws SocketException, InterruptedIOException, ErrnoException {
-        AtomicInteger destroyedSockets = new AtomicInteger(0);
-        Consumer<InetDiagMessage> handleNlDumpMsg = (diagMsg) -> {
-            if (filter.test(diagMsg)) {
-                try {
-                    sendNetlinkDestroyRequest(destroyFd, proto, diagMsg);
-                    destroyedSockets.getAndIncrement();
-                } catch (InterruptedIOException | ErrnoException e) {
-                    if (!(e instanceof ErrnoException
-                            && ((ErrnoException) e).errno == ENOENT)) {
-                        Log.e(TAG, "Failed to destroy socket: diagMsg=" + diagMsg + ", " + e);
-                    }
-                }
-            }
-        };
-
-        NetlinkUtils.<InetDiagMessage>getAndProcessNetlinkDumpMessages(dumpReq,
-                NETLINK_INET_DIAG, InetDiagMessage.class, handleNlDumpMsg);
-        return destroyedSockets.get();
-    }
+    // Size of a struct inet_diag_bc_op followed by a struct inet_diag_markcond.
+    private static final int MARK_COND_OP_SIZE = 12;
+    // Size of a struct inet_diag_bc_op without arguments, e.g. INET_DIAG_BC_JMP.
+    private static final int BC_OP_SIZE = 4;
 
     /**
-     * Returns whether the InetDiagMessage is for adb socket or not
+     * Maximum number of marks that can be passed to
+     * {@link #buildInetDiagReqForAliveTcpSockets(int, int[], int[])}. The filter program and its
+     * attribute header must fit in the 16 bits attribute length.
      */
-    @VisibleForTesting
-    public static boolean isAdbSocket(final InetDiagMessage msg) {
-        // This is inaccurate since adb could run with ROOT_UID or other services can run with
-        // SHELL_UID. But this check covers most cases and enough.
-        // Note that getting service.adb.tcp.port system property is prohibited by sepolicy
-        // TODO: skip the socket only if there is a listen socket owned by SHELL_UID with the same
-        // source port as this socket
-        return msg.inetDiagMsg.idiag_uid == Process.SHELL_UID;
-    }
+    public static final int MAX_MARK_CONDITIONS = 0xffff / (MARK_COND_OP_SIZE + BC_OP_SIZE);
 
     /**
-     * Returns whether the range contains the uid in the InetDiagMessage or not
+     * Construct an inet_diag_req_v2 message for querying alive TCP sockets from kernel, with a
+     * filter program so that the kernel only returns sockets whose mark matches one of the given
+     * marks, that is, for which {@code (mark & masks[i]) == marks[i]} for some i.
+     *
+     * Filtering by mark requires CAP_NET_ADMIN, and is not supported before Linux 4.15. The kernel
+     * answers the request with an EPERM or EINVAL netlink error in these cases.
+     *
+     * @param family the ip family of the request message.
+     * @param marks the marks to match, at most {@link #MAX_MARK_CONDITIONS}.
+     * @param masks the mask of each mark.
      */
-    @VisibleForTesting
-    public static boolean containsUid(InetDiagMessage msg, Set<Range<Integer>> ranges) {
-        for (final Range<Integer> range: ranges) {
-            if (range.contains(msg.inetDiagMsg.idiag_uid)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static boolean isLoopbackAddress(InetAddress addr) {
-        if (addr.isLoopbackAddress()) return true;
-        if (!(addr instanceof Inet6Address)) return false;
-
-        // Following check is for v4-mapped v6 address. StructInetDiagSockId contains v4-mapped v6
-        // address as Inet6Address, See StructInetDiagSockId#parse
-        final byte[] addrBytes = addr.getAddress();
-        for (int i = 0; i < 10; i++) {
-            if (addrBytes[i] != 0) return false;
+    public static byte[] buildInetDiagReqForAliveTcpSockets(int family, @NonNull int[] marks,
+            @NonNull int[] masks) {
+        if (marks.length == 0 || marks.length > MAX_MARK_CONDITIONS
+                || marks.length != masks.length) {
+            throw new IllegalArgumentException("Invalid number of marks " + marks.length
+                    + " and masks " + masks.length);
         }
-        return addrBytes[10] == (byte) 0xff
-                && addrBytes[11] == (byte) 0xff
-                && addrBytes[12] == 127;
+        return appendBytecode(buildInetDiagReqForAliveTcpSockets(family),
+                makeMarkFilterBytecode(marks, masks));
     }
 
     /**
-     * Returns whether the socket address in the InetDiagMessage is loopback or not
+     * Append a filter program attribute to an inet_diag_req_v2 message.
      */
-    @VisibleForTesting
-    public static boolean isLoopback(InetDiagMessage msg) {
-        final InetAddress srcAddr = msg.inetDiagMsg.id.locSocketAddress.getAddress();
-        final InetAddress dstAddr = msg.inetDiagMsg.id.remSocketAddress.getAddress();
-        return isLoopbackAddress(srcAddr)
-                || isLoopbackAddress(dstAddr)
-                || srcAddr.equals(dstAddr);
+    static byte[] appendBytecode(@NonNull byte[] request, @NonNull byte[] filter) {
+        final StructNlAttr bytecode =
+                new StructNlAttr(NetlinkConstants.INET_DIAG_REQ_BYTECODE, filter);
+        final byte[] bytes = new byte[request.length + bytecode.getAlignedLength()];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        byteBuffer.put(request);
+        bytecode.pack(byteBuffer);
+        // Update nlmsg_len to include the filter.
+        byteBuffer.putInt(0, bytes.length);
+        return bytes;
     }
 
-    private static void destroySockets(int proto, int states, Predicate<InetDiagMessage> filter)
-            throws ErrnoException, SocketException, InterruptedIOException {
-        FileDescriptor destroyFd = null;
-
-        try {
-            destroyFd = NetlinkUtils.createNetLinkInetDiagSocket();
-            connectToKernel(destroyFd);
-
-            for (int family : List.of(AF_INET, AF_INET6)) {
-                byte[] req = makeNetlinkDumpRequest(proto, states, family);
-
-                try {
-                    final int destroyedSockets = processNetlinkDumpAndDestroySockets(
-                            req, destroyFd, proto, filter);
-                    Log.d(TAG, "Destroyed " + destroyedSockets + " sockets"
-                        + ", proto=" + stringForProtocol(proto)
-                        + ", family=" + stringForAddressFamily(family)
-                        + ", states=" + states);
-                } catch (SocketException | InterruptedIOException | ErrnoException e) {
-                    Log.e(TAG, "Failed to send netlink dump request or receive messages: " + e);
-                    continue;
-                }
-            }
-        } finally {
-            closeSocketQuietly(destroyFd);
+    /**
+     * Build a filter program accepting sockets that match any of the marks. Each condition but
+     * the last is followed by a jump to the end of the program, which accepts the socket. If the
+     * mark matches, go to the jump, otherwise skip it. If the last condition does not match, jump
+     * past the end to reject the socket. The kernel requires the "yes" offset of every operation
+     * to lead to the next one, so conditions can't jump to the end directly.
+     */
+    private static byte[] makeMarkFilterBytecode(@NonNull int[] marks, @NonNull int[] masks) {
+        final ByteBuffer bytecode = ByteBuffer.allocate(
+                marks.length * (MARK_COND_OP_SIZE + BC_OP_SIZE) - BC_OP_SIZE);
+        bytecode.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < marks.length; i++) {
+            // struct inet_diag_bc_op
+            bytecode.put((byte) NetlinkConstants.INET_DIAG_BC_MARK_COND); // code
+            bytecode.put((byte) MARK_COND_OP_SIZE); // yes
+            // Skip the jump, or for the last condition jump 4 bytes past the end of the program.
+            bytecode.putShort((short) (MARK_COND_OP_SIZE + BC_OP_SIZE)); // no
+            // struct inet_diag_markcond
+            bytecode.putInt(marks[i]);
+            bytecode.putInt(masks[i]);
+            if (i == marks.length - 1) break;
+
+            final int remaining = bytecode.remaining();
+            bytecode.put((byte) NetlinkConstants.INET_DIAG_BC_JMP);
+            bytecode.put((byte) BC_OP_SIZE); // yes
+            bytecode.putShort((short) remaining); // no
         }
+        return bytecode.array();
     }
 
     /**
@@ -453,15 +391,9 @@ public class InetDiagMessage extends NetlinkMessage {
      */
     public static void destroyLiveTcpSockets(Set<Range<Integer>> ranges, Set<Integer> exemptUids)
             throws SocketException, InterruptedIOException, ErrnoException {
-        final long startTimeMs = SystemClock.elapsedRealtime();
-        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
-                (diagMsg) -> !exemptUids.contains(diagMsg.inetDiagMsg.idiag_uid)
-                        && containsUid(diagMsg, ranges)
-                        && !isLoopback(diagMsg)
-                        && !isAdbSocket(diagMsg));
-        final long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
-        Log.d(TAG, "Destroyed live tcp sockets for uids=" + ranges + " exemptUids=" + exemptUids
-                + " in " + durationMs + "ms");
+        InetDiagSocketDestroyer.destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
+                new InetDiagSocketDestroyer.UidMatcher(ranges, exemptUids),
+                "Live tcp sockets for uids=" + ranges + " exemptUids=" + exemptUids);
     }
 
     /**
@@ -475,13 +407,9 @@ public class InetDiagMessage extends NetlinkMessage {
      */
     public static void destroyLiveTcpSocketsByOwnerUids(Set<Integer> ownerUids)
             throws SocketException, InterruptedIOException, ErrnoException {
-        final long startTimeMs = SystemClock.elapsedRealtime();
-        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
-                (diagMsg) -> ownerUids.contains(diagMsg.inetDiagMsg.idiag_uid)
-                        && !isLoopback(diagMsg)
-                        && !isAdbSocket(diagMsg));
-        final long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
-        Log.d(TAG, "Destroyed live tcp sockets for uids=" + ownerUids + " in " + durationMs + "ms");
+        InetDiagSocketDestroyer.destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
+                InetDiagSocketDestroyer.UidMatcher.forUids(ownerUids),
+                "Live tcp sockets for owner uids=" + ownerUids);
     }
 
     @Override
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.system.OsConstants.AF_INET;
+import static android.system.OsConstants.AF_INET6;
+import static android.system.OsConstants.EINVAL;
+import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.NETLINK_INET_DIAG;
+import static android.system.OsConstants.SOL_SOCKET;
+import static android.system.OsConstants.SO_RCVTIMEO;
+
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DESTROY;
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DIAG_BY_FAMILY;
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCKDIAG_MSG_HEADER_SIZE;
+import static com.android.net.module.util.netlink.NetlinkConstants.stringForAddressFamily;
+import static com.android.net.module.util.netlink.NetlinkUtils.DEFAULT_RECV_BUFSIZE;
+import static com.android.net.module.util.netlink.NetlinkUtils.IO_TIMEOUT_MS;
+import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_DUMP_RECV_BUFSIZE;
+import static com.android.net.module.util.netlink.NetlinkUtils.connectToKernel;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_ACK;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_DUMP;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
+
+import android.net.util.SocketUtils;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructTimeval;
+import android.util.Log;
+import android.util.Range;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Destroys the live sockets owned by a set of UIDs.
+ *
+ * The kernel is asked not to dump loopback sockets with an INET_DIAG filter program. Filter
+ * programs cannot match the socket owner, so UIDs are matched in userspace against a
+ * {@link UidMatcher}, reading the fields of each dumped socket directly from a reused receive
+ * buffer instead of parsing it into an {@link InetDiagMessage}. Destroy requests are sent in
+ * batches with a {@link NetlinkMessageBatcher}, so the kernel only acks each batch instead of
+ * each request.
+ *
+ * The counts and duration of recent operations are kept for {@link #dump}.
+ *
+ * This class is not thread-safe; use one instance per operation.
+ * @hide
+ */
+public class InetDiagSocketDestroyer {
+    private static final String TAG = "InetDiagSocketDestroyer";
+
+    // Number of destroy requests sent together. The kernel only replies to failed requests and to
+    // the last request of a batch.
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 64;
+    private static final int MAX_HISTORY = 20;
+
+    // Offsets of the fields of a SOCK_DIAG_BY_FAMILY message, i.e. a struct nlmsghdr followed by
+    // a struct inet_diag_msg. See StructInetDiagMsg.
+    private static final int NLMSG_TYPE_OFFSET = 4;
+    private static final int FAMILY_OFFSET = StructNlMsgHdr.STRUCT_SIZE;
+    private static final int STATE_OFFSET = FAMILY_OFFSET + 1;
+    private static final int SOCK_ID_OFFSET = FAMILY_OFFSET + 4;
+    private static final int SRC_ADDR_OFFSET = SOCK_ID_OFFSET + 4;
+    private static final int DST_ADDR_OFFSET = SRC_ADDR_OFFSET + 16;
+    private static final int UID_OFFSET = SOCK_ID_OFFSET + StructInetDiagSockId.STRUCT_SIZE + 12;
+
+    private static final int DESTROY_REQUEST_SIZE =
+            StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE;
+
+    // Size of a struct inet_diag_bc_op, and of one followed by a struct inet_diag_hostcond.
+    private static final int BC_OP_SIZE = 4;
+    private static final int HOSTCOND_OP_SIZE = BC_OP_SIZE + 8;
+    private static final byte[] IPV4_LOOPBACK_PREFIX = {127, 0, 0, 0};
+    private static final byte[] IPV6_LOOPBACK = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+    // Cleared if the kernel rejects the filter program, after which the loopback sockets are only
+    // filtered out in userspace.
+    private static volatile boolean sUseKernelFilter = true;
+
+    @GuardedBy("sHistory")
+    private static final ArrayDeque<Result> sHistory = new ArrayDeque<>();
+
+    /**
+     * A set of UIDs, compiled to sorted arrays so that matching a UID does not allocate.
+     */
+    public static class UidMatcher {
+        // Sorted, non-overlapping inclusive ranges
+        private final int[] mLowers;
+        private final int[] mUppers;
+        // Sorted
+        private final int[] mExcluded;
+
+        /**
+         * Create a matcher for the UIDs in the ranges that are not excluded. Sockets of
+         * {@link Process#SHELL_UID}, which are likely to be adb sockets, are always excluded.
+         *
+         * This is inaccurate since adb could run with ROOT_UID or other services can run with
+         * SHELL_UID, but it covers most cases.
+         */
+        public UidMatcher(@NonNull Collection<Range<Integer>> ranges,
+                @NonNull Collection<Integer> excludedUids) {
+            final ArrayList<Range<Integer>> sorted = new ArrayList<>(ranges);
+            sorted.sort((a, b) -> Integer.compare(a.getLower(), b.getLower()));
+            final int[] lowers = new int[sorted.size()];
+            final int[] uppers = new int[sorted.size()];
+            int count = 0;
+            for (Range<Integer> range : sorted) {
+                if (count > 0 && range.getLower() <= uppers[count - 1]) {
+                    uppers[count - 1] = Math.max(uppers[count - 1], range.getUpper());
+                } else {
+                    lowers[count] = range.getLower();
+                    uppers[count] = range.getUpper();
+                    count++;
+                }
+            }
+            mLowers = Arrays.copyOf(lowers, count);
+            mUppers = Arrays.copyOf(uppers, count);
+
+            mExcluded = new int[excludedUids.size() + 1];
+            int i = 0;
+            for (int uid : excludedUids) mExcluded[i++] = uid;
+            mExcluded[i] = Process.SHELL_UID;
+            Arrays.sort(mExcluded);
+        }
+
+        /**
+         * Create a matcher for the given UIDs, except {@link Process#SHELL_UID}.
+         */
+        @NonNull
+        public static UidMatcher forUids(@NonNull Collection<Integer> uids) {
+            final ArrayList<Range<Integer>> ranges = new ArrayList<>(uids.size());
+            for (int uid : uids) ranges.add(new Range<>(uid, uid));
+            return new UidMatcher(ranges, new ArrayList<>());
+        }
+
+        /** Returns whether the UID is in the ranges and not excluded. */
+        public boolean matches(int uid) {
+            if (Arrays.binarySearch(mExcluded, uid) >= 0) return false;
+            final int i = Arrays.binarySearch(mLowers, uid);
+            if (i >= 0) return true;
+            // Index of the last range starting before the UID
+            final int previous = -i - 2;
+            return previous >= 0 && uid <= mUppers[previous];
+        }
+    }
+
+    /**
+     * Counts and duration of a destroy operation.
+     */
+    public static class Result {
+        @NonNull
+        private final String mDescription;
+        private final long mStartTimeMs = System.currentTimeMillis();
+        private long mDurationMs;
+        @VisibleForTesting
+        int mDumped;
+        @VisibleForTesting
+        int mMatched;
+        // Destroy requests for which the kernel did not report an error
+        @VisibleForTesting
+        int mDestroyed;
+        // Sockets closed between the dump and the destroy request
+        @VisibleForTesting
+        int mAlreadyClosed;
+        @VisibleForTesting
+        int mFailed;
+
+        Result(@NonNull String description) {
+            mDescription = description;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(mStartTimeMs) + " " + mDescription
+                    + ": " + mDurationMs + "ms"
+                    + ", dumped=" + mDumped
+                    + ", matched=" + mMatched
+                    + ", destroyed=" + mDestroyed
+                    + ", alreadyClosed=" + mAlreadyClosed
+                    + ", failed=" + mFailed;
+        }
+    }
+
+    private final int mProto;
+    private final int mStates;
+    @NonNull
+    private final UidMatcher mMatcher;
+    @NonNull
+    private final Result mResult;
+    // Reused for all the dump messages
+    private final ByteBuffer mRecvBuffer =
+            ByteBuffer.allocate(DEFAULT_RECV_BUFSIZE).order(ByteOrder.nativeOrder());
+    // Number of destroy requests whose batch was processed by the kernel
+    private int mSent;
+
+    @VisibleForTesting
+    InetDiagSocketDestroyer(int proto, int states, @NonNull UidMatcher matcher,
+            @NonNull String description) {
+        mProto = proto;
+        mStates = states;
+        mMatcher = matcher;
+        mResult = new Result(description);
+    }
+
+    /**
+     * Destroy the non-loopback sockets in the given states whose owner matches.
+     *
+     * @param proto the protocol of the sockets, e.g. IPPROTO_TCP.
+     * @param states a bitmask of the states of the sockets, e.g. TCP_ALIVE_STATE_FILTER.
+     * @param matcher the owners of the sockets.
+     * @param description what the sockets are destroyed for, for logging and dumpsys.
+     */
+    @NonNull
+    public static Result destroySockets(int proto, int states, @NonNull UidMatcher matcher,
+            @NonNull String description) {
+        final InetDiagSocketDestroyer destroyer =
+                new InetDiagSocketDestroyer(proto, states, matcher, description);
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        try (NetlinkMessageBatcher batcher = new NetlinkMessageBatcher(NETLINK_INET_DIAG,
+                destroyer::onDestroyError)) {
+            for (int family : new int[] {AF_INET, AF_INET6}) {
+                try {
+                    destroyer.destroySocketsForFamily(family, batcher);
+                } catch (ErrnoException | SocketException | InterruptedIOException e) {
+                    Log.e(TAG, "Failed to destroy sockets, family="
+                            + stringForAddressFamily(family) + ": " + e);
+                }
+            }
+        }
+        final Result result = destroyer.mResult;
+        result.mDurationMs = SystemClock.elapsedRealtime() - startTimeMs;
+        result.mDestroyed = destroyer.mSent - result.mAlreadyClosed - result.mFailed;
+        Log.d(TAG, "Destroyed sockets: " + result);
+        synchronized (sHistory) {
+            if (sHistory.size() == MAX_HISTORY) sHistory.removeFirst();
+            sHistory.addLast(result);
+        }
+        return result;
+    }
+
+    private void destroySocketsForFamily(int family, @NonNull NetlinkMessageBatcher batcher)
+            throws ErrnoException, SocketException, InterruptedIOException {
+        if (sUseKernelFilter) {
+            final int dumpedBefore = mResult.mDumped;
+            try {
+                dumpAndDestroySockets(buildDumpRequest(mProto, mStates, family), batcher);
+                return;
+            } catch (ErrnoException e) {
+                // Errors in the filter program are reported before any socket is dumped.
+                if (e.errno != EINVAL || mResult.mDumped != dumpedBefore) throw e;
+                Log.w(TAG, "Kernel rejected the socket filter, filtering in userspace: " + e);
+                sUseKernelFilter = false;
+            }
+        }
+        dumpAndDestroySockets(InetDiagMessage.inetDiagReqV2(mProto, null /* id */, family,
+                SOCK_DIAG_BY_FAMILY, (short) (NLM_F_REQUEST | NLM_F_DUMP), 0 /* pad */,
+                0 /* idiagExt */, mStates), batcher);
+    }
+
+    private void dumpAndDestroySockets(@NonNull byte[] dumpRequest,
+            @NonNull NetlinkMessageBatcher batcher)
+            throws ErrnoException, SocketException, InterruptedIOException {
+        final FileDescriptor fd = NetlinkUtils.netlinkSocketForProto(NETLINK_INET_DIAG,
+                SOCKET_DUMP_RECV_BUFSIZE);
+        try {
+            connectToKernel(fd);
+            NetlinkUtils.sendMessage(fd, dumpRequest, 0, dumpRequest.length, IO_TIMEOUT_MS);
+            Os.setsockoptTimeval(fd, SOL_SOCKET, SO_RCVTIMEO,
+                    StructTimeval.fromMillis(IO_TIMEOUT_MS));
+            boolean done = false;
+            while (!done) {
+                mRecvBuffer.clear();
+                Os.read(fd, mRecvBuffer);
+                mRecvBuffer.flip();
+                done = processDumpMessages(mRecvBuffer, batcher);
+            }
+            flushBatch(batcher);
+        } finally {
+            try {
+                SocketUtils.closeSocket(fd);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Queue destroy requests for the matching sockets in the buffer.
+     *
+     * @return whether the end of the dump was reached.
+     */
+    @VisibleForTesting
+    boolean processDumpMessages(@NonNull ByteBuffer buf, @NonNull NetlinkMessageBatcher batcher)
+            throws ErrnoException {
+        while (buf.remaining() >= StructNlMsgHdr.STRUCT_SIZE) {
+            final int start = buf.position();
+            final int length = buf.getInt(start);
+            if (length < StructNlMsgHdr.STRUCT_SIZE || length > buf.remaining()) {
+                Log.e(TAG, "Invalid netlink message length " + length);
+                return false;
+            }
+            final short type = buf.getShort(start + NLMSG_TYPE_OFFSET);
+            if (type == NetlinkConstants.NLMSG_DONE) return true;
+            if (type == NetlinkConstants.NLMSG_ERROR) {
+                final int error = buf.getInt(start + StructNlMsgHdr.STRUCT_SIZE);
+                throw new ErrnoException("Socket dump failed", Math.abs(error));
+            }
+            if (type == SOCK_DIAG_BY_FAMILY && length >= SOCKDIAG_MSG_HEADER_SIZE) {
+                mResult.mDumped++;
+                if (shouldDestroy(buf, start, mMatcher)) {
+                    mResult.mMatched++;
+                    batcher.add(makeDestroyRequest(buf, start, mProto));
+                    if (batcher.getPendingCount() >= MAX_BATCH_SIZE) flushBatch(batcher);
+                }
+            }
+            buf.position(Math.min(buf.limit(), start + NetlinkConstants.alignedLengthOf(length)));
+        }
+        return false;
+    }
+
+    private void flushBatch(@NonNull NetlinkMessageBatcher batcher) throws ErrnoException {
+        final int pending = batcher.getPendingCount();
+        try {
+            mSent += batcher.flush();
+        } catch (ErrnoException e) {
+            // The requests of the batch may or may not have been processed.
+            mResult.mFailed += pending;
+            throw e;
+        }
+    }
+
+    private void onDestroyError(@NonNull byte[] msg, int errno) {
+        if (errno == ENOENT) {
+            mResult.mAlreadyClosed++;
+            return;
+        }
+        mResult.mFailed++;
+        Log.e(TAG, "Failed to destroy socket: " + NetlinkConstants.hexify(msg) + ", errno="
+                + errno);
+    }
+
+    /**
+     * Returns whether the socket of the SOCK_DIAG_BY_FAMILY message at the given offset should be
+     * destroyed: its owner matches, and it is not a loopback socket. Loopback sockets are normally
+     * filtered out by the kernel already.
+     */
+    @VisibleForTesting
+    static boolean shouldDestroy(@NonNull ByteBuffer buf, int offset,
+            @NonNull UidMatcher matcher) {
+        if (!matcher.matches(buf.getInt(offset + UID_OFFSET))) return false;
+        final int family = buf.get(offset + FAMILY_OFFSET);
+        final int src = offset + SRC_ADDR_OFFSET;
+        final int dst = offset + DST_ADDR_OFFSET;
+        if (isLoopbackAddress(buf, src, family) || isLoopbackAddress(buf, dst, family)) {
+            return false;
+        }
+        // Sockets connected to a local address
+        final int addrLen = family == AF_INET ? 4 : 16;
+        for (int i = 0; i < addrLen; i++) {
+            if (buf.get(src + i) != buf.get(dst + i)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isLoopbackAddress(@NonNull ByteBuffer buf, int offset, int family) {
+        if (family == AF_INET) return buf.get(offset) == 127;
+        for (int i = 0; i < 10; i++) {
+            if (buf.get(offset + i) != 0) return false;
+        }
+        // v4-mapped 127.0.0.0/8
+        if (buf.get(offset + 10) == (byte) 0xff && buf.get(offset + 11) == (byte) 0xff) {
+            return buf.get(offset + 12) == 127;
+        }
+        // ::1
+        for (int i = 10; i < 15; i++) {
+            if (buf.get(offset + i) != 0) return false;
+        }
+        return buf.get(offset + 15) == 1;
+    }
+
+    /**
+     * Build a SOCK_DESTROY request for the socket of the SOCK_DIAG_BY_FAMILY message at the given
+     * offset. The socket id is copied as dumped by the kernel.
+     */
+    @VisibleForTesting
+    @NonNull
+    static byte[] makeDestroyRequest(@NonNull ByteBuffer buf, int offset, int proto) {
+        final byte[] request = new byte[DESTROY_REQUEST_SIZE];
+        final ByteBuffer out = ByteBuffer.wrap(request).order(ByteOrder.nativeOrder());
+        new StructNlMsgHdr(StructInetDiagReqV2.STRUCT_SIZE, SOCK_DESTROY,
+                (short) (NLM_F_REQUEST | NLM_F_ACK), 0 /* seq */).pack(out);
+        // struct inet_diag_req_v2
+        out.put(buf.get(offset + FAMILY_OFFSET));
+        out.put((byte) proto);
+        out.put((byte) 0); // idiag_ext
+        out.put((byte) 0); // pad
+        out.putInt(1 << buf.get(offset + STATE_OFFSET));
+        for (int i = 0; i < StructInetDiagSockId.STRUCT_SIZE; i++) {
+            out.put(buf.get(offset + SOCK_ID_OFFSET + i));
+        }
+        return request;
+    }
+
+    /**
+     * Build a SOCK_DIAG_BY_FAMILY dump request with a filter program rejecting loopback sockets.
+     */
+    @VisibleForTesting
+    @NonNull
+    static byte[] buildDumpRequest(int proto, int states, int family) {
+        final byte[] request = InetDiagMessage.inetDiagReqV2(proto, null /* id */, family,
+                SOCK_DIAG_BY_FAMILY, (short) (NLM_F_REQUEST | NLM_F_DUMP), 0 /* pad */,
+                0 /* idiagExt */, states);
+        return InetDiagMessage.appendBytecode(request, makeLoopbackFilterBytecode(family));
+    }
+
+    /**
+     * Build a filter program rejecting the sockets whose source or destination address is a
+     * loopback address. An AF_INET condition also matches v4-mapped addresses of AF_INET6
+     * sockets.
+     */
+    @VisibleForTesting
+    @NonNull
+    static byte[] makeLoopbackFilterBytecode(int family) {
+        int size = 2 * (HOSTCOND_OP_SIZE + IPV4_LOOPBACK_PREFIX.length + BC_OP_SIZE);
+        if (family == AF_INET6) {
+            size += 2 * (HOSTCOND_OP_SIZE + IPV6_LOOPBACK.length + BC_OP_SIZE);
+        }
+        final ByteBuffer bytecode = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        putRejectIfMatches(bytecode, NetlinkConstants.INET_DIAG_BC_S_COND, AF_INET,
+                8 /* prefixLength */, IPV4_LOOPBACK_PREFIX);
+        putRejectIfMatches(bytecode, NetlinkConstants.INET_DIAG_BC_D_COND, AF_INET,
+                8 /* prefixLength */, IPV4_LOOPBACK_PREFIX);
+        if (family == AF_INET6) {
+            putRejectIfMatches(bytecode, NetlinkConstants.INET_DIAG_BC_S_COND, AF_INET6,
+                    128 /* prefixLength */, IPV6_LOOPBACK);
+            putRejectIfMatches(bytecode, NetlinkConstants.INET_DIAG_BC_D_COND, AF_INET6,
+                    128 /* prefixLength */, IPV6_LOOPBACK);
+        }
+        return bytecode.array();
+    }
+
+    /**
+     * Append an address condition followed by a jump past the end of the program, which rejects
+     * the socket. If the address matches, go to the jump, otherwise skip it. The kernel requires
+     * the "yes" offset of every operation to lead to the next one, so conditions can only be
+     * negated this way.
+     */
+    private static void putRejectIfMatches(@NonNull ByteBuffer bytecode, int code, int family,
+            int prefixLength, @NonNull byte[] address) {
+        final int opSize = HOSTCOND_OP_SIZE + address.length;
+        // struct inet_diag_bc_op
+        bytecode.put((byte) code);
+        bytecode.put((byte) opSize); // yes
+        bytecode.putShort((short) (opSize + BC_OP_SIZE)); // no
+        // struct inet_diag_hostcond
+        bytecode.put((byte) family);
+        bytecode.put((byte) prefixLength);
+        bytecode.putShort((short) 0); // pad
+        bytecode.putInt(-1); // any port
+        bytecode.put(address);
+
+        final int remaining = bytecode.remaining();
+        bytecode.put((byte) NetlinkConstants.INET_DIAG_BC_JMP);
+        bytecode.put((byte) BC_OP_SIZE); // yes
+        bytecode.putShort((short) (remaining + 4)); // no
+    }
+
+    /**
+     * Dump the recent destroy operations.
+     */
+    public static void dump(@NonNull PrintWriter pw) {
+        synchronized (sHistory) {
+            pw.println("Recent socket destroy operations:");
+            for (Result result : sHistory) {
+                pw.println("  " + result);
+            }
+        }
+    }
+}
@@ -44,6 +44,17 @@ public class NetlinkConstants {
      */
     public static final int INET_DIAG_MEMINFO = 1;
 
+    /**
+     * Attribute of inet_diag_req_v2 containing a filter program, and the filter operations that
+     * it uses.
+     * Corresponding to enum definitions in include/uapi/linux/inet_diag.h.
+     */
+    public static final short INET_DIAG_REQ_BYTECODE = 1;
+    public static final int INET_DIAG_BC_JMP = 1;
+    public static final int INET_DIAG_BC_S_COND = 7;
+    public static final int INET_DIAG_BC_D_COND = 8;
+    public static final int INET_DIAG_BC_MARK_COND = 10;
+
     public static final int SOCKDIAG_MSG_HEADER_SIZE =
             StructNlMsgHdr.STRUCT_SIZE + StructInetDiagMsg.STRUCT_SIZE;
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.system.OsConstants.EIO;
+import static android.system.OsConstants.ETIMEDOUT;
+
+import static com.android.net.module.util.netlink.NetlinkUtils.IO_TIMEOUT_MS;
+import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_RECV_BUFSIZE;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_ACK;
+
+import android.net.util.SocketUtils;
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Packs many netlink request messages into a single datagram sent on a persistent socket.
+ *
+ * The kernel processes the messages of a datagram in order and, for each message, sends an
+ * NLMSG_ERROR reply if the message failed or requested an ack. This class clears NLM_F_ACK on
+ * all but the last message of each batch, so a successful batch costs one send and one receive
+ * regardless of its size. Failures are matched back to the original message by sequence number
+ * and reported to the {@link ErrorListener}.
+ *
+ * This class is not thread-safe.
+ * @hide
+ */
+public class NetlinkMessageBatcher implements Closeable {
+    /** Default upper bound of the bytes sent in a single datagram. */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+    // Offsets of the fields patched in each message. See StructNlMsgHdr.
+    private static final int NLMSG_FLAGS_OFFSET = 6;
+    private static final int NLMSG_SEQ_OFFSET = 8;
+
+    /** Listener notified of the messages which the kernel rejected. */
+    public interface ErrorListener {
+        /**
+         * Called for each message which failed.
+         *
+         * @param msg the message as it was passed to {@link #add}.
+         * @param errno the positive userspace errno.
+         */
+        void onError(@NonNull byte[] msg, int errno);
+    }
+
+    private final int mNlProto;
+    @NonNull
+    private final ErrorListener mListener;
+    @NonNull
+    private final ByteBuffer mBuffer;
+    // Original messages of the current batch, in the order they were packed.
+    private final ArrayList<byte[]> mPending = new ArrayList<>();
+    // Position of the header of the last packed message in mBuffer.
+    private int mLastMsgOffset;
+    private int mFirstSeq;
+    private int mNextSeq = 1;
+    @Nullable
+    private FileDescriptor mFd;
+
+    public NetlinkMessageBatcher(int nlProto, @NonNull ErrorListener listener) {
+        this(nlProto, DEFAULT_MAX_BATCH_BYTES, listener);
+    }
+
+    public NetlinkMessageBatcher(int nlProto, int maxBatchBytes,
+            @NonNull ErrorListener listener) {
+        mNlProto = nlProto;
+        mListener = listener;
+        mBuffer = ByteBuffer.allocate(maxBatchBytes).order(ByteOrder.nativeOrder());
+    }
+
+    /** Returns the number of messages waiting to be flushed. */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Queue a netlink request message. The message is copied; the sequence number and the
+     * NLM_F_ACK flag of the copy are overwritten.
+     *
+     * If the message does not fit in the current batch, the batch is flushed first.
+     *
+     * @return the number of messages sent by flushing the current batch, if it was flushed.
+     * @throws ErrnoException if flushing the current batch failed. The message is not queued.
+     * @throws IllegalArgumentException if the message is too short or can't fit in a batch.
+     */
+    public int add(@NonNull byte[] msg) throws ErrnoException {
+        final int alignedLength = NetlinkConstants.alignedLengthOf(msg.length);
+        if (msg.length < StructNlMsgHdr.STRUCT_SIZE || alignedLength > mBuffer.capacity()) {
+            throw new IllegalArgumentException("Invalid netlink message length " + msg.length);
+        }
+        final int sent = alignedLength > mBuffer.remaining() ? flush() : 0;
+
+        if (mPending.isEmpty()) {
+            // Keep the sequence numbers of a batch contiguous.
+            if (mNextSeq > Integer.MAX_VALUE - mBuffer.capacity() / StructNlMsgHdr.STRUCT_SIZE) {
+                mNextSeq = 1;
+            }
+            mFirstSeq = mNextSeq;
+        }
+        final int offset = mBuffer.position();
+        mBuffer.put(msg);
+        mBuffer.position(offset + alignedLength);
+        final short flags = (short) (mBuffer.getShort(offset + NLMSG_FLAGS_OFFSET) & ~NLM_F_ACK);
+        mBuffer.putShort(offset + NLMSG_FLAGS_OFFSET, flags);
+        mBuffer.putInt(offset + NLMSG_SEQ_OFFSET, mNextSeq);
+        mNextSeq++;
+        mLastMsgOffset = offset;
+        mPending.add(msg);
+        return sent;
+    }
+
+    /**
+     * Send all the queued messages and wait for the kernel to process them.
+     *
+     * Messages rejected by the kernel are reported to the {@link ErrorListener}. If the batch
+     * could not be sent or its completion could not be observed, the socket is closed and an
+     * exception is thrown; the messages of that batch are dropped.
+     *
+     * @return the number of messages sent.
+     */
+    public int flush() throws ErrnoException {
+        final int count = mPending.size();
+        if (count == 0) return 0;
+
+        final short lastFlags = mBuffer.getShort(mLastMsgOffset + NLMSG_FLAGS_OFFSET);
+        mBuffer.putShort(mLastMsgOffset + NLMSG_FLAGS_OFFSET, (short) (lastFlags | NLM_F_ACK));
+        try {
+            sendBatch(mBuffer.array(), mBuffer.position());
+            boolean done = false;
+            while (!done) {
+                done = processReplies(receiveReplies());
+            }
+            return count;
+        } catch (InterruptedIOException e) {
+            close();
+            throw new ErrnoException("Timed out waiting for netlink batch ack", ETIMEDOUT, e);
+        } catch (ErrnoException e) {
+            close();
+            throw e;
+        } finally {
+            mPending.clear();
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Dispatch the NLMSG_ERROR replies contained in {@code bytes}.
+     *
+     * @return whether the reply to the last message of the batch was seen.
+     */
+    @VisibleForTesting
+    boolean processReplies(@NonNull ByteBuffer bytes) {
+        final int lastSeq = mFirstSeq + mPending.size() - 1;
+        boolean done = false;
+        while (NetlinkUtils.enoughBytesRemainForValidNlMsg(bytes)) {
+            final int start = bytes.position();
+            final StructNlMsgHdr header = StructNlMsgHdr.parse(bytes);
+            if (header == null) break;
+            final int end = Math.min(bytes.limit(),
+                    start + NetlinkConstants.alignedLengthOf(header.nlmsg_len));
+            if (header.nlmsg_type == NetlinkConstants.NLMSG_ERROR) {
+                final NetlinkErrorMessage reply = NetlinkErrorMessage.parse(header, bytes);
+                final StructNlMsgErr err = (reply == null) ? null : reply.getNlMsgError();
+                // Replies carry the sequence number of the request. Anything else is a stale
+                // reply to a previous batch whose completion was not observed.
+                final int seq = header.nlmsg_seq;
+                final int index = seq - mFirstSeq;
+                if (index >= 0 && index < mPending.size()) {
+                    if (err != null && err.error != 0) {
+                        // Convert kernel errnos (negative) into userspace errnos (positive).
+                        mListener.onError(mPending.get(index), Math.abs(err.error));
+                    }
+                    if (seq == lastSeq) done = true;
+                }
+            }
+            bytes.position(end);
+        }
+        return done;
+    }
+
+    @VisibleForTesting
+    protected void sendBatch(@NonNull byte[] bytes, int length)
+            throws ErrnoException, InterruptedIOException {
+        final FileDescriptor fd = getOrCreateSocket();
+        final int sent = NetlinkUtils.sendMessage(fd, bytes, 0, length, IO_TIMEOUT_MS);
+        if (sent != length) {
+            throw new ErrnoException("Short netlink batch write: " + sent + "/" + length, EIO);
+        }
+    }
+
+    @VisibleForTesting
+    @NonNull
+    protected ByteBuffer receiveReplies() throws ErrnoException, InterruptedIOException {
+        return NetlinkUtils.recvMessage(getOrCreateSocket(), SOCKET_RECV_BUFSIZE, IO_TIMEOUT_MS);
+    }
+
+    @NonNull
+    private FileDescriptor getOrCreateSocket() throws ErrnoException {
+        if (mFd != null) return mFd;
+        final FileDescriptor fd = NetlinkUtils.netlinkSocketForProto(mNlProto,
+                SOCKET_RECV_BUFSIZE);
+        try {
+            NetlinkUtils.connectToKernel(fd);
+        } catch (SocketException e) {
+            closeQuietly(fd);
+            throw new ErrnoException("Failed to connect netlink socket", EIO, e);
+        } catch (ErrnoException e) {
+            closeQuietly(fd);
+            throw e;
+        }
+        mFd = fd;
+        return fd;
+    }
+
+    /** Close the socket. A new socket is opened by the next {@link #flush}. */
+    @Override
+    public void close() {
+        if (mFd == null) return;
+        closeQuietly(mFd);
+        mFd = null;
+    }
+
+    private static void closeQuietly(@NonNull FileDescriptor fd) {
+        try {
+            SocketUtils.closeSocket(fd);
+        } catch (IOException e) {
+            // Nothing we can do here
+        }
+    }
+}
@@ -136,6 +136,69 @@ static jboolean com_android_net_module_util_BpfMap_nativeFindMapEntry(JNIEnv *en
     return throwIfNotEnoent(env, "nativeFindMapEntry", ret, errno);
 }
 
+// BPF_MAP_{LOOKUP,UPDATE,DELETE}_BATCH were added in 5.6. Fail early on older kernels, so that
+// callers can fall back to per-entry operations without issuing a doomed syscall.
+static bool throwIfBatchOpsUnsupported(JNIEnv *env, const char* functionName) {
+    static const bool supported = bpf::isAtLeastKernelVersion(5, 6, 0);
+    if (!supported) jniThrowErrnoException(env, functionName, EOPNOTSUPP);
+    return !supported;
+}
+
+static void com_android_net_module_util_BpfMap_nativeUpdateMapEntries(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jbyteArray values, jint count, jint flags) {
+    if (throwIfBatchOpsUnsupported(env, "nativeUpdateMapEntries")) return;
+
+    ScopedByteArrayRO keysRO(env, keys);
+    ScopedByteArrayRO valuesRO(env, values);
+    uint32_t processed = static_cast<uint32_t>(count);
+
+    int ret = bpf::updateMapEntriesBatch(static_cast<int>(fd), keysRO.get(), valuesRO.get(),
+            &processed, static_cast<uint64_t>(flags));
+
+    if (ret) jniThrowErrnoException(env, "nativeUpdateMapEntries", errno);
+}
+
+static jint com_android_net_module_util_BpfMap_nativeDeleteMapEntries(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jint offset, jint count) {
+    if (throwIfBatchOpsUnsupported(env, "nativeDeleteMapEntries")) return 0;
+
+    ScopedByteArrayRO keysRO(env, keys);
+    uint32_t processed = static_cast<uint32_t>(count);
+
+    // Deletion stops at the first key which is not found, with errno set to ENOENT. In that case
+    // the number of keys deleted before it is returned.
+    int ret = bpf::deleteMapEntriesBatch(static_cast<int>(fd), keysRO.get() + offset, &processed);
+
+    if (ret && errno != ENOENT) {
+        jniThrowErrnoException(env, "nativeDeleteMapEntries", errno);
+        return 0;
+    }
+    return static_cast<jint>(processed);
+}
+
+static jint com_android_net_module_util_BpfMap_nativeLookupMapEntries(JNIEnv *env, jobject self,
+        jint fd, jbyteArray batch, jboolean first, jbyteArray keys, jbyteArray values,
+        jint count) {
+    if (throwIfBatchOpsUnsupported(env, "nativeLookupMapEntries")) return 0;
+
+    // The kernel reads the input batch token before writing the output one, so the same buffer
+    // can be used for both.
+    ScopedByteArrayRW batchRW(env, batch);
+    ScopedByteArrayRW keysRW(env, keys);
+    ScopedByteArrayRW valuesRW(env, values);
+    uint32_t processed = static_cast<uint32_t>(count);
+
+    // ENOENT means the end of the map was reached; entries may still have been read.
+    int ret = bpf::lookupMapEntriesBatch(static_cast<int>(fd), first ? nullptr : batchRW.get(),
+            batchRW.get(), keysRW.get(), valuesRW.get(), &processed);
+
+    if (ret && errno != ENOENT) {
+        jniThrowErrnoException(env, "nativeLookupMapEntries", errno);
+        return 0;
+    }
+    return static_cast<jint>(processed);
+}
+
 static void com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU(JNIEnv *env,
                                                                           jclass clazz) {
     const int pfSocket = socket(AF_KEY, SOCK_RAW | SOCK_CLOEXEC, PF_KEY_V2);
@@ -167,6 +230,12 @@ static const JNINativeMethod gMethods[] = {
         (void*) com_android_net_module_util_BpfMap_nativeGetNextMapKey },
     { "nativeFindMapEntry", "(I[B[B)Z",
         (void*) com_android_net_module_util_BpfMap_nativeFindMapEntry },
+    { "nativeUpdateMapEntries", "(I[B[BII)V",
+        (void*) com_android_net_module_util_BpfMap_nativeUpdateMapEntries },
+    { "nativeDeleteMapEntries", "(I[BII)I",
+        (void*) com_android_net_module_util_BpfMap_nativeDeleteMapEntries },
+    { "nativeLookupMapEntries", "(I[BZ[B[BI)I",
+        (void*) com_android_net_module_util_BpfMap_nativeLookupMapEntries },
     { "nativeSynchronizeKernelRCU", "()V",
         (void*) com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU },
 
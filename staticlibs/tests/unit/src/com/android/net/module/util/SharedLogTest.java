@@ -29,10 +29,13 @@ import org.junit.runner.RunWith;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 @RunWith(AndroidJUnit4.class)
@@ -44,7 +47,15 @@ public class SharedLogTest {
 
     @Test
     public void testBasicOperation() {
-        final SharedLog logTop = new SharedLog(TAG);
+        doTestBasicOperation(new SharedLog(TAG));
+    }
+
+    @Test
+    public void testBasicOperation_ringBufferLog() {
+        doTestBasicOperation(SharedLog.newRingBufferLog(100 /* maxRecords */, TAG));
+    }
+
+    private void doTestBasicOperation(SharedLog logTop) {
         assertTrue(TAG.equals(logTop.getTag()));
 
         logTop.mark("first post!");
@@ -86,6 +97,55 @@ public class SharedLogTest {
         assertDumpLogs(expected, logLevel3);
     }
 
+    @Test
+    public void testRingBufferLog_keepsMostRecentEntries() {
+        final SharedLog log = SharedLog.newRingBufferLog(3 /* maxRecords */, TAG);
+        for (int i = 0; i < 10; i++) {
+            log.logf("entry %d", i);
+        }
+        assertDumpLogs(new String[] { " - entry 7", " - entry 8", " - entry 9" }, log);
+    }
+
+    @Test
+    public void testRingBufferLog_formatsMutableArgumentsWhenLogged() {
+        final SharedLog log = SharedLog.newRingBufferLog(10 /* maxRecords */, TAG);
+        final StringBuilder sb = new StringBuilder("before");
+        log.logf("%s %d %s", "value", 42, sb);
+        sb.append(" after");
+        assertDumpLogs(new String[] { " - value 42 before" }, log);
+    }
+
+    @Test
+    public void testRingBufferLog_formatsNumbers() {
+        final SharedLog log = SharedLog.newRingBufferLog(10 /* maxRecords */, TAG);
+        final AtomicLong counter = new AtomicLong(10);
+        log.logf("%d %x", counter, BigInteger.valueOf(255));
+        counter.incrementAndGet();
+        // Arguments that can't be formatted as numbers anymore once converted to strings do not
+        // break the dump.
+        log.logf("%d", new LongAdder());
+        assertDumpLogs(new String[] { " - 10 ff", " - %d [0]" }, log);
+    }
+
+    @Test
+    public void testRingBufferLog_mergesThreads() throws Exception {
+        final SharedLog log = SharedLog.newRingBufferLog(100 /* maxRecords */, TAG);
+        log.log("main 1");
+        final Thread thread = new Thread(() -> {
+            log.forSubComponent("other").log("other 1");
+            log.forSubComponent("other").log("other 2");
+        });
+        thread.start();
+        thread.join();
+        log.log("main 2");
+        assertDumpLogs(new String[] {
+                " - main 1",
+                " - [other] other 1",
+                " - [other] other 2",
+                " - main 2",
+        }, log);
+    }
+
     private static void assertDumpLogs(String[] expected, SharedLog log) {
         verifyLogLines(expected, dump(log));
         verifyLogLines(reverse(expected), reverseDump(log));
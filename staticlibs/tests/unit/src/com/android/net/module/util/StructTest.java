@@ -700,6 +700,52 @@ public class StructTest {
                 msg.writeToBytes(ByteOrder.BIG_ENDIAN));
     }
 
+    public static class MutablePrimitiveMessage extends Struct {
+        @Field(order = 0, type = Type.Bool) public boolean mBool;
+        @Field(order = 1, type = Type.S8) public byte mS8;
+        @Field(order = 2, type = Type.U8, padding = 1) public short mU8;
+        @Field(order = 3, type = Type.UBE16) public int mUbe16;
+        @Field(order = 4, type = Type.UBE32) public long mUbe32;
+        @Field(order = 5, type = Type.UBE63) public long mUbe63;
+        @Field(order = 6, type = Type.U32) public long mU32;
+    }
+
+    private static final String MUTABLE_PRIMITIVE_DATA = "01" + "fe" + "ff" + "00" + "1234"
+            + "fffffffe" + "0000000000001234" + "feffffff";
+
+    @Test
+    public void testMutablePrimitiveFields() {
+        // Parsed repeatedly to go through the cached parser as well.
+        for (int i = 0; i < 2; i++) {
+            final MutablePrimitiveMessage msg = doParsingMessageTest(MUTABLE_PRIMITIVE_DATA,
+                    MutablePrimitiveMessage.class, ByteOrder.LITTLE_ENDIAN);
+
+            assertTrue(msg.mBool);
+            assertEquals(-2, msg.mS8);
+            assertEquals(255, msg.mU8);
+            assertEquals(0x1234, msg.mUbe16);
+            assertEquals(0xfffffffeL, msg.mUbe32);
+            assertEquals(0x1234L, msg.mUbe63);
+            assertEquals(0xfffffffeL, msg.mU32);
+
+            assertEquals(22, Struct.getSize(MutablePrimitiveMessage.class));
+            assertArrayEquals(toByteBuffer(MUTABLE_PRIMITIVE_DATA).array(),
+                    msg.writeToBytes(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    public static class MismatchedTypeMessage extends Struct {
+        @Field(order = 0, type = Type.U8) public int mU8;
+    }
+
+    @Test
+    public void testWriteInvalidType() {
+        final MismatchedTypeMessage msg = new MismatchedTypeMessage();
+        msg.mU8 = 0x1ff;
+        assertThrows(IllegalArgumentException.class,
+                () -> msg.writeToBytes(ByteOrder.LITTLE_ENDIAN));
+    }
+
     private ByteBuffer toByteBuffer(final String hexString) {
         return ByteBuffer.wrap(HexDump.hexStringToByteArray(hexString));
     }
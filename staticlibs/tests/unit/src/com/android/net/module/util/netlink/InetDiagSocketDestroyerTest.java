@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.os.Process.ROOT_UID;
+import static android.os.Process.SHELL_UID;
+import static android.system.OsConstants.AF_INET;
+import static android.system.OsConstants.AF_INET6;
+import static android.system.OsConstants.IPPROTO_TCP;
+import static android.system.OsConstants.NETLINK_INET_DIAG;
+
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DESTROY;
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DIAG_BY_FAMILY;
+import static com.android.net.module.util.netlink.NetlinkUtils.TCP_ALIVE_STATE_FILTER;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_MULTI;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.InetAddresses;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import libcore.util.HexEncoding;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class InetDiagSocketDestroyerTest {
+    private static final int TCP_ESTABLISHED = 1;
+    private static final int TCP_SYN_SENT = 2;
+
+    private final List<byte[]> mSent = new ArrayList<>();
+
+    private class TestBatcher extends NetlinkMessageBatcher {
+        TestBatcher() {
+            super(NETLINK_INET_DIAG, (msg, errno) -> { });
+        }
+
+        @Override
+        protected void sendBatch(@NonNull byte[] bytes, int length) {
+            mSent.add(Arrays.copyOf(bytes, length));
+        }
+
+        @NonNull
+        @Override
+        protected ByteBuffer receiveReplies() {
+            // Ack the last message of the batch.
+            final ByteBuffer sent = ByteBuffer.wrap(mSent.get(mSent.size() - 1))
+                    .order(ByteOrder.nativeOrder());
+            int lastSeq = 0;
+            while (sent.remaining() > 0) {
+                final int start = sent.position();
+                final StructNlMsgHdr header = StructNlMsgHdr.parse(sent);
+                lastSeq = header.nlmsg_seq;
+                sent.position(start + header.nlmsg_len);
+            }
+            final ByteBuffer reply = ByteBuffer.allocate(
+                    StructNlMsgHdr.STRUCT_SIZE + StructNlMsgErr.STRUCT_SIZE);
+            reply.order(ByteOrder.nativeOrder());
+            new StructNlMsgHdr(StructNlMsgErr.STRUCT_SIZE, NetlinkConstants.NLMSG_ERROR,
+                    (short) 0, lastSeq).pack(reply);
+            final StructNlMsgErr err = new StructNlMsgErr();
+            err.msg = new StructNlMsgHdr(0, SOCK_DESTROY, (short) 0, lastSeq);
+            err.pack(reply);
+            reply.flip();
+            return reply;
+        }
+    }
+
+    private static byte[] addressBytes(int family, String address) {
+        final byte[] bytes = InetAddresses.parseNumericAddress(address).getAddress();
+        if (family == AF_INET || bytes.length == 16) return Arrays.copyOf(bytes, 16);
+        // v4-mapped address of an IPv6 socket
+        final byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    private static void putDiagMsg(ByteBuffer buf, int family, int state, String src, String dst,
+            int uid) {
+        new StructNlMsgHdr(StructInetDiagMsg.STRUCT_SIZE, SOCK_DIAG_BY_FAMILY, NLM_F_MULTI,
+                0 /* seq */).pack(buf);
+        // struct inet_diag_msg
+        buf.put((byte) family);
+        buf.put((byte) state);
+        buf.put((byte) 0); // timer
+        buf.put((byte) 0); // retrans
+        // struct inet_diag_sockid
+        buf.put(new byte[] {(byte) 0x30, (byte) 0x39}); // sport = 12345
+        buf.put(new byte[] {(byte) 0x01, (byte) 0xbb}); // dport = 443
+        buf.put(addressBytes(family, src));
+        buf.put(addressBytes(family, dst));
+        buf.putInt(0); // if
+        buf.putLong(0x1234L); // cookie
+        buf.putInt(0); // expires
+        buf.putInt(0); // rqueue
+        buf.putInt(0); // wqueue
+        buf.putInt(uid);
+        buf.putInt(0); // inode
+    }
+
+    @Test
+    public void testUidMatcher() {
+        final InetDiagSocketDestroyer.UidMatcher matcher = new InetDiagSocketDestroyer.UidMatcher(
+                Set.of(new Range<>(10000, 10099), new Range<>(10050, 10199),
+                        new Range<>(1000, 2999)),
+                Set.of(10100));
+        assertTrue(matcher.matches(1000));
+        assertTrue(matcher.matches(2999));
+        assertTrue(matcher.matches(10000));
+        assertTrue(matcher.matches(10150));
+        assertTrue(matcher.matches(10199));
+        assertFalse(matcher.matches(999));
+        assertFalse(matcher.matches(3000));
+        assertFalse(matcher.matches(10200));
+        // Excluded UIDs
+        assertFalse(matcher.matches(10100));
+        assertFalse(matcher.matches(SHELL_UID));
+
+        final InetDiagSocketDestroyer.UidMatcher uids =
+                InetDiagSocketDestroyer.UidMatcher.forUids(Set.of(10001, 10003, SHELL_UID));
+        assertTrue(uids.matches(10001));
+        assertTrue(uids.matches(10003));
+        assertFalse(uids.matches(10002));
+        assertFalse(uids.matches(SHELL_UID));
+    }
+
+    @Test
+    public void testUidMatcher_ranges() {
+        assertTrue(InetDiagSocketDestroyer.UidMatcher.forUids(Set.of(77)).matches(77));
+        assertTrue(new InetDiagSocketDestroyer.UidMatcher(
+                Set.of(new Range<>(0, 100)), Set.of()).matches(77));
+        assertTrue(new InetDiagSocketDestroyer.UidMatcher(
+                Set.of(new Range<>(77, 77), new Range<>(100, 200)), Set.of()).matches(77));
+        assertFalse(new InetDiagSocketDestroyer.UidMatcher(
+                Set.of(new Range<>(100, 200)), Set.of()).matches(77));
+        assertFalse(new InetDiagSocketDestroyer.UidMatcher(
+                Set.of(new Range<>(0, 76), new Range<>(78, 100)), Set.of()).matches(77));
+    }
+
+    private static final InetDiagSocketDestroyer.UidMatcher ALL_UIDS =
+            new InetDiagSocketDestroyer.UidMatcher(
+                    Set.of(new Range<>(0, Integer.MAX_VALUE)), Set.of());
+
+    private void doTestShouldDestroy(int family, String src, String dst, int uid,
+            boolean expected) {
+        final ByteBuffer buf = ByteBuffer.allocate(StructNlMsgHdr.STRUCT_SIZE
+                + StructInetDiagMsg.STRUCT_SIZE).order(ByteOrder.nativeOrder());
+        putDiagMsg(buf, family, TCP_ESTABLISHED, src, dst, uid);
+        assertEquals(expected, InetDiagSocketDestroyer.shouldDestroy(buf, 0, ALL_UIDS));
+    }
+
+    @Test
+    public void testShouldDestroy_loopback() {
+        doTestShouldDestroy(AF_INET, "127.0.0.1", "192.0.2.1", 10100, false);
+        doTestShouldDestroy(AF_INET, "192.0.2.1", "127.7.7.7", 10100, false);
+        doTestShouldDestroy(AF_INET6, "::1", "::1", 10100, false);
+        doTestShouldDestroy(AF_INET6, "::1", "2001:db8::1", 10100, false);
+    }
+
+    @Test
+    public void testShouldDestroy_sameSrcDstAddress() {
+        doTestShouldDestroy(AF_INET, "192.0.2.1", "192.0.2.1", 10100, false);
+        doTestShouldDestroy(AF_INET6, "2001:db8::1", "2001:db8::1", 10100, false);
+    }
+
+    @Test
+    public void testShouldDestroy_nonLoopback() {
+        doTestShouldDestroy(AF_INET, "192.0.2.1", "192.0.2.2", 10100, true);
+        doTestShouldDestroy(AF_INET6, "2001:db8::1", "2001:db8::2", 10100, true);
+    }
+
+    @Test
+    public void testShouldDestroy_v4MappedV6() {
+        // IPv4 addresses of AF_INET6 sockets are dumped as v4-mapped addresses.
+        doTestShouldDestroy(AF_INET6, "127.1.2.3", "192.0.2.1", 10100, false);
+        doTestShouldDestroy(AF_INET6, "192.0.2.1", "192.0.2.2", 10100, true);
+        doTestShouldDestroy(AF_INET6, "192.0.2.1", "192.0.2.1", 10100, false);
+    }
+
+    @Test
+    public void testShouldDestroy_adbSocket() {
+        doTestShouldDestroy(AF_INET6, "2001:db8::1", "2001:db8::2", SHELL_UID, false);
+        doTestShouldDestroy(AF_INET6, "2001:db8::1", "2001:db8::2", ROOT_UID, true);
+        doTestShouldDestroy(AF_INET6, "2001:db8::1", "2001:db8::2", 10108, true);
+    }
+
+    // Hexadecimal representation of the filter program rejecting loopback sockets.
+    private static final String LOOPBACK_FILTER_HEX =
+            // struct inet_diag_bc_op
+            "07" +           // code = INET_DIAG_BC_S_COND
+            "10" +           // yes = 16
+            "1400" +         // no = 20
+            // struct inet_diag_hostcond
+            "02" +           // family = AF_INET
+            "08" +           // prefix_len = 8
+            "0000" +         // pad
+            "ffffffff" +     // port = any
+            "7f000000" +     // addr = 127.0.0.0
+            // struct inet_diag_bc_op
+            "01" +           // code = INET_DIAG_BC_JMP
+            "04" +           // yes = 4
+            "5c00" +         // no = 92, past the end of the program
+            "08" +           // code = INET_DIAG_BC_D_COND
+            "10" +           // yes = 16
+            "1400" +         // no = 20
+            "02" +           // family = AF_INET
+            "08" +           // prefix_len = 8
+            "0000" +         // pad
+            "ffffffff" +     // port = any
+            "7f000000" +     // addr = 127.0.0.0
+            "01" +           // code = INET_DIAG_BC_JMP
+            "04" +           // yes = 4
+            "4800" +         // no = 72
+            "07" +           // code = INET_DIAG_BC_S_COND
+            "1c" +           // yes = 28
+            "2000" +         // no = 32
+            "0a" +           // family = AF_INET6
+            "80" +           // prefix_len = 128
+            "0000" +         // pad
+            "ffffffff" +     // port = any
+            "00000000000000000000000000000001" + // addr = ::1
+            "01" +           // code = INET_DIAG_BC_JMP
+            "04" +           // yes = 4
+            "2800" +         // no = 40
+            "08" +           // code = INET_DIAG_BC_D_COND
+            "1c" +           // yes = 28
+            "2000" +         // no = 32
+            "0a" +           // family = AF_INET6
+            "80" +           // prefix_len = 128
+            "0000" +         // pad
+            "ffffffff" +     // port = any
+            "00000000000000000000000000000001" + // addr = ::1
+            "01" +           // code = INET_DIAG_BC_JMP
+            "04" +           // yes = 4
+            "0800";          // no = 8
+    private static final byte[] LOOPBACK_FILTER_BYTES =
+            HexEncoding.decode(LOOPBACK_FILTER_HEX.toCharArray(), false);
+
+    @Test
+    public void testMakeLoopbackFilterBytecode() {
+        assertArrayEquals(LOOPBACK_FILTER_BYTES,
+                InetDiagSocketDestroyer.makeLoopbackFilterBytecode(AF_INET6));
+        // IPv4 sockets only need the IPv4 conditions.
+        final byte[] v4 = InetDiagSocketDestroyer.makeLoopbackFilterBytecode(AF_INET);
+        assertEquals(40, v4.length);
+        assertEquals(0x10, v4[1]);
+
+        final byte[] request = InetDiagSocketDestroyer.buildDumpRequest(IPPROTO_TCP,
+                TCP_ALIVE_STATE_FILTER, AF_INET6);
+        final ByteBuffer buf = ByteBuffer.wrap(request).order(ByteOrder.nativeOrder());
+        assertEquals(request.length, buf.getInt(0));
+        assertEquals(StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE
+                + 4 /* nlattr header */ + LOOPBACK_FILTER_BYTES.length, request.length);
+    }
+
+    @Test
+    public void testProcessDumpMessages() throws Exception {
+        final ByteBuffer dump = ByteBuffer.allocate(NetlinkUtils.DEFAULT_RECV_BUFSIZE);
+        dump.order(ByteOrder.nativeOrder());
+        putDiagMsg(dump, AF_INET, TCP_ESTABLISHED, "192.0.2.1", "198.51.100.1", 10100);
+        final int firstSockId = StructNlMsgHdr.STRUCT_SIZE + 4;
+        putDiagMsg(dump, AF_INET, TCP_ESTABLISHED, "127.0.0.1", "127.0.0.1", 10100);
+        putDiagMsg(dump, AF_INET6, TCP_ESTABLISHED, "2001:db8::1", "2001:db8::1", 10100);
+        putDiagMsg(dump, AF_INET6, TCP_ESTABLISHED, "::ffff:127.0.0.1", "2001:db8::2", 10100);
+        putDiagMsg(dump, AF_INET6, TCP_ESTABLISHED, "2001:db8::1", "::1", 10100);
+        putDiagMsg(dump, AF_INET6, TCP_ESTABLISHED, "2001:db8::1", "2001:db8::2", 10200);
+        putDiagMsg(dump, AF_INET6, TCP_ESTABLISHED, "2001:db8::1", "2001:db8::2", SHELL_UID);
+        putDiagMsg(dump, AF_INET6, TCP_SYN_SENT, "2001:db8::1", "2001:db8::3", 10150);
+        new StructNlMsgHdr(4, NetlinkConstants.NLMSG_DONE, NLM_F_MULTI, 0 /* seq */).pack(dump);
+        dump.putInt(0);
+        dump.flip();
+
+        final InetDiagSocketDestroyer destroyer = new InetDiagSocketDestroyer(IPPROTO_TCP,
+                TCP_ALIVE_STATE_FILTER,
+                new InetDiagSocketDestroyer.UidMatcher(
+                        Set.of(new Range<>(1000, 10199)), Set.of()),
+                "test");
+        final TestBatcher batcher = new TestBatcher();
+        assertTrue(destroyer.processDumpMessages(dump, batcher));
+        assertEquals(2, batcher.getPendingCount());
+        assertEquals(2, batcher.flush());
+
+        assertEquals(1, mSent.size());
+        final ByteBuffer sent = ByteBuffer.wrap(mSent.get(0)).order(ByteOrder.nativeOrder());
+        final StructNlMsgHdr first = StructNlMsgHdr.parse(sent);
+        assertEquals(SOCK_DESTROY, first.nlmsg_type);
+        assertEquals(StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE,
+                first.nlmsg_len);
+        // struct inet_diag_req_v2
+        assertEquals(AF_INET, sent.get());
+        assertEquals(IPPROTO_TCP, sent.get());
+        sent.getShort(); // idiag_ext and pad
+        assertEquals(1 << TCP_ESTABLISHED, sent.getInt());
+        // The socket id is copied from the dump.
+        for (int i = 0; i < StructInetDiagSockId.STRUCT_SIZE; i++) {
+            assertEquals(dump.get(firstSockId + i), sent.get());
+        }
+
+        final StructNlMsgHdr second = StructNlMsgHdr.parse(sent);
+        assertEquals(SOCK_DESTROY, second.nlmsg_type);
+        assertEquals(AF_INET6, sent.get());
+        sent.get();
+        sent.getShort();
+        assertEquals(1 << TCP_SYN_SENT, sent.getInt());
+    }
+}
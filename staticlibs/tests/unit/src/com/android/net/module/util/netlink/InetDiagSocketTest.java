@@ -16,8 +16,6 @@
 
 package com.android.net.module.util.netlink;
 
-import static android.os.Process.ROOT_UID;
-import static android.os.Process.SHELL_UID;
 import static android.system.OsConstants.AF_INET;
 import static android.system.OsConstants.AF_INET6;
 import static android.system.OsConstants.IPPROTO_TCP;
@@ -33,12 +31,11 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.net.InetAddresses;
-import android.util.ArraySet;
-import android.util.Range;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -54,8 +51,6 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.List;
-import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -146,6 +141,66 @@ public class InetDiagSocketTest {
         assertArrayEquals(INET_DIAG_REQ_V2_TCP_INET6_BYTES, msg);
     }
 
+    // Hexadecimal representation of InetDiagReqV2 request for alive TCP sockets with marks.
+    private static final String INET_DIAG_REQ_V2_ALIVE_TCP_WITH_MARKS_HEX =
+            // struct nlmsghdr
+            "68000000" +     // length = 104
+            "1400" +         // type = SOCK_DIAG_BY_FAMILY
+            "0103" +         // flags = NLM_F_REQUEST | NLM_F_DUMP
+            "00000000" +     // seqno
+            "00000000" +     // pid (0 == kernel)
+            // struct inet_diag_req_v2
+            "02" +           // family = AF_INET
+            "06" +           // protcol = IPPROTO_TCP
+            "02" +           // idiag_ext = 1 << INET_DIAG_MEMINFO
+            "00" +           // pad
+            "0e000000" +     // idiag_states = TCP_ALIVE_STATE_FILTER
+            // inet_diag_sockid
+            "0000" +         // idiag_sport
+            "0000" +         // idiag_dport
+            "00000000000000000000000000000000" + // idiag_src
+            "00000000000000000000000000000000" + // idiag_dst
+            "00000000" +     // idiag_if
+            "0000000000000000" + // idiag_cookie
+            // struct nlattr
+            "2000" +         // nla_len = 32
+            "0100" +         // nla_type = INET_DIAG_REQ_BYTECODE
+            // struct inet_diag_bc_op
+            "0a" +           // code = INET_DIAG_BC_MARK_COND
+            "0c" +           // yes = 12, jump
+            "1000" +         // no = 16, next condition
+            // struct inet_diag_markcond
+            "850a0000" +     // mark = 0xa85
+            "ffff0000" +     // mask = 0xffff
+            // struct inet_diag_bc_op
+            "01" +           // code = INET_DIAG_BC_JMP
+            "04" +           // yes = 4
+            "1000" +         // no = 16, accept
+            // struct inet_diag_bc_op
+            "0a" +           // code = INET_DIAG_BC_MARK_COND
+            "0c" +           // yes = 12, accept
+            "1000" +         // no = 16, reject
+            // struct inet_diag_markcond
+            "851a0000" +     // mark = 0x1a85
+            "ffff0000";      // mask = 0xffff
+    private static final byte[] INET_DIAG_REQ_V2_ALIVE_TCP_WITH_MARKS_BYTES =
+            HexEncoding.decode(INET_DIAG_REQ_V2_ALIVE_TCP_WITH_MARKS_HEX.toCharArray(), false);
+
+    @Test
+    public void testBuildInetDiagReqForAliveTcpSocketsWithMarks() {
+        final byte[] msg = InetDiagMessage.buildInetDiagReqForAliveTcpSockets(AF_INET,
+                new int[] {0xa85, 0x1a85} /* marks */, new int[] {0xffff, 0xffff} /* masks */);
+        assertArrayEquals(INET_DIAG_REQ_V2_ALIVE_TCP_WITH_MARKS_BYTES, msg);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> InetDiagMessage.buildInetDiagReqForAliveTcpSockets(AF_INET,
+                        new int[0] /* marks */, new int[0] /* masks */));
+        assertThrows(IllegalArgumentException.class,
+                () -> InetDiagMessage.buildInetDiagReqForAliveTcpSockets(AF_INET,
+                        new int[InetDiagMessage.MAX_MARK_CONDITIONS + 1] /* marks */,
+                        new int[InetDiagMessage.MAX_MARK_CONDITIONS + 1] /* masks */));
+    }
+
     // Hexadecimal representation of InetDiagReqV2 request with extension, INET_DIAG_INFO.
     private static final String INET_DIAG_REQ_V2_TCP_INET_INET_DIAG_HEX =
             // struct nlmsghdr
@@ -661,143 +716,4 @@ public class InetDiagSocketTest {
                 7  /* ifIndex */,
                 88 /* cookie */);
     }
-
-    private void doTestIsLoopback(InetAddress srcAddr, InetAddress dstAddr, boolean expected) {
-        final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
-        inetDiagMsg.inetDiagMsg.id = new StructInetDiagSockId(
-                new InetSocketAddress(srcAddr, 43031),
-                new InetSocketAddress(dstAddr, 38415)
-        );
-
-        assertEquals(expected, InetDiagMessage.isLoopback(inetDiagMsg));
-    }
-
-    @Test
-    public void testIsLoopback() {
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("127.0.0.1"),
-                InetAddresses.parseNumericAddress("192.0.2.1"),
-                true
-        );
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("192.0.2.1"),
-                InetAddresses.parseNumericAddress("127.7.7.7"),
-                true
-        );
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("::1"),
-                InetAddresses.parseNumericAddress("::1"),
-                true
-        );
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("::1"),
-                InetAddresses.parseNumericAddress("2001:db8::1"),
-                true
-        );
-    }
-
-    @Test
-    public void testIsLoopbackSameSrcDstAddress()  {
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("192.0.2.1"),
-                InetAddresses.parseNumericAddress("192.0.2.1"),
-                true
-        );
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("2001:db8::1"),
-                InetAddresses.parseNumericAddress("2001:db8::1"),
-                true
-        );
-    }
-
-    @Test
-    public void testIsLoopbackNonLoopbackSocket()  {
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("192.0.2.1"),
-                InetAddresses.parseNumericAddress("192.0.2.2"),
-                false
-        );
-        doTestIsLoopback(
-                InetAddresses.parseNumericAddress("2001:db8::1"),
-                InetAddresses.parseNumericAddress("2001:db8::2"),
-                false
-        );
-    }
-
-    @Test
-    public void testIsLoopbackV4MappedV6() throws UnknownHostException {
-        // ::FFFF:127.1.2.3
-        final byte[] addrLoopbackByte = {
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff,
-                (byte) 0x7f, (byte) 0x01, (byte) 0x02, (byte) 0x03,
-        };
-        // ::FFFF:192.0.2.1
-        final byte[] addrNonLoopbackByte1 = {
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff,
-                (byte) 0xc0, (byte) 0x00, (byte) 0x02, (byte) 0x01,
-        };
-        // ::FFFF:192.0.2.2
-        final byte[] addrNonLoopbackByte2 = {
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff,
-                (byte) 0xc0, (byte) 0x00, (byte) 0x02, (byte) 0x02,
-        };
-
-        final Inet6Address addrLoopback = Inet6Address.getByAddress(null, addrLoopbackByte, -1);
-        final Inet6Address addrNonLoopback1 =
-                Inet6Address.getByAddress(null, addrNonLoopbackByte1, -1);
-        final Inet6Address addrNonLoopback2 =
-                Inet6Address.getByAddress(null, addrNonLoopbackByte2, -1);
-
-        doTestIsLoopback(addrLoopback, addrNonLoopback1, true);
-        doTestIsLoopback(addrNonLoopback1, addrNonLoopback2, false);
-        doTestIsLoopback(addrNonLoopback1, addrNonLoopback1, true);
-    }
-
-    private void doTestContainsUid(final int uid, final Set<Range<Integer>> ranges,
-            final boolean expected) {
-        final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
-        inetDiagMsg.inetDiagMsg.idiag_uid = uid;
-        assertEquals(expected, InetDiagMessage.containsUid(inetDiagMsg, ranges));
-    }
-
-    @Test
-    public void testContainsUid() {
-        doTestContainsUid(77 /* uid */,
-                new ArraySet<>(List.of(new Range<>(0, 100))),
-                true /* expected */);
-        doTestContainsUid(77 /* uid */,
-                new ArraySet<>(List.of(new Range<>(77, 77), new Range<>(100, 200))),
-                true /* expected */);
-
-        doTestContainsUid(77 /* uid */,
-                new ArraySet<>(List.of(new Range<>(100, 200))),
-                false /* expected */);
-        doTestContainsUid(77 /* uid */,
-                new ArraySet<>(List.of(new Range<>(0, 76), new Range<>(78, 100))),
-                false /* expected */);
-    }
-
-    private void doTestIsAdbSocket(final int uid, final boolean expected) {
-        final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
-        inetDiagMsg.inetDiagMsg.idiag_uid = uid;
-        inetDiagMsg.inetDiagMsg.id = new StructInetDiagSockId(
-                new InetSocketAddress(InetAddresses.parseNumericAddress("2001:db8::1"), 38417),
-                new InetSocketAddress(InetAddresses.parseNumericAddress("2001:db8::2"), 38415)
-        );
-        assertEquals(expected, InetDiagMessage.isAdbSocket(inetDiagMsg));
-    }
-
-    @Test
-    public void testIsAdbSocket() {
-        final int appUid = 10108;
-        doTestIsAdbSocket(SHELL_UID,  true /* expected */);
-        doTestIsAdbSocket(ROOT_UID, false /* expected */);
-        doTestIsAdbSocket(appUid, false /* expected */);
-    }
 }
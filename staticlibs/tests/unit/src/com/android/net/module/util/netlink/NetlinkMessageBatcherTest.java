@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.ETIMEDOUT;
+import static android.system.OsConstants.NETLINK_NETFILTER;
+
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_ACK;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class NetlinkMessageBatcherTest {
+    private static final Inet4Address SRC = (Inet4Address) InetAddress.parseNumericAddress(
+            "192.168.80.12");
+    private static final Inet4Address DST = (Inet4Address) InetAddress.parseNumericAddress(
+            "140.112.8.116");
+
+    private final List<byte[]> mSent = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> mReplies = new ArrayDeque<>();
+    private final List<byte[]> mFailedMsgs = new ArrayList<>();
+    private final List<Integer> mFailedErrnos = new ArrayList<>();
+
+    private class TestBatcher extends NetlinkMessageBatcher {
+        TestBatcher(int maxBatchBytes) {
+            super(NETLINK_NETFILTER, maxBatchBytes, (msg, errno) -> {
+                mFailedMsgs.add(msg);
+                mFailedErrnos.add(errno);
+            });
+        }
+
+        @Override
+        protected void sendBatch(@NonNull byte[] bytes, int length) {
+            mSent.add(Arrays.copyOf(bytes, length));
+        }
+
+        @NonNull
+        @Override
+        protected ByteBuffer receiveReplies() throws InterruptedIOException {
+            if (mReplies.isEmpty()) throw new InterruptedIOException("No reply");
+            return mReplies.poll();
+        }
+    }
+
+    private static byte[] makeRequest(int port) {
+        return ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                6 /* IPPROTO_TCP */, SRC, port, DST, 443, 432000);
+    }
+
+    private static ByteBuffer makeReply(int seq, int error) {
+        final ByteBuffer buf = ByteBuffer.allocate(
+                StructNlMsgHdr.STRUCT_SIZE + StructNlMsgErr.STRUCT_SIZE);
+        buf.order(ByteOrder.nativeOrder());
+        new StructNlMsgHdr(StructNlMsgErr.STRUCT_SIZE, NetlinkConstants.NLMSG_ERROR,
+                (short) 0, seq).pack(buf);
+        final StructNlMsgErr err = new StructNlMsgErr();
+        err.error = error;
+        err.msg = new StructNlMsgHdr(0, (short) 0, NLM_F_REQUEST, seq);
+        err.pack(buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static List<StructNlMsgHdr> parseHeaders(byte[] datagram) {
+        final ByteBuffer buf = ByteBuffer.wrap(datagram).order(ByteOrder.nativeOrder());
+        final List<StructNlMsgHdr> headers = new ArrayList<>();
+        while (buf.remaining() > 0) {
+            final int start = buf.position();
+            final StructNlMsgHdr header = StructNlMsgHdr.parse(buf);
+            headers.add(header);
+            buf.position(start + NetlinkConstants.alignedLengthOf(header.nlmsg_len));
+        }
+        return headers;
+    }
+
+    @Test
+    public void testFlushSendsSingleDatagram() throws Exception {
+        final TestBatcher batcher = new TestBatcher(NetlinkMessageBatcher.DEFAULT_MAX_BATCH_BYTES);
+        for (int i = 0; i < 3; i++) batcher.add(makeRequest(1000 + i));
+        assertEquals(3, batcher.getPendingCount());
+
+        mReplies.add(makeReply(3, 0));
+        assertEquals(3, batcher.flush());
+        assertEquals(0, batcher.getPendingCount());
+
+        assertEquals(1, mSent.size());
+        final List<StructNlMsgHdr> headers = parseHeaders(mSent.get(0));
+        assertEquals(3, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(i + 1, headers.get(i).nlmsg_seq);
+            // Only the last message requests an ack.
+            assertEquals(i == headers.size() - 1, (headers.get(i).nlmsg_flags & NLM_F_ACK) != 0);
+        }
+        assertEquals(0, mFailedMsgs.size());
+        assertEquals(0, batcher.flush());
+        assertEquals(1, mSent.size());
+    }
+
+    @Test
+    public void testErrorsAreDemultiplexed() throws Exception {
+        final TestBatcher batcher = new TestBatcher(NetlinkMessageBatcher.DEFAULT_MAX_BATCH_BYTES);
+        final byte[] first = makeRequest(1000);
+        final byte[] second = makeRequest(1001);
+        final byte[] third = makeRequest(1002);
+        batcher.add(first);
+        batcher.add(second);
+        batcher.add(third);
+
+        // Stale replies to unknown sequence numbers are ignored.
+        mReplies.add(makeReply(42, -ENOENT));
+        mReplies.add(makeReply(2, -ENOENT));
+        mReplies.add(makeReply(3, -ETIMEDOUT));
+        batcher.flush();
+
+        assertEquals(2, mFailedMsgs.size());
+        assertSame(second, mFailedMsgs.get(0));
+        assertEquals(ENOENT, (int) mFailedErrnos.get(0));
+        assertSame(third, mFailedMsgs.get(1));
+        assertEquals(ETIMEDOUT, (int) mFailedErrnos.get(1));
+        // The messages passed to the batcher are not modified.
+        assertArrayEquals(makeRequest(1000), first);
+    }
+
+    @Test
+    public void testAddFlushesFullBatch() throws Exception {
+        final int msgLen = makeRequest(0).length;
+        final TestBatcher batcher = new TestBatcher(2 * msgLen);
+        assertEquals(0, batcher.add(makeRequest(1000)));
+        assertEquals(0, batcher.add(makeRequest(1001)));
+        assertEquals(0, mSent.size());
+
+        mReplies.add(makeReply(2, 0));
+        assertEquals(2, batcher.add(makeRequest(1002)));
+        assertEquals(1, mSent.size());
+        assertEquals(1, batcher.getPendingCount());
+
+        mReplies.add(makeReply(3, 0));
+        assertEquals(1, batcher.flush());
+        assertEquals(2, mSent.size());
+        assertEquals(3, parseHeaders(mSent.get(1)).get(0).nlmsg_seq);
+    }
+
+    @Test
+    public void testFlushWithoutAckThrows() throws Exception {
+        final TestBatcher batcher = new TestBatcher(NetlinkMessageBatcher.DEFAULT_MAX_BATCH_BYTES);
+        batcher.add(makeRequest(1000));
+        batcher.add(makeRequest(1001));
+        // Only the first message failed; the ack of the last one never comes.
+        mReplies.add(makeReply(1, -ENOENT));
+
+        final ErrnoException e = assertThrows(ErrnoException.class, batcher::flush);
+        assertEquals(ETIMEDOUT, e.errno);
+        assertEquals(1, mFailedMsgs.size());
+        assertEquals(0, batcher.getPendingCount());
+    }
+}
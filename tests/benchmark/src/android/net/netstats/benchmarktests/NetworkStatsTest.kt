@@ -16,7 +16,15 @@
 
 package com.android.server.net.benchmarktests
 
+import android.net.NetworkStats
+import android.net.NetworkStats.DEFAULT_NETWORK_NO
+import android.net.NetworkStats.DEFAULT_NETWORK_YES
+import android.net.NetworkStats.IFACE_ALL
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.METERED_YES
 import android.net.NetworkStats.NonMonotonicObserver
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.ROAMING_YES
 import android.net.NetworkStatsCollection
 import android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID
 import android.os.DropBoxManager
@@ -47,6 +55,8 @@ class NetworkStatsTest {
         private val UID_RECORDER_ROTATE_AGE_MS = TimeUnit.DAYS.toMillis(15)
         private val UID_RECORDER_DELETE_AGE_MS = TimeUnit.DAYS.toMillis(90)
         private val TEST_DATASET_SUBFOLDER = "dataset/"
+        private val MANY_UIDS_DATASET = "netstats-many-uids.zip"
+        private val SUBTRACT_REPEAT_COUNT = 20
 
         // These files are generated by using real user dataset which has many uid records
         // and agreed to share the dataset for testing purpose. These dataset can be
@@ -61,6 +71,68 @@ class NetworkStatsTest {
             }
         }
 
+        // A snapshot with one row per uid/set/tag/network flags key found in the many-uids
+        // dataset, which is about the shape of what NetworkStatsService polls on such devices.
+        private val manyUidsSnapshot by lazy {
+            val zipInputStream =
+                ZipInputStream((TEST_DATASET_SUBFOLDER + MANY_UIDS_DATASET).toAssetInputStream())
+            val statsDir = File(unzipToTempDir(zipInputStream), "netstats")
+            val collection = NetworkStatsCollection(UID_COLLECTION_BUCKET_DURATION_MS)
+            for (file in getSortedListForPrefix(statsDir, "uid") +
+                    getSortedListForPrefix(statsDir, "uid_tag")) {
+                readFile(file, collection)
+            }
+            val snapshot = NetworkStats(0L, collection.entries.size)
+            collection.entries.forEach { (key, history) ->
+                val total = history.getValues(history.start, history.end, null)
+                snapshot.combineValues(NetworkStats.Entry(IFACE_ALL, key.uid, key.set, key.tag,
+                    if (key.ident.isAnyMemberMetered) METERED_YES else METERED_NO,
+                    if (key.ident.isAnyMemberRoaming) ROAMING_YES else ROAMING_NO,
+                    if (key.ident.areAllMembersOnDefaultNetwork()) {
+                        DEFAULT_NETWORK_YES
+                    } else {
+                        DEFAULT_NETWORK_NO
+                    },
+                    total.rxBytes, total.rxPackets, total.txBytes, total.txPackets,
+                    total.operations))
+            }
+            snapshot
+        }
+
+        // The same rows as manyUidsSnapshot in reverse order and with larger counters, so that
+        // row positions never line up with the older snapshot.
+        private val manyUidsLaterSnapshot by lazy {
+            val snapshot = NetworkStats(0L, manyUidsSnapshot.size())
+            val entry = NetworkStats.Entry()
+            for (i in manyUidsSnapshot.size() - 1 downTo 0) {
+                manyUidsSnapshot.getValues(i, entry)
+                entry.rxBytes += 1024
+                entry.txBytes += 1024
+                snapshot.insertEntry(entry)
+            }
+            snapshot
+        }
+
+        // The uid files of the many-uids dataset, rewritten in the indexed file format.
+        private val manyUidsIndexedFiles by lazy {
+            val zipInputStream =
+                ZipInputStream((TEST_DATASET_SUBFOLDER + MANY_UIDS_DATASET).toAssetInputStream())
+            val statsDir = File(unzipToTempDir(zipInputStream), "netstats")
+            getSortedListForPrefix(statsDir, "uid").map { file ->
+                val collection = NetworkStatsCollection(UID_COLLECTION_BUCKET_DURATION_MS)
+                readFile(file, collection)
+                collection.setUseIndexedFormat(true)
+                val indexedFile = File(statsDir, "indexed." + file.name)
+                FileOutputStream(indexedFile).use { collection.write(it) }
+                file to indexedFile
+            }
+        }
+
+        // A uid present in the many-uids dataset, used for single uid queries.
+        private val manyUidsQueryUid by lazy {
+            manyUidsSnapshot.getValues(manyUidsSnapshot.size() / 2, null).uid
+        }
+
         // Test results shows the test cases who read the file first will take longer time to
         // execute, and reading time getting shorter each time due to file caching mechanism.
         // Read files several times prior to tests to minimize the impact.
@@ -132,6 +204,29 @@ class NetworkStatsTest {
         }
     }
 
+    @Test
+    fun testReadCollection_manyUids_indexedFormat() {
+        manyUidsIndexedFiles.forEach { (_, indexedFile) ->
+            readFile(indexedFile, NetworkStatsCollection(UID_COLLECTION_BUCKET_DURATION_MS))
+        }
+    }
+
+    @Test
+    fun testReadMatchingUid_manyUids_unifiedFormat() {
+        manyUidsIndexedFiles.forEach { (file, _) -> readMatchingUid(file) }
+    }
+
+    @Test
+    fun testReadMatchingUid_manyUids_indexedFormat() {
+        manyUidsIndexedFiles.forEach { (_, indexedFile) -> readMatchingUid(indexedFile) }
+    }
+
+    private fun readMatchingUid(file: File) =
+        BufferedInputStream(file.inputStream()).use {
+            NetworkStatsCollection(UID_COLLECTION_BUCKET_DURATION_MS).readMatching(it,
+                null /* template */, manyUidsQueryUid, Long.MIN_VALUE, Long.MAX_VALUE)
+        }
+
     @Test
     fun testReadFromRecorder_manyUids_useDataInput() {
         doTestReadFromRecorder_manyUids(useFastDataInput = false)
@@ -163,5 +258,48 @@ class NetworkStatsTest {
         }
     }
 
+    @Test
+    fun testSubtract_manyUids_indexed() {
+        repeat(SUBTRACT_REPEAT_COUNT) {
+            manyUidsLaterSnapshot.subtract(manyUidsSnapshot)
+        }
+    }
+
+    // Baseline for testSubtract_manyUids_indexed, matching rows through the linear
+    // findIndexHinted scan that NetworkStats#subtract used before rows were indexed.
+    @Test
+    fun testSubtract_manyUids_linear() {
+        val left = manyUidsLaterSnapshot
+        val right = manyUidsSnapshot
+        repeat(SUBTRACT_REPEAT_COUNT) {
+            val result = NetworkStats(0L, left.size())
+            val entry = NetworkStats.Entry()
+            val rightEntry = NetworkStats.Entry()
+            for (i in 0 until left.size()) {
+                left.getValues(i, entry)
+                val j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
+                    entry.metered, entry.roaming, entry.defaultNetwork, i)
+                if (j != -1) {
+                    right.getValues(j, rightEntry)
+                    entry.rxBytes -= rightEntry.rxBytes
+                    entry.rxPackets -= rightEntry.rxPackets
+                    entry.txBytes -= rightEntry.txBytes
+                    entry.txPackets -= rightEntry.txPackets
+                    entry.operations -= rightEntry.operations
+                }
+                result.insertEntry(entry)
+            }
+        }
+    }
+
+    @Test
+    fun testCombineValues_manyUids() {
+        repeat(SUBTRACT_REPEAT_COUNT) {
+            val combined = NetworkStats(0L, 1)
+            combined.combineAllValues(manyUidsSnapshot)
+            combined.combineAllValues(manyUidsLaterSnapshot)
+        }
+    }
+
     inline fun <reified T> mock(): T = mock(T::class.java)
 }
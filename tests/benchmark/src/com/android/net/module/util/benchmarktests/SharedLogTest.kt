@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.benchmarktests
+
+import com.android.net.module.util.SharedLog
+import java.io.PrintWriter
+import java.io.StringWriter
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+// Logs in tight loops with the default SharedLog and with the ring buffer backend, approximating
+// high-rate callers such as mDNS packet handling. Formatting cost is only paid by the ring buffer
+// backend when dumping, which the dump tests measure separately.
+@RunWith(JUnit4::class)
+class SharedLogTest {
+    companion object {
+        private val REPEAT_COUNT = 100_000
+        private val MAX_RECORDS = 500
+        private val TAG = "SharedLogBenchmark"
+    }
+
+    private fun doTestLogf(log: SharedLog) {
+        val sub = log.forSubComponent("sub")
+        repeat(REPEAT_COUNT) {
+            sub.logf("Received packet of %d bytes on interface %s", it, "wlan0")
+        }
+    }
+
+    private fun doTestLogfFromThreads(log: SharedLog) {
+        val threads = List(4) {
+            Thread { doTestLogf(log) }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+    }
+
+    private fun doTestDump(log: SharedLog) {
+        doTestLogf(log)
+        repeat(100) {
+            PrintWriter(StringWriter()).use { log.dump(null /* fd */, it, null /* args */) }
+        }
+    }
+
+    @Test
+    fun testLogf_localLog() {
+        doTestLogf(SharedLog(MAX_RECORDS, TAG))
+    }
+
+    @Test
+    fun testLogf_ringBufferLog() {
+        doTestLogf(SharedLog.newRingBufferLog(MAX_RECORDS, TAG))
+    }
+
+    @Test
+    fun testLogfFromThreads_localLog() {
+        doTestLogfFromThreads(SharedLog(MAX_RECORDS, TAG))
+    }
+
+    @Test
+    fun testLogfFromThreads_ringBufferLog() {
+        doTestLogfFromThreads(SharedLog.newRingBufferLog(MAX_RECORDS, TAG))
+    }
+
+    @Test
+    fun testDump_localLog() {
+        doTestDump(SharedLog(MAX_RECORDS, TAG))
+    }
+
+    @Test
+    fun testDump_ringBufferLog() {
+        doTestDump(SharedLog.newRingBufferLog(MAX_RECORDS, TAG))
+    }
+}
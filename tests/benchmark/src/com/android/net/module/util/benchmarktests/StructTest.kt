@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.benchmarktests
+
+import android.net.MacAddress
+import android.net.UidOwnerValue
+import com.android.net.module.util.Struct
+import com.android.net.module.util.bpf.Tether4Key
+import com.android.net.module.util.netlink.StructNlMsgHdr
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+// Parses and serializes structs in tight loops, approximating a BPF map iteration
+// (Tether4Key, UidOwnerValue) or a netlink dump (StructNlMsgHdr, which is hand-written and
+// serves as the lower bound for what Struct could achieve).
+@RunWith(JUnit4::class)
+class StructTest {
+    companion object {
+        private val REPEAT_COUNT = 10_000
+
+        private val TETHER4_KEY = Tether4Key(
+            123 /* iif */,
+            MacAddress.fromString("12:34:56:78:9a:bc"),
+            6 /* l4proto, IPPROTO_TCP */,
+            byteArrayOf(192.toByte(), 168.toByte(), 80, 12),
+            byteArrayOf(8, 8, 8, 8),
+            62449 /* srcPort */,
+            443 /* dstPort */
+        )
+        private val UID_OWNER_VALUE = UidOwnerValue(0 /* iif */, 0x42L /* rule */)
+        private val NL_MSG_HDR = StructNlMsgHdr(
+            64 /* payloadLen */,
+            20 /* type */,
+            StructNlMsgHdr.NLM_F_REQUEST_ACK,
+            1 /* seq */
+        )
+    }
+
+    private fun <T : Struct> doTestParseAndWrite(clazz: Class<T>, value: T) {
+        val bytes = value.writeToBytes(ByteOrder.nativeOrder())
+        val output = ByteBuffer.allocate(bytes.size).order(ByteOrder.nativeOrder())
+        repeat(REPEAT_COUNT) {
+            val input = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder())
+            val parsed = Struct.parse(clazz, input)
+            output.clear()
+            parsed.writeToByteBuffer(output)
+        }
+    }
+
+    @Test
+    fun testParseAndWrite_tether4Key() {
+        doTestParseAndWrite(Tether4Key::class.java, TETHER4_KEY)
+    }
+
+    @Test
+    fun testParseAndWrite_uidOwnerValue() {
+        doTestParseAndWrite(UidOwnerValue::class.java, UID_OWNER_VALUE)
+    }
+
+    @Test
+    fun testParseAndWrite_structNlMsgHdr() {
+        val output = ByteBuffer.allocate(StructNlMsgHdr.STRUCT_SIZE).order(ByteOrder.nativeOrder())
+        NL_MSG_HDR.pack(output)
+        val bytes = output.array()
+        repeat(REPEAT_COUNT) {
+            val input = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder())
+            val parsed = StructNlMsgHdr.parse(input)!!
+            output.clear()
+            parsed.pack(output)
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// FullScore's constructor is package-private.
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_MMS
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_VCN_MANAGED
+import android.net.NetworkCapabilities.TRANSPORT_BLUETOOTH
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.net.NetworkScore.KEEP_CONNECTED_NONE
+import android.util.Log
+import com.android.server.connectivity.FullScore.POLICY_EVER_EVALUATED
+import com.android.server.connectivity.FullScore.POLICY_IS_VALIDATED
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private val TAG = NetworkRematchTest::class.simpleName
+
+// Measures the cost of rematching requests when the score of one network changes, depending on
+// the number of registered requests and connected networks. Each request is matched the way
+// ConnectivityService#computeNetworkReassignment does, either for all requests or only for the
+// requests served by the network and the candidates found through NetworkRequestIndex.
+// ConnectivityService itself can't be created in this test app, so the time spent sending
+// callbacks and updating netd is not measured.
+@RunWith(JUnit4::class)
+class NetworkRematchTest {
+    companion object {
+        private const val REMATCH_COUNT = 1000
+        private val TRANSPORTS = intArrayOf(TRANSPORT_WIFI, TRANSPORT_CELLULAR,
+            TRANSPORT_ETHERNET, TRANSPORT_BLUETOOTH)
+        private val VALIDATED = score(POLICY_EVER_EVALUATED, POLICY_IS_VALIDATED)
+        private val UNVALIDATED = score(POLICY_EVER_EVALUATED)
+
+        private fun score(vararg policies: Int) = FullScore(
+            policies.fold(0L) { acc, e -> acc or (1L shl e) }, KEEP_CONNECTED_NONE)
+    }
+
+    private class TestNetwork(val nc: NetworkCapabilities, var fullScore: FullScore) :
+            NetworkRanker.Scoreable {
+        // Requests that this network currently satisfies.
+        val served = HashSet<TestRequest>()
+        override fun getScore() = fullScore
+        override fun getCapsNoCopy() = nc
+    }
+
+    private class TestRequest(val request: NetworkRequest) {
+        var satisfier: TestNetwork? = null
+    }
+
+    private class Scenario(requestCount: Int, networkCount: Int) {
+        private val ranker = NetworkRanker(
+            NetworkRanker.Configuration(false /* activelyPreferBadWifi */))
+        private val index = NetworkRequestIndex<TestRequest>()
+        private val candidates = ArrayList<TestNetwork>()
+        val networks = List(networkCount) {
+            val transport = TRANSPORTS[it % TRANSPORTS.size]
+            val nc = NetworkCapabilities.Builder()
+                .addTransportType(transport)
+                .addCapability(NET_CAPABILITY_INTERNET)
+                .addCapability(NET_CAPABILITY_NOT_VCN_MANAGED)
+                .apply { if (transport == TRANSPORT_CELLULAR) addCapability(NET_CAPABILITY_MMS) }
+                .build()
+            TestNetwork(nc, VALIDATED)
+        }
+        // Most apps request any network with internet, some ask for a transport, and a few
+        // request cellular MMS.
+        val requests = List(requestCount) {
+            val builder = NetworkRequest.Builder()
+            when (it % 10) {
+                in 0..4 -> builder.addCapability(NET_CAPABILITY_INTERNET)
+                9 -> builder.addTransportType(TRANSPORT_CELLULAR)
+                    .addCapability(NET_CAPABILITY_MMS)
+                else -> builder.addTransportType(TRANSPORTS[it % TRANSPORTS.size])
+                    .addCapability(NET_CAPABILITY_INTERNET)
+            }
+            TestRequest(builder.build())
+        }
+
+        init {
+            requests.forEach { index.add(it, listOf(it.request)) }
+            rematch(requests)
+        }
+
+        private fun rematch(toRematch: Collection<TestRequest>) {
+            for (req in toRematch) {
+                candidates.clear()
+                networks.filterTo(candidates) { req.request.canBeSatisfiedBy(it.nc) }
+                val best = when (candidates.size) {
+                    0 -> null
+                    1 -> candidates[0]
+                    else -> ranker.getBestNetworkByPolicy(candidates, req.satisfier)
+                }
+                if (best === req.satisfier) continue
+                req.satisfier?.served?.remove(req)
+                best?.served?.add(req)
+                req.satisfier = best
+            }
+        }
+
+        // Index of the network satisfying the given request, or -1 if none.
+        fun satisfierIndex(request: Int) =
+            requests[request].satisfier?.let { networks.indexOf(it) } ?: -1
+
+        // Toggle the validation of a network and rematch.
+        fun updateNetwork(i: Int, incremental: Boolean) {
+            val network = networks[i % networks.size]
+            network.fullScore = if (network.fullScore === VALIDATED) UNVALIDATED else VALIDATED
+            if (!incremental) {
+                rematch(requests)
+                return
+            }
+            val toRematch = HashSet<TestRequest>(network.served)
+            index.collectCandidates(network.nc, toRematch)
+            rematch(toRematch)
+        }
+    }
+
+    private fun measureRematchUs(scenario: Scenario, incremental: Boolean): Long {
+        val start = System.nanoTime()
+        for (i in 0 until REMATCH_COUNT) {
+            scenario.updateNetwork(i, incremental)
+        }
+        return (System.nanoTime() - start) / 1000 / REMATCH_COUNT
+    }
+
+    private fun doTestRematch(requestCount: Int, networkCount: Int) {
+        val full = Scenario(requestCount, networkCount)
+        val incremental = Scenario(requestCount, networkCount)
+        val fullUs = measureRematchUs(full, incremental = false)
+        val incrementalUs = measureRematchUs(incremental, incremental = true)
+        Log.i(TAG, "$requestCount requests, $networkCount networks: ${fullUs}us per full " +
+                "rematch, ${incrementalUs}us per incremental rematch")
+
+        // Both rematches must assign the same networks.
+        for (i in 0 until requestCount) {
+            assertEquals(full.satisfierIndex(i), incremental.satisfierIndex(i))
+        }
+    }
+
+    @Test
+    fun testRematch_100Requests_4Networks() = doTestRematch(100, 4)
+
+    @Test
+    fun testRematch_1000Requests_4Networks() = doTestRematch(1000, 4)
+
+    @Test
+    fun testRematch_1000Requests_16Networks() = doTestRematch(1000, 16)
+}
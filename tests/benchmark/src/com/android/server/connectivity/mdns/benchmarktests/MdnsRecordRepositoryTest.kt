@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.LinkAddress
+import android.net.nsd.NsdServiceInfo
+import android.os.Looper
+import com.android.server.connectivity.mdns.MdnsFeatureFlags
+import com.android.server.connectivity.mdns.MdnsInetAddressRecord
+import com.android.server.connectivity.mdns.MdnsPacket
+import com.android.server.connectivity.mdns.MdnsPacketReader
+import com.android.server.connectivity.mdns.MdnsPointerRecord
+import com.android.server.connectivity.mdns.MdnsRecord
+import com.android.server.connectivity.mdns.MdnsRecordRepository
+import com.android.server.connectivity.mdns.MdnsServiceRecord
+import com.android.server.connectivity.mdns.MdnsTextRecord
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import java.net.InetSocketAddress
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+// Replays query packets against a responder advertising many services, as a Thread border router
+// or another hub publishing services on behalf of many devices would.
+@RunWith(JUnit4::class)
+class MdnsRecordRepositoryTest {
+    companion object {
+        private const val SERVICE_COUNT = 1_000
+        private const val SERVICE_TYPE_COUNT = 10
+        private const val REPEAT_COUNT = 1_000
+        private val HOSTNAME = arrayOf("Android_000102030405060708090A0B0C0D0E0F", "local")
+        private val ADDRESSES = listOf(
+            LinkAddress(parseNumericAddress("192.0.2.111"), 24),
+            LinkAddress(parseNumericAddress("2001:db8::111"), 64))
+        private val SRC = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+
+        private fun serviceType(index: Int) = "_type${index % SERVICE_TYPE_COUNT}._tcp"
+        private fun serviceName(index: Int) = "Service $index"
+    }
+
+    private val flags = MdnsFeatureFlags.newBuilder().setIsUnicastReplyEnabled(true).build()
+    private val repository = MdnsRecordRepository(
+        Looper.getMainLooper(), HOSTNAME, flags)
+    private val packetBuffer = ByteArray(1500)
+
+    @Before
+    fun setUp() {
+        repository.updateAddresses(ADDRESSES)
+        for (i in 0 until SERVICE_COUNT) {
+            repository.addService(i, NsdServiceInfo().apply {
+                serviceType = serviceType(i)
+                serviceName = serviceName(i)
+                port = 1000 + i
+                hostname = "host$i"
+                hostAddresses = listOf(parseNumericAddress("2001:db8::${i.toString(16)}"))
+            }, null /* ttl */)
+            repository.onProbingSucceeded(repository.setServiceProbing(i))
+        }
+    }
+
+    // Questions request unicast replies so that repeated replies are not throttled.
+    private fun makeQueryBytes(vararg questions: MdnsRecord): ByteArray {
+        val packet = MdnsPacket(0 /* flags */, questions.toList(), emptyList() /* answers */,
+            emptyList() /* authorityRecords */, emptyList() /* additionalRecords */)
+        return MdnsUtils.createRawDnsPacket(packetBuffer, packet)
+    }
+
+    private fun doTestReplay(query: ByteArray) {
+        repeat(REPEAT_COUNT) {
+            val packet = MdnsPacket.parse(MdnsPacketReader(query, query.size, flags))
+            repository.getReply(packet, SRC)
+        }
+    }
+
+    @Test
+    fun testGetReply_ptrQuestion() {
+        doTestReplay(makeQueryBytes(
+            MdnsPointerRecord(arrayOf("_type3", "_tcp", "local"), true /* isUnicast */)))
+    }
+
+    @Test
+    fun testGetReply_srvTxtQuestions() {
+        val name = arrayOf(serviceName(42), "_type2", "_tcp", "local")
+        doTestReplay(makeQueryBytes(
+            MdnsServiceRecord(name, true /* isUnicast */),
+            MdnsTextRecord(name, true /* isUnicast */)))
+    }
+
+    @Test
+    fun testGetReply_addressQuestion() {
+        doTestReplay(makeQueryBytes(MdnsInetAddressRecord(
+            arrayOf("host42", "local"), MdnsRecord.TYPE_AAAA, true /* isUnicast */)))
+    }
+
+    @Test
+    fun testGetReply_noMatch() {
+        doTestReplay(makeQueryBytes(
+            MdnsPointerRecord(arrayOf("_unknown", "_udp", "local"), true /* isUnicast */)))
+    }
+}
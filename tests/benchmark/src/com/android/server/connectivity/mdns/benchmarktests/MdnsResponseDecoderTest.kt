@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.InetAddresses.parseNumericAddress
+import android.os.Debug
+import android.util.Log
+import com.android.server.connectivity.mdns.MdnsConstants
+import com.android.server.connectivity.mdns.MdnsFeatureFlags
+import com.android.server.connectivity.mdns.MdnsInetAddressRecord
+import com.android.server.connectivity.mdns.MdnsPacket
+import com.android.server.connectivity.mdns.MdnsPointerRecord
+import com.android.server.connectivity.mdns.MdnsResponseDecoder
+import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry
+import com.android.server.connectivity.mdns.MdnsServiceRecord
+import com.android.server.connectivity.mdns.MdnsTextRecord
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private val TAG = MdnsResponseDecoderTest::class.simpleName
+
+// Parses the kind of announcement that Cast or AirPlay devices repeat on busy links, and logs
+// the number of objects allocated per packet.
+@RunWith(JUnit4::class)
+class MdnsResponseDecoderTest {
+    companion object {
+        private const val REPEAT_COUNT = 10_000
+        private const val TTL = 120_000L
+        private val SERVICE_TYPE = arrayOf("_googlecast", "_tcp", "local")
+        private val SERVICE_NAME = arrayOf("Living-Room-TV-0123456789abcdef") + SERVICE_TYPE
+        private val HOSTNAME = arrayOf("0123456789abcdef", "local")
+    }
+
+    private val flags = MdnsFeatureFlags.newBuilder().build()
+
+    private fun makeResponseBytes(): ByteArray {
+        val answers = listOf(
+            MdnsPointerRecord(SERVICE_TYPE, 0L, false /* cacheFlush */, TTL, SERVICE_NAME),
+            MdnsServiceRecord(SERVICE_NAME, 0L, true /* cacheFlush */, TTL, 0 /* priority */,
+                0 /* weight */, 8009 /* port */, HOSTNAME),
+            MdnsTextRecord(SERVICE_NAME, 0L, true /* cacheFlush */, TTL, listOf(
+                TextEntry("id", "0123456789abcdef0123456789abcdef"),
+                TextEntry("md", "Chromecast"),
+                TextEntry("fn", "Living Room TV"))),
+            MdnsInetAddressRecord(HOSTNAME, 0L, true /* cacheFlush */, TTL,
+                parseNumericAddress("192.0.2.10")),
+            MdnsInetAddressRecord(HOSTNAME, 0L, true /* cacheFlush */, TTL,
+                parseNumericAddress("2001:db8::10")))
+        val packet = MdnsPacket(MdnsConstants.FLAGS_RESPONSE, emptyList() /* questions */,
+            answers, emptyList() /* authorityRecords */, emptyList() /* additionalRecords */)
+        return MdnsUtils.createRawDnsPacket(ByteArray(1500), packet)
+    }
+
+    @Test
+    @Suppress("DEPRECATION")
+    fun testParseResponse() {
+        val bytes = makeResponseBytes()
+        // Warm up so that one-time allocations (such as interned labels) are not counted.
+        MdnsResponseDecoder.parseResponse(bytes, bytes.size, flags)
+
+        Debug.resetThreadAllocCount()
+        Debug.startAllocCounting()
+        repeat(REPEAT_COUNT) {
+            MdnsResponseDecoder.parseResponse(bytes, bytes.size, flags)
+        }
+        Debug.stopAllocCounting()
+        Log.i(TAG, "Allocations per packet: " + Debug.getThreadAllocCount() / REPEAT_COUNT)
+    }
+}
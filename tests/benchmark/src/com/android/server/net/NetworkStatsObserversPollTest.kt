@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// NetworkStatsObservers is package-private.
+package com.android.server.net
+
+import android.content.Context
+import android.net.ConnectivityManager.TYPE_MOBILE
+import android.net.ConnectivityManager.TYPE_WIFI
+import android.net.DataUsageRequest
+import android.net.NetworkIdentity
+import android.net.NetworkIdentitySet
+import android.net.NetworkStats
+import android.net.NetworkStats.DEFAULT_NETWORK_YES
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.SET_FOREGROUND
+import android.net.NetworkStats.TAG_NONE
+import android.net.NetworkStatsAccess
+import android.net.NetworkTemplate
+import android.net.NetworkTemplate.MATCH_MOBILE
+import android.net.NetworkTemplate.MATCH_WIFI
+import android.net.netstats.IUsageCallback
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Process
+import android.telephony.TelephonyManager
+import android.util.ArrayMap
+import android.util.Log
+import com.android.testutils.waitForIdle
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.mockito.Mockito.mock
+
+private val TAG = NetworkStatsObserversPollTest::class.simpleName
+
+// Measures the cost of a stats poll for NetworkStatsObservers, depending on the number of
+// registered observers. Snapshots have about the number of rows seen on devices with many apps.
+@RunWith(JUnit4::class)
+class NetworkStatsObserversPollTest {
+    companion object {
+        private const val POLL_COUNT = 200
+        private const val UID_COUNT = 1000
+        private const val FIRST_UID = Process.FIRST_APPLICATION_UID
+        private const val WAIT_TIMEOUT_MS = 10_000L
+        // Large enough that observers never reach it, so no time is spent in callbacks.
+        private const val THRESHOLD_BYTES = Long.MAX_VALUE / 2
+        private const val IMSI = "310004"
+        private const val WIFI_IFACE = "wlan0"
+        private const val MOBILE_IFACE = "rmnet0"
+
+        private val TEMPLATES = listOf(
+            NetworkTemplate.Builder(MATCH_WIFI).build(),
+            NetworkTemplate.Builder(MATCH_MOBILE).setSubscriberIds(setOf(IMSI)).build(),
+            NetworkTemplate.Builder(MATCH_MOBILE).build())
+        private val ACCESS_LEVELS = listOf(
+            NetworkStatsAccess.Level.DEFAULT,
+            NetworkStatsAccess.Level.USER,
+            NetworkStatsAccess.Level.DEVICESUMMARY,
+            NetworkStatsAccess.Level.DEVICE)
+    }
+
+    private val context = mock(Context::class.java)
+    private val handlerThread = HandlerThread(TAG)
+    private lateinit var observers: NetworkStatsObservers
+    private val ifaces = ArrayMap<String, NetworkIdentitySet>()
+
+    private class NoopUsageCallback : IUsageCallback.Stub() {
+        override fun onThresholdReached(request: DataUsageRequest) {}
+        override fun onCallbackReleased(request: DataUsageRequest) {}
+    }
+
+    @Before
+    fun setUp() {
+        handlerThread.start()
+        observers = object : NetworkStatsObservers() {
+            override fun getHandlerLooperLocked(): Looper = handlerThread.looper
+        }
+        ifaces[WIFI_IFACE] = NetworkIdentitySet().apply {
+            add(NetworkIdentity.Builder().setType(TYPE_WIFI).setWifiNetworkKey("AndroidAP")
+                .setDefaultNetwork(true).build())
+        }
+        ifaces[MOBILE_IFACE] = NetworkIdentitySet().apply {
+            add(NetworkIdentity.Builder().setType(TYPE_MOBILE).setSubscriberId(IMSI)
+                .setRatType(TelephonyManager.NETWORK_TYPE_LTE).setMetered(true).build())
+        }
+    }
+
+    @After
+    fun tearDown() {
+        handlerThread.quitSafely()
+        handlerThread.join()
+    }
+
+    private fun registerObservers(count: Int) {
+        repeat(count) { i ->
+            val request = DataUsageRequest(DataUsageRequest.REQUEST_ID_UNSET,
+                TEMPLATES[i % TEMPLATES.size], THRESHOLD_BYTES)
+            observers.register(context, request, NoopUsageCallback(), 0 /* callingPid */,
+                FIRST_UID + i % UID_COUNT, "com.example.app$i",
+                ACCESS_LEVELS[i % ACCESS_LEVELS.size])
+        }
+    }
+
+    // One row per uid, interface and foreground state, with counters growing at each poll.
+    private fun makeUidSnapshot(poll: Int): NetworkStats {
+        val snapshot = NetworkStats(0L, UID_COUNT * ifaces.size * 2)
+        for (uid in FIRST_UID until FIRST_UID + UID_COUNT) {
+            for (iface in ifaces.keys) {
+                for (set in listOf(SET_DEFAULT, SET_FOREGROUND)) {
+                    val bytes = 1024L * (poll + 1)
+                    snapshot.insertEntry(iface, uid, set, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, bytes, 1L, bytes, 1L, 0L)
+                }
+            }
+        }
+        return snapshot
+    }
+
+    private fun makeXtSnapshot(poll: Int): NetworkStats {
+        val snapshot = NetworkStats(0L, ifaces.size)
+        val bytes = 1024L * UID_COUNT * (poll + 1)
+        for (iface in ifaces.keys) {
+            snapshot.insertEntry(iface, bytes, 1L, bytes, 1L)
+        }
+        return snapshot
+    }
+
+    private fun doTestPoll(observerCount: Int) {
+        registerObservers(observerCount)
+        // Build the snapshots beforehand so that only the time spent by observers is measured.
+        val xtSnapshots = List(POLL_COUNT) { makeXtSnapshot(it) }
+        val uidSnapshots = List(POLL_COUNT) { makeUidSnapshot(it) }
+        handlerThread.waitForIdle(WAIT_TIMEOUT_MS)
+
+        val start = System.nanoTime()
+        for (i in 0 until POLL_COUNT) {
+            observers.updateStats(xtSnapshots[i], uidSnapshots[i], ifaces, ifaces,
+                0L /* currentTime */)
+        }
+        handlerThread.waitForIdle(WAIT_TIMEOUT_MS)
+        val elapsedUs = (System.nanoTime() - start) / 1000
+        Log.i(TAG, "$observerCount observers: ${elapsedUs / POLL_COUNT}us per poll")
+    }
+
+    @Test
+    fun testPoll_1Observer() = doTestPoll(1)
+
+    @Test
+    fun testPoll_10Observers() = doTestPoll(10)
+
+    @Test
+    fun testPoll_100Observers() = doTestPoll(100)
+}
@@ -27,7 +27,9 @@ import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.net.NetworkTemplate.MATCH_MOBILE;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -228,6 +230,90 @@ public class NetworkStatsCollectionTest {
         assertCollectionEntries(legacyCollection.getEntries(), fastReadCollection);
     }
 
+    @Test
+    public void testIndexedFormatRoundTrip() throws Exception {
+        final NetworkStatsCollection legacyCollection =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        legacyCollection.read(getUidInputStreamFromRes(R.raw.netstats_uid_v4));
+
+        // Write in the indexed format, then back to the unified format.
+        legacyCollection.setUseIndexedFormat(true);
+        final NetworkStatsCollection indexedCollection =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        indexedCollection.read(new ByteArrayInputStream(toBytes(legacyCollection)));
+        assertCollectionEntries(legacyCollection.getEntries(), indexedCollection);
+        assertEquals(legacyCollection.getStartMillis(), indexedCollection.getStartMillis());
+        assertEquals(legacyCollection.getEndMillis(), indexedCollection.getEndMillis());
+        assertEquals(legacyCollection.getTotalBytes(), indexedCollection.getTotalBytes());
+
+        final NetworkStatsCollection unifiedCollection =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS, true /* useFastDataInput */);
+        unifiedCollection.read(new ByteArrayInputStream(toBytes(indexedCollection)));
+        assertCollectionEntries(legacyCollection.getEntries(), unifiedCollection);
+    }
+
+    @Test
+    public void testReadMatching() throws Exception {
+        final NetworkIdentity mobileIdent = new NetworkIdentity.Builder()
+                .setType(TYPE_MOBILE).setSubscriberId(TEST_IMSI).build();
+        final NetworkIdentity wifiIdent = new NetworkIdentity.Builder()
+                .setType(ConnectivityManager.TYPE_WIFI).build();
+        final Key mobileKey1 = new Key(Set.of(mobileIdent), 1, SET_DEFAULT, TAG_NONE);
+        final Key mobileKey2 = new Key(Set.of(mobileIdent), 2, SET_DEFAULT, TAG_NONE);
+        final Key wifiKey1 = new Key(Set.of(wifiIdent), 1, SET_DEFAULT, TAG_NONE);
+        final NetworkStatsHistory early = new NetworkStatsHistory.Builder(10, 5)
+                .addEntry(new NetworkStatsHistory.Entry(10, 10, 40, 4, 50, 5, 60))
+                .build();
+        final NetworkStatsHistory late = new NetworkStatsHistory.Builder(10, 5)
+                .addEntry(new NetworkStatsHistory.Entry(100, 10, 3, 41, 7, 1, 0))
+                .addEntry(new NetworkStatsHistory.Entry(110, 10, 1, 21, 70, 4, 1))
+                .build();
+        final NetworkStatsCollection collection = new NetworkStatsCollection.Builder(10)
+                .addEntry(mobileKey1, early)
+                .addEntry(mobileKey2, late)
+                .addEntry(wifiKey1, late)
+                .build();
+        final NetworkTemplate mobileTemplate = new NetworkTemplate.Builder(MATCH_MOBILE)
+                .setSubscriberIds(Set.of(TEST_IMSI)).build();
+
+        for (boolean indexed : new boolean[] {false, true}) {
+            collection.setUseIndexedFormat(indexed);
+            final byte[] bytes = toBytes(collection);
+
+            // FastDataInput does not support skipping bytes, check that it can skip histories.
+            for (boolean fastDataInput : new boolean[] {false, true}) {
+                final Map<Key, NetworkStatsHistory> expected = new ArrayMap<>();
+                expected.put(mobileKey1, early);
+                assertCollectionEntries(expected, readMatching(bytes, fastDataInput,
+                        mobileTemplate, 1, Long.MIN_VALUE, Long.MAX_VALUE));
+
+                expected.clear();
+                expected.put(mobileKey2, late);
+                expected.put(wifiKey1, late);
+                assertCollectionEntries(expected, readMatching(bytes, fastDataInput,
+                        null /* template */, UID_ALL, 50, Long.MAX_VALUE));
+
+                expected.clear();
+                assertCollectionEntries(expected,
+                        readMatching(bytes, fastDataInput, mobileTemplate, 1, 50, 200));
+            }
+        }
+    }
+
+    private static byte[] toBytes(NetworkStatsCollection collection) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(bos);
+        return bos.toByteArray();
+    }
+
+    private static NetworkStatsCollection readMatching(byte[] bytes, boolean useFastDataInput,
+            NetworkTemplate template, int uid, long start, long end) throws Exception {
+        final NetworkStatsCollection collection =
+                new NetworkStatsCollection(10, useFastDataInput);
+        collection.readMatching(new ByteArrayInputStream(bytes), template, uid, start, end);
+        return collection;
+    }
+
     @Test
     public void testStartEndAtomicBuckets() throws Exception {
         final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
@@ -304,6 +390,66 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testQueriesFollowMutations() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkTemplate mobileTemplate = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet wifiIdent = new NetworkIdentitySet();
+        wifiIdent.add(new NetworkIdentity.Builder().setType(ConnectivityManager.TYPE_WIFI)
+                .build());
+        final NetworkIdentitySet mobileIdent = new NetworkIdentitySet();
+        mobileIdent.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI).build());
+        final int uid1 = myUid();
+        final int uid2 = myUid() + 1;
+
+        entry.rxBytes = 16;
+        collection.recordData(wifiIdent, uid1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        assertSummaryTotal(collection, mobileTemplate, 0, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // An identity set recorded after the template was queried is seen by later queries.
+        entry.rxBytes = 32;
+        collection.recordData(mobileIdent, uid1, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(mobileIdent, uid2, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        collection.recordData(mobileIdent, uid2, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS, entry);
+        assertSummaryTotal(collection, mobileTemplate, 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotalIncludingTags(collection, mobileTemplate, 32 + 64 + 64, 0, 0, 0);
+        assertEquals(32, getHistory(collection, mobileTemplate, uid1).getTotalBytes());
+        assertEquals(64, getHistory(collection, mobileTemplate, uid2).getTotalBytes());
+        assertArrayEquals(new int[] { uid1, uid2 },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE, uid1));
+
+        // Removed UIDs are moved to UID_REMOVED, dropping their tagged traffic.
+        collection.removeUids(new int[] { uid2 });
+        assertEquals(0, getHistory(collection, mobileTemplate, uid2).getTotalBytes());
+        assertEquals(64, getHistory(collection, mobileTemplate, UID_REMOVED).getTotalBytes());
+        assertSummaryTotalIncludingTags(collection, mobileTemplate, 32 + 64, 0, 0, 0);
+        assertArrayEquals(new int[] { UID_REMOVED, uid1 },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE, uid1));
+
+        // Once all its histories are removed, an identity set is no longer matched.
+        collection.removeHistoryBefore(HOUR_IN_MILLIS);
+        assertSummaryTotal(collection, mobileTemplate, 0, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertArrayEquals(new int[0],
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE, uid1));
+
+        entry.rxBytes = 128;
+        collection.recordData(mobileIdent, uid1, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                2 * HOUR_IN_MILLIS, entry);
+        assertSummaryTotal(collection, mobileTemplate, 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        collection.reset();
+        assertSummaryTotal(collection, mobileTemplate, 0, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertEquals(0, getHistory(collection, mobileTemplate, uid1).getTotalBytes());
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =
@@ -674,6 +820,12 @@ public class NetworkStatsCollectionTest {
                 SET_ALL, TAG_NONE, FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE, myUid());
     }
 
+    private static NetworkStatsHistory getHistory(NetworkStatsCollection collection,
+            NetworkTemplate template, int uid) {
+        return collection.getHistory(template, null /* augmentPlan */, uid, SET_ALL, TAG_NONE,
+                FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, uid);
+    }
+
     private static void assertSummaryTotal(NetworkStatsCollection collection,
             NetworkTemplate template, long rxBytes, long rxPackets, long txBytes, long txPackets,
             @NetworkStatsAccess.Level int accessLevel) {
@@ -22,6 +22,7 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_UID;
@@ -29,6 +30,7 @@ import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FIL
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_XT;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.doThrow;
@@ -42,6 +44,7 @@ import android.annotation.NonNull;
 import android.net.NetworkIdentity;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
 import android.net.NetworkStatsCollection;
 import android.os.DropBoxManager;
 
@@ -64,6 +67,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -74,6 +78,7 @@ public final class NetworkStatsRecorderTest {
     private static final String TEST_PREFIX = "test";
     private static final int TEST_UID1 = 1234;
     private static final int TEST_UID2 = 1235;
+    private static final String TEST_IFACE = "wlan0";
 
     @Mock private DropBoxManager mDropBox;
     @Mock private NetworkStats.NonMonotonicObserver mObserver;
@@ -206,6 +211,41 @@ public final class NetworkStatsRecorderTest {
         );
     }
 
+    @Test
+    public void testGetOrLoadPartialForUid() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().build());
+        final Map<String, NetworkIdentitySet> ifaceIdent = Map.of(TEST_IFACE, identSet);
+        final long now = System.currentTimeMillis();
+
+        final NetworkStatsRecorder writer = buildRecorder(statsDir);
+        writer.setUseIndexedFileFormat(true);
+        // The first snapshot is only used as a reference for the next one.
+        writer.recordSnapshotLocked(new NetworkStats(0L, 0), ifaceIdent, now);
+        writer.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 2)
+                .insertEntry(TEST_IFACE, TEST_UID1, SET_DEFAULT, TAG_NONE, 100L, 1L, 200L, 2L, 0L)
+                .insertEntry(TEST_IFACE, TEST_UID2, SET_DEFAULT, TAG_NONE, 300L, 3L, 400L, 4L, 0L),
+                ifaceIdent, now);
+        writer.forcePersistLocked(now);
+
+        // Only the histories of the requested UID are loaded from disk.
+        final NetworkStatsRecorder reader = buildRecorder(statsDir);
+        final NetworkStatsCollection partial = reader.getOrLoadPartialLocked(
+                null /* template */, TEST_UID1, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertArrayEquals(new int[] {TEST_UID1},
+                partial.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertArrayEquals(new int[] {TEST_UID1, TEST_UID2},
+                reader.getOrLoadCompleteLocked().getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+    }
+
+    private NetworkStatsRecorder buildRecorder(@NonNull File statsDir) {
+        return new NetworkStatsRecorder(
+                new FileRotator(statsDir, TEST_PREFIX, DAY_IN_MILLIS, 30 * DAY_IN_MILLIS),
+                mObserver, mDropBox, TEST_PREFIX, HOUR_IN_MILLIS, false /* includeTags */,
+                true /* wipeOnError */, false /* useFastDataInput */, statsDir);
+    }
+
     private void write(@NonNull File baseDir, @NonNull String name,
                        @NonNull String value) throws IOException {
         final DataOutputStream out = new DataOutputStream(
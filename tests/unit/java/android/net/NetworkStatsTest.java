@@ -146,6 +146,44 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testFindIndex_manyRows() {
+        final int rowCount = 200;
+        final NetworkStats stats = new NetworkStats(TEST_START, 1);
+        for (int i = 0; i < rowCount; i++) {
+            stats.insertEntry(i % 2 == 0 ? TEST_IFACE : TEST_IFACE2, 1000 + i, SET_DEFAULT,
+                    TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, i, 1L, 0L, 0L, 0L);
+        }
+        // A duplicate key must not shadow the first matching row.
+        stats.insertEntry(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 0L);
+
+        for (int i = 0; i < rowCount; i++) {
+            assertEquals(i, stats.findIndex(i % 2 == 0 ? TEST_IFACE : TEST_IFACE2, 1000 + i,
+                    SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE2, 1000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE, METERED_YES,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // Rows inserted after the index was built are found too.
+        stats.insertEntry(null, 5000, SET_FOREGROUND, 0xF00D, METERED_YES, ROAMING_YES,
+                DEFAULT_NETWORK_YES, 0L, 0L, 0L, 0L, 0L);
+        assertEquals(rowCount + 1, stats.findIndex(null, 5000, SET_FOREGROUND, 0xF00D,
+                METERED_YES, ROAMING_YES, DEFAULT_NETWORK_YES));
+
+        // Filtering moves rows, so lookups must reflect the new positions.
+        stats.filter(UID_ALL, new String[] { TEST_IFACE2 }, TAG_ALL);
+        assertEquals(rowCount / 2, stats.size());
+        for (int i = 0; i < stats.size(); i++) {
+            assertEquals(i, stats.findIndex(TEST_IFACE2, 1001 + 2 * i, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+    }
+
     @Test
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
@@ -300,6 +338,30 @@ public class NetworkStatsTest {
         assertEquals(4L, result.getTotalBytes());
     }
 
+    @Test
+    public void testSubtractManyRows() throws Exception {
+        final int rowCount = 500;
+        final NetworkStats before = new NetworkStats(TEST_START, rowCount);
+        final NetworkStats after = new NetworkStats(TEST_START, rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            before.insertEntry(TEST_IFACE, 1000 + i, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 1);
+        }
+        // Insert in reverse order so that row positions do not line up between snapshots.
+        for (int i = rowCount - 1; i >= 0; i--) {
+            after.insertEntry(TEST_IFACE, 1000 + i, SET_DEFAULT, TAG_NONE, 1024L + i, 8L + i,
+                    i, 1L, 1);
+        }
+
+        final NetworkStats result = after.subtract(before);
+        assertEquals(rowCount, result.size());
+        for (int i = 0; i < rowCount; i++) {
+            final int uid = 1000 + rowCount - 1 - i;
+            final int delta = uid - 1000;
+            assertValues(result, i, TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, delta, delta, delta, 1L, 0);
+        }
+    }
+
     @Test
     public void testTotalBytes() throws Exception {
         final NetworkStats iface = new NetworkStats(TEST_START, 2)
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.netstats;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+import static android.net.TrafficStats.TYPE_RX_BYTES;
+import static android.net.TrafficStats.TYPE_RX_PACKETS;
+import static android.net.TrafficStats.TYPE_TX_BYTES;
+import static android.net.TrafficStats.TYPE_TX_PACKETS;
+import static android.net.TrafficStats.UNSUPPORTED;
+import static android.net.netstats.TrafficStatsSnapshot.MAX_IFACES;
+import static android.net.netstats.TrafficStatsSnapshot.NOT_AVAILABLE;
+import static android.net.netstats.TrafficStatsSnapshot.SIZE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.net.NetworkStats;
+import android.os.Build;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+public class TrafficStatsSnapshotTest {
+    private static final int TEST_UID = 10_001;
+    private static final int REFRESH_INTERVAL_MS = 1000;
+
+    private final TrafficStatsSnapshot mSnapshot =
+            new TrafficStatsSnapshot(ByteBuffer.allocate(SIZE));
+
+    private static NetworkStats.Entry makeEntry(long rxBytes, long rxPackets, long txBytes,
+            long txPackets) {
+        return new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO, rxBytes, rxPackets, txBytes, txPackets, 0L);
+    }
+
+    private interface CounterReader {
+        long read(int type);
+    }
+
+    private static void assertCounters(long rxBytes, long rxPackets, long txBytes,
+            long txPackets, CounterReader reader) {
+        assertEquals(rxBytes, reader.read(TYPE_RX_BYTES));
+        assertEquals(rxPackets, reader.read(TYPE_RX_PACKETS));
+        assertEquals(txBytes, reader.read(TYPE_TX_BYTES));
+        assertEquals(txPackets, reader.read(TYPE_TX_PACKETS));
+    }
+
+    @Test
+    public void testBufferTooSmall() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new TrafficStatsSnapshot(ByteBuffer.allocate(SIZE - 1)));
+    }
+
+    @Test
+    public void testNotInitialized() {
+        assertEquals(NOT_AVAILABLE, mSnapshot.getTotalStat(TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getUidStat(TEST_UID, TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("wlan0", TYPE_RX_BYTES));
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        mSnapshot.write(TEST_UID, makeEntry(1L, 2L, 3L, 4L), makeEntry(100L, 200L, 300L, 400L),
+                new String[] { "wlan0", "rmnet_data0", "lo", "ifacenamelongerthanifnamsiz" },
+                new NetworkStats.Entry[] { makeEntry(10L, 20L, 30L, 40L), null,
+                        makeEntry(50L, 60L, 70L, 80L), makeEntry(1L, 1L, 1L, 1L) },
+                REFRESH_INTERVAL_MS);
+
+        assertCounters(1L, 2L, 3L, 4L, type -> mSnapshot.getUidStat(TEST_UID, type));
+        assertCounters(100L, 200L, 300L, 400L, type -> mSnapshot.getTotalStat(type));
+        assertCounters(10L, 20L, 30L, 40L, type -> mSnapshot.getIfaceStat("wlan0", type));
+        assertCounters(50L, 60L, 70L, 80L, type -> mSnapshot.getIfaceStat("lo", type));
+
+        // The region only contains the counters of its UID.
+        assertEquals(NOT_AVAILABLE, mSnapshot.getUidStat(TEST_UID + 1, TYPE_RX_BYTES));
+        // Interfaces without counters, with names that don't fit or that were not published are
+        // not available.
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("rmnet_data0", TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE,
+                mSnapshot.getIfaceStat("ifacenamelongerthanifnamsiz", TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("wlan", TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("wlan00", TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("", TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getTotalStat(TYPE_TX_PACKETS + 1));
+    }
+
+    @Test
+    public void testMissingCounters() {
+        mSnapshot.write(TEST_UID, null /* uidStats */, null /* totalStats */, new String[0],
+                new NetworkStats.Entry[0], REFRESH_INTERVAL_MS);
+
+        // The service has no counters, there is no need to query it.
+        assertEquals(UNSUPPORTED, mSnapshot.getUidStat(TEST_UID, TYPE_RX_BYTES));
+        assertEquals(UNSUPPORTED, mSnapshot.getTotalStat(TYPE_RX_BYTES));
+    }
+
+    @Test
+    public void testRewrite() {
+        mSnapshot.write(TEST_UID, makeEntry(1L, 2L, 3L, 4L), makeEntry(1L, 2L, 3L, 4L),
+                new String[] { "wlan0", "lo" },
+                new NetworkStats.Entry[] { makeEntry(1L, 2L, 3L, 4L), makeEntry(1L, 2L, 3L, 4L) },
+                REFRESH_INTERVAL_MS);
+        mSnapshot.write(TEST_UID, makeEntry(5L, 6L, 7L, 8L), null /* totalStats */,
+                new String[] { "lo" }, new NetworkStats.Entry[] { makeEntry(5L, 6L, 7L, 8L) },
+                REFRESH_INTERVAL_MS);
+
+        assertCounters(5L, 6L, 7L, 8L, type -> mSnapshot.getUidStat(TEST_UID, type));
+        assertCounters(5L, 6L, 7L, 8L, type -> mSnapshot.getIfaceStat("lo", type));
+        assertEquals(UNSUPPORTED, mSnapshot.getTotalStat(TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat("wlan0", TYPE_RX_BYTES));
+    }
+
+    @Test
+    public void testInvalidate() {
+        mSnapshot.write(TEST_UID, makeEntry(1L, 2L, 3L, 4L), makeEntry(1L, 2L, 3L, 4L),
+                new String[0], new NetworkStats.Entry[0], REFRESH_INTERVAL_MS);
+        mSnapshot.invalidate();
+        assertEquals(NOT_AVAILABLE, mSnapshot.getUidStat(TEST_UID, TYPE_RX_BYTES));
+        assertEquals(NOT_AVAILABLE, mSnapshot.getTotalStat(TYPE_RX_BYTES));
+
+        mSnapshot.write(TEST_UID, makeEntry(1L, 2L, 3L, 4L), makeEntry(1L, 2L, 3L, 4L),
+                new String[0], new NetworkStats.Entry[0], REFRESH_INTERVAL_MS);
+        assertCounters(1L, 2L, 3L, 4L, type -> mSnapshot.getTotalStat(type));
+    }
+
+    @Test
+    public void testMaxIfaces() {
+        final String[] ifaces = new String[MAX_IFACES + 1];
+        final NetworkStats.Entry[] stats = new NetworkStats.Entry[MAX_IFACES + 1];
+        for (int i = 0; i < ifaces.length; i++) {
+            ifaces[i] = "iface" + i;
+            stats[i] = makeEntry(i, i, i, i);
+        }
+        mSnapshot.write(TEST_UID, null /* uidStats */, null /* totalStats */, ifaces, stats,
+                REFRESH_INTERVAL_MS);
+
+        for (int i = 0; i < MAX_IFACES; i++) {
+            assertEquals(i, mSnapshot.getIfaceStat(ifaces[i], TYPE_TX_BYTES));
+        }
+        assertEquals(NOT_AVAILABLE, mSnapshot.getIfaceStat(ifaces[MAX_IFACES], TYPE_TX_BYTES));
+    }
+}
@@ -214,7 +214,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeFalse;
@@ -2177,6 +2179,7 @@ public class ConnectivityServiceTest {
         public boolean isFeatureEnabled(Context context, String name) {
             switch (name) {
                 case ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER:
+                case ConnectivityFlags.INCREMENTAL_REMATCH_ON_NETWORK_UPDATE:
                 case ConnectivityFlags.CARRIER_SERVICE_CHANGED_USE_CALLBACK:
                 case ConnectivityFlags.REQUEST_RESTRICTED_WIFI:
                 case ConnectivityFlags.USE_DECLARED_METHODS_FOR_CALLBACKS:
@@ -12721,6 +12724,148 @@ public class ConnectivityServiceTest {
         assertTrue(getTestTransportInfo(mWiFiAgent).locationRedacted);
     }
 
+    private static final String REDACTION_TEST_SSID = "\"RedactionTestSsid\"";
+    private static final Uri REDACTION_TEST_CAPPORT_URL =
+            Uri.parse("https://capport.example.com/api");
+
+    private TestNetworkCallback registerWifiCallbackAsUid(int uid) {
+        final TestNetworkCallback cb = new TestNetworkCallback();
+        registerNetworkCallbackAsUid(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_WIFI).build(), cb, uid);
+        return cb;
+    }
+
+    private NetworkCapabilities connectWifiWithTestTransportInfo(
+            TestNetworkCallback... callbacks) throws Exception {
+        final NetworkCapabilities ncTemplate = new NetworkCapabilities()
+                .addTransportType(TRANSPORT_WIFI)
+                .setTransportInfo(new TestTransportInfo());
+        mWiFiAgent = new TestNetworkAgentWrapper(TRANSPORT_WIFI, new LinkProperties(), ncTemplate);
+        mWiFiAgent.connect(false);
+        for (TestNetworkCallback cb : callbacks) {
+            cb.expectAvailableCallbacksUnvalidated(mWiFiAgent);
+        }
+        return ncTemplate;
+    }
+
+    private void sendCapportLinkProperties(@NonNull Uri capportUrl) {
+        final LinkProperties lp = new LinkProperties();
+        lp.setCaptivePortalApiUrl(capportUrl);
+        mWiFiAgent.sendLinkProperties(lp);
+    }
+
+    @Test
+    public void testCallbacksWithSamePermissionsShareRedactedObjects() throws Exception {
+        denyAllLocationPrivilegedPermissions();
+        mServiceContext.setPermission(LOCAL_MAC_ADDRESS, PERMISSION_DENIED);
+        // ConnectivityService runs in the test process and never shares objects with receivers
+        // running as its own UID, so register the callbacks for other UIDs.
+        final int uid1 = Process.myUid() + 1;
+        final int uid2 = Process.myUid() + 2;
+        final TestNetworkCallback cb1 = registerWifiCallbackAsUid(uid1);
+        final TestNetworkCallback cb2 = registerWifiCallbackAsUid(uid2);
+        final NetworkCapabilities ncTemplate = connectWifiWithTestTransportInfo(cb1, cb2);
+
+        mWiFiAgent.setNetworkCapabilities(
+                new NetworkCapabilities(ncTemplate).setSSID(REDACTION_TEST_SSID), true);
+        final NetworkCapabilities nc1 = cb1.expectCaps(mWiFiAgent);
+        assertSame(nc1, cb2.expectCaps(mWiFiAgent));
+        assertNull(nc1.getSsid());
+        assertEquals(new TestTransportInfo(true, true, true), nc1.getTransportInfo());
+
+        sendCapportLinkProperties(REDACTION_TEST_CAPPORT_URL);
+        final LinkProperties lp1 = cb1.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp();
+        assertSame(lp1, cb2.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp());
+        assertNull(lp1.getCaptivePortalApiUrl());
+
+        // The next callback is redacted again from the current capabilities and link properties,
+        // instead of reusing the objects sent previously.
+        mWiFiAgent.setNetworkCapabilities(new NetworkCapabilities(ncTemplate)
+                .setSSID(REDACTION_TEST_SSID)
+                .addCapability(NET_CAPABILITY_NOT_CONGESTED), true);
+        final NetworkCapabilities newNc1 = cb1.expectCaps(mWiFiAgent);
+        assertSame(newNc1, cb2.expectCaps(mWiFiAgent));
+        assertNotSame(nc1, newNc1);
+        assertFalse(nc1.hasCapability(NET_CAPABILITY_NOT_CONGESTED));
+        assertTrue(newNc1.hasCapability(NET_CAPABILITY_NOT_CONGESTED));
+
+        sendCapportLinkProperties(Uri.parse("https://capport2.example.com/api"));
+        final LinkProperties newLp1 = cb1.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp();
+        assertSame(newLp1, cb2.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp());
+        assertNotSame(lp1, newLp1);
+
+        doAsUid(uid1, () -> mCm.unregisterNetworkCallback(cb1));
+        doAsUid(uid2, () -> mCm.unregisterNetworkCallback(cb2));
+    }
+
+    @Test
+    public void testCallbacksWithDifferentPermissionsGetDifferentRedactedObjects()
+            throws Exception {
+        setupLocationPermissions(Build.VERSION_CODES.S, true, AppOpsManager.OPSTR_FINE_LOCATION,
+                Manifest.permission.ACCESS_FINE_LOCATION);
+        mServiceContext.setPermission(LOCAL_MAC_ADDRESS, PERMISSION_DENIED);
+        final int pid = Process.myPid();
+        final int settingsUid = Process.myUid() + 1;
+        final int macAddressUid = Process.myUid() + 2;
+        final int otherUid = Process.myUid() + 3;
+        mServiceContext.setPermission(NETWORK_SETTINGS, pid, settingsUid, PERMISSION_GRANTED);
+        mServiceContext.setPermission(LOCAL_MAC_ADDRESS, pid, macAddressUid, PERMISSION_GRANTED);
+        final TestNetworkCallback settingsCb = registerWifiCallbackAsUid(settingsUid);
+        final TestNetworkCallback macAddressCb = registerWifiCallbackAsUid(macAddressUid);
+        final TestNetworkCallback otherCb = registerWifiCallbackAsUid(otherUid);
+        // Location permissions are only mocked for the test process, which can only get location
+        // sensitive information in callbacks with FLAG_INCLUDE_LOCATION_INFO.
+        final LinkedBlockingQueue<NetworkCapabilities> locationCaps = new LinkedBlockingQueue<>();
+        final NetworkCallback locationCb =
+                new NetworkCallback(NetworkCallback.FLAG_INCLUDE_LOCATION_INFO) {
+                    @Override
+                    public void onCapabilitiesChanged(@NonNull Network network,
+                            @NonNull NetworkCapabilities nc) {
+                        locationCaps.add(nc);
+                    }
+                };
+        mCm.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_WIFI).build(), locationCb);
+        final NetworkCapabilities ncTemplate =
+                connectWifiWithTestTransportInfo(settingsCb, macAddressCb, otherCb);
+
+        mWiFiAgent.setNetworkCapabilities(new NetworkCapabilities(ncTemplate)
+                .setSSID(REDACTION_TEST_SSID)
+                .addCapability(NET_CAPABILITY_NOT_CONGESTED), true);
+        final NetworkCapabilities settingsNc = settingsCb.expectCaps(mWiFiAgent);
+        final NetworkCapabilities macAddressNc = macAddressCb.expectCaps(mWiFiAgent);
+        final NetworkCapabilities otherNc = otherCb.expectCaps(mWiFiAgent);
+        NetworkCapabilities locationNc;
+        do {
+            locationNc = locationCaps.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Location callback did not get the capabilities", locationNc);
+        } while (!locationNc.hasCapability(NET_CAPABILITY_NOT_CONGESTED));
+
+        assertEquals(REDACTION_TEST_SSID, settingsNc.getSsid());
+        assertEquals(new TestTransportInfo(true, true, false), settingsNc.getTransportInfo());
+        assertNull(macAddressNc.getSsid());
+        assertEquals(new TestTransportInfo(true, false, true), macAddressNc.getTransportInfo());
+        assertNull(otherNc.getSsid());
+        assertEquals(new TestTransportInfo(true, true, true), otherNc.getTransportInfo());
+        assertEquals(new TestTransportInfo(false, true, true), locationNc.getTransportInfo());
+        assertNotSame(settingsNc, otherNc);
+        assertNotSame(macAddressNc, otherNc);
+
+        sendCapportLinkProperties(REDACTION_TEST_CAPPORT_URL);
+        final LinkProperties settingsLp =
+                settingsCb.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp();
+        final LinkProperties otherLp = otherCb.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp();
+        assertEquals(REDACTION_TEST_CAPPORT_URL, settingsLp.getCaptivePortalApiUrl());
+        assertNull(otherLp.getCaptivePortalApiUrl());
+        // LOCAL_MAC_ADDRESS does not change how link properties are sanitized.
+        assertSame(otherLp, macAddressCb.expect(LINK_PROPERTIES_CHANGED, mWiFiAgent).getLp());
+
+        doAsUid(settingsUid, () -> mCm.unregisterNetworkCallback(settingsCb));
+        doAsUid(macAddressUid, () -> mCm.unregisterNetworkCallback(macAddressCb));
+        doAsUid(otherUid, () -> mCm.unregisterNetworkCallback(otherCb));
+        mCm.unregisterNetworkCallback(locationCb);
+    }
+
     private void setupConnectionOwnerUid(int vpnOwnerUid, @VpnManager.VpnType int vpnType)
             throws Exception {
         final Set<UidRange> vpnRange = Collections.singleton(PRIMARY_UIDRANGE);
@@ -41,6 +41,7 @@ import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -509,6 +510,65 @@ public class AutomaticOnOffKeepaliveTrackerTest {
         assertEquals(testInfo.underpinnedNetwork, mTestHandler.mLastAutoKi.getUnderpinnedNetwork());
     }
 
+    @Test
+    public void testAlarm_backOffWhileSocketsConnected() throws Exception {
+        final long time = SystemClock.elapsedRealtime();
+        doReturn(time).when(mDependencies).getElapsedRealtime();
+        final TestKeepaliveInfo testInfo = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo.kpd);
+        final AutomaticOnOffKeepalive autoKi = getAutoKiForBinder(testInfo.binder);
+        final long intervalMs = TEST_KEEPALIVE_INTERVAL_SEC * 1000L - 2000L;
+
+        // Each poll finding sockets on an enabled keepalive doubles the polling interval, up to
+        // 4 times the normal interval. Alarms are aligned to the second before.
+        for (long expectedIntervalMs : new long[] {intervalMs * 2, intervalMs * 4,
+                intervalMs * 4}) {
+            clearInvocations(mAlarmManager);
+            doResumeKeepalive(autoKi);
+            verify(mAlarmManager).setExact(eq(AlarmManager.ELAPSED_REALTIME),
+                    longThat(t -> t > time + expectedIntervalMs - 1000L
+                            && t <= time + expectedIntervalMs),
+                    any() /* tag */, any(), eq(mTestHandler));
+        }
+
+        // Once paused, the keepalive is polled at the normal interval.
+        clearInvocations(mAlarmManager);
+        doPauseKeepalive(autoKi);
+        verify(mAlarmManager).setExact(eq(AlarmManager.ELAPSED_REALTIME),
+                longThat(t -> t > time + intervalMs - 1000L && t <= time + intervalMs),
+                any() /* tag */, any(), eq(mTestHandler));
+    }
+
+    @Test
+    public void testMonitorKeepalives_sharedPoll() throws Exception {
+        final TestKeepaliveInfo testInfo1 = doStartNattKeepalive();
+        final TestKeepaliveInfo testInfo2 = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(TEST_SLOT, testInfo1.kpd);
+        checkAndProcessKeepaliveStart(TEST_SLOT + 1, testInfo2.kpd);
+        final AutomaticOnOffKeepalive autoKi1 = getAutoKiForBinder(testInfo1.binder);
+        final AutomaticOnOffKeepalive autoKi2 = getAutoKiForBinder(testInfo2.binder);
+
+        // The first keepalive dumps the sockets of each IP family.
+        doPauseKeepalive(autoKi1);
+        checkAndProcessKeepaliveStop(TEST_SLOT);
+        verify(testInfo1.socketKeepaliveCallback).onPaused();
+        verify(mDependencies, times(2)).sendRequest(any(), any());
+
+        // The second keepalive, due at the same time, is answered by the same poll.
+        doPauseKeepalive(autoKi2);
+        checkAndProcessKeepaliveStop(TEST_SLOT + 1);
+        verify(testInfo2.socketKeepaliveCallback).onPaused();
+        verify(mDependencies, times(2)).sendRequest(any(), any());
+
+        // The first keepalive is due again, so it needs a new poll. The socket found in the first
+        // dump is enough to answer it.
+        clearInvocations(mNai);
+        doResumeKeepalive(autoKi1);
+        checkAndProcessKeepaliveStart(TEST_SLOT, testInfo1.kpd);
+        verify(testInfo1.socketKeepaliveCallback).onResumed();
+        verify(mDependencies, times(3)).sendRequest(any(), any());
+    }
+
     @Test
     public void testAlarm_writeMetrics() throws Exception {
         final ArgumentCaptor<AlarmManager.OnAlarmListener> listenerCaptor =
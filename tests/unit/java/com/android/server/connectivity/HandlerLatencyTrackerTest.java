@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static com.android.server.connectivity.HandlerLatencyTracker.MAX_SLOWEST_EVENTS;
+import static com.android.server.connectivity.HandlerLatencyTracker.NUM_BUCKETS;
+import static com.android.server.connectivity.HandlerLatencyTracker.getBucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class HandlerLatencyTrackerTest {
+    private static final int TEST_WHAT = 42;
+    private static final int TEST_CALLBACK = 7;
+    private static final int TEST_UID = 10_001;
+    private static final int TEST_NETID = 100;
+
+    private final HandlerLatencyTracker mTracker = new HandlerLatencyTracker();
+
+    @Test
+    public void testGetBucket() {
+        assertEquals(0, getBucket(-1));
+        assertEquals(0, getBucket(0));
+        assertEquals(0, getBucket(63));
+        assertEquals(1, getBucket(64));
+        assertEquals(1, getBucket(127));
+        assertEquals(2, getBucket(128));
+        assertEquals(NUM_BUCKETS - 1, getBucket(Long.MAX_VALUE));
+    }
+
+    private String dump() {
+        final StringWriter sw = new StringWriter();
+        mTracker.dump(new IndentingPrintWriter(sw, "  "), what -> "WHAT_" + what,
+                type -> "CALLBACK_" + type);
+        return sw.toString();
+    }
+
+    private static String buckets(long... latenciesUs) {
+        final long[] buckets = new long[NUM_BUCKETS];
+        for (long latencyUs : latenciesUs) buckets[getBucket(latencyUs)]++;
+        return Arrays.toString(buckets);
+    }
+
+    @Test
+    public void testDump_histograms() {
+        mTracker.recordMessage(TEST_WHAT, 1 /* arg1 */, 2 /* arg2 */, null /* obj */,
+                3 /* delayMs */, 100 /* latencyUs */, 1000L /* timestampMs */);
+        mTracker.recordMessage(TEST_WHAT, 1 /* arg1 */, 2 /* arg2 */, null /* obj */,
+                0 /* delayMs */, 300 /* latencyUs */, 2000L /* timestampMs */);
+        mTracker.recordCallback(TEST_CALLBACK, TEST_UID, TEST_NETID, 50 /* latencyUs */,
+                3000L /* timestampMs */);
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("WHAT_42: count=2 avgUs=200 maxUs=300 buckets="
+                + buckets(100, 300)));
+        assertTrue(dump, dump.contains("CALLBACK_7: count=1 avgUs=50 maxUs=50 buckets="
+                + buckets(50)));
+        assertTrue(dump, dump.contains("all messages: count=2 avgUs=1500 maxUs=3000 buckets="
+                + buckets(3000, 0)));
+    }
+
+    @Test
+    public void testDump_keepsSlowestEvents() {
+        for (int i = 1; i <= MAX_SLOWEST_EVENTS * 2; i++) {
+            mTracker.recordMessage(TEST_WHAT, i /* arg1 */, 0 /* arg2 */, this /* obj */,
+                    0 /* delayMs */, i * 1000L /* latencyUs */, 0L /* timestampMs */);
+        }
+        mTracker.recordCallback(TEST_CALLBACK, TEST_UID, TEST_NETID, 1_000_000 /* latencyUs */,
+                0L /* timestampMs */);
+
+        final String dump = dump();
+        assertTrue(dump.contains("WHAT_42: count=20"));
+        assertTrue(dump.contains(
+                "1000000us CALLBACK_7 uid=" + TEST_UID + " netId=" + TEST_NETID));
+        assertTrue(dump.contains("20000us WHAT_42 arg1=20 arg2=0 obj=HandlerLatencyTrackerTest"));
+        assertTrue(dump.contains("12000us WHAT_42 arg1=12"));
+        // Only the slowest events are kept.
+        assertFalse(dump.contains("11000us WHAT_42"));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.net.InetAddresses;
+import android.net.IpPrefix;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.RouteInfo;
+import android.net.shared.PrivateDnsConfig;
+import android.os.Build;
+import android.util.Pair;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.connectivity.NetworkDiagnostics.Measurement;
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkDiagnosticsTest {
+    private static final long DIAG_TIME_MS = 2000;
+    private static final long TIMEOUT_MS = 5000;
+    private static final InetAddress LOOPBACK = InetAddresses.parseNumericAddress("127.0.0.1");
+
+    // Measurements as they are reported to the listener, with the thread that reported them.
+    private final LinkedBlockingQueue<Pair<Measurement, Thread>> mFinished =
+            new LinkedBlockingQueue<>();
+
+    private NetworkDiagnostics startDiagnostics() {
+        // Sockets are not bound to a network, so all checks target the loopback address.
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("lo");
+        lp.addLinkAddress(new LinkAddress("127.0.0.1/8"));
+        lp.addRoute(new RouteInfo(new IpPrefix("127.0.0.0/8"), LOOPBACK, "lo"));
+        lp.addDnsServer(LOOPBACK);
+        return new NetworkDiagnostics(mock(Network.class), lp,
+                new PrivateDnsConfig(null /* hostname */, new InetAddress[0]), DIAG_TIME_MS,
+                measurement -> mFinished.add(new Pair<>(measurement, Thread.currentThread())));
+    }
+
+    private List<Pair<Measurement, Thread>> expectFinished(int count) throws Exception {
+        final List<Pair<Measurement, Thread>> finished = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Pair<Measurement, Thread> m = mFinished.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Only " + i + " of " + count + " measurements reported", m);
+            finished.add(m);
+        }
+        assertNull(mFinished.poll(100, TimeUnit.MILLISECONDS));
+        return finished;
+    }
+
+    private static boolean runsOnProbeThread(Measurement m) {
+        return m.description.startsWith("ICMP") || m.description.startsWith("DNS UDP");
+    }
+
+    @Test
+    public void testListenerCalledForEachMeasurement() throws Exception {
+        final NetworkDiagnostics diag = startDiagnostics();
+        diag.waitForMeasurements();
+        assertTrue(diag.isFinished());
+
+        final List<Measurement> measurements = diag.getMeasurements();
+        // ICMP with and without payload to the gateway, which is also the DNS server, DNS over
+        // UDP and DNS over TLS.
+        assertEquals(4, measurements.size());
+        final List<Pair<Measurement, Thread>> finished = expectFinished(measurements.size());
+        for (Measurement m : measurements) {
+            int reported = 0;
+            for (Pair<Measurement, Thread> f : finished) {
+                if (f.first == m) reported++;
+            }
+            assertEquals("Measurement " + m + " reported " + reported + " times", 1, reported);
+            // Measurements are complete when they are reported.
+            assertNotEquals(0, m.finishTime);
+        }
+    }
+
+    @Test
+    public void testProbesShareOneThread() throws Exception {
+        final NetworkDiagnostics diag1 = startDiagnostics();
+        final NetworkDiagnostics diag2 = startDiagnostics();
+        diag1.waitForMeasurements();
+        diag2.waitForMeasurements();
+        assertTrue(diag1.isFinished());
+        assertTrue(diag2.isFinished());
+
+        final int total = diag1.getMeasurements().size() + diag2.getMeasurements().size();
+        Thread probeThread = null;
+        for (Pair<Measurement, Thread> f : expectFinished(total)) {
+            assertNotEquals(Thread.currentThread(), f.second);
+            if (!runsOnProbeThread(f.first)) {
+                // DNS over TLS checks block and run on their own threads.
+                assertNotEquals(probeThread, f.second);
+                continue;
+            }
+            if (probeThread == null) probeThread = f.second;
+            assertSame(probeThread, f.second);
+        }
+        assertNotNull(probeThread);
+
+        // The probe thread is quit once no instance has unfinished measurements.
+        probeThread.join(TIMEOUT_MS);
+        assertFalse(probeThread.isAlive());
+    }
+}
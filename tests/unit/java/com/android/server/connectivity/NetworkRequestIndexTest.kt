@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_MMS
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_VPN
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private fun request(transports: IntArray, vararg capabilities: Int) =
+        NetworkRequest.Builder().clearCapabilities().apply {
+            transports.forEach { addTransportType(it) }
+            capabilities.forEach { addCapability(it) }
+        }.build()
+
+private fun caps(vararg transports: Int, capabilities: IntArray = intArrayOf()) =
+        NetworkCapabilities.Builder().apply {
+            transports.forEach { addTransportType(it) }
+            capabilities.forEach { addCapability(it) }
+        }.build()
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkRequestIndexTest {
+    private val index = NetworkRequestIndex<String>()
+
+    private fun candidates(nc: NetworkCapabilities) =
+            HashSet<String>().also { index.collectCandidates(nc, it) }
+
+    @Test
+    fun testCollectCandidates() {
+        index.add("any", listOf(request(intArrayOf())))
+        index.add("internet", listOf(request(intArrayOf(), NET_CAPABILITY_INTERNET)))
+        index.add("wifi", listOf(request(intArrayOf(TRANSPORT_WIFI))))
+        index.add("cellMms", listOf(request(intArrayOf(TRANSPORT_CELLULAR), NET_CAPABILITY_MMS)))
+        index.add("wifiOrCell", listOf(request(intArrayOf(TRANSPORT_WIFI, TRANSPORT_CELLULAR))))
+        // Multilayer requests match if any of their requests match.
+        index.add("vpnThenCell", listOf(request(intArrayOf(TRANSPORT_VPN)),
+                request(intArrayOf(TRANSPORT_CELLULAR))))
+        assertEquals(6, index.size())
+
+        val wifiInternet = caps(TRANSPORT_WIFI, capabilities = intArrayOf(NET_CAPABILITY_INTERNET))
+        assertEquals(setOf("any", "internet", "wifi", "wifiOrCell"), candidates(wifiInternet))
+        assertEquals(setOf("any", "wifiOrCell", "vpnThenCell"),
+                candidates(caps(TRANSPORT_CELLULAR)))
+        assertEquals(setOf("any", "cellMms", "wifiOrCell", "vpnThenCell"),
+                candidates(caps(TRANSPORT_CELLULAR, capabilities = intArrayOf(NET_CAPABILITY_MMS))))
+        assertEquals(setOf("any", "vpnThenCell"), candidates(caps(TRANSPORT_VPN)))
+    }
+
+    @Test
+    fun testAddReplacesAndRemove() {
+        index.add("req", listOf(request(intArrayOf(TRANSPORT_WIFI))))
+        assertEquals(setOf("req"), candidates(caps(TRANSPORT_WIFI)))
+
+        index.add("req", listOf(request(intArrayOf(TRANSPORT_CELLULAR))))
+        assertEquals(1, index.size())
+        assertEquals(setOf(), candidates(caps(TRANSPORT_WIFI)))
+        assertEquals(setOf("req"), candidates(caps(TRANSPORT_CELLULAR)))
+
+        index.remove("req")
+        index.remove("unknown")
+        assertEquals(0, index.size())
+        assertEquals(setOf(), candidates(caps(TRANSPORT_CELLULAR)))
+    }
+}
@@ -44,6 +44,7 @@ import static com.android.server.connectivity.PermissionMonitor.isHigherNetworkP
 
 import static junit.framework.Assert.fail;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -111,7 +112,9 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -604,6 +607,8 @@ public class PermissionMonitorTest {
 
     private class BpfMapMonitor {
         private final SparseIntArray mAppIdsTrafficPermission = new SparseIntArray();
+        // AppIds sent since the last call to expectSentAppIds, including duplicates.
+        private final ArrayList<Integer> mSentAppIds = new ArrayList<>();
         private static final int DOES_NOT_EXIST = -2;
 
         BpfMapMonitor(BpfNetMaps mockBpfmap) throws Exception {
@@ -613,6 +618,7 @@ public class PermissionMonitorTest {
                 final int permission = (int) args[0];
                 for (final int appId : (int[]) args[1]) {
                     mAppIdsTrafficPermission.put(appId, permission);
+                    mSentAppIds.add(appId);
                 }
                 return null;
             }).when(mockBpfmap).setNetPermForUids(anyInt(), any(int[].class));
@@ -640,6 +646,29 @@ public class PermissionMonitorTest {
                 }
             }
         }
+
+        public void expectSentAppIds(Integer... appIds) {
+            final ArrayList<Integer> expected = new ArrayList<>();
+            for (final int appId : appIds) {
+                expected.add(appId);
+                if (hasSdkSandbox(appId)) {
+                    expected.add(mProcessShim.toSdkSandboxUid(appId));
+                }
+            }
+            Collections.sort(expected);
+            Collections.sort(mSentAppIds);
+            assertEquals(expected, mSentAppIds);
+            mSentAppIds.clear();
+        }
+    }
+
+    private static void assertPermissionsEqual(SparseIntArray expected, SparseIntArray actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.keyAt(i), actual.keyAt(i));
+            assertEquals("Wrong permission for " + expected.keyAt(i),
+                    expected.valueAt(i), actual.valueAt(i));
+        }
     }
 
     private class NetdMonitor {
@@ -904,6 +933,49 @@ public class PermissionMonitorTest {
         doTestUidFilteringDuringPackageInstallAndUninstall(null /* ifName */);
     }
 
+    private void verifyUidInterfaceRulesAdded(String ifName, int... uids) throws Exception {
+        final ArgumentCaptor<int[]> captor = ArgumentCaptor.forClass(int[].class);
+        verify(mBpfNetMaps).addUidInterfaceRules(eq(ifName), captor.capture());
+        final int[] actual = captor.getValue();
+        Arrays.sort(actual);
+        Arrays.sort(uids);
+        assertArrayEquals(uids, actual);
+    }
+
+    @Test
+    public void testUidFilteringAtUidRangeBoundaries() throws Exception {
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID11),
+                buildPackageInfo(MOCK_PACKAGE2, MOCK_UID12),
+                buildPackageInfo(MOCK_PACKAGE3, MOCK_UID13),
+                buildPackageInfo("mockApp4", MOCK_UID14),
+                buildPackageInfo(SYSTEM_PACKAGE2, VPN_UID)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS), anyInt());
+        doReturn(List.of(MOCK_USER1, MOCK_USER2)).when(mUserManager).getUserHandles(eq(true));
+        startMonitoring();
+
+        // Apps at both ends of the range are included, apps just outside of it are not.
+        final Set<UidRange> range = Set.of(new UidRange(MOCK_UID12, MOCK_UID13));
+        mPermissionMonitor.onVpnUidRangesAdded("tun0", range, VPN_UID);
+        verifyUidInterfaceRulesAdded("tun0", MOCK_UID12, MOCK_UID13);
+        reset(mBpfNetMaps);
+
+        // A range that spans two users ends on the last app of the first user and starts on the
+        // first app of the second user.
+        final Set<UidRange> crossUserRange = Set.of(new UidRange(MOCK_UID14, MOCK_UID21));
+        mPermissionMonitor.onVpnUidRangesAdded("tun1", crossUserRange, VPN_UID);
+        verifyUidInterfaceRulesAdded("tun1", MOCK_UID14, MOCK_UID21);
+        reset(mBpfNetMaps);
+
+        // Ranges between apps or beyond the last app of a user contain no app.
+        final Set<UidRange> emptyRanges = Set.of(
+                new UidRange(VPN_UID + 1, MOCK_UID12 - 1),
+                new UidRange(MOCK_USER2.getUid(MOCK_APPID4) + 1,
+                        MOCK_USER2.getUid(UserHandle.PER_USER_RANGE - 1)));
+        mPermissionMonitor.onVpnUidRangesAdded("tun2", emptyRanges, VPN_UID);
+        verify(mBpfNetMaps, never()).addUidInterfaceRules(any(), any());
+    }
+
     @Test
     public void testLockdownUidFilteringWithLockdownEnableDisable() {
         doReturn(List.of(
@@ -1645,6 +1717,106 @@ public class PermissionMonitorTest {
                 PERMISSION_UNINSTALLED, PERMISSION_INTERNET);
     }
 
+    @Test
+    public void testAppIdsTrafficPermission_UserAddedRemoved_SendsChangedAppIdsOnly() {
+        prepareMultiUserPackages();
+
+        // All appIds of the first user are new.
+        onUserAdded(MOCK_USER1);
+        mBpfMapMonitor.expectSentAppIds(MOCK_APPID1, MOCK_APPID2, MOCK_APPID3);
+
+        // MOCK_USER2 only upgrades MOCK_APPID1 & MOCK_APPID3.
+        onUserAdded(MOCK_USER2);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_UPDATE_DEVICE_STATS, MOCK_APPID1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID3);
+        mBpfMapMonitor.expectSentAppIds(MOCK_APPID1, MOCK_APPID3);
+
+        // A user without packages changes nothing.
+        final UserHandle emptyUser = UserHandle.of(MOCK_USER_ID3 + 1);
+        onUserAdded(emptyUser);
+        mBpfMapMonitor.expectSentAppIds();
+        onUserRemoved(emptyUser);
+        mBpfMapMonitor.expectSentAppIds();
+
+        // MOCK_USER3 only upgrades MOCK_APPID2.
+        onUserAdded(MOCK_USER3);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID2);
+        mBpfMapMonitor.expectSentAppIds(MOCK_APPID2);
+
+        // Removing MOCK_USER2 only downgrades MOCK_APPID1 & MOCK_APPID3.
+        onUserRemoved(MOCK_USER2);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_NONE, MOCK_APPID1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_UPDATE_DEVICE_STATS, MOCK_APPID3);
+        mBpfMapMonitor.expectSentAppIds(MOCK_APPID1, MOCK_APPID3);
+
+        // Removing MOCK_USER1 changes all appIds.
+        onUserRemoved(MOCK_USER1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_UNINSTALLED, MOCK_APPID1, MOCK_APPID3);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_UPDATE_DEVICE_STATS, MOCK_APPID2);
+        mBpfMapMonitor.expectSentAppIds(MOCK_APPID1, MOCK_APPID2, MOCK_APPID3);
+    }
+
+    @Test
+    public void testStartMonitoring_MultipleUsers_SameAsAddingUsers() throws Exception {
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID11, CHANGE_NETWORK_STATE, INTERNET),
+                buildPackageInfo(SYSTEM_PACKAGE1, SYSTEM_APP_UID11,
+                        CONNECTIVITY_USE_RESTRICTED_NETWORKS, UPDATE_DEVICE_STATS)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS),
+                        eq(MOCK_USER_ID1));
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID21, UPDATE_DEVICE_STATS),
+                buildPackageInfo(MOCK_PACKAGE2, MOCK_UID22, CHANGE_NETWORK_STATE)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS),
+                        eq(MOCK_USER_ID2));
+        doReturn(List.of(buildPackageInfo(MOCK_PACKAGE3, MOCK_UID33, INTERNET)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS),
+                        eq(MOCK_USER_ID3));
+
+        // Start with all users, whose packages are loaded concurrently.
+        final INetd netd = mock(INetd.class);
+        final BpfNetMaps bpfNetMaps = mock(BpfNetMaps.class);
+        final NetdMonitor netdMonitor = new NetdMonitor(netd);
+        final BpfMapMonitor bpfMapMonitor = new BpfMapMonitor(bpfNetMaps);
+        final PermissionMonitor monitor =
+                new PermissionMonitor(mContext, netd, bpfNetMaps, mDeps, mHandlerThread);
+        doReturn(List.of(MOCK_USER1, MOCK_USER2, MOCK_USER3)).when(mUserManager)
+                .getUserHandles(eq(true));
+        processOnHandlerThread(() -> monitor.startMonitoring());
+
+        // Start with one user and add the others one by one.
+        final INetd serialNetd = mock(INetd.class);
+        final BpfNetMaps serialBpfNetMaps = mock(BpfNetMaps.class);
+        final NetdMonitor serialNetdMonitor = new NetdMonitor(serialNetd);
+        final BpfMapMonitor serialBpfMapMonitor = new BpfMapMonitor(serialBpfNetMaps);
+        final PermissionMonitor serialMonitor = new PermissionMonitor(
+                mContext, serialNetd, serialBpfNetMaps, mDeps, mHandlerThread);
+        doReturn(List.of(MOCK_USER1)).when(mUserManager).getUserHandles(eq(true));
+        processOnHandlerThread(() -> {
+            serialMonitor.startMonitoring();
+            serialMonitor.onUserAdded(MOCK_USER2);
+            serialMonitor.onUserAdded(MOCK_USER3);
+        });
+
+        assertPermissionsEqual(serialNetdMonitor.mUidsNetworkPermission,
+                netdMonitor.mUidsNetworkPermission);
+        assertPermissionsEqual(serialBpfMapMonitor.mAppIdsTrafficPermission,
+                bpfMapMonitor.mAppIdsTrafficPermission);
+        netdMonitor.expectNetworkPerm(PERMISSION_SYSTEM, new UserHandle[]{MOCK_USER1},
+                SYSTEM_APPID1);
+        netdMonitor.expectNetworkPerm(PERMISSION_NETWORK, new UserHandle[]{MOCK_USER1},
+                MOCK_APPID1);
+        netdMonitor.expectNetworkPerm(PERMISSION_NETWORK, new UserHandle[]{MOCK_USER2},
+                MOCK_APPID2);
+        netdMonitor.expectNoNetworkPerm(new UserHandle[]{MOCK_USER2, MOCK_USER3}, MOCK_APPID1);
+        bpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID1);
+        bpfMapMonitor.expectTrafficPerm(PERMISSION_UPDATE_DEVICE_STATS, SYSTEM_APPID1);
+        bpfMapMonitor.expectTrafficPerm(PERMISSION_NONE, MOCK_APPID2);
+        bpfMapMonitor.expectTrafficPerm(PERMISSION_INTERNET, MOCK_APPID3);
+        // Traffic permissions are sent once for all users.
+        bpfMapMonitor.expectSentAppIds(MOCK_APPID1, MOCK_APPID2, MOCK_APPID3, SYSTEM_APPID1);
+    }
+
     @Test
     public void testAppIdsTrafficPermission_Multiuser_PackageAdded() throws Exception {
         // Add two users with empty package list.
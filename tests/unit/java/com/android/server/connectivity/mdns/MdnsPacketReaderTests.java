@@ -18,7 +18,10 @@ package com.android.server.connectivity.mdns;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 
@@ -98,4 +101,56 @@ public class MdnsPacketReaderTests {
                 MdnsFeatureFlags.newBuilder().setIsLabelCountLimitEnabled(true).build());
         assertThrows(IOException.class, packetReader::readLabels);
     }
+
+    @Test
+    public void testReadCompressedLabels() throws IOException {
+        final byte[] data = HexDump.hexStringToByteArray(
+                "07616E64726F6964" // label "android"
+                        + "056C6F63616C" // label "local"
+                        + "00" // end of name
+                        + "0474657374" // label "test"
+                        + "C000" // PTR to "android.local"
+                        + "C008"); // PTR to "local"
+        final MdnsPacketReader packetReader = new MdnsPacketReader(
+                data, data.length, MdnsFeatureFlags.newBuilder().build());
+        final String[] first = packetReader.readLabels();
+        final String[] second = packetReader.readLabels();
+        final String[] third = packetReader.readLabels();
+
+        assertArrayEquals(new String[] {"android", "local"}, first);
+        assertArrayEquals(new String[] {"test", "android", "local"}, second);
+        assertArrayEquals(new String[] {"local"}, third);
+        assertEquals(0, packetReader.getRemaining());
+    }
+
+    @Test
+    public void testLabelsInternedAcrossPackets() throws IOException {
+        final byte[] data = HexDump.hexStringToByteArray(
+                "0474657374" // label "test"
+                        + "056C6F63616C" // label "local"
+                        + "00");
+        final String[] first = new MdnsPacketReader(data, data.length,
+                MdnsFeatureFlags.newBuilder().build()).readLabels();
+        final String[] second = new MdnsPacketReader(data.clone(), data.length,
+                MdnsFeatureFlags.newBuilder().build()).readLabels();
+
+        assertArrayEquals(first, second);
+        assertNotSame(first, second);
+        assertSame(first[0], second[0]);
+        assertSame(first[1], second[1]);
+    }
+
+    @Test
+    public void testLabelInternerCollision() {
+        // With a single slot, every label replaces the previous one.
+        final MdnsLabelInterner interner = new MdnsLabelInterner(1 /* tableSize */);
+        final byte[] buf = "localtest".getBytes();
+        final String local = interner.intern(buf, 0, 5);
+        assertEquals("local", local);
+        assertSame(local, interner.intern(buf, 0, 5));
+        assertEquals("test", interner.intern(buf, 5, 4));
+        final String localAgain = interner.intern(buf, 0, 5);
+        assertEquals("local", localAgain);
+        assertNotSame(local, localAgain);
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import com.android.net.module.util.SharedLog
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.net.DatagramPacket
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertContains
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.Mockito.any
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+
+private const val TIMEOUT_MS = 1000L
+private val CAST_TYPE = arrayOf("_googlecast", "_tcp", "local")
+private val PRINTER_TYPE = arrayOf("_ipp", "_tcp", "local")
+
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsQueryAggregatorTest {
+    private val thread = HandlerThread(MdnsQueryAggregatorTest::class.simpleName)
+    private val socketClient = mock(MdnsSocketClientBase::class.java)
+    private val socketKey = SocketKey(1000 /* interfaceIndex */)
+    private val handler by lazy { Handler(thread.looper) }
+    private val aggregator by lazy {
+        MdnsQueryAggregator(socketClient, socketKey, thread.looper, mock(SharedLog::class.java),
+            true /* isQueryWithKnownAnswer */)
+    }
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun makeQuery(type: Array<String>) = MdnsPacket(MdnsConstants.FLAGS_QUERY,
+        listOf(MdnsPointerRecord(type, false /* isUnicast */)),
+        emptyList() /* answers */, emptyList() /* authorityRecords */,
+        emptyList() /* additionalRecords */)
+
+    private fun flush() {
+        val future = CompletableFuture<Unit>()
+        handler.post {
+            aggregator.flush()
+            future.complete(Unit)
+        }
+        future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun parse(packet: DatagramPacket) = MdnsPacket.parse(MdnsPacketReader(
+        packet.data, packet.length, MdnsFeatureFlags.newBuilder().build()))
+
+    @Test
+    fun testFlush_mergesQueriesOfDifferentTypes() {
+        aggregator.enqueue(makeQuery(CAST_TYPE), false /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        // The same question asked twice is only sent once.
+        aggregator.enqueue(makeQuery(CAST_TYPE), false /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.enqueue(makeQuery(PRINTER_TYPE), false /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        flush()
+
+        // One packet for IPv4 and one for IPv6
+        @Suppress("UNCHECKED_CAST")
+        val captor =
+            ArgumentCaptor.forClass(List::class.java) as ArgumentCaptor<List<DatagramPacket>>
+        verify(socketClient, times(2)).sendPacketRequestingMulticastResponse(
+            captor.capture(), anyBoolean())
+        verify(socketClient, never()).sendPacketRequestingUnicastResponse(any(), anyBoolean())
+        captor.allValues.forEach { packets ->
+            assertEquals(1, packets.size)
+            val questions = parse(packets[0]).questions
+            assertEquals(2, questions.size)
+            assertContentEquals(CAST_TYPE, questions[0].name)
+            assertContentEquals(PRINTER_TYPE, questions[1].name)
+        }
+
+        val sw = StringWriter()
+        PrintWriter(sw).use { aggregator.dump(it) }
+        assertContains(sw.toString(), "queries 3, packets sent 2, packets saved 4")
+    }
+
+    @Test
+    fun testFlush_separatesUnicastQueries() {
+        aggregator.enqueue(makeQuery(CAST_TYPE), true /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.enqueue(makeQuery(PRINTER_TYPE), false /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        flush()
+
+        verify(socketClient, times(2)).sendPacketRequestingUnicastResponse(any(), anyBoolean())
+        verify(socketClient, times(2)).sendPacketRequestingMulticastResponse(any(), anyBoolean())
+    }
+
+    @Test
+    fun testCancel_dropsPendingQueries() {
+        aggregator.enqueue(makeQuery(CAST_TYPE), false /* expectUnicastResponse */,
+            false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.cancel()
+        flush()
+
+        verify(socketClient, never()).sendPacketRequestingMulticastResponse(any(), anyBoolean())
+    }
+}
@@ -262,6 +262,33 @@ class MdnsRecordRepositoryTest {
         ), reply.answers)
     }
 
+    @Test
+    fun testGetReply_afterUpdateAndClear_onlyCurrentRecordsAnswered() {
+        val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
+        repository.initWithService(TEST_SERVICE_ID_1, TEST_SERVICE_1, setOf(TEST_SUBTYPE))
+        repository.addServiceAndFinishProbing(TEST_SERVICE_ID_2, TEST_SERVICE_2)
+        val src = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+        val subtypeQuery = makeQuery(
+                TYPE_PTR to arrayOf(TEST_SUBTYPE, "_sub", "_testservice", "_tcp", "local"))
+        val typeQuery = makeQuery(TYPE_PTR to arrayOf("_TestService", "_tcp", "local"))
+
+        assertEquals(1, repository.getReply(subtypeQuery, src)?.answers?.size)
+        repository.updateService(TEST_SERVICE_ID_1, emptySet() /* subtypes */)
+        assertNull(repository.getReply(subtypeQuery, src))
+
+        // Let the multicast reply throttling expire
+        deps.elapse(2000L)
+        assertEquals(2, repository.getReply(typeQuery, src)?.answers?.size)
+
+        deps.elapse(2000L)
+        repository.removeService(TEST_SERVICE_ID_2)
+        assertEquals(1, repository.getReply(typeQuery, src)?.answers?.size)
+
+        deps.elapse(2000L)
+        repository.clearServices()
+        assertNull(repository.getReply(typeQuery, src))
+    }
+
     @Test
     fun testInvalidReuseOfServiceId() {
         val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
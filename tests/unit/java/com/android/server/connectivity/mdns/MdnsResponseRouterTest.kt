@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.net.InetAddresses.parseNumericAddress
+import android.os.Build
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+
+private const val TTL = 120_000L
+private val CAST_TYPE = arrayOf("_googlecast", "_tcp", "local")
+private val PRINTER_TYPE = arrayOf("_ipp", "_tcp", "local")
+private val CAST_NAME = arrayOf("Living-Room-TV") + CAST_TYPE
+private val PRINTER_NAME = arrayOf("Office Printer") + PRINTER_TYPE
+private val CAST_HOST = arrayOf("cast-host", "local")
+private val PRINTER_HOST = arrayOf("printer-host", "local")
+
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsResponseRouterTest {
+    private val router = MdnsResponseRouter()
+    private val castClient = mock(MdnsServiceTypeClient::class.java)
+    private val printerClient = mock(MdnsServiceTypeClient::class.java)
+    private val otherSocketCastClient = mock(MdnsServiceTypeClient::class.java)
+
+    private fun makePacket(
+        answers: List<MdnsRecord>,
+        additionalRecords: List<MdnsRecord> = emptyList()
+    ) = MdnsPacket(MdnsConstants.FLAGS_RESPONSE, emptyList() /* questions */, answers,
+        emptyList() /* authorityRecords */, additionalRecords)
+
+    private fun ptr(name: Array<String>, pointer: Array<String>) =
+        MdnsPointerRecord(name, 0L /* receiptTimeMillis */, false /* cacheFlush */, TTL, pointer)
+
+    private fun srv(name: Array<String>, host: Array<String>) =
+        MdnsServiceRecord(name, 0L /* receiptTimeMillis */, true /* cacheFlush */, TTL,
+            0 /* servicePriority */, 0 /* serviceWeight */, 1234 /* servicePort */, host)
+
+    private fun txt(name: Array<String>) =
+        MdnsTextRecord(name, 0L /* receiptTimeMillis */, true /* cacheFlush */, TTL,
+            emptyList() /* entries */)
+
+    private fun a(host: Array<String>, address: String) =
+        MdnsInetAddressRecord(host, 0L /* receiptTimeMillis */, true /* cacheFlush */, TTL,
+            parseNumericAddress(address))
+
+    private fun addClients() {
+        router.addClient("_googlecast._tcp.local", castClient)
+        router.addClient("_IPP._tcp.local", printerClient)
+        router.addClient("_googlecast._tcp.local", otherSocketCastClient)
+    }
+
+    @Test
+    fun testRoute_splitsRecordsByServiceType() {
+        addClients()
+        val castPtr = ptr(CAST_TYPE, CAST_NAME)
+        val castSubtypePtr = ptr(arrayOf("_receiver", "_sub") + CAST_TYPE, CAST_NAME)
+        val castSrv = srv(CAST_NAME, CAST_HOST)
+        val castTxt = txt(CAST_NAME)
+        val castA = a(CAST_HOST, "192.0.2.1")
+        val printerPtr = ptr(PRINTER_TYPE, PRINTER_NAME)
+        val printerSrv = srv(PRINTER_NAME, PRINTER_HOST)
+        val printerA = a(PRINTER_HOST, "192.0.2.2")
+        // Address records come before the SRV records referencing them.
+        val packet = makePacket(listOf(castA, castPtr, castSubtypePtr, printerPtr),
+            listOf(printerA, castSrv, castTxt, printerSrv))
+
+        val routed = router.route(packet, listOf(castClient, printerClient))
+
+        assertEquals(2, routed.size)
+        routed[castClient]!!.let {
+            assertEquals(listOf<MdnsRecord>(castA, castPtr, castSubtypePtr), it.answers)
+            assertEquals(listOf<MdnsRecord>(castSrv, castTxt), it.additionalRecords)
+        }
+        routed[printerClient]!!.let {
+            assertEquals(listOf<MdnsRecord>(printerPtr), it.answers)
+            assertEquals(listOf<MdnsRecord>(printerA, printerSrv), it.additionalRecords)
+        }
+        assertEquals(8, router.recordsRouted)
+        assertEquals(0, router.recordsDropped)
+    }
+
+    @Test
+    fun testRoute_dropsIrrelevantRecords() {
+        addClients()
+        val nsec = MdnsNsecRecord(CAST_HOST, 0L /* receiptTimeMillis */, true /* cacheFlush */,
+            TTL, CAST_HOST, intArrayOf(MdnsRecord.TYPE_A))
+        val packet = makePacket(listOf(ptr(arrayOf("_airplay", "_tcp", "local"),
+            arrayOf("TV", "_airplay", "_tcp", "local")), a(CAST_HOST, "192.0.2.1"), nsec))
+
+        val routed = router.route(packet, listOf(castClient, printerClient))
+
+        assertEquals(0, routed.size)
+        assertEquals(0, router.recordsRouted)
+        assertEquals(3, router.recordsDropped)
+    }
+
+    @Test
+    fun testRoute_addressOfKnownHost() {
+        addClients()
+        doReturn(false).`when`(castClient).hasServiceOnHost(any())
+        doReturn(true).`when`(castClient).hasServiceOnHost(CAST_HOST)
+        val castA = a(CAST_HOST, "192.0.2.1")
+
+        val routed = router.route(makePacket(listOf(castA)), listOf(castClient, printerClient))
+
+        assertEquals(1, routed.size)
+        assertEquals(listOf<MdnsRecord>(castA), routed[castClient]!!.answers)
+    }
+
+    @Test
+    fun testRoute_onlyToCandidates() {
+        addClients()
+        val castPtr = ptr(CAST_TYPE, CAST_NAME)
+
+        val routed = router.route(makePacket(listOf(castPtr)), listOf(otherSocketCastClient))
+        assertEquals(1, routed.size)
+        assertEquals(listOf<MdnsRecord>(castPtr), routed[otherSocketCastClient]!!.answers)
+
+        router.removeClient(otherSocketCastClient)
+        val routedAfterRemoval =
+            router.route(makePacket(listOf(castPtr)), listOf(otherSocketCastClient))
+        assertNull(routedAfterRemoval[otherSocketCastClient])
+        assertEquals(1, router.recordsRouted)
+        assertEquals(1, router.recordsDropped)
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.RecorderCallback.CallbackEntry.Lost
+import com.android.testutils.TestableNetworkCallback
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val NO_CALLBACK_TIMEOUT_MS = 200L
+
+@DevSdkIgnoreRunner.MonitorThreadLeak
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class CSIncrementalRematchTest : CSTest() {
+    private fun transportRequest(transport: Int, vararg caps: Int) = NetworkRequest.Builder()
+            .clearCapabilities()
+            .addTransportType(transport)
+            .apply { caps.forEach { addCapability(it) } }
+            .build()
+
+    @Test
+    fun testCapabilitiesUpdateRematchesCandidateRequests() {
+        val unmeteredWifiCb = TestableNetworkCallback()
+        val cellCb = TestableNetworkCallback()
+        cm.requestNetwork(transportRequest(TRANSPORT_WIFI, NET_CAPABILITY_NOT_METERED),
+                unmeteredWifiCb)
+        cm.requestNetwork(transportRequest(TRANSPORT_CELLULAR), cellCb)
+
+        val cellAgent = Agent(TRANSPORT_CELLULAR)
+        cellAgent.connect()
+        cellCb.expectAvailableCallbacks(cellAgent.network, validated = false)
+
+        val wifiNc = NetworkCapabilities.Builder(defaultNc())
+                .addTransportType(TRANSPORT_WIFI)
+                .build()
+        val wifiAgent = Agent(nc = wifiNc)
+        wifiAgent.connect()
+        unmeteredWifiCb.assertNoCallback(NO_CALLBACK_TIMEOUT_MS)
+
+        // The wifi request was never satisfied by the wifi agent, so it must be found through
+        // the request index when the agent starts advertising NOT_METERED.
+        wifiAgent.sendNetworkCapabilities(NetworkCapabilities.Builder(wifiNc)
+                .addCapability(NET_CAPABILITY_NOT_METERED)
+                .build())
+        unmeteredWifiCb.expectAvailableCallbacks(wifiAgent.network, validated = false)
+
+        // Dropping the capability again unmatches the request. The cell request is unaffected.
+        wifiAgent.sendNetworkCapabilities(wifiNc)
+        unmeteredWifiCb.expect<Lost>(wifiAgent.network)
+        cellCb.assertNoCallback(NO_CALLBACK_TIMEOUT_MS)
+    }
+}
@@ -16,8 +16,13 @@
 
 package com.android.server.net;
 
+import static com.android.server.net.IpConfigStore.JOURNAL_SUFFIX;
+import static com.android.server.net.IpConfigStore.MIN_JOURNAL_RECORDS_BEFORE_COMPACTION;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.content.Context;
@@ -37,6 +42,7 @@ import androidx.test.InstrumentationRegistry;
 import com.android.testutils.DevSdkIgnoreRule;
 import com.android.testutils.DevSdkIgnoreRunner;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -44,6 +50,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -82,6 +89,17 @@ public class IpConfigStoreTest {
     private static final ProxyInfo PROXY_INFO =
             ProxyInfo.buildDirectProxy("10.10.10.10", 88, Arrays.asList("host1", "host2"));
 
+    private final File mConfigFile = new File(
+            InstrumentationRegistry.getContext().getFilesDir().getPath(),
+            "IpConfigStoreTest-journaled-ipconfig.txt");
+    private final File mJournalFile = new File(mConfigFile.getPath() + JOURNAL_SUFFIX);
+
+    @After
+    public void tearDown() {
+        mConfigFile.delete();
+        mJournalFile.delete();
+    }
+
     @Test
     public void backwardCompatibility2to3() throws IOException {
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
@@ -174,6 +192,115 @@ public class IpConfigStoreTest {
         configFile.delete();
     }
 
+    @Test
+    public void writeIpConfigurationAppendsToJournal() throws Exception {
+        final String path = mConfigFile.getPath();
+        final IpConfigStore store = new IpConfigStore(new SynchronousDelayedDiskWrite());
+        final ArrayMap<String, IpConfiguration> networks = new ArrayMap<>();
+
+        // The first write compacts the journal, as it may have been written by another store.
+        final IpConfiguration config1 = newIpConfiguration(IpAssignment.STATIC,
+                ProxySettings.STATIC, STATIC_IP_CONFIG_1, PROXY_INFO);
+        networks.put(IFACE_1, config1);
+        store.writeIpConfiguration(path, IFACE_1, config1, networks);
+        assertFalse(mJournalFile.exists());
+        final long snapshotLength = mConfigFile.length();
+
+        // Following writes only append to the journal.
+        final IpConfiguration config2 = newIpConfiguration(IpAssignment.STATIC,
+                ProxySettings.NONE, STATIC_IP_CONFIG_2, null);
+        networks.put(IFACE_2, config2);
+        store.writeIpConfiguration(path, IFACE_2, config2, networks);
+        final IpConfiguration dhcpConfig =
+                newIpConfiguration(IpAssignment.DHCP, ProxySettings.NONE, null, null);
+        networks.put(IFACE_1, dhcpConfig);
+        store.writeIpConfiguration(path, IFACE_1, dhcpConfig, networks);
+        assertEquals(snapshotLength, mConfigFile.length());
+        assertTrue(mJournalFile.exists());
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+
+        networks.remove(IFACE_2);
+        store.writeIpConfiguration(path, IFACE_2, null, networks);
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+
+        // Writing all configurations discards the journal.
+        store.writeIpConfigurations(path, networks);
+        assertFalse(mJournalFile.exists());
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+    }
+
+    @Test
+    public void writeIpConfigurationCompactsJournal() throws Exception {
+        final String path = mConfigFile.getPath();
+        final IpConfigStore store = new IpConfigStore(new SynchronousDelayedDiskWrite());
+        final ArrayMap<String, IpConfiguration> networks = new ArrayMap<>();
+        final IpConfiguration staticConfig = newIpConfiguration(IpAssignment.STATIC,
+                ProxySettings.NONE, STATIC_IP_CONFIG_1, null);
+        final IpConfiguration dhcpConfig =
+                newIpConfiguration(IpAssignment.DHCP, ProxySettings.NONE, null, null);
+
+        for (int i = 0; i <= MIN_JOURNAL_RECORDS_BEFORE_COMPACTION; i++) {
+            final IpConfiguration config = (i % 2 == 0) ? staticConfig : dhcpConfig;
+            networks.put(IFACE_1, config);
+            store.writeIpConfiguration(path, IFACE_1, config, networks);
+        }
+        assertTrue(mJournalFile.exists());
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+
+        networks.put(IFACE_2, staticConfig);
+        store.writeIpConfiguration(path, IFACE_2, staticConfig, networks);
+        assertFalse(mJournalFile.exists());
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+    }
+
+    @Test
+    public void readIpConfigurationsIgnoresTruncatedJournalRecord() throws Exception {
+        final String path = mConfigFile.getPath();
+        final IpConfigStore store = new IpConfigStore(new SynchronousDelayedDiskWrite());
+        final ArrayMap<String, IpConfiguration> networks = new ArrayMap<>();
+        final IpConfiguration config = newIpConfiguration(IpAssignment.STATIC,
+                ProxySettings.STATIC, STATIC_IP_CONFIG_1, PROXY_INFO);
+        networks.put(IFACE_1, config);
+        store.writeIpConfiguration(path, IFACE_1, config, networks);
+        networks.put(IFACE_2, config);
+        store.writeIpConfiguration(path, IFACE_2, config, networks);
+
+        // Emulate a crash while appending a record.
+        try (FileOutputStream out = new FileOutputStream(mJournalFile, true /* append */)) {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        }
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+    }
+
+    @Test
+    public void writeIpConfigurationCompactsAfterFailedAppend() throws Exception {
+        final String path = mConfigFile.getPath();
+        final IpConfigStore store = new IpConfigStore(new ErrorIgnoringDelayedDiskWrite());
+        final ArrayMap<String, IpConfiguration> networks = new ArrayMap<>();
+        final IpConfiguration config = newIpConfiguration(IpAssignment.STATIC,
+                ProxySettings.STATIC, STATIC_IP_CONFIG_1, PROXY_INFO);
+        networks.put(IFACE_1, config);
+        store.writeIpConfiguration(path, IFACE_1, config, networks);
+        networks.put(IFACE_2, config);
+        store.writeIpConfiguration(path, IFACE_2, config, networks);
+        assertTrue(mJournalFile.exists());
+
+        // Make the next append fail. The write error is only logged, like DelayedDiskWrite does.
+        assertTrue(mJournalFile.delete());
+        assertTrue(mJournalFile.mkdir());
+        final IpConfiguration dhcpConfig =
+                newIpConfiguration(IpAssignment.DHCP, ProxySettings.NONE, null, null);
+        networks.put(IFACE_1, dhcpConfig);
+        store.writeIpConfiguration(path, IFACE_1, dhcpConfig, networks);
+        assertTrue(mJournalFile.isDirectory());
+
+        // The following write rewrites the whole file instead of appending to the journal.
+        networks.remove(IFACE_2);
+        store.writeIpConfiguration(path, IFACE_2, null, networks);
+        assertFalse(mJournalFile.exists());
+        assertEquals(networks, IpConfigStore.readIpConfigurations(path));
+    }
+
     private IpConfiguration newIpConfiguration(IpAssignment ipAssignment,
             ProxySettings proxySettings, StaticIpConfiguration staticIpConfig, ProxyInfo info) {
         final IpConfiguration config = new IpConfiguration();
@@ -202,6 +329,32 @@ public class IpConfigStoreTest {
         out.writeUTF("eos");
     }
 
+    /** Synchronously writes into the given file path */
+    private static class SynchronousDelayedDiskWrite extends DelayedDiskWrite {
+        @Override
+        public void write(String filePath, Writer w, boolean open) {
+            try (DataOutputStream out =
+                    open ? new DataOutputStream(new FileOutputStream(filePath)) : null) {
+                w.onWriteCalled(out);
+            } catch (IOException e) {
+                fail("Error writing " + filePath + ": " + e);
+            }
+        }
+    }
+
+    /** Synchronously writes into the given file path, only logging errors */
+    private static class ErrorIgnoringDelayedDiskWrite extends DelayedDiskWrite {
+        @Override
+        public void write(String filePath, Writer w, boolean open) {
+            try (DataOutputStream out =
+                    open ? new DataOutputStream(new FileOutputStream(filePath)) : null) {
+                w.onWriteCalled(out);
+            } catch (IOException e) {
+                // Ignored, as DelayedDiskWrite only logs write errors.
+            }
+        }
+    }
+
     /** Synchronously writes into given byte steam */
     private static class MockedDelayedDiskWrite extends DelayedDiskWrite {
         final ByteArrayOutputStream mByteStream = new ByteArrayOutputStream();
@@ -520,6 +520,51 @@ public class NetworkStatsObserversTest {
         waitForObserverToIdle();
     }
 
+    @Test
+    public void testUpdateStats_sameTemplate_countsFromOwnBaseline() throws Exception {
+        final DataUsageRequest inputRequest = new DataUsageRequest(
+                DataUsageRequest.REQUEST_ID_UNSET, sTemplateImsi1, THRESHOLD_BYTES);
+        final DataUsageRequest request1 = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_SYSTEM, Process.SYSTEM_UID, PACKAGE_SYSTEM,
+                NetworkStatsAccess.Level.DEVICE);
+        mActiveIfaces.put(TEST_IFACE, makeTestIdentSet());
+
+        // Baseline for the first request
+        long bytes = BASE_BYTES;
+        mStatsObservers.updateStats(makeXtSnapshot(bytes), null /* uidSnapshot */, mActiveIfaces,
+                mActiveUidIfaces, TEST_START);
+        bytes += THRESHOLD_BYTES / 2;
+        mStatsObservers.updateStats(makeXtSnapshot(bytes), null /* uidSnapshot */, mActiveIfaces,
+                mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.assertNoCallback();
+
+        // The second request starts counting from the next snapshot, while the first one
+        // keeps counting from its own baseline.
+        final DataUsageRequest request2 = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_SYSTEM, Process.SYSTEM_UID, PACKAGE_SYSTEM,
+                NetworkStatsAccess.Level.DEVICE);
+        bytes += THRESHOLD_BYTES / 2 + 1;
+        mStatsObservers.updateStats(makeXtSnapshot(bytes), null /* uidSnapshot */, mActiveIfaces,
+                mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.expectOnThresholdReached(request1);
+        mUsageCallback.assertNoCallback();
+
+        // Usage since the previous notification is counted again.
+        bytes += THRESHOLD_BYTES + 1;
+        mStatsObservers.updateStats(makeXtSnapshot(bytes), null /* uidSnapshot */, mActiveIfaces,
+                mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.expectOnThresholdReached(request1);
+        mUsageCallback.expectOnThresholdReached(request2);
+    }
+
+    private static NetworkStats makeXtSnapshot(long bytes) {
+        return new NetworkStats(TEST_START, 1 /* initialSize */)
+                .insertEntry(TEST_IFACE, bytes, 8L, bytes, 16L);
+    }
+
     private void waitForObserverToIdle() {
         HandlerUtils.waitForIdle(mObserverHandlerThread, WAIT_TIMEOUT_MS);
     }
@@ -80,6 +80,7 @@ import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_ATTEMPT
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME;
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_SUCCESSES_COUNTER_NAME;
 import static com.android.server.net.NetworkStatsService.TRAFFICSTATS_SERVICE_RATE_LIMIT_CACHE_ENABLED_FLAG;
+import static com.android.server.net.NetworkStatsService.TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
 import static org.junit.Assert.assertEquals;
@@ -130,8 +131,10 @@ import android.net.TetherStatsParcel;
 import android.net.TetheringManager;
 import android.net.TrafficStats;
 import android.net.UnderlyingNetworkInfo;
+import android.net.netstats.TrafficStatsSnapshot;
 import android.net.netstats.provider.INetworkStatsProviderCallback;
 import android.net.wifi.WifiInfo;
+import android.os.Binder;
 import android.os.DropBoxManager;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -139,6 +142,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SharedMemory;
 import android.os.SimpleClock;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -504,6 +508,11 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             return mFastDataInputTargetAttempts;
         }
 
+        @Override
+        public boolean useIndexedStatsFileFormat() {
+            return false;
+        }
+
         @Override
         public String compareStats(NetworkStatsCollection a, NetworkStatsCollection b,
                  boolean allowKeyChange) {
@@ -632,6 +641,12 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                     BROADCAST_NETWORK_STATS_UPDATED_RATE_LIMIT_ENABLED_FLAG, true);
         }
 
+        @Override
+        public boolean supportTrafficStatsSnapshot(Context ctx) {
+            return mFeatureFlags.getOrDefault(
+                    TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG, false);
+        }
+
         @Override
         public int getTrafficStatsRateLimitCacheExpiryDuration() {
             return DEFAULT_TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS;
@@ -2502,6 +2517,43 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         assertTrafficStatsValues(TEST_IFACE, myUid, 65L, 8L, 1055L, 9L);
     }
 
+    @FeatureFlag(name = TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG, enabled = false)
+    @Test
+    public void testOpenTrafficStatsSnapshot_featureDisabled() throws Exception {
+        assertNull(mService.openTrafficStatsSnapshot(new Binder()));
+    }
+
+    @FeatureFlag(name = TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG)
+    @Test
+    public void testOpenTrafficStatsSnapshot_rateLimitCacheDisabled() throws Exception {
+        mDeps.setChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE, false);
+        assertNull(mService.openTrafficStatsSnapshot(new Binder()));
+    }
+
+    @FeatureFlag(name = TRAFFICSTATS_SHARED_MEMORY_SNAPSHOT_ENABLED_FLAG)
+    @Test
+    public void testOpenTrafficStatsSnapshot() throws Exception {
+        mockDefaultSettings();
+        mDeps.setChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE, true);
+        mockTrafficStatsValues(64L, 3L, 1024L, 8L);
+        final SharedMemory memory = mService.openTrafficStatsSnapshot(new Binder());
+        assertNotNull(memory);
+        // The snapshot is published on the handler thread.
+        HandlerUtils.waitForIdle(mHandlerThread, WAIT_TIMEOUT);
+
+        final TrafficStatsSnapshot snapshot = new TrafficStatsSnapshot(memory.mapReadOnly());
+        final int myUid = Process.myUid();
+        assertTrafficStatsValuesThat(64L, 3L, 1024L, 8L, (type) -> snapshot.getTotalStat(type));
+        assertTrafficStatsValuesThat(64L, 3L, 1024L, 8L,
+                (type) -> snapshot.getIfaceStat("lo", type));
+        assertTrafficStatsValuesThat(64L, 3L, 1024L, 8L,
+                (type) -> snapshot.getUidStat(myUid, type));
+        // The snapshot only contains the counters of the caller.
+        assertEquals(TrafficStatsSnapshot.NOT_AVAILABLE,
+                snapshot.getUidStat(myUid + 1, TrafficStats.TYPE_RX_BYTES));
+        memory.close();
+    }
+
     private void mockTrafficStatsValues(long rxBytes, long rxPackets,
             long txBytes, long txPackets) {
         // In practice, keys and operations are not used and filled with default values when
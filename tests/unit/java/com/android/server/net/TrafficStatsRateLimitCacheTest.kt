@@ -19,9 +19,15 @@ package com.android.server.net
 import android.net.NetworkStats.Entry
 import com.android.testutils.DevSdkIgnoreRunner
 import java.time.Clock
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.Supplier
 import kotlin.test.assertEquals
 import kotlin.test.assertNull
+import kotlin.test.assertTrue
 import kotlin.test.fail
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -35,6 +41,7 @@ class TrafficStatsRateLimitCacheTest {
     companion object {
         private const val expiryDurationMs = 1000L
         private const val maxSize = 2
+        private const val TIMEOUT_MS = 1000L
     }
 
     private val clock = mock(Clock::class.java)
@@ -141,6 +148,57 @@ class TrafficStatsRateLimitCacheTest {
         verify(supplier).get()
     }
 
+    @Test
+    fun testGetOrCompute_concurrentMissesShareComputation() {
+        val largeCache = TrafficStatsRateLimitCache(clock, expiryDurationMs, 400 /* maxSize */)
+        val computing = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val calls = AtomicInteger()
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val first = executor.submit(Callable {
+                largeCache.getOrCompute("iface", 2) {
+                    calls.incrementAndGet()
+                    computing.countDown()
+                    release.await()
+                    entry
+                }
+            })
+            assertTrue(computing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            val second = executor.submit(Callable {
+                largeCache.getOrCompute("iface", 2) {
+                    fail("Supplier called while the entry is being computed")
+                }
+            })
+            // Only release the computation once the second lookup is waiting for it.
+            val deadline = System.currentTimeMillis() + TIMEOUT_MS
+            while (largeCache.sharedMissCount < 1L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertEquals(1L, largeCache.sharedMissCount)
+
+            // Misses for other keys do not wait for the computation.
+            val otherEntry = mock(Entry::class.java)
+            assertEquals(otherEntry, largeCache.getOrCompute("iface", 4) { otherEntry })
+            assertEquals(1L, largeCache.sharedMissCount)
+
+            release.countDown()
+            assertEquals(entry, first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            assertEquals(entry, second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            assertEquals(1, calls.get())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testGet_differentIfacesWithSameHash() {
+        // "Aa" and "BB" have the same hash code.
+        cache.put("Aa", 2, entry)
+        assertNull(cache.get("BB", 2))
+        assertEquals(entry, cache.get("Aa", 2))
+    }
+
     @Test
     fun testClear() {
         cache.put("iface", 2, entry)